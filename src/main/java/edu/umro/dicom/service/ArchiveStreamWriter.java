@@ -0,0 +1,148 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream of named entries, such as a zip or tar file, written one entry at
+ * a time.  Data written between <code>putNextEntry</code> and
+ * <code>closeEntry</code> becomes the content of the entry.  Closing the
+ * stream finishes the archive and closes the underlying stream, and may be
+ * done more than once.
+ *
+ * @author irrer
+ *
+ */
+public abstract class ArchiveStreamWriter extends OutputStream {
+
+    /**
+     * Growable buffer whose contents can be used without copying, for
+     * formats that need the size of an entry before its content.
+     */
+    protected static class EntryBuffer extends ByteArrayOutputStream {
+        protected EntryBuffer(int size) {
+            super(size);
+        }
+
+        protected byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+
+    /**
+     * Start a new entry, closing the current one if there is one.
+     *
+     * @param name Name of entry.
+     *
+     * @throws IOException On failure to write.
+     */
+    public abstract void putNextEntry(String name) throws IOException;
+
+
+    /**
+     * Content of an entry whose size is known and that can be written more
+     * than once, such as a file or a buffer already in memory.
+     */
+    public interface EntrySource {
+        /**
+         * Write the whole content.  The stream is neither flushed nor closed.
+         *
+         * @param outputStream Destination.
+         *
+         * @throws IOException On failure to read or write.
+         */
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+
+    /**
+     * Start a new entry whose size is known, closing the current one if
+     * there is one.  Exactly <code>size</code> bytes must be written before
+     * the entry is closed.  Formats that put the size before the content may
+     * use it to avoid buffering the entry.  By default the size is ignored.
+     *
+     * @param name Name of entry.
+     *
+     * @param size Number of bytes in the entry.
+     *
+     * @throws IOException On failure to write.
+     */
+    public void putNextEntry(String name, long size) throws IOException {
+        putNextEntry(name);
+    }
+
+
+    /**
+     * Write a complete entry from content that can be read more than once.
+     * Formats that need something computed from the content before it, such
+     * as a checksum, may read it twice instead of buffering it.  By default
+     * the content is written once between <code>putNextEntry</code> and
+     * <code>closeEntry</code>.
+     *
+     * @param name Name of entry.
+     *
+     * @param size Number of bytes in the entry.
+     *
+     * @param source Content of the entry.
+     *
+     * @throws IOException On failure to read or write.
+     */
+    public void writeEntry(String name, long size, EntrySource source) throws IOException {
+        putNextEntry(name, size);
+        try {
+            source.writeTo(this);
+        }
+        finally {
+            closeEntry();
+        }
+    }
+
+
+    /**
+     * Finish the current entry.  Does nothing if there is none.
+     *
+     * @throws IOException On failure to write.
+     */
+    public abstract void closeEntry() throws IOException;
+
+
+    /**
+     * Finish the archive.  The underlying stream is flushed but not closed.
+     *
+     * @throws IOException On failure to write.
+     */
+    public abstract void finish() throws IOException;
+
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+
+    /**
+     * Does nothing.  Entries are flushed as the format allows, and the
+     * archive when it is finished.
+     */
+    @Override
+    public void flush() {
+    }
+}
@@ -0,0 +1,629 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.network.Association;
+import com.pixelmed.network.AssociationFactory;
+import com.pixelmed.network.CompositeResponseHandler;
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.PresentationContext;
+
+import edu.umro.util.Log;
+
+/**
+ * Keeps DICOM associations with remote PACS open between operations so that
+ * each C-FIND, C-MOVE or C-STORE does not have to pay for a TCP connect and
+ * association negotiation.
+ *
+ * Associations are pooled by remote PACS, calling AE title, and the set of
+ * presentation contexts proposed.  An association that has been idle for a
+ * while is checked with a C-ECHO before it is re-used, and one that has
+ * been idle too long is released.  The number of associations open to each
+ * PACS is limited.  If an operation fails on a re-used association before
+ * the PACS responded, it is repeated once on a new association.
+ *
+ * @author irrer
+ *
+ */
+public class AssociationPool {
+
+    /** Pixelmed debug level. */
+    private static final int DEBUG_LEVEL = 0;
+
+    /**
+     * Maximum number of presentation contexts an operation may propose.
+     * Identifiers are odd numbers from 1 to 255, which allows 128, and one
+     * is used for verification.
+     */
+    public static final int MAX_PRESENTATION_CONTEXTS = 127;
+
+    private static AssociationPool instance = null;
+
+    /**
+     * Something to be done with an association.
+     */
+    public static abstract class Operation {
+        /**
+         * Set to true when the PACS has responded.  After that the operation
+         * will not be repeated on a new association if it fails, because the
+         * PACS may have acted on it.
+         */
+        protected boolean started = false;
+
+        /**
+         * Set to false if the association should not be re-used, for
+         * example because it was aborted.
+         */
+        protected boolean reusable = true;
+
+        /** Association the operation is being performed on, while it is. */
+        private volatile Association association = null;
+
+        /** True if the operation has been aborted. */
+        private volatile boolean aborted = false;
+
+        /**
+         * Abort the association that the operation is being performed on, so
+         * that a thread waiting for the PACS is released.  The operation
+         * fails and is not repeated, and the association is not re-used.
+         */
+        private void abort() {
+            aborted = true;
+            Association current = association;
+            if (current != null) {
+                try {
+                    current.abort();
+                }
+                catch (Exception e) {
+                    Log.get().fine("Ignoring error while aborting association: " + e);
+                }
+            }
+        }
+
+        /**
+         * Perform the operation.
+         *
+         * @param association Association to use.
+         */
+        public abstract void perform(Association association) throws DicomNetworkException, DicomException, IOException;
+    }
+
+    /**
+     * An association and what it was opened for.
+     */
+    private static class Pooled {
+        private final Association association;
+        private final String key;
+        private final String pacsKey;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean reused = false;
+
+        private Pooled(Association association, String key, String pacsKey) {
+            this.association = association;
+            this.key = key;
+            this.pacsKey = pacsKey;
+        }
+    }
+
+    /**
+     * Checks the response to a C-ECHO.
+     */
+    private static class EchoResponseHandler extends CompositeResponseHandler {
+        private boolean ok = false;
+
+        EchoResponseHandler() {
+            super(DEBUG_LEVEL);
+        }
+
+        @Override
+        protected void evaluateStatusAndSetSuccess(AttributeList list) {
+            ok = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Status, 0xFFFF) == DicomCommand.STATUS_SUCCESS;
+            setDone(true);
+        }
+    }
+
+    /** Idle associations by key, most recently used first. */
+    private final HashMap<String, LinkedList<Pooled>> idleList = new HashMap<String, LinkedList<Pooled>>();
+
+    /** Operation being performed by each thread. */
+    private final HashMap<Thread, Operation> activeList = new HashMap<Thread, Operation>();
+
+    /** Number of open associations (idle or in use) by PACS. */
+    private final HashMap<String, Integer> openCount = new HashMap<String, Integer>();
+
+    /** Idle associations are released after this many milliseconds.  Zero disables pooling. */
+    private final long maxIdle;
+
+    /** Idle associations are checked with C-ECHO before re-use if idle longer than this many milliseconds. */
+    private final long validateAfter;
+
+    /** Maximum number of associations open to a single PACS. */
+    private final int maxPerPacs;
+
+    /** Maximum time to wait for an association when the PACS is at its limit. */
+    private final long maxWait;
+
+    // metrics
+    private long createdCount = 0;
+    private long reusedCount = 0;
+    private long validationFailedCount = 0;
+    private long retryCount = 0;
+    private long expiredCount = 0;
+    private long abortedCount = 0;
+
+
+    private AssociationPool() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        maxIdle = config.getAssociationPoolMaxIdleSeconds() * 1000L;
+        validateAfter = config.getAssociationPoolValidateAfterSeconds() * 1000L;
+        maxPerPacs = config.getAssociationPoolMaxPerPacs();
+        maxWait = config.getAssociationPoolMaxWaitSeconds() * 1000L;
+        Log.get().info("Association pool maximum idle ms: " + maxIdle + "  validate after ms: " + validateAfter +
+                "  maximum per PACS: " + maxPerPacs + "  maximum wait ms: " + maxWait);
+        if (maxIdle > 0) {
+            Timer timer = new Timer("AssociationPool", true);
+            long period = Math.max(1000, maxIdle / 2);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    ArrayList<Pooled> toClose = new ArrayList<Pooled>();
+                    synchronized (AssociationPool.this) {
+                        removeExpired(toClose);
+                    }
+                    close(toClose);
+                }
+            }, period, period);
+        }
+    }
+
+
+    public static synchronized AssociationPool getInstance() {
+        if (instance == null) {
+            instance = new AssociationPool();
+        }
+        return instance;
+    }
+
+
+    private static String getPacsKey(PACS pacs) {
+        return pacs.aeTitle + "@" + pacs.host + ":" + pacs.port;
+    }
+
+
+    /**
+     * Build the key that identifies associations that are interchangeable.
+     */
+    private static String getKey(PACS pacs, String callingAETitle, List<PresentationContext> presentationContextList) {
+        ArrayList<String> contextList = new ArrayList<String>();
+        for (PresentationContext presentationContext : presentationContextList) {
+            StringBuffer context = new StringBuffer(presentationContext.getIdentifier() + ":" + presentationContext.getAbstractSyntaxUID());
+            for (Object transferSyntax : presentationContext.getTransferSyntaxUIDs()) {
+                context.append("," + transferSyntax);
+            }
+            contextList.add(context.toString());
+        }
+        Collections.sort(contextList);
+        return getPacsKey(pacs) + "|" + callingAETitle + "|" + contextList;
+    }
+
+
+    private int getOpenCount(String pacsKey) {
+        Integer count = openCount.get(pacsKey);
+        return (count == null) ? 0 : count;
+    }
+
+
+    private void adjustOpenCount(String pacsKey, int change) {
+        openCount.put(pacsKey, getOpenCount(pacsKey) + change);
+    }
+
+
+    /**
+     * Remove idle associations that have been idle too long.  The caller must
+     * hold the lock, and must close the removed associations after releasing it.
+     */
+    private void removeExpired(List<Pooled> toClose) {
+        long now = System.currentTimeMillis();
+        for (LinkedList<Pooled> list : idleList.values()) {
+            for (Iterator<Pooled> i = list.iterator(); i.hasNext(); ) {
+                Pooled pooled = i.next();
+                if ((now - pooled.lastUsed) > maxIdle) {
+                    i.remove();
+                    adjustOpenCount(pooled.pacsKey, -1);
+                    toClose.add(pooled);
+                    expiredCount++;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Remove the least recently used idle association to the given PACS that
+     * was opened for a different purpose, to make room for a new one.  The
+     * caller must hold the lock and close the removed association.
+     *
+     * @return True if one was removed.
+     */
+    private boolean removeIdleForPacs(String pacsKey, List<Pooled> toClose) {
+        Pooled oldest = null;
+        for (LinkedList<Pooled> list : idleList.values()) {
+            if (!list.isEmpty() && list.getLast().pacsKey.equals(pacsKey) && ((oldest == null) || (list.getLast().lastUsed < oldest.lastUsed))) {
+                oldest = list.getLast();
+            }
+        }
+        if (oldest != null) {
+            idleList.get(oldest.key).removeLast();
+            adjustOpenCount(pacsKey, -1);
+            toClose.add(oldest);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Close associations gracefully, ignoring errors.
+     */
+    private void close(List<Pooled> toClose) {
+        for (Pooled pooled : toClose) {
+            try {
+                pooled.association.release();
+            }
+            catch (Exception e) {
+                Log.get().fine("Ignoring error while releasing idle association: " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Discard an association that is broken or no longer wanted.
+     */
+    private void discard(Pooled pooled) {
+        try {
+            pooled.association.abort();
+        }
+        catch (Exception e) {
+            Log.get().fine("Ignoring error while aborting association: " + e);
+        }
+        synchronized (this) {
+            adjustOpenCount(pooled.pacsKey, -1);
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Check that an idle association still works.
+     */
+    private boolean validate(Pooled pooled) {
+        if ((System.currentTimeMillis() - pooled.lastUsed) <= validateAfter) {
+            return true;
+        }
+        try {
+            Association association = pooled.association;
+            byte presentationContextID = association.getSuitablePresentationContextID(SOPClass.Verification);
+            EchoResponseHandler handler = new EchoResponseHandler();
+            association.setReceivedDataHandler(handler);
+            association.send(presentationContextID, DicomCommand.cEchoRequest(DicomCommand.nextMessageID()), null);
+            association.waitForPDataPDUsUntilHandlerReportsDone();
+            return handler.ok;
+        }
+        catch (Exception e) {
+            Log.get().fine("Pooled association failed C-ECHO: " + e);
+            return false;
+        }
+    }
+
+
+    /**
+     * Get an association, either an idle one or a new one.
+     *
+     * @param allowIdle If false, always open a new association.
+     */
+    private Pooled acquire(PACS pacs, String callingAETitle, List<PresentationContext> presentationContextList, boolean allowIdle)
+            throws DicomNetworkException, DicomException, IOException {
+        if (presentationContextList.size() > MAX_PRESENTATION_CONTEXTS) {
+            throw new DicomNetworkException("Unable to propose " + presentationContextList.size() + " presentation contexts to " + pacs.aeTitle +
+                    " .  At most " + MAX_PRESENTATION_CONTEXTS + " are allowed on one association.");
+        }
+        // every association can be checked with C-ECHO, using the lowest identifier not already used
+        LinkedList<PresentationContext> contextList = new LinkedList<PresentationContext>(presentationContextList);
+        HashSet<Integer> usedIDSet = new HashSet<Integer>();
+        for (PresentationContext presentationContext : presentationContextList) {
+            usedIDSet.add(presentationContext.getIdentifier() & 0xff);
+        }
+        int verificationID = 1;
+        while (usedIDSet.contains(verificationID)) {
+            verificationID += 2;
+        }
+        LinkedList<String> transferSyntaxList = new LinkedList<String>();
+        transferSyntaxList.add(TransferSyntax.ImplicitVRLittleEndian);
+        contextList.add(new PresentationContext((byte)verificationID, SOPClass.Verification, transferSyntaxList));
+
+        String key = getKey(pacs, callingAETitle, contextList);
+        String pacsKey = getPacsKey(pacs);
+        long deadline = System.currentTimeMillis() + maxWait;
+
+        while (true) {
+            Pooled pooled = null;
+            boolean create = false;
+            boolean timedOut = false;
+            ArrayList<Pooled> toClose = new ArrayList<Pooled>();
+            synchronized (this) {
+                removeExpired(toClose);
+                LinkedList<Pooled> idle = idleList.get(key);
+                if (allowIdle && (idle != null) && !idle.isEmpty()) {
+                    pooled = idle.removeFirst();
+                }
+                else if ((getOpenCount(pacsKey) < maxPerPacs) || removeIdleForPacs(pacsKey, toClose)) {
+                    adjustOpenCount(pacsKey, 1);
+                    create = true;
+                }
+                else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining > 0) {
+                        try {
+                            wait(remaining);
+                        }
+                        catch (InterruptedException e) {
+                            timedOut = true;
+                        }
+                    }
+                    else {
+                        timedOut = true;
+                    }
+                }
+            }
+            close(toClose);
+
+            if (timedOut) {
+                throw new DicomNetworkException("Timed out waiting for one of the " + maxPerPacs + " associations allowed to PACS " + pacs.aeTitle);
+            }
+
+            if (pooled != null) {
+                if (validate(pooled)) {
+                    pooled.reused = true;
+                    synchronized (this) {
+                        reusedCount++;
+                    }
+                    return pooled;
+                }
+                synchronized (this) {
+                    validationFailedCount++;
+                }
+                discard(pooled);
+            }
+
+            if (create) {
+                try {
+                    Association association = AssociationFactory.createNewAssociation(pacs.host, pacs.port, pacs.aeTitle, callingAETitle, contextList, null, false, DEBUG_LEVEL);
+                    synchronized (this) {
+                        createdCount++;
+                    }
+                    return new Pooled(association, key, pacsKey);
+                }
+                catch (DicomNetworkException e) {
+                    synchronized (this) {
+                        adjustOpenCount(pacsKey, -1);
+                        notifyAll();
+                    }
+                    throw e;
+                }
+                catch (IOException e) {
+                    synchronized (this) {
+                        adjustOpenCount(pacsKey, -1);
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Return an association after use.
+     *
+     * @param reusable True if the association is in a state where it can be used again.
+     */
+    private void release(Pooled pooled, boolean reusable) {
+        if (reusable && (maxIdle > 0)) {
+            synchronized (this) {
+                pooled.lastUsed = System.currentTimeMillis();
+                LinkedList<Pooled> idle = idleList.get(pooled.key);
+                if (idle == null) {
+                    idle = new LinkedList<Pooled>();
+                    idleList.put(pooled.key, idle);
+                }
+                idle.addFirst(pooled);
+                notifyAll();
+            }
+        }
+        else if (reusable) {
+            ArrayList<Pooled> toClose = new ArrayList<Pooled>();
+            toClose.add(pooled);
+            close(toClose);
+            synchronized (this) {
+                adjustOpenCount(pooled.pacsKey, -1);
+                notifyAll();
+            }
+        }
+        else {
+            discard(pooled);
+        }
+    }
+
+
+    private static void rethrow(Exception e) throws DicomNetworkException, IOException {
+        if (e instanceof DicomNetworkException) {
+            throw (DicomNetworkException)e;
+        }
+        throw (IOException)e;
+    }
+
+
+    /**
+     * Perform an operation on an association, unless it has been aborted.
+     */
+    private void perform(Pooled pooled, Operation operation) throws DicomNetworkException, DicomException, IOException {
+        operation.association = pooled.association;
+        try {
+            if (operation.aborted) {
+                operation.reusable = false;
+                throw new DicomNetworkException("Operation was aborted.");
+            }
+            operation.perform(pooled.association);
+        }
+        finally {
+            operation.association = null;
+        }
+    }
+
+
+    /**
+     * Perform an operation on an association with the given PACS.
+     *
+     * @param pacs Remote PACS.
+     *
+     * @param callingAETitle Our AE title.
+     *
+     * @param presentationContextList Presentation contexts required by the
+     * operation.  Identifiers must be odd and unique, and there may be at
+     * most <code>MAX_PRESENTATION_CONTEXTS</code>.  A context for
+     * verification is added.
+     *
+     * @param operation What to do.
+     */
+    public void execute(PACS pacs, String callingAETitle, List<PresentationContext> presentationContextList, Operation operation)
+            throws DicomNetworkException, DicomException, IOException {
+        synchronized (this) {
+            activeList.put(Thread.currentThread(), operation);
+        }
+        try {
+            Pooled pooled = acquire(pacs, callingAETitle, presentationContextList, true);
+            boolean ok = false;
+            Exception failure = null;
+            try {
+                perform(pooled, operation);
+                ok = operation.reusable;
+            }
+            catch (DicomNetworkException e) {
+                failure = e;
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            finally {
+                release(pooled, ok);
+            }
+
+            if (failure != null) {
+                if (!pooled.reused || operation.started || operation.aborted) {
+                    rethrow(failure);
+                }
+                Log.get().info("Operation failed on re-used association with " + pacs.aeTitle + ", trying again with a new association: " + failure);
+                synchronized (this) {
+                    retryCount++;
+                }
+                operation.reusable = true;
+                Pooled fresh = acquire(pacs, callingAETitle, presentationContextList, false);
+                ok = false;
+                try {
+                    perform(fresh, operation);
+                    ok = operation.reusable;
+                }
+                finally {
+                    release(fresh, ok);
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                activeList.remove(Thread.currentThread());
+            }
+        }
+    }
+
+
+    /**
+     * Abort the operation that the given thread is performing, if any, by
+     * aborting its association.  This releases a thread that is blocked
+     * waiting for a PACS that has stopped responding, which interrupting the
+     * thread does not.
+     *
+     * @param thread Thread performing the operation.
+     *
+     * @return True if an operation was aborted.
+     */
+    public boolean abort(Thread thread) {
+        Operation operation;
+        synchronized (this) {
+            operation = activeList.get(thread);
+            if (operation == null) {
+                return false;
+            }
+            abortedCount++;
+        }
+        operation.abort();
+        return true;
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        int idle = 0;
+        for (LinkedList<Pooled> list : idleList.values()) {
+            idle += list.size();
+        }
+        StringBuffer xml = new StringBuffer("<AssociationPool>\n");
+        xml.append("    <Idle>" + idle + "</Idle>\n");
+        for (Map.Entry<String, Integer> entry : openCount.entrySet()) {
+            xml.append("    <Open PACS='" + entry.getKey() + "'>" + entry.getValue() + "</Open>\n");
+        }
+        xml.append("    <MaxPerPacs>" + maxPerPacs + "</MaxPerPacs>\n");
+        xml.append("    <Created>" + createdCount + "</Created>\n");
+        xml.append("    <Reused>" + reusedCount + "</Reused>\n");
+        xml.append("    <ValidationFailed>" + validationFailedCount + "</ValidationFailed>\n");
+        xml.append("    <Retried>" + retryCount + "</Retried>\n");
+        xml.append("    <Expired>" + expiredCount + "</Expired>\n");
+        xml.append("    <Aborted>" + abortedCount + "</Aborted>\n");
+        xml.append("</AssociationPool>\n");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,214 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import edu.umro.util.Log;
+
+/**
+ * Pool of reusable byte buffers for holding uploads and objects received
+ * from other PACS, so that concurrent transfers do not each allocate (and
+ * the garbage collector reclaim) large arrays.
+ *
+ * Buffer sizes are powers of two, starting at one megabyte.  The total size
+ * of all buffers, both in use and kept for re-use, is limited, as is the
+ * size of the largest buffer, and a request that would exceed either is
+ * refused so that the caller can use a temporary file instead.  This bounds
+ * the memory used for them no matter how many are in progress.  Returned
+ * buffers are kept for re-use up to a limit on the total size kept, and are
+ * discarded when room is needed for a buffer of a different size.
+ *
+ * @author irrer
+ *
+ */
+public class BufferPool {
+
+    /** Smallest buffer handed out. */
+    private static final int MIN_SIZE = 1024 * 1024;
+
+    private static BufferPool instance = null;
+
+    /** Largest buffer handed out. */
+    private final int maxSize;
+
+    /** Maximum total size of buffers, both in use and idle. */
+    private final long maxInUse;
+
+    /** Maximum total size of idle buffers kept for re-use. */
+    private final long maxPooled;
+
+    /** Idle buffers by size. */
+    private final HashMap<Integer, LinkedList<byte[]>> idleList = new HashMap<Integer, LinkedList<byte[]>>();
+
+    private long inUseBytes = 0;
+    private long pooledBytes = 0;
+
+    // metrics
+    private long allocatedCount = 0;
+    private long reusedCount = 0;
+    private long refusedCount = 0;
+    private long maxObservedInUse = 0;
+    private long discardedCount = 0;
+
+
+    private BufferPool() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        int size = MIN_SIZE;
+        while ((size < config.getUploadBufferMaxBufferBytes()) && (size < (1 << 30))) {
+            size *= 2;
+        }
+        maxSize = size;
+        maxInUse = config.getUploadBufferMaxTotalBytes();
+        maxPooled = Math.min(maxInUse, config.getUploadBufferMaxPooledBytes());
+        Log.get().info("Upload buffer pool largest buffer: " + maxSize + "  maximum in use: " + maxInUse + "  maximum pooled: " + maxPooled);
+    }
+
+
+    public static synchronized BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return Size of the smallest buffer.
+     */
+    public int getMinimumSize() {
+        return MIN_SIZE;
+    }
+
+
+    /**
+     * Get a buffer at least as large as requested.
+     *
+     * @param size Minimum size needed.
+     *
+     * @return A buffer, or null if it would be too large or too much memory
+     * is already in use.
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = MIN_SIZE;
+        while ((sizeClass < size) && (sizeClass < maxSize)) {
+            sizeClass *= 2;
+        }
+        synchronized (this) {
+            if ((sizeClass < size) || ((inUseBytes + sizeClass) > maxInUse)) {
+                refusedCount++;
+                return null;
+            }
+            LinkedList<byte[]> idle = idleList.get(sizeClass);
+            if ((idle != null) && !idle.isEmpty()) {
+                inUseBytes += sizeClass;
+                maxObservedInUse = Math.max(maxObservedInUse, inUseBytes);
+                reusedCount++;
+                pooledBytes -= sizeClass;
+                return idle.removeFirst();
+            }
+            // idle buffers of other sizes count against the limit, so discard them to make room
+            while (((inUseBytes + pooledBytes + sizeClass) > maxInUse) && discardIdle()) {
+                discardedCount++;
+            }
+            if ((inUseBytes + pooledBytes + sizeClass) > maxInUse) {
+                refusedCount++;
+                return null;
+            }
+            inUseBytes += sizeClass;
+            maxObservedInUse = Math.max(maxObservedInUse, inUseBytes);
+            allocatedCount++;
+        }
+        // allocate outside of the lock because zeroing a large array takes a while
+        try {
+            return new byte[sizeClass];
+        }
+        catch (OutOfMemoryError e) {
+            synchronized (this) {
+                inUseBytes -= sizeClass;
+                refusedCount++;
+            }
+            Log.get().warning("Unable to allocate upload buffer of size " + sizeClass + " : " + e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Discard an idle buffer, the largest first.  The caller must hold the lock.
+     *
+     * @return True if one was discarded.
+     */
+    private boolean discardIdle() {
+        int largest = 0;
+        for (Integer sizeClass : idleList.keySet()) {
+            if (!idleList.get(sizeClass).isEmpty() && (sizeClass > largest)) {
+                largest = sizeClass;
+            }
+        }
+        if (largest == 0) {
+            return false;
+        }
+        idleList.get(largest).removeLast();
+        pooledBytes -= largest;
+        return true;
+    }
+
+
+    /**
+     * Return a buffer obtained from <code>acquire</code>.  The caller must not
+     * use it afterwards.
+     *
+     * @param buffer Buffer to return.  Ignored if null.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        inUseBytes -= buffer.length;
+        if ((pooledBytes + buffer.length) <= maxPooled) {
+            LinkedList<byte[]> idle = idleList.get(buffer.length);
+            if (idle == null) {
+                idle = new LinkedList<byte[]>();
+                idleList.put(buffer.length, idle);
+            }
+            idle.addFirst(buffer);
+            pooledBytes += buffer.length;
+        }
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<UploadBufferPool>\n" +
+            "    <InUseBytes>" + inUseBytes + "</InUseBytes>\n" +
+            "    <MaxInUseBytes>" + maxInUse + "</MaxInUseBytes>\n" +
+            "    <MaxObservedInUseBytes>" + maxObservedInUse + "</MaxObservedInUseBytes>\n" +
+            "    <PooledBytes>" + pooledBytes + "</PooledBytes>\n" +
+            "    <MaxPooledBytes>" + maxPooled + "</MaxPooledBytes>\n" +
+            "    <MaxBufferBytes>" + maxSize + "</MaxBufferBytes>\n" +
+            "    <Allocated>" + allocatedCount + "</Allocated>\n" +
+            "    <Reused>" + reusedCount + "</Reused>\n" +
+            "    <Refused>" + refusedCount + "</Refused>\n" +
+            "    <Discarded>" + discardedCount + "</Discarded>\n" +
+            "</UploadBufferPool>\n";
+    }
+}
@@ -19,6 +19,7 @@ package edu.umro.dicom.service;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeFactory;
@@ -28,22 +29,51 @@ import com.pixelmed.dicom.DicomDictionary;
 import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.SOPClass;
 import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
 import com.pixelmed.dicom.ValueRepresentation;
+import com.pixelmed.network.AReleaseException;
+import com.pixelmed.network.Association;
+import com.pixelmed.network.CompositeResponseHandler;
 import com.pixelmed.network.DicomNetworkException;
-import com.pixelmed.network.FindSOPClassSCU;
 import com.pixelmed.network.IdentifierHandler;
+import com.pixelmed.network.PresentationContext;
 
 import edu.umro.util.Log;
 import edu.umro.util.UMROException;
 
 public class CFind extends IdentifierHandler {
 
+    /** Pixelmed debug level. */
+    private static final int DEBUG_LEVEL = 0;
+
+    /** Status of the final response.  Initialized to failure in case there is none. */
+    private volatile int finalStatus = 0xFFFF;
+
     private ArrayList<AttributeList> list = new ArrayList<AttributeList>();
 
     private long limit = -1;
 
     private long overLimit = 0;
 
+    /** Number of results accepted. */
+    private long count = 0;
+
+    /** If not null, results are passed here as they arrive instead of being kept in the list. */
+    private Listener listener = null;
+
+    /**
+     * Receives C-FIND results as they arrive from the PACS.  Results are
+     * passed on the thread performing the C-FIND.
+     */
+    public interface Listener {
+        /**
+         * Process a single result.
+         *
+         * @param attributeList Result from PACS.
+         */
+        void identifier(AttributeList attributeList);
+    }
+
     public enum QueryLevel {
         PATIENT,
         STUDY,
@@ -73,6 +103,19 @@ public class CFind extends IdentifierHandler {
 
 
     public CFind(PACS pacs, QueryLevel queryLevel, AttributeList attributeList, long lim) throws DicomNetworkException, DicomException, IOException, NumberFormatException, UMROException {
+        this(pacs, queryLevel, attributeList, lim, null);
+    }
+
+
+    /**
+     * Perform a C-FIND, passing each result to the given listener as soon as
+     * it arrives rather than keeping them.  Results beyond the limit are not
+     * passed, and <code>getList</code> reports that the limit was exceeded.
+     *
+     * @param listener Receives results, or null to keep them in the list.
+     */
+    public CFind(PACS pacs, QueryLevel queryLevel, AttributeList attributeList, long lim, Listener listener) throws DicomNetworkException, DicomException, IOException, NumberFormatException, UMROException {
+        this.listener = listener;
         if (lim > 0) {
             limit = lim;
         }
@@ -91,30 +134,103 @@ public class CFind extends IdentifierHandler {
         String callingAETitle = ServiceConfig.getInstance().getHostedPACS()[0].aeTitle;
 
         // perform the find
-        new FindSOPClassSCU(
-                pacs.host,
-                pacs.port,
-                pacs.aeTitle,
-                callingAETitle,
-                (queryLevel == QueryLevel.PATIENT) ? SOPClass.PatientRootQueryRetrieveInformationModelFind : SOPClass.StudyRootQueryRetrieveInformationModelFind,
-                        attributeList,
-                        this,
-                        0);
+        final String sopClass = (queryLevel == QueryLevel.PATIENT) ? SOPClass.PatientRootQueryRetrieveInformationModelFind : SOPClass.StudyRootQueryRetrieveInformationModelFind;
+        final AttributeList identifier = attributeList;
+        LinkedList<String> transferSyntaxList = new LinkedList<String>();
+        transferSyntaxList.add(TransferSyntax.ExplicitVRLittleEndian);
+        transferSyntaxList.add(TransferSyntax.ImplicitVRLittleEndian);
+        LinkedList<PresentationContext> presentationContextList = new LinkedList<PresentationContext>();
+        presentationContextList.add(new PresentationContext((byte)0x01, sopClass, transferSyntaxList));
+
+        AssociationPool.getInstance().execute(pacs, callingAETitle, presentationContextList, new AssociationPool.Operation() {
+            @Override
+            public void perform(Association association) throws DicomNetworkException, DicomException, IOException {
+                byte presentationContextID = association.getSuitablePresentationContextID(sopClass);
+                byte data[] = DicomCommand.encodeDataSet(identifier, association.getTransferSyntaxForPresentationContextID(presentationContextID));
+                association.setReceivedDataHandler(new CFindResponseHandler(this));
+                // send the command and the identifier separately for the same reason as C-MOVE
+                association.send(presentationContextID, DicomCommand.cFindRequest(sopClass, DicomCommand.nextMessageID()), null);
+                association.send(presentationContextID, null, data);
+                try {
+                    association.waitForPDataPDUsUntilHandlerReportsDone();
+                }
+                catch (AReleaseException e) {
+                    reusable = false;
+                    throw new DicomNetworkException("PACS released association during C-FIND: " + e);
+                }
+            }
+        });
+
+        if (finalStatus != DicomCommand.STATUS_SUCCESS) {
+            throw new DicomNetworkException("C-FIND on PACS " + pacs.aeTitle + " failed with status 0x" + Integer.toHexString(finalStatus));
+        }
+    }
+
+
+    /**
+     * Receive C-FIND responses until the final one.
+     */
+    private class CFindResponseHandler extends CompositeResponseHandler {
+        private final AssociationPool.Operation operation;
+
+        CFindResponseHandler(AssociationPool.Operation operation) {
+            super(DEBUG_LEVEL);
+            allowData = true;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void evaluateStatusAndSetSuccess(AttributeList list) {
+            operation.started = true;
+            int status = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Status, 0xFFFF);
+            success = status == DicomCommand.STATUS_SUCCESS;
+            if (!DicomCommand.isPending(status)) {
+                finalStatus = status;
+                setDone(true);
+            }
+        }
+
+        @Override
+        protected void makeUseOfDataSet(AttributeList list) {
+            doSomethingWithIdentifier(list);
+        }
+    }
+
+
+    /**
+     * Construct the exception that reports that too many results matched.
+     *
+     * @param limit Limit that was exceeded.
+     *
+     * @param total Number of results.
+     *
+     * @return Exception for caller to throw.
+     */
+    static RemoteException overLimitException(long limit, long total) {
+        String msg =
+            "The request resulted in an excessive number of results being matched.  The limit of " +
+            limit + " was exceeded with a total of " + total + " results being fetched.  "+
+            "Use the 'limit=MAX' parameter to set the limit, where MAX is the maximum number of entries expected.";
+        return new RemoteException(msg);
     }
 
 
     public ArrayList<AttributeList> getList() throws RemoteException {
         if (overLimit > 0) {
-            String msg =
-                "The request resulted in an excessive number of results being matched.  The limit of " +
-                limit + " was exceeded with a total of " + (limit + overLimit) + " results being fetched.  "+
-                "Use the 'limit=MAX' parameter to set the limit, where MAX is the maximum number of entries expected.";
-            throw new RemoteException(msg);
+            throw overLimitException(limit, limit + overLimit);
         }
         return list;
     }
 
 
+    /**
+     * @return Number of results accepted, not counting any beyond the limit.
+     */
+    public long getCount() {
+        return count;
+    }
+
+
     /**
      * Support IdentifierHandler interface by responding to an
      * incoming set of attributes.
@@ -126,8 +242,14 @@ public class CFind extends IdentifierHandler {
     @Override
     public void doSomethingWithIdentifier(AttributeList attributeList) {
         //logger.trace("Got attributes: " + attributeList.toString().replace('\0', ' '));  // log null chars as blanks
-        if (list.size() < limit) {
-            list.add(attributeList);
+        if (count < limit) {
+            count++;
+            if (listener == null) {
+                list.add(attributeList);
+            }
+            else {
+                listener.identifier(attributeList);
+            }
         }
         else {
             overLimit++;
@@ -137,7 +259,7 @@ public class CFind extends IdentifierHandler {
 
     public static AttributeList constructDefaultList(QueryLevel queryLevel, DicomDictionary dicomDictionary) throws RemoteException, UMROException {
         if (dicomDictionary == null) {
-            dicomDictionary = new DicomDictionary();
+            dicomDictionary = DictionaryRegistry.getInstance().getStandard();
         }
 
         AttributeList attributeList = new AttributeList();
@@ -0,0 +1,392 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.network.DicomNetworkException;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+import edu.umro.util.UMROException;
+
+/**
+ * Cache of C-FIND results, so that repeating the same query does not
+ * require another association with the PACS.
+ *
+ * Entries are keyed by PACS, query level, and the request attributes with
+ * their values, expire after a configured time, and are evicted least
+ * recently used first when there are too many or they take too much memory.
+ * When new objects are stored for a patient or study, the entries that
+ * mention them are removed.  Queries that do not name the patient or study
+ * (for example, by date) may return stale results until they expire.
+ *
+ * C-FINDs that are not cached are answered by the <code>MetadataIndex</code>
+ * if it can, and the results of those that go to the PACS are added to it.
+ *
+ * Cached results are shared, so callers must not modify them.
+ *
+ * @author irrer
+ *
+ */
+public class CFindCache {
+
+    /** Approximate memory overhead of each attribute in bytes. */
+    private static final int ATTRIBUTE_OVERHEAD = 64;
+
+    private static CFindCache instance = null;
+
+    /**
+     * A cached set of results.
+     */
+    private static class Entry {
+        private final ArrayList<AttributeList> list;
+        private final long created = System.currentTimeMillis();
+        private final long size;
+        private final HashSet<String> patientIDSet = new HashSet<String>();
+        private final HashSet<String> studyInstanceUIDSet = new HashSet<String>();
+
+        private Entry(AttributeList request, ArrayList<AttributeList> list) {
+            this.list = list;
+            long sz = 0;
+            addIdentifiers(request);
+            for (AttributeList attributeList : list) {
+                addIdentifiers(attributeList);
+                sz += estimateSize(attributeList);
+            }
+            size = sz;
+        }
+
+        private void addIdentifiers(AttributeList attributeList) {
+            String patientID = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.PatientID).trim();
+            if (patientID.length() > 0) patientIDSet.add(patientID);
+            String studyInstanceUID = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.StudyInstanceUID).trim();
+            if (studyInstanceUID.length() > 0) studyInstanceUIDSet.add(studyInstanceUID);
+        }
+    }
+
+    /** Time to live in milliseconds.  Zero disables caching. */
+    private final long timeToLive;
+
+    /** Maximum number of entries. */
+    private final int maxEntries;
+
+    /** Maximum approximate size of all entries in bytes. */
+    private final long maxBytes;
+
+    /** Entries in least recently used order. */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long totalBytes = 0;
+
+    // metrics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long expiredCount = 0;
+    private long evictionCount = 0;
+    private long invalidationCount = 0;
+
+
+    private CFindCache() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        timeToLive = config.getCFindCacheTimeToLiveSeconds() * 1000L;
+        maxEntries = config.getCFindCacheMaxEntries();
+        maxBytes = config.getCFindCacheMaxBytes();
+        Log.get().info("C-FIND cache time to live ms: " + timeToLive + "  maximum entries: " + maxEntries + "  maximum bytes: " + maxBytes);
+    }
+
+
+    public static synchronized CFindCache getInstance() {
+        if (instance == null) {
+            instance = new CFindCache();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return True if caching is enabled.
+     */
+    public boolean isEnabled() {
+        return (timeToLive > 0) && (maxEntries > 0) && (maxBytes > 0);
+    }
+
+
+    /**
+     * Estimate the memory used by an attribute list.
+     */
+    private static long estimateSize(AttributeList attributeList) {
+        long size = 0;
+        for (Object o : attributeList.values()) {
+            Attribute attribute = (Attribute)o;
+            size += ATTRIBUTE_OVERHEAD + (2 * attribute.getSingleStringValueOrEmptyString().length());
+        }
+        return size;
+    }
+
+
+    /**
+     * Construct the key for a query.  Attributes are in tag order because
+     * the attribute list is sorted, and values are trimmed so that
+     * insignificant differences do not cause a miss.  All values of
+     * multi-valued attributes are included, so that for example a
+     * ModalitiesInStudy of CT\MR does not share the entry for CT.
+     *
+     * @param pacs PACS being queried.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.
+     *
+     * @return Key.
+     */
+    public static String getKey(PACS pacs, QueryLevel queryLevel, AttributeList request) {
+        StringBuffer key = new StringBuffer(pacs.aeTitle + "|" + queryLevel);
+        for (Object o : request.values()) {
+            Attribute attribute = (Attribute)o;
+            AttributeTag tag = attribute.getTag();
+            key.append("|" + tag.getGroup() + "," + tag.getElement() + "=");
+            key.append(attribute.getDelimitedStringValuesOrEmptyString().replace('\0', ' ').trim());
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * Get results from the cache.
+     *
+     * @param key Returned by <code>getKey</code>.
+     *
+     * @return Results or null if not cached.
+     */
+    public synchronized ArrayList<AttributeList> get(String key) {
+        Entry entry = cache.get(key);
+        if ((entry != null) && ((System.currentTimeMillis() - entry.created) > timeToLive)) {
+            remove(key);
+            expiredCount++;
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.list;
+    }
+
+
+    private void remove(String key) {
+        Entry entry = cache.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+
+    /**
+     * Put results in the cache.
+     *
+     * @param key Returned by <code>getKey</code>.
+     *
+     * @param request Request that produced results.
+     *
+     * @param list Results, which must not be changed afterwards.
+     */
+    public synchronized void put(String key, AttributeList request, ArrayList<AttributeList> list) {
+        if (!isEnabled()) {
+            return;
+        }
+        Entry entry = new Entry(request, list);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        remove(key);
+        cache.put(key, entry);
+        totalBytes += entry.size;
+
+        Iterator<Map.Entry<String, Entry>> iterator = cache.entrySet().iterator();
+        while (((cache.size() > maxEntries) || (totalBytes > maxBytes)) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+
+    /**
+     * Remove all entries that refer to the given patient or study, because
+     * new objects have been stored for them.  The result sets kept by
+     * <code>CFindPager</code> are discarded as well.
+     *
+     * @param patientID Patient ID, or null.
+     *
+     * @param studyInstanceUID Study Instance UID, or null.
+     */
+    public synchronized void invalidate(String patientID, String studyInstanceUID) {
+        patientID = (patientID == null) ? "" : patientID.trim();
+        studyInstanceUID = (studyInstanceUID == null) ? "" : studyInstanceUID.trim();
+        Iterator<Entry> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.patientIDSet.contains(patientID) || entry.studyInstanceUIDSet.contains(studyInstanceUID)) {
+                iterator.remove();
+                totalBytes -= entry.size;
+                invalidationCount++;
+            }
+        }
+        CFindPager.getInstance().invalidate();
+    }
+
+
+    /**
+     * Remove all entries that refer to the patient or study of the given object.
+     *
+     * @param attributeList Object that was stored.
+     */
+    public void invalidate(AttributeList attributeList) {
+        invalidate(Attribute.getSingleStringValueOrNull(attributeList, TagFromName.PatientID),
+                Attribute.getSingleStringValueOrNull(attributeList, TagFromName.StudyInstanceUID));
+    }
+
+
+    /**
+     * Perform a C-FIND, using cached results if available, passing each
+     * result to the listener.  Results from the PACS are passed as they
+     * arrive.
+     *
+     * @param pacs PACS to query.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.
+     *
+     * @param limit Maximum number of results, or 0 or less for the configured default.
+     *
+     * @param listener Receives results, which must not be modified.
+     *
+     * @return Number of results.
+     *
+     * @throws RemoteException If there were more results than the limit.
+     */
+    public long find(PACS pacs, QueryLevel queryLevel, AttributeList request, long limit, final CFind.Listener listener)
+            throws DicomNetworkException, DicomException, IOException, NumberFormatException, UMROException {
+        String key = getKey(pacs, queryLevel, request);
+        ArrayList<AttributeList> cached = get(key);
+        if (cached != null) {
+            long lim = (limit > 0) ? limit : ServiceConfig.getInstance().getCFindLimit();
+            if (cached.size() > lim) {
+                throw CFind.overLimitException(lim, cached.size());
+            }
+            for (AttributeList attributeList : cached) {
+                listener.identifier(attributeList);
+            }
+            return cached.size();
+        }
+
+        ArrayList<AttributeList> indexed = MetadataIndex.getInstance().find(pacs, queryLevel, request);
+        if (indexed != null) {
+            long lim = (limit > 0) ? limit : ServiceConfig.getInstance().getCFindLimit();
+            if (indexed.size() > lim) {
+                throw CFind.overLimitException(lim, indexed.size());
+            }
+            for (AttributeList attributeList : indexed) {
+                listener.identifier(attributeList);
+            }
+            return indexed.size();
+        }
+
+        long started = System.currentTimeMillis();
+        final ArrayList<AttributeList> collected = (isEnabled() || MetadataIndex.getInstance().isEnabled()) ? new ArrayList<AttributeList>() : null;
+        CFind cFind = new CFind(pacs, queryLevel, request, limit, new CFind.Listener() {
+            @Override
+            public void identifier(AttributeList attributeList) {
+                if (collected != null) {
+                    collected.add(attributeList);
+                }
+                listener.identifier(attributeList);
+            }
+        });
+        cFind.getList();  // throws exception if over limit
+        if (collected != null) {
+            if (isEnabled()) {
+                put(key, request, collected);
+            }
+            MetadataIndex.getInstance().add(pacs, queryLevel, request, collected, started);
+        }
+        return cFind.getCount();
+    }
+
+
+    /**
+     * Perform a C-FIND, using cached results if available.
+     *
+     * @param pacs PACS to query.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.
+     *
+     * @param limit Maximum number of results, or 0 or less for the configured default.
+     *
+     * @return Results, which must not be modified.
+     *
+     * @throws RemoteException If there were more results than the limit.
+     */
+    public ArrayList<AttributeList> find(PACS pacs, QueryLevel queryLevel, AttributeList request, long limit)
+            throws DicomNetworkException, DicomException, IOException, NumberFormatException, UMROException {
+        final ArrayList<AttributeList> list = new ArrayList<AttributeList>();
+        find(pacs, queryLevel, request, limit, new CFind.Listener() {
+            @Override
+            public void identifier(AttributeList attributeList) {
+                list.add(attributeList);
+            }
+        });
+        return list;
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<CFindCache>\n" +
+            "    <Entries>" + cache.size() + "</Entries>\n" +
+            "    <MaxEntries>" + maxEntries + "</MaxEntries>\n" +
+            "    <Bytes>" + totalBytes + "</Bytes>\n" +
+            "    <MaxBytes>" + maxBytes + "</MaxBytes>\n" +
+            "    <TimeToLiveMs>" + timeToLive + "</TimeToLiveMs>\n" +
+            "    <Hits>" + hitCount + "</Hits>\n" +
+            "    <Misses>" + missCount + "</Misses>\n" +
+            "    <Expired>" + expiredCount + "</Expired>\n" +
+            "    <Evictions>" + evictionCount + "</Evictions>\n" +
+            "    <Invalidations>" + invalidationCount + "</Invalidations>\n" +
+            "</CFindCache>\n";
+    }
+}
@@ -0,0 +1,529 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+
+/**
+ * Pages through large C-FIND results.  The results of the query on all of
+ * the PACS are fetched once, merged, and kept, so that getting a later page
+ * or a different sort does not query the PACS again.  The kept results do
+ * not depend on the sort: the attributes that results are usually sorted by
+ * are always asked for, and each request sorts the kept results itself.
+ * Sorting by an attribute that is neither one of those nor in the request
+ * uses whatever values the PACS returned for it.
+ *
+ * The sort always ends with the attribute that identifies a result at the
+ * query level, so the order is total and a result never appears on two
+ * pages or is skipped.  Result sets are kept for a configured time, and the
+ * least recently used are discarded when there are too many.  Result sets
+ * from queries where a PACS failed or timed out are not kept, so that
+ * asking again retries the PACS.
+ *
+ * @author irrer
+ *
+ */
+public class CFindPager {
+
+    private static CFindPager instance = null;
+
+    /**
+     * One attribute to sort by.
+     */
+    public static class SortKey {
+        public final AttributeTag tag;
+        public final boolean descending;
+
+        public SortKey(AttributeTag tag, boolean descending) {
+            this.tag = tag;
+            this.descending = descending;
+        }
+
+        @Override
+        public String toString() {
+            return tag.getGroup() + "," + tag.getElement() + (descending ? ":desc" : ":asc");
+        }
+    }
+
+    /**
+     * The sorted, merged results of one query.
+     */
+    public static class ResultSet {
+        private final ArrayList<AttributeList> list;
+        private final PACS[] sourceList;
+        private final ArrayList<ParallelCFind.PacsStatus> pacsStatusList;
+        private final long created = System.currentTimeMillis();
+
+        private ResultSet(ArrayList<AttributeList> list, PACS[] sourceList, ArrayList<ParallelCFind.PacsStatus> pacsStatusList) {
+            this.list = list;
+            this.sourceList = sourceList;
+            this.pacsStatusList = pacsStatusList;
+        }
+
+        /**
+         * @return Total number of results.
+         */
+        public int getTotal() {
+            return list.size();
+        }
+
+        /**
+         * @return The result at the given position in sorted order.
+         */
+        public AttributeList get(int index) {
+            return list.get(index);
+        }
+
+        /**
+         * @return The PACS that the result at the given position came from.
+         */
+        public PACS getSource(int index) {
+            return sourceList[index];
+        }
+
+        /**
+         * @return Status of each PACS when the results were fetched.
+         */
+        public ArrayList<ParallelCFind.PacsStatus> getPacsStatusList() {
+            return pacsStatusList;
+        }
+
+        /**
+         * @return True if every PACS returned all of its results.
+         */
+        public boolean isComplete() {
+            for (ParallelCFind.PacsStatus status : pacsStatusList) {
+                if (status.outcome != ParallelCFind.Outcome.SUCCESS) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The merged, unsorted results of one query, and the most recent
+     * sorting of them so that paging through one sort does not sort again.
+     */
+    private static class Merged {
+        private final ArrayList<AttributeList> list;
+        private final PACS[] sourceList;
+        private final ArrayList<ParallelCFind.PacsStatus> pacsStatusList;
+        private final long created = System.currentTimeMillis();
+        private String lastSort = null;
+        private ResultSet lastSorted = null;
+
+        private Merged(ParallelCFind parallelCFind) {
+            list = parallelCFind.getList();
+            sourceList = new PACS[list.size()];
+            for (int r = 0; r < list.size(); r++) {
+                sourceList[r] = parallelCFind.getSource(list.get(r));
+            }
+            pacsStatusList = parallelCFind.getPacsStatusList();
+        }
+
+        /**
+         * Get the results in the given order, sorting them if they were
+         * last sorted differently.
+         */
+        private synchronized ResultSet getSorted(List<SortKey> sortList) {
+            String sort = sortList.toString();
+            if (!sort.equals(lastSort)) {
+                long start = System.currentTimeMillis();
+                lastSorted = sort(this, sortList);
+                lastSort = sort;
+                Log.get().info("Sorted " + list.size() + " C-FIND results for paging in " + (System.currentTimeMillis() - start) + " ms.");
+            }
+            return lastSorted;
+        }
+    }
+
+    /**
+     * The values of one result to sort by, read once before sorting.
+     */
+    private static class Row {
+        final int index;
+        final Object[] valueList;
+
+        Row(int index, Object[] valueList) {
+            this.index = index;
+            this.valueList = valueList;
+        }
+    }
+
+    /** Time to live in milliseconds. */
+    private final long timeToLive;
+
+    /** Maximum number of result sets. */
+    private final int maxEntries;
+
+    /** Merged results in least recently used order. */
+    private final LinkedHashMap<String, Merged> cache = new LinkedHashMap<String, Merged>(16, 0.75f, true);
+
+    // metrics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long pageCount = 0;
+    private long invalidationCount = 0;
+
+
+    private CFindPager() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        timeToLive = config.getCFindPageTimeToLiveSeconds() * 1000L;
+        maxEntries = config.getCFindPageMaxEntries();
+        Log.get().info("C-FIND pager default page size: " + config.getCFindPageSize() + "  time to live ms: " + timeToLive + "  maximum entries: " + maxEntries);
+    }
+
+
+    public static synchronized CFindPager getInstance() {
+        if (instance == null) {
+            instance = new CFindPager();
+        }
+        return instance;
+    }
+
+
+    /**
+     * Get the sort used when the client does not give one: most recent
+     * first for studies, in order of number for series and images.
+     *
+     * @param queryLevel Query level.
+     *
+     * @return Sort keys, not including the one that identifies results.
+     */
+    public static List<SortKey> getDefaultSort(QueryLevel queryLevel) {
+        switch (queryLevel) {
+            case PATIENT:
+                return Arrays.asList(new SortKey(TagFromName.PatientName, false));
+            case STUDY:
+                return Arrays.asList(new SortKey(TagFromName.StudyDate, true), new SortKey(TagFromName.StudyTime, true));
+            case SERIES:
+                return Arrays.asList(new SortKey(TagFromName.SeriesNumber, false));
+            default:
+                return Arrays.asList(new SortKey(TagFromName.InstanceNumber, false));
+        }
+    }
+
+
+    /**
+     * Get the attributes that are always asked for so that results can be
+     * sorted by them: those of the default sort, others commonly sorted by
+     * at the level, and the one that identifies results.
+     *
+     * @param queryLevel Query level.
+     *
+     * @return Attributes to ask for.
+     */
+    public static List<AttributeTag> getSortableTags(QueryLevel queryLevel) {
+        ArrayList<AttributeTag> tagList = new ArrayList<AttributeTag>();
+        for (SortKey sortKey : getDefaultSort(queryLevel)) {
+            tagList.add(sortKey.tag);
+        }
+        switch (queryLevel) {
+            case PATIENT:
+                tagList.addAll(Arrays.asList(TagFromName.PatientBirthDate));
+                break;
+            case STUDY:
+                tagList.addAll(Arrays.asList(TagFromName.PatientName, TagFromName.PatientID, TagFromName.AccessionNumber));
+                break;
+            case SERIES:
+                tagList.addAll(Arrays.asList(TagFromName.Modality, TagFromName.SeriesDate, TagFromName.SeriesTime));
+                break;
+            default:
+                break;
+        }
+        tagList.add(ParallelCFind.getKeyTag(queryLevel));
+        return tagList;
+    }
+
+
+    /**
+     * Parse a sort specification of the form
+     * <code>name[:asc|:desc],name[:asc|:desc],...</code> where each name
+     * is a DICOM attribute name.
+     *
+     * @param text Sort specification, or null for the default.
+     *
+     * @param dicomDictionary Dictionary for names.
+     *
+     * @param queryLevel Query level.
+     *
+     * @return Sort keys, ending with the one that identifies results.
+     *
+     * @throws DICOMRestException If the specification is not valid, with a message for the client.
+     */
+    public static List<SortKey> parseSort(String text, DicomDict dicomDictionary, QueryLevel queryLevel) throws DICOMRestException {
+        ArrayList<SortKey> sortList = new ArrayList<SortKey>();
+        if ((text == null) || (text.trim().length() == 0)) {
+            sortList.addAll(getDefaultSort(queryLevel));
+        }
+        else {
+            for (String item : text.split(",")) {
+                String[] part = item.trim().split(":");
+                AttributeTag tag = (part[0].trim().length() == 0) ? null : dicomDictionary.getTagByCaseInsensitiveName(part[0].trim());
+                if ((tag == null) || (part.length > 2)) {
+                    throw new DICOMRestException("Invalid sort " + item + " .  Use name[:asc|:desc],... where each name is a DICOM attribute, as in sort=StudyDate:desc");
+                }
+                boolean descending = false;
+                if (part.length == 2) {
+                    if (part[1].trim().equalsIgnoreCase("desc")) {
+                        descending = true;
+                    }
+                    else if (!part[1].trim().equalsIgnoreCase("asc")) {
+                        throw new DICOMRestException("Invalid sort direction " + part[1] + " in " + item + " .  Use asc or desc.");
+                    }
+                }
+                sortList.add(new SortKey(tag, descending));
+            }
+        }
+        AttributeTag keyTag = ParallelCFind.getKeyTag(queryLevel);
+        boolean hasKey = false;
+        for (SortKey sortKey : sortList) {
+            hasKey = hasKey || sortKey.tag.equals(keyTag);
+        }
+        if (!hasKey) {
+            sortList.add(new SortKey(keyTag, false));
+        }
+        return sortList;
+    }
+
+
+    /**
+     * Get the value of an attribute for sorting, as a <code>BigDecimal</code>
+     * if the value representation is numeric and the value parses, otherwise
+     * as text.  Empty values are null.
+     */
+    private static Object getSortValue(AttributeList attributeList, AttributeTag tag) {
+        Attribute attribute = attributeList.get(tag);
+        if (attribute == null) {
+            return null;
+        }
+        String text = attribute.getSingleStringValueOrEmptyString().replace('\0', ' ').trim();
+        if (text.length() == 0) {
+            return null;
+        }
+        byte[] vr = attribute.getVR();
+        if (ValueRepresentation.isIntegerStringVR(vr) || ValueRepresentation.isDecimalStringVR(vr) ||
+                ValueRepresentation.isUnsignedShortVR(vr) || ValueRepresentation.isSignedShortVR(vr) ||
+                ValueRepresentation.isUnsignedLongVR(vr) || ValueRepresentation.isSignedLongVR(vr) ||
+                ValueRepresentation.isFloatSingleVR(vr) || ValueRepresentation.isFloatDoubleVR(vr)) {
+            try {
+                return new BigDecimal(text.replaceFirst("^\\+", ""));
+            }
+            catch (NumberFormatException e) {
+                // fall through and sort it as text
+            }
+        }
+        return text;
+    }
+
+
+    /**
+     * Sort results.  The sort values of each result are read once, and
+     * empty values sort after all others in either direction.
+     */
+    private static ResultSet sort(Merged merged, final List<SortKey> sortList) {
+        ArrayList<AttributeList> unsorted = merged.list;
+        ArrayList<Row> rowList = new ArrayList<Row>(unsorted.size());
+        for (int r = 0; r < unsorted.size(); r++) {
+            Object[] valueList = new Object[sortList.size()];
+            for (int s = 0; s < sortList.size(); s++) {
+                valueList[s] = getSortValue(unsorted.get(r), sortList.get(s).tag);
+            }
+            rowList.add(new Row(r, valueList));
+        }
+
+        Collections.sort(rowList, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                for (int s = 0; s < sortList.size(); s++) {
+                    Object va = a.valueList[s];
+                    Object vb = b.valueList[s];
+                    int c;
+                    if ((va == null) || (vb == null)) {
+                        c = (va == vb) ? 0 : ((va == null) ? 1 : -1);
+                    }
+                    else {
+                        if ((va instanceof BigDecimal) && (vb instanceof BigDecimal)) {
+                            c = ((BigDecimal)va).compareTo((BigDecimal)vb);
+                        }
+                        else {
+                            c = va.toString().compareTo(vb.toString());
+                        }
+                        if (sortList.get(s).descending) {
+                            c = -c;
+                        }
+                    }
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return a.index - b.index;
+            }
+        });
+
+        ArrayList<AttributeList> list = new ArrayList<AttributeList>(rowList.size());
+        PACS[] sourceList = new PACS[rowList.size()];
+        for (Row row : rowList) {
+            sourceList[list.size()] = merged.sourceList[row.index];
+            list.add(unsorted.get(row.index));
+        }
+        return new ResultSet(list, sourceList, merged.pacsStatusList);
+    }
+
+
+    /**
+     * Construct the key for merged results.  It does not include the sort,
+     * so that all sorts of the same query share them, and it includes every
+     * value of multi-valued attributes.
+     */
+    private static String getKey(List<PACS> pacsList, QueryLevel queryLevel, AttributeList request, long limit) {
+        StringBuffer key = new StringBuffer(queryLevel + "|" + limit);
+        for (PACS pacs : pacsList) {
+            key.append("|" + pacs.aeTitle);
+        }
+        for (Object o : request.values()) {
+            Attribute attribute = (Attribute)o;
+            AttributeTag tag = attribute.getTag();
+            key.append("|" + tag.getGroup() + "," + tag.getElement() + "=");
+            key.append(attribute.getDelimitedStringValuesOrEmptyString().replace('\0', ' ').trim());
+        }
+        return key.toString();
+    }
+
+
+    private synchronized Merged getCached(String key) {
+        Merged merged = cache.get(key);
+        if ((merged != null) && ((System.currentTimeMillis() - merged.created) > timeToLive)) {
+            cache.remove(key);
+            merged = null;
+        }
+        if (merged == null) {
+            missCount++;
+        }
+        else {
+            hitCount++;
+        }
+        pageCount++;
+        return merged;
+    }
+
+
+    private synchronized void put(String key, Merged merged) {
+        if ((timeToLive <= 0) || (maxEntries <= 0)) {
+            return;
+        }
+        cache.put(key, merged);
+        Iterator<Map.Entry<String, Merged>> iterator = cache.entrySet().iterator();
+        while ((cache.size() > maxEntries) && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+
+    /**
+     * Get the sorted results of a C-FIND, querying the PACS only if they
+     * are not already kept.  The attributes from
+     * <code>getSortableTags</code> are asked for as well as those in the
+     * request.
+     *
+     * @param pacsList PACS to query.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.  Not modified.
+     *
+     * @param limit Maximum number of results per PACS, or 0 or less to use the configured default.
+     *
+     * @param sortList Attributes to sort by, as returned by <code>parseSort</code>.
+     *
+     * @return Sorted results, which must not be modified.
+     *
+     * @throws DicomException If the C-FIND could not be started.
+     */
+    public ResultSet find(List<PACS> pacsList, QueryLevel queryLevel, AttributeList request, long limit, List<SortKey> sortList) throws DicomException {
+        // the PACS only return the attributes asked for, so always ask for the ones usually sorted by
+        AttributeList sortableRequest = new AttributeList();
+        sortableRequest.putAll(request);
+        for (AttributeTag tag : getSortableTags(queryLevel)) {
+            if (sortableRequest.get(tag) == null) {
+                sortableRequest.put(AttributeFactory.newAttribute(tag));
+            }
+        }
+        String key = getKey(pacsList, queryLevel, sortableRequest, limit);
+        Merged merged = getCached(key);
+        if (merged == null) {
+            merged = new Merged(new ParallelCFind(pacsList, queryLevel, sortableRequest, limit));
+            ResultSet resultSet = merged.getSorted(sortList);
+            if (resultSet.isComplete()) {
+                put(key, merged);
+            }
+            return resultSet;
+        }
+        return merged.getSorted(sortList);
+    }
+
+
+    /**
+     * Discard all kept results, because new objects have been stored.  A
+     * result set may be missing a new object without referring to its
+     * patient or study, so none of them can be kept.
+     */
+    public synchronized void invalidate() {
+        if (!cache.isEmpty()) {
+            cache.clear();
+            invalidationCount++;
+        }
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<CFindPager>\n" +
+            "    <Entries>" + cache.size() + "</Entries>\n" +
+            "    <MaxEntries>" + maxEntries + "</MaxEntries>\n" +
+            "    <TimeToLiveMs>" + timeToLive + "</TimeToLiveMs>\n" +
+            "    <Pages>" + pageCount + "</Pages>\n" +
+            "    <Hits>" + hitCount + "</Hits>\n" +
+            "    <Misses>" + missCount + "</Misses>\n" +
+            "    <Invalidations>" + invalidationCount + "</Invalidations>\n" +
+            "</CFindPager>\n";
+    }
+}
@@ -0,0 +1,491 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.restlet.data.MediaType;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.dicom.service.CFind.QueryLevel;
+
+/**
+ * Write C-FIND results as HTML, XML, or DICOM JSON, one result at a time,
+ * straight to a <code>Writer</code>.  The columns of the HTML table and
+ * their headings are worked out once when this is constructed, and text
+ * is escaped as it is written.
+ *
+ * Use is header, then each result, then trailer.  The status of each PACS
+ * is written in the header if it is known then, otherwise in the trailer.
+ * DICOM JSON has no place for it, so it is not written there, nor is the
+ * total number of results of a page.
+ *
+ * @author irrer
+ *
+ */
+public class CFindResultWriter {
+
+    /** DICOM JSON, as defined in PS3.18 Annex F. */
+    public static final MediaType APPLICATION_DICOM_JSON = new MediaType("application/dicom+json", "DICOM JSON");
+
+    public enum Format {
+        HTML(MediaType.TEXT_HTML),
+        XML(MediaType.TEXT_XML),
+        JSON(APPLICATION_DICOM_JSON);
+
+        public final MediaType mediaType;
+
+        Format(MediaType mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        /**
+         * Get the format for a media type name, ignoring case.  Plain
+         * <code>application/json</code> is taken to mean DICOM JSON.
+         *
+         * @param name Media type name, may be null.
+         *
+         * @return Format, HTML if the name is null, or null if the name is not supported.
+         */
+        public static Format fromMediaTypeName(String name) {
+            if (name == null) {
+                return HTML;
+            }
+            name = name.trim();
+            if (name.equalsIgnoreCase(MediaType.APPLICATION_JSON.getName())) {
+                return JSON;
+            }
+            for (Format format : values()) {
+                if (format.mediaType.getName().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One column of the HTML table.
+     */
+    private static class Column {
+        final AttributeTag tag;
+        final String keyword;
+        final String fullName;
+
+        Column(AttributeTag tag, DicomDictionary dicomDictionary) {
+            this.tag = tag;
+            this.keyword = dicomDictionary.getNameFromTag(tag);
+            String name = dicomDictionary.getFullNameFromTag(tag);
+            this.fullName = (name == null) ? tag.toString() : name;
+        }
+    }
+
+    private final Format format;
+    private final QueryLevel queryLevel;
+    private final DicomDictionary dicomDictionary;
+    private final String hostRef;
+    private final ArrayList<Column> columnList = new ArrayList<Column>();
+
+    /** Attribute that identifies a result for the List and Download links. */
+    private final AttributeTag keyTag;
+
+    /** Name of the key attribute as it appears in links. */
+    private final String keyName;
+
+    /** Query level that the List link goes to, or null if there is none. */
+    private final QueryLevel listLevel;
+
+    private int count = 0;
+
+    /** First result on the page, or -1 if the results are not paged. */
+    private int offset = -1;
+
+    /** Maximum number of results on a page. */
+    private int pageSize = 0;
+
+    /** Link to this query without offset or sort, ending with ? or &amp; so parameters can be appended. */
+    private String pageUrl = null;
+
+    /** What the results are sorted by, or null if they are not paged. */
+    private List<CFindPager.SortKey> sortList = null;
+
+
+    /**
+     * Determine whether an attribute is worth a column in the HTML table.
+     * Query level and UIDs are not.
+     *
+     * @param tag Attribute tag.
+     *
+     * @param dicomDictionary Dictionary for value representations.
+     *
+     * @return True if it is shown.
+     */
+    public static boolean isColumn(AttributeTag tag, DicomDictionary dicomDictionary) {
+        return !tag.equals(TagFromName.QueryRetrieveLevel) && !ValueRepresentation.isUniqueIdentifierVR(dicomDictionary.getValueRepresentationFromTag(tag));
+    }
+
+
+    /**
+     * @param format Format to write.
+     *
+     * @param queryLevel Level of the C-FIND.
+     *
+     * @param dicomDictionary Dictionary for names.
+     *
+     * @param hostRef Base of links back to this service, such as <code>http://host:port</code>.
+     *
+     * @param columnTagList Tags of the columns of the HTML table, in order.
+     */
+    public CFindResultWriter(Format format, QueryLevel queryLevel, DicomDictionary dicomDictionary, String hostRef, List<AttributeTag> columnTagList) {
+        this.format = format;
+        this.queryLevel = queryLevel;
+        this.dicomDictionary = dicomDictionary;
+        this.hostRef = hostRef;
+        for (AttributeTag tag : columnTagList) {
+            columnList.add(new Column(tag, dicomDictionary));
+        }
+        switch (queryLevel) {
+            case PATIENT:
+                keyTag = TagFromName.PatientID;
+                listLevel = QueryLevel.STUDY;
+                break;
+            case STUDY:
+                keyTag = TagFromName.StudyInstanceUID;
+                listLevel = QueryLevel.SERIES;
+                break;
+            case SERIES:
+                keyTag = TagFromName.SeriesInstanceUID;
+                listLevel = QueryLevel.IMAGE;
+                break;
+            default:
+                keyTag = TagFromName.SOPInstanceUID;
+                listLevel = null;
+                break;
+        }
+        keyName = dicomDictionary.getNameFromTag(keyTag);
+    }
+
+
+    /**
+     * Show that the results are one page of a sorted result set.  HTML gets
+     * links to the neighboring pages, and column headings that sort the
+     * whole result set instead of the page.
+     *
+     * @param offset Position of the first result on the page, from 0.
+     *
+     * @param pageSize Maximum number of results on a page.
+     *
+     * @param pageUrl Link to this query without offset or sort, ending with ? or &amp;.
+     *
+     * @param sortList What the results are sorted by.
+     */
+    public void setPage(int offset, int pageSize, String pageUrl, List<CFindPager.SortKey> sortList) {
+        this.offset = offset;
+        this.pageSize = pageSize;
+        this.pageUrl = pageUrl;
+        this.sortList = sortList;
+    }
+
+
+    /**
+     * Get the sort parameter value of the current sort.
+     */
+    private String getSortValue() {
+        StringBuffer text = new StringBuffer();
+        for (CFindPager.SortKey sortKey : sortList) {
+            String name = dicomDictionary.getNameFromTag(sortKey.tag);
+            if (name != null) {
+                text.append(((text.length() == 0) ? "" : ",") + name + (sortKey.descending ? ":desc" : ":asc"));
+            }
+        }
+        return text.toString();
+    }
+
+
+    /**
+     * Write a link to the page starting at the given offset, keeping the sort.
+     */
+    private void writePageLink(Writer writer, int pageOffset, String label) throws IOException {
+        writer.write("<a href='");
+        TextStreamRepresentation.writeEscaped(writer, pageUrl + "sort=" + getSortValue() + "&offset=" + pageOffset);
+        writer.write("'>" + label + "</a>");
+    }
+
+
+    private void writeHtmlPageNavigation(Writer writer, int total) throws IOException {
+        int last = (int)Math.min(total, (long)offset + pageSize);
+        writer.write("<p>Entries " + ((total == 0) ? 0 : (offset + 1)) + " to " + last + " of " + total);
+        if (offset > 0) {
+            writer.write(" &nbsp; &nbsp; ");
+            writePageLink(writer, 0, "First");
+            writer.write(" &nbsp; ");
+            writePageLink(writer, Math.max(0, offset - pageSize), "Previous");
+        }
+        if (last < total) {
+            writer.write(" &nbsp; &nbsp; ");
+            writePageLink(writer, last, "Next");
+            writer.write(" &nbsp; ");
+            writePageLink(writer, ((total - 1) / pageSize) * pageSize, "Last");
+        }
+        writer.write("</p>\n");
+    }
+
+
+    /**
+     * Write the heading of a column.  When paged, it links to the results
+     * sorted by that column, reversing the order if they already are.
+     */
+    private void writeHtmlColumnHeading(Writer writer, Column column) throws IOException {
+        writer.write("    <th title='");
+        TextStreamRepresentation.writeEscaped(writer, column.keyword);
+        writer.write("'>");
+        if ((offset >= 0) && (column.keyword != null)) {
+            CFindPager.SortKey first = sortList.get(0);
+            boolean descending = first.tag.equals(column.tag) && !first.descending;
+            writer.write("<a href='");
+            TextStreamRepresentation.writeEscaped(writer, pageUrl + "sort=" + column.keyword + (descending ? ":desc" : ":asc") + "&offset=0");
+            writer.write("'>");
+            TextStreamRepresentation.writeEscaped(writer, column.fullName);
+            writer.write("</a>");
+        }
+        else {
+            TextStreamRepresentation.writeEscaped(writer, column.fullName);
+        }
+        writer.write("    </th>");
+    }
+
+
+    /**
+     * @return Media type of the output.
+     */
+    public MediaType getMediaType() {
+        return format.mediaType;
+    }
+
+
+    /**
+     * @return Number of results written.
+     */
+    public int getCount() {
+        return count;
+    }
+
+
+    private void writeHtmlPacsStatus(Writer writer, List<ParallelCFind.PacsStatus> pacsStatusList) throws IOException {
+        for (ParallelCFind.PacsStatus status : pacsStatusList) {
+            if (status.outcome != ParallelCFind.Outcome.SUCCESS) {
+                writer.write("<p>Results are incomplete.  PACS ");
+                TextStreamRepresentation.writeEscaped(writer, status.pacs.aeTitle);
+                writer.write(" : " + status.outcome);
+                if (status.message != null) {
+                    writer.write(" : ");
+                    TextStreamRepresentation.writeEscaped(writer, status.message);
+                }
+                writer.write("</p>\n");
+            }
+        }
+    }
+
+
+    private void writeXmlPacsStatus(Writer writer, List<ParallelCFind.PacsStatus> pacsStatusList) throws IOException {
+        writer.write("  <PACSStatusList>\n");
+        for (ParallelCFind.PacsStatus status : pacsStatusList) {
+            writer.write("    <PACSStatus AETitle='");
+            TextStreamRepresentation.writeEscaped(writer, status.pacs.aeTitle);
+            writer.write("' Status='" + status.outcome + "' Count='" + status.count + "' ElapsedMs='" + status.elapsed + "'");
+            if (status.message != null) {
+                writer.write('>');
+                TextStreamRepresentation.writeEscaped(writer, status.message);
+                writer.write("</PACSStatus>\n");
+            }
+            else {
+                writer.write("/>\n");
+            }
+        }
+        writer.write("  </PACSStatusList>\n");
+    }
+
+
+    /**
+     * Write the start of the output.
+     *
+     * @param writer Where to write.
+     *
+     * @param queryLevelText Query level to show.
+     *
+     * @param total Number of results that will be written, or -1 if not known.
+     *
+     * @param pacsStatusList Status of each PACS, or null if it is not known yet.
+     *
+     * @throws IOException On failure to write.
+     */
+    public void writeHeader(Writer writer, String queryLevelText, int total, List<ParallelCFind.PacsStatus> pacsStatusList) throws IOException {
+        switch (format) {
+            case HTML:
+                writer.write(Util.getHtmlHead("CFind"));
+                writer.write("Query Level: ");
+                TextStreamRepresentation.writeEscaped(writer, queryLevelText);
+                if (total >= 0) {
+                    writer.write(" &nbsp; &nbsp; &nbsp; &nbsp; &nbsp; Number of entries: " + total);
+                }
+                writer.write("</p>\n");
+                if (pacsStatusList != null) {
+                    writeHtmlPacsStatus(writer, pacsStatusList);
+                }
+                if (offset >= 0) {
+                    writeHtmlPageNavigation(writer, total);
+                }
+                // a page is sorted by the service, not the browser
+                writer.write("\n<table " + ((offset >= 0) ? "" : "class='sortable' ") + "id='anyid' cellpadding='0' cellspacing='0'>\n");
+                writer.write("  <tr>\n");
+                if (listLevel != null) writer.write("    <th>List</th>");
+                writer.write("    <th>Download</th>");
+                for (Column column : columnList) {
+                    writeHtmlColumnHeading(writer, column);
+                }
+                writer.write("  </tr>\n");
+                break;
+            case XML:
+                writer.write("<?xml version='1.0' encoding='utf-8'?>\n");
+                writer.write("<CFindResultList QueryLevel='" + queryLevel + "'");
+                if (offset >= 0) {
+                    writer.write(" Offset='" + offset + "' PageSize='" + pageSize + "' Total='" + total + "' Sort='");
+                    TextStreamRepresentation.writeEscaped(writer, getSortValue());
+                    writer.write("'");
+                }
+                writer.write(">\n");
+                if (pacsStatusList != null) {
+                    writeXmlPacsStatus(writer, pacsStatusList);
+                }
+                break;
+            case JSON:
+                writer.write('[');
+                break;
+        }
+    }
+
+
+    /**
+     * Write one link cell of the HTML table.
+     */
+    private void writeHtmlLink(Writer writer, String value, PACS pacs, String path, String label) throws IOException {
+        writer.write("  <td>");
+        if ((value != null) && (keyName != null)) {
+            writer.write("<a href='");
+            TextStreamRepresentation.writeEscaped(writer, hostRef + path + "aetitle=" + pacs.aeTitle + "&" + keyName + "=" + value);
+            writer.write("' >" + label + "</a>");
+        }
+        writer.write("</td>\n");
+    }
+
+
+    /**
+     * Write one result.
+     *
+     * @param writer Where to write.
+     *
+     * @param attributeList Result.
+     *
+     * @param pacs PACS that it came from.
+     *
+     * @param valueList For HTML, the value of each column, or null to get them from the result.
+     *
+     * @throws IOException On failure to write.
+     */
+    public void writeResult(Writer writer, AttributeList attributeList, PACS pacs, String[] valueList) throws IOException {
+        switch (format) {
+            case HTML: {
+                writer.write("  <tr class='" + (((count % 2) == 0) ? "even" : "odd") + "'>\n");
+                String key = Attribute.getSingleStringValueOrNull(attributeList, keyTag);
+                if (listLevel != null) {
+                    writeHtmlLink(writer, key, pacs, "/dicom/cfind/" + listLevel + "?", "List");
+                }
+                writeHtmlLink(writer, key, pacs, "/dicom/get?media_type=application/zip&", "Download");
+                for (int c = 0; c < columnList.size(); c++) {
+                    writer.write("    <td>");
+                    TextStreamRepresentation.writeEscaped(writer, (valueList == null) ? Attribute.getSingleStringValueOrEmptyString(attributeList, columnList.get(c).tag) : valueList[c]);
+                    writer.write("</td>\n");
+                }
+                writer.write("  </tr>\n");
+                break;
+            }
+            case XML:
+                writer.write("  <CFindResult>\n");
+                for (Object o : attributeList.values()) {
+                    Attribute attribute = (Attribute) o;
+                    String tagName = dicomDictionary.getNameFromTag(attribute.getTag());
+                    writer.write("    <" + tagName + ">");
+                    TextStreamRepresentation.writeEscaped(writer, attribute.getSingleStringValueOrEmptyString());
+                    writer.write("</" + tagName + ">\n");
+                }
+                writer.write("  </CFindResult>\n");
+                break;
+            case JSON:
+                writer.write((count == 0) ? "\n" : ",\n");
+                try {
+                    DicomMetadataWriter.writeJson(writer, attributeList, null);
+                }
+                catch (DicomException e) {
+                    throw new IOException("Unable to format C-FIND result as DICOM JSON: " + e);
+                }
+                break;
+        }
+        count++;
+    }
+
+
+    /**
+     * Write the end of the output.
+     *
+     * @param writer Where to write.
+     *
+     * @param pacsStatusList Status of each PACS, or null if it was written in the header.
+     *
+     * @throws IOException On failure to write.
+     */
+    public void writeTrailer(Writer writer, List<ParallelCFind.PacsStatus> pacsStatusList) throws IOException {
+        switch (format) {
+            case HTML:
+                writer.write("</table>\n");
+                if (pacsStatusList != null) {
+                    writeHtmlPacsStatus(writer, pacsStatusList);
+                }
+                writer.write("\n</body></html>");
+                break;
+            case XML:
+                if (pacsStatusList != null) {
+                    writeXmlPacsStatus(writer, pacsStatusList);
+                }
+                writer.write("</CFindResultList>\n");
+                break;
+            case JSON:
+                writer.write("\n]\n");
+                break;
+        }
+    }
+}
@@ -29,8 +29,6 @@ import com.pixelmed.dicom.TagFromName;
 import com.pixelmed.dicom.TransferSyntax;
 import com.pixelmed.network.AReleaseException;
 import com.pixelmed.network.Association;
-import com.pixelmed.network.AssociationFactory;
-import com.pixelmed.network.CMoveRequestCommandMessage;
 import com.pixelmed.network.CompositeResponseHandler;
 import com.pixelmed.network.DicomNetworkException;
 import com.pixelmed.network.PresentationContext;
@@ -58,11 +56,22 @@ public class CMove {
     private int failureCount = 0;
 
     /** DICOM Network association for transfer. */
-    private Association association = null;
+    private volatile Association association = null;
+
+    /** Operation being performed on the pooled association. */
+    private MoveOperation operation = null;
+
+    /** True if the transfer was aborted, in which case the association can not be re-used. */
+    private volatile boolean aborted = false;
 
     /** Caller defined processor of incoming responses. */
     private ProgressProcessor progressProcessor = null;
 
+    /** Message ID of this C-MOVE.  The PACS puts it in each C-STORE it sends
+     * as the Move Originator Message ID, which is how incoming objects are
+     * matched to the C-MOVE that requested them. */
+    private final int messageID = DicomCommand.nextMessageID();
+
     /** Abort if more than this number of DICOM objects are to
      * be transferred.  0 or less means ignore this value and
      * allow unlimited number of objects to be transferred. */
@@ -154,11 +163,39 @@ public class CMove {
         void process(AttributeList attributeList);
     }
 
+    /**
+     * A progress processor that can ask for the transfer to be stopped.  It
+     * is checked each time the PACS reports progress.
+     */
+    public interface CancellableProgressProcessor extends ProgressProcessor {
+        /**
+         * @return True if the transfer should be aborted.
+         */
+        boolean isCancelled();
+    }
+
     public Status getStatus() {
         return status;
     }
 
 
+    /**
+     * @return True if the PACS reported that the C-MOVE completed with no
+     * failed sub-operations.
+     */
+    public boolean isSuccess() {
+        return responseStatus == 0x0000;
+    }
+
+
+    /**
+     * @return The message ID that will be used for this C-MOVE.
+     */
+    public int getMessageID() {
+        return messageID;
+    }
+
+
     private class IdentifierMessage {
 
         private byte bytes[];
@@ -223,8 +260,19 @@ public class CMove {
             // - Status is success and consider associated elements
             //
             // for now just treat success or warning as success (and absence as failure)
+            operation.started = true;
             if (progressProcessor != null) {
                 progressProcessor.process(list);
+                if ((progressProcessor instanceof CancellableProgressProcessor) && ((CancellableProgressProcessor)progressProcessor).isCancelled() && !aborted) {
+                    try {
+                        Log.get().info("Aborting cancelled DICOM C-MOVE");
+                        aborted = true;
+                        association.abort();
+                    }
+                    catch (DicomNetworkException e) {
+                        Log.get().info("Attempt to abort cancelled DICOM C-MOVE may not have properly aborted because it got the exception: " + e);
+                    }
+                }
             }
             responseStatus = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.Status,0xffff);
             int numRemaining = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.NumberOfRemainingSuboperations, -1);
@@ -239,6 +287,7 @@ public class CMove {
                 if ((limit > 0) && (status.total > limit)) {
                     try {
                         Log.get().info("Attempting to abort DICOM C-MOVE because limit of " + limit + " was exceeded by value " + status.total);
+                        aborted = true;
                         association.abort();
                         Log.get().info("Sent abort of DICOM C-MOVE because limit of " + limit + " was exceeded by value " + status.total);
                     }
@@ -293,7 +342,65 @@ public class CMove {
      * @throws DicomNetworkException
      */
     public void abort() throws DicomNetworkException {
-        association.abort();
+        aborted = true;
+        if (association != null) {
+            association.abort();
+        }
+    }
+
+
+    /**
+     * Sends the C-MOVE request on a pooled association and waits for the
+     * PACS to finish.  The association is only returned to the pool if the
+     * transfer completed normally.
+     */
+    private class MoveOperation extends AssociationPool.Operation {
+        private final String destAETitle;
+        private final AttributeList specification;
+
+        MoveOperation(String destAETitle, AttributeList specification) {
+            this.destAETitle = destAETitle;
+            this.specification = specification;
+        }
+
+        @Override
+        public void perform(Association assoc) throws DicomNetworkException, DicomException, IOException {
+            operation = this;
+            association = assoc;
+            Log.get().finer(association.toString());
+            // Decide which presentation context we are going to use ...
+            byte presentationContextID = association.getSuitablePresentationContextID(CMOVE_COMMAND);
+            Log.get().finer("MoveSOPClassSCU: Using context ID "+presentationContextID);
+            byte cMoveRequestCommandMessage[] = DicomCommand.cMoveRequest(CMOVE_COMMAND, messageID, destAETitle);
+            byte cMoveIdentifier[] = new IdentifierMessage(specification,association.getTransferSyntaxForPresentationContextID(presentationContextID)).getBytes();
+            Log.get().finer("MoveSOPClassSCU: Identifier:\n"+specification.toString().replace('\0', ' '));
+            association.setReceivedDataHandler(new CMoveResponseHandler(DEBUG_LEVEL));
+            // for some reason association.send(usePresentationContextID,cMoveRequestCommandMessage,cMoveIdentifier) fails with Oldenburg imagectn
+            // so send the command and the identifier separately ...
+            association.send(presentationContextID,cMoveRequestCommandMessage,null);
+            association.send(presentationContextID,null,cMoveIdentifier);
+            Log.get().finer("MoveSOPClassSCU: waiting for PDUs");
+            try {
+                association.waitForPDataPDUsUntilHandlerReportsDone();
+                Log.get().finer("CMove: got final response");
+            }
+            catch (AReleaseException e) {
+                // State 1
+                reusable = false;
+                Log.get().info("DICOM transfer was stopped, probably either because of limit of number of objects exceeded or remote PACS failed: " + e);
+            }
+            catch (Exception e) {
+                reusable = false;
+                if (!started && !aborted) {
+                    // the PACS never responded, so the pool may try again on a new association
+                    throw new DicomNetworkException("No response to C-MOVE: " + e);
+                }
+                Log.get().info("DICOM transfer stopped, probably either because of limit of number of objects exceeded or remote PACS failed: " + e);
+            }
+            if (aborted) {
+                reusable = false;
+            }
+        }
     }
 
 
@@ -331,34 +438,7 @@ public class CMove {
                     specification.toString().replace('\0', ' '));
             this.progressProcessor = progressProcessor;
 
-            association = AssociationFactory.createNewAssociation(sourcePacs.host,sourcePacs.port,sourcePacs.aeTitle,callingAETitle,getPresentationContext(),null,false,DEBUG_LEVEL);
-            Log.get().finer(association.toString());
-            // Decide which presentation context we are going to use ...
-            byte presentationContextID = association.getSuitablePresentationContextID(CMOVE_COMMAND);
-            Log.get().finer("MoveSOPClassSCU: Using context ID "+presentationContextID);
-            byte cMoveRequestCommandMessage[] = new CMoveRequestCommandMessage(CMOVE_COMMAND,destAETitle).getBytes();
-            byte cMoveIdentifier[] = new IdentifierMessage(specification,association.getTransferSyntaxForPresentationContextID(presentationContextID)).getBytes();
-            Log.get().finer("MoveSOPClassSCU: Identifier:\n"+specification.toString().replace('\0', ' '));
-            association.setReceivedDataHandler(new CMoveResponseHandler(DEBUG_LEVEL));
-            // for some reason association.send(usePresentationContextID,cMoveRequestCommandMessage,cMoveIdentifier) fails with Oldenburg imagectn
-            // so send the command and the identifier separately ...
-            association.send(presentationContextID,cMoveRequestCommandMessage,null);
-            association.send(presentationContextID,null,cMoveIdentifier);
-            Log.get().finer("MoveSOPClassSCU: waiting for PDUs");
-            try {
-                association.waitForPDataPDUsUntilHandlerReportsDone();
-                Log.get().finer("CMove: got PDU, now releasing association");
-                // State 6
-                association.release();
-            }
-            catch (AReleaseException e) {
-                // State 1
-                Log.get().info("DICOM transfer was stopped, probably either because of limit of number of objects exceeded or remote PACS failed: " + e);
-            }
-            catch (Exception e) {
-                Log.get().info("DICOM transfer stopped, probably either because of limit of number of objects exceeded or remote PACS failed: " + e);
-            }
-
+            AssociationPool.getInstance().execute(sourcePacs, callingAETitle, getPresentationContext(), new MoveOperation(destAETitle, specification));
         }
         catch (com.pixelmed.network.DicomNetworkException e) {
             String msg = "C-MOVE failed.";
@@ -0,0 +1,383 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.pixelmed.dicom.ApplicationEntityAttribute;
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedLongAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+/**
+ * Encode and decode DICOM command sets (group 0000).  Command sets are
+ * always Implicit VR Little Endian and must be prefixed with their
+ * group length, which this class takes care of.
+ *
+ * @author irrer
+ *
+ */
+public class DicomCommand {
+
+    /** C-STORE-RQ command field value. */
+    public static final int C_STORE_RQ = 0x0001;
+
+    /** C-STORE-RSP command field value. */
+    public static final int C_STORE_RSP = 0x8001;
+
+    /** C-FIND-RQ command field value. */
+    public static final int C_FIND_RQ = 0x0020;
+
+    /** C-MOVE-RQ command field value. */
+    public static final int C_MOVE_RQ = 0x0021;
+
+    /** C-ECHO-RQ command field value. */
+    public static final int C_ECHO_RQ = 0x0030;
+
+    /** C-ECHO-RSP command field value. */
+    public static final int C_ECHO_RSP = 0x8030;
+
+    /** Medium priority. */
+    public static final int PRIORITY_MEDIUM = 0x0000;
+
+    /** Indicates that no data set follows the command. */
+    public static final int NO_DATA_SET = 0x0101;
+
+    /** Indicates that a data set follows the command. */
+    public static final int DATA_SET_PRESENT = 0x0000;
+
+    /** Status of a successful operation. */
+    public static final int STATUS_SUCCESS = 0x0000;
+
+    /** Status for a C-STORE that could not be processed. */
+    public static final int STATUS_CANNOT_UNDERSTAND = 0xC000;
+
+    /** Status indicating that more responses will follow. */
+    public static final int STATUS_PENDING = 0xFF00;
+
+    /** Status indicating that more responses will follow, with warning. */
+    public static final int STATUS_PENDING_WARNING = 0xFF01;
+
+    /** Most recently allocated message ID. */
+    private static int lastMessageID = 0;
+
+
+    /**
+     * Constructor is private.
+     */
+    private DicomCommand() {
+    }
+
+
+    /**
+     * Allocate a message ID that is not being used by any other request from
+     * this service.  Message IDs are 16 bit and zero is avoided.
+     *
+     * @return Message ID.
+     */
+    public static synchronized int nextMessageID() {
+        lastMessageID = (lastMessageID % 0xFFFF) + 1;
+        return lastMessageID;
+    }
+
+
+    /**
+     * Determine whether a response status indicates that more responses will follow.
+     *
+     * @param status Status from response.
+     *
+     * @return True if pending.
+     */
+    public static boolean isPending(int status) {
+        return (status == STATUS_PENDING) || (status == STATUS_PENDING_WARNING);
+    }
+
+
+    /**
+     * Determine whether a C-STORE response status indicates success or warning.
+     *
+     * @param status Status from response.
+     *
+     * @return True if the object was stored.
+     */
+    public static boolean isStoreSuccess(int status) {
+        return (status == STATUS_SUCCESS) || ((status & 0xF000) == 0xB000);
+    }
+
+
+    /**
+     * Add an unsigned short valued attribute.
+     */
+    static void putUS(AttributeList list, AttributeTag tag, int value) throws DicomException {
+        Attribute a = new UnsignedShortAttribute(tag);
+        a.addValue(value);
+        list.put(a);
+    }
+
+
+    /**
+     * Add an AE title valued attribute.  Null values are ignored.
+     */
+    static void putAE(AttributeList list, AttributeTag tag, String value) throws DicomException {
+        if (value != null) {
+            Attribute a = new ApplicationEntityAttribute(tag);
+            a.addValue(value);
+            list.put(a);
+        }
+    }
+
+
+    /**
+     * Add a UID valued attribute.  Null values are ignored.
+     */
+    static void putUI(AttributeList list, AttributeTag tag, String value) throws DicomException {
+        if (value != null) {
+            Attribute a = new UniqueIdentifierAttribute(tag);
+            a.addValue(value);
+            list.put(a);
+        }
+    }
+
+
+    /**
+     * Encode a command set, calculating and inserting the group length.
+     *
+     * @param command Command attributes, without group length.
+     *
+     * @return Encoded command.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] encode(AttributeList command) throws DicomException, IOException {
+        command.remove(TagFromName.CommandGroupLength);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        command.write(new DicomOutputStream(body, null, TransferSyntax.ImplicitVRLittleEndian));
+
+        AttributeList withLength = new AttributeList();
+        Attribute groupLength = new UnsignedLongAttribute(TagFromName.CommandGroupLength);
+        groupLength.addValue(body.size());
+        withLength.put(groupLength);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 12);
+        withLength.write(new DicomOutputStream(out, null, TransferSyntax.ImplicitVRLittleEndian));
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Encode a data set (identifier or object) for sending after a command.
+     * Meta information header attributes are not written.
+     *
+     * @param dataSet Attributes to encode.
+     *
+     * @param transferSyntaxUID Negotiated transfer syntax.
+     *
+     * @return Encoded data set, padded to an even length.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] encodeDataSet(AttributeList dataSet, String transferSyntaxUID) throws DicomException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dataSet.write(new DicomOutputStream(out, null, transferSyntaxUID));
+        if ((out.size() % 2) != 0) {
+            // deflated transfer syntaxes may produce an odd length
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Decode a command set.
+     *
+     * @param bytes Encoded command.
+     *
+     * @return Command attributes.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static AttributeList decode(byte[] bytes) throws DicomException, IOException {
+        AttributeList command = new AttributeList();
+        command.read(new DicomInputStream(new ByteArrayInputStream(bytes), TransferSyntax.ImplicitVRLittleEndian, false));
+        return command;
+    }
+
+
+    /**
+     * Build the response to a C-STORE request.
+     *
+     * @param request The C-STORE-RQ being responded to.
+     *
+     * @param status Status to report.
+     *
+     * @return Encoded C-STORE-RSP.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cStoreResponse(AttributeList request, int status) throws DicomException, IOException {
+        AttributeList response = new AttributeList();
+        putUI(response, TagFromName.AffectedSOPClassUID, Attribute.getSingleStringValueOrNull(request, TagFromName.AffectedSOPClassUID));
+        putUS(response, TagFromName.CommandField, C_STORE_RSP);
+        putUS(response, TagFromName.MessageIDBeingRespondedTo, Attribute.getSingleIntegerValueOrDefault(request, TagFromName.MessageID, 0));
+        putUS(response, TagFromName.CommandDataSetType, NO_DATA_SET);
+        putUS(response, TagFromName.Status, status);
+        putUI(response, TagFromName.AffectedSOPInstanceUID, Attribute.getSingleStringValueOrNull(request, TagFromName.AffectedSOPInstanceUID));
+        return encode(response);
+    }
+
+
+    /**
+     * Build the response to a C-ECHO request.
+     *
+     * @param request The C-ECHO-RQ being responded to.
+     *
+     * @return Encoded C-ECHO-RSP.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cEchoResponse(AttributeList request) throws DicomException, IOException {
+        AttributeList response = new AttributeList();
+        putUI(response, TagFromName.AffectedSOPClassUID, SOPClass.Verification);
+        putUS(response, TagFromName.CommandField, C_ECHO_RSP);
+        putUS(response, TagFromName.MessageIDBeingRespondedTo, Attribute.getSingleIntegerValueOrDefault(request, TagFromName.MessageID, 0));
+        putUS(response, TagFromName.CommandDataSetType, NO_DATA_SET);
+        putUS(response, TagFromName.Status, STATUS_SUCCESS);
+        return encode(response);
+    }
+
+
+    /**
+     * Build a C-MOVE request.  The message ID is chosen by the caller so that
+     * objects sent as a result of the move, which carry it as their Move
+     * Originator Message ID, can be matched to the move.
+     *
+     * @param affectedSOPClassUID Query/retrieve information model.
+     *
+     * @param messageID Message ID of this request.
+     *
+     * @param moveDestination AE title to send the objects to.
+     *
+     * @return Encoded C-MOVE-RQ.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cMoveRequest(String affectedSOPClassUID, int messageID, String moveDestination) throws DicomException, IOException {
+        AttributeList request = new AttributeList();
+        putUI(request, TagFromName.AffectedSOPClassUID, affectedSOPClassUID);
+        putUS(request, TagFromName.CommandField, C_MOVE_RQ);
+        putUS(request, TagFromName.MessageID, messageID);
+        putUS(request, TagFromName.Priority, PRIORITY_MEDIUM);
+        putUS(request, TagFromName.CommandDataSetType, DATA_SET_PRESENT);
+        putAE(request, TagFromName.MoveDestination, moveDestination);
+        return encode(request);
+    }
+
+
+    /**
+     * Build a C-FIND request.
+     *
+     * @param affectedSOPClassUID Query/retrieve information model.
+     *
+     * @param messageID Message ID of this request.
+     *
+     * @return Encoded C-FIND-RQ.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cFindRequest(String affectedSOPClassUID, int messageID) throws DicomException, IOException {
+        AttributeList request = new AttributeList();
+        putUI(request, TagFromName.AffectedSOPClassUID, affectedSOPClassUID);
+        putUS(request, TagFromName.CommandField, C_FIND_RQ);
+        putUS(request, TagFromName.MessageID, messageID);
+        putUS(request, TagFromName.Priority, PRIORITY_MEDIUM);
+        putUS(request, TagFromName.CommandDataSetType, DATA_SET_PRESENT);
+        return encode(request);
+    }
+
+
+    /**
+     * Build a C-ECHO request.
+     *
+     * @param messageID Message ID of this request.
+     *
+     * @return Encoded C-ECHO-RQ.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cEchoRequest(int messageID) throws DicomException, IOException {
+        AttributeList request = new AttributeList();
+        putUI(request, TagFromName.AffectedSOPClassUID, SOPClass.Verification);
+        putUS(request, TagFromName.CommandField, C_ECHO_RQ);
+        putUS(request, TagFromName.MessageID, messageID);
+        putUS(request, TagFromName.CommandDataSetType, NO_DATA_SET);
+        return encode(request);
+    }
+
+
+    /**
+     * Build a C-STORE request.
+     *
+     * @param affectedSOPClassUID SOP class of object being stored.
+     *
+     * @param affectedSOPInstanceUID SOP instance of object being stored.
+     *
+     * @param messageID Message ID of this request.
+     *
+     * @param moveOriginatorAETitle AE title of the C-MOVE that caused this store, or null.
+     *
+     * @param moveOriginatorMessageID Message ID of the C-MOVE that caused this store, ignored if AE title is null.
+     *
+     * @return Encoded C-STORE-RQ.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public static byte[] cStoreRequest(String affectedSOPClassUID, String affectedSOPInstanceUID, int messageID,
+            String moveOriginatorAETitle, int moveOriginatorMessageID) throws DicomException, IOException {
+        AttributeList request = new AttributeList();
+        putUI(request, TagFromName.AffectedSOPClassUID, affectedSOPClassUID);
+        putUS(request, TagFromName.CommandField, C_STORE_RQ);
+        putUS(request, TagFromName.MessageID, messageID);
+        putUS(request, TagFromName.Priority, PRIORITY_MEDIUM);
+        putUS(request, TagFromName.CommandDataSetType, DATA_SET_PRESENT);
+        putUI(request, TagFromName.AffectedSOPInstanceUID, affectedSOPInstanceUID);
+        if (moveOriginatorAETitle != null) {
+            putAE(request, TagFromName.MoveOriginatorApplicationEntityTitle, moveOriginatorAETitle);
+            putUS(request, TagFromName.MoveOriginatorMessageID, moveOriginatorMessageID);
+        }
+        return encode(request);
+    }
+}
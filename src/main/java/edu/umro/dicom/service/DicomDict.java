@@ -16,24 +16,84 @@ package edu.umro.dicom.service;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.HashMap;
 import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomDictionary;
 
-class DicomDict extends DicomDictionary {
+/**
+ * A DICOM dictionary with case insensitive look up of tags by name.  It is
+ * the standard dictionary, optionally with named items added or replaced.
+ * Once constructed it is not changed, so one instance may be shared by all
+ * threads.  Get instances from <code>DictionaryRegistry</code> rather than
+ * constructing them, as construction is expensive.
+ *
+ * @author irrer
+ *
+ */
+public class DicomDict extends DicomDictionary {
+
+    /** Name in the registry. */
+    private final String name;
+
+    /** Items that were added to the standard dictionary. */
+    private final List<DictionaryRegistry.Item> customItemList;
 
     private HashMap<String,AttributeTag> tagByCaseInsensitiveName = new HashMap<String,AttributeTag>();
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Construct the standard dictionary.
+     */
     public DicomDict() {
+        this(DictionaryRegistry.STANDARD, null);
+    }
+
+    /**
+     * Construct the standard dictionary with items added.  An item with the
+     * tag or name of a standard entry replaces it.
+     *
+     * @param name Name of dictionary.
+     *
+     * @param itemList Items to add, may be null.
+     */
+    @SuppressWarnings("unchecked")
+    public DicomDict(String name, List<DictionaryRegistry.Item> itemList) {
         super();
-        tagByName.keySet();
+        this.name = name;
+        this.customItemList = (itemList == null) ? new ArrayList<DictionaryRegistry.Item>() : new ArrayList<DictionaryRegistry.Item>(itemList);
+        for (DictionaryRegistry.Item item : customItemList) {
+            String oldName = (String)nameByTag.get(item.tag);
+            if (oldName != null) {
+                tagByName.remove(oldName);
+            }
+            AttributeTag oldTag = (AttributeTag)tagByName.get(item.name);
+            if (oldTag != null) {
+                nameByTag.remove(oldTag);
+            }
+            tagList.add(item.tag);
+            nameByTag.put(item.tag, item.name);
+            tagByName.put(item.name, item.tag);
+            fullNameByTag.put(item.tag, item.name);
+            valueRepresentationByTag.put(item.tag, item.vr.getBytes());
+        }
+        index();
+    }
+
+    /**
+     * Build the case insensitive index of names.  Subclasses that change
+     * names must call this afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    protected void index() {
+        tagByCaseInsensitiveName.clear();
         for (String name : (Set<String>)(tagByName.keySet())) {
             tagByCaseInsensitiveName.put(name.toLowerCase(), (AttributeTag)(tagByName.get(name)));
         }
     }
-    
+
     public AttributeTag getTagByCaseInsensitiveName(String name) {
         AttributeTag tag = tagByCaseInsensitiveName.get(name.toLowerCase());
         if (tag == null) {
@@ -42,4 +102,35 @@ class DicomDict extends DicomDictionary {
         return tag;
     }
 
+    /**
+     * @return Name of this dictionary.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Items added to the standard dictionary.
+     */
+    public List<DictionaryRegistry.Item> getCustomItemList() {
+        return new ArrayList<DictionaryRegistry.Item>(customItemList);
+    }
+
+    /**
+     * @return Every entry in the dictionary, in tag order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<DictionaryRegistry.Item> getItemList() {
+        ArrayList<DictionaryRegistry.Item> itemList = new ArrayList<DictionaryRegistry.Item>();
+        for (Iterator<AttributeTag> iterator = (Iterator<AttributeTag>)getTagIterator(); iterator.hasNext(); ) {
+            AttributeTag tag = iterator.next();
+            String tagName = getNameFromTag(tag);
+            byte[] vr = getValueRepresentationFromTag(tag);
+            if ((tagName != null) && (vr != null)) {
+                itemList.add(new DictionaryRegistry.Item(tagName, tag, new String(vr)));
+            }
+        }
+        return itemList;
+    }
+
 }
@@ -16,7 +16,6 @@ package edu.umro.dicom.service
  * limitations under the License.
  */
 
-import java.util.concurrent.ArrayBlockingQueue
 import java.io.File
 import com.pixelmed.network.ReceivedObjectHandler
 import com.pixelmed.dicom.TagFromName
@@ -31,10 +30,21 @@ import edu.umro.util.Log;
  */
 object DicomGet {
 
-    /** List of available receivers. */
-    private val available = new ArrayBlockingQueue[DicomReceiver](ServiceConfig.getInstance.getHostedPACS.length)
+    /** Matches incoming objects with the retrieve that requested them. */
+    private val router = new RetrieveRouter
 
-    for (pacs <- ServiceConfig.getInstance.getHostedPACS) available.add(new DicomReceiver(pacs.aeTitle, pacs.port))
+    /**
+     * Receivers for all hosted AE titles.  Any number of retrieves may share a receiver,
+     * but all are kept listening so that PACS configured to send to any of them still work.
+     */
+    private val receiverList = ServiceConfig.getInstance.getHostedPACS.map(pacs => {
+        val receiver = new DicomReceiver(pacs.aeTitle, pacs.port)
+        receiver.receive = router
+        receiver
+    })
+
+    /** AE title that PACS are told to send retrieved objects to. */
+    private val destinationAETitle = receiverList.head.aeTitle
 
 
     /**
@@ -65,8 +75,10 @@ object DicomGet {
      * be transferred even if the limit is exceeded. 
      * 
      * @param receive Method for receiving DICOM content.
+     * 
+     * @return True if the PACS reported that all objects were sent.
      */
-    def get(pacs:PACS, specification:AttributeList, progressProcessor:CMove.ProgressProcessor, limit:Int, receive:ReceiveDicom) = {
+    def get(pacs:PACS, specification:AttributeList, progressProcessor:CMove.ProgressProcessor, limit:Int, receive:ReceiveDicom):Boolean = {
             def qrtVal:String = {
             val attr = specification.get(TagFromName.QueryRetrieveLevel)
             if (attr == null) "" 
@@ -102,23 +114,23 @@ object DicomGet {
 
     }
 
-    Log.get.fine("Waiting to acquire DICOM connection")
-    val receiver = available.take
-    Log.get.fine("Acquired DICOM connection")
+    // callers hold a RetrieveAdmission ticket, which limits the number of retrieves in progress
+    val cmove = new CMove
+    val registration = router.register(cmove.getMessageID, destinationAETitle, pacs, specification, InstanceCache.getInstance.fill(receive))
+    Log.get.fine("Started retrieve " + cmove.getMessageID + ".  Retrieves in progress: " + router.size)
     try {
         ensureQueryRetrieveLevel
-        receiver.receive = receive
-        val cmove = new CMove
-        cmove.begin(pacs, receiver.aeTitle, receiver.aeTitle, specification, limit, progressProcessor)
+        cmove.begin(pacs, destinationAETitle, destinationAETitle, specification, limit, progressProcessor)
+        cmove.isSuccess
     }
     catch {
         case e: Exception => {
             Log.get.warning("Unexpected exception in DicomGet for PACS " + pacs + " : " + e)
+            false
         }
     }
     finally {
-        receiver.receive = null
-        available.put(receiver)
+        router.unregister(registration)
     }
     }
 
@@ -133,7 +145,10 @@ object DicomGet {
      * a client uses the DICOM receivers.
      */
     def init = {
-            Log.get.info("Initializing DicomGet...");
+            Log.get.info("Initializing DicomGet.  Receiving on " + receiverList.map(_.aeTitle).mkString(", ") +
+                "  maximum concurrent retrieves: " + ServiceConfig.getInstance.getMaxConcurrentRetrieve);
+            // start indexing the instance cache so that it is ready sooner
+            InstanceCache.getInstance
     }
 
 
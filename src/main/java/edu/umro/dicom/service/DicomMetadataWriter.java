@@ -0,0 +1,341 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Set;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.util.XML;
+
+/**
+ * Write the attributes of a DICOM object as DICOM JSON (PS3.18 Annex F) or
+ * as the Native DICOM Model XML (PS3.19 Annex A).
+ *
+ * File meta information, group lengths, pixel data, and the query/retrieve
+ * level of C-FIND results are not written.
+ * Other binary attributes (OB, OW, OF, and UN) are written with their value
+ * representation but without their value, as they are bulk data.
+ *
+ * @author irrer
+ *
+ */
+public class DicomMetadataWriter {
+
+    /** Name of each person name component in XML, in order. */
+    private static final String[] PERSON_NAME_COMPONENT = { "FamilyName", "GivenName", "MiddleName", "NamePrefix", "NameSuffix" };
+
+    /** Name of each person name component group, in order. */
+    private static final String[] PERSON_NAME_GROUP = { "Alphabetic", "Ideographic", "Phonetic" };
+
+    private static final DicomDictionary dictionary = DictionaryRegistry.getInstance().getStandard();
+
+
+    /**
+     * Constructor is private.
+     */
+    private DicomMetadataWriter() {
+    }
+
+
+    /**
+     * Determine whether an attribute is written.
+     *
+     * @param tag Tag of attribute.
+     *
+     * @param includeList If not null, only these are written.
+     */
+    private static boolean isWritten(AttributeTag tag, Set<AttributeTag> includeList) {
+        return
+            (tag.getGroup() != 0x0002) &&
+            (tag.getElement() != 0x0000) &&
+            !tag.equals(TagFromName.PixelData) &&
+            !tag.equals(TagFromName.QueryRetrieveLevel) &&
+            ((includeList == null) || includeList.contains(tag));
+    }
+
+
+    private static boolean isBulkData(byte[] vr) {
+        return
+            ValueRepresentation.isOtherByteVR(vr) ||
+            ValueRepresentation.isOtherWordVR(vr) ||
+            ValueRepresentation.isOtherFloatVR(vr) ||
+            ValueRepresentation.isUnknownVR(vr);
+    }
+
+
+    private static String getTagAsHex(AttributeTag tag) {
+        return String.format("%04X%04X", tag.getGroup(), tag.getElement());
+    }
+
+
+    /**
+     * Convert the string form of an attribute tag value such as
+     * <code>(0x0010,0x0020)</code> to <code>00100020</code>.
+     */
+    private static String getAttributeTagValue(String text) {
+        return text.replaceAll("0x", "").replaceAll("[^0-9a-fA-F]", "").toUpperCase();
+    }
+
+
+    /**
+     * Get a numeric value as valid JSON, or <code>null</code> if it is not a number.
+     */
+    private static String getJsonNumber(byte[] vr, String text) {
+        text = text.trim();
+        try {
+            if (ValueRepresentation.isIntegerStringVR(vr)) {
+                return Long.toString(Long.parseLong(text.replaceFirst("^\\+", "")));
+            }
+            return new BigDecimal(text).toString();
+        }
+        catch (NumberFormatException e) {
+            return "null";
+        }
+    }
+
+
+    /**
+     * Escape a string for JSON and write it in quotes.
+     */
+    private static void writeJsonString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String escape;
+            switch (c) {
+                case '"':  escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                default:
+                    escape = (c < 0x20) ? String.format("\\u%04x", (int) c) : null;
+            }
+            if (escape != null) {
+                writer.write(text, start, i - start);
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        writer.write(text, start, length - start);
+        writer.write('"');
+    }
+
+
+    /**
+     * Get the values of an attribute, with trailing padding removed.
+     */
+    private static String[] getStringValues(Attribute attribute) throws DicomException {
+        String[] valueList = attribute.getStringValues();
+        if (valueList == null) {
+            return new String[0];
+        }
+        for (int v = 0; v < valueList.length; v++) {
+            valueList[v] = (valueList[v] == null) ? "" : valueList[v].replace('\0', ' ').trim();
+        }
+        return valueList;
+    }
+
+
+    /**
+     * Write the values of a non-sequence attribute as a JSON array.
+     */
+    private static void writeJsonValue(Writer writer, Attribute attribute, byte[] vr) throws IOException, DicomException {
+        String[] valueList = getStringValues(attribute);
+        if (valueList.length == 0) {
+            return;
+        }
+        writer.write(",\"Value\":[");
+        for (int v = 0; v < valueList.length; v++) {
+            if (v > 0) {
+                writer.write(',');
+            }
+            String value = valueList[v];
+            if (ValueRepresentation.isPersonNameVR(vr)) {
+                String[] groupList = value.split("=", -1);
+                writer.write('{');
+                boolean first = true;
+                for (int g = 0; (g < groupList.length) && (g < PERSON_NAME_GROUP.length); g++) {
+                    if (groupList[g].length() > 0) {
+                        writer.write(first ? "\"" : ",\"");
+                        writer.write(PERSON_NAME_GROUP[g]);
+                        writer.write("\":");
+                        writeJsonString(writer, groupList[g]);
+                        first = false;
+                    }
+                }
+                writer.write('}');
+            }
+            else if (value.length() == 0) {
+                writer.write("null");
+            }
+            else if (ValueRepresentation.isIntegerStringVR(vr) || ValueRepresentation.isDecimalStringVR(vr) ||
+                    ValueRepresentation.isUnsignedShortVR(vr) || ValueRepresentation.isSignedShortVR(vr) ||
+                    ValueRepresentation.isUnsignedLongVR(vr) || ValueRepresentation.isSignedLongVR(vr) ||
+                    ValueRepresentation.isFloatSingleVR(vr) || ValueRepresentation.isFloatDoubleVR(vr)) {
+                writer.write(getJsonNumber(vr, value));
+            }
+            else if (ValueRepresentation.isAttributeTagVR(vr)) {
+                writeJsonString(writer, getAttributeTagValue(value));
+            }
+            else {
+                writeJsonString(writer, value);
+            }
+        }
+        writer.write(']');
+    }
+
+
+    /**
+     * Write an attribute list as a DICOM JSON object.
+     *
+     * @param writer Where to write.
+     *
+     * @param attributeList Attributes to write.
+     *
+     * @param includeList If not null, only these top level attributes are written.
+     *
+     * @throws IOException On failure to write.
+     *
+     * @throws DicomException If a value can not be read.
+     */
+    public static void writeJson(Writer writer, AttributeList attributeList, Set<AttributeTag> includeList) throws IOException, DicomException {
+        writer.write('{');
+        boolean first = true;
+        for (Object o : attributeList.values()) {
+            Attribute attribute = (Attribute) o;
+            AttributeTag tag = attribute.getTag();
+            if (isWritten(tag, includeList)) {
+                byte[] vr = attribute.getVR();
+                writer.write((first ? "\n" : ",\n") + "\"" + getTagAsHex(tag) + "\":{\"vr\":\"" + ValueRepresentation.getAsString(vr) + "\"");
+                first = false;
+                if (attribute instanceof SequenceAttribute) {
+                    SequenceAttribute sequence = (SequenceAttribute) attribute;
+                    if (sequence.getNumberOfItems() > 0) {
+                        writer.write(",\"Value\":[");
+                        for (int i = 0; i < sequence.getNumberOfItems(); i++) {
+                            if (i > 0) {
+                                writer.write(',');
+                            }
+                            writeJson(writer, sequence.getItem(i).getAttributeList(), null);
+                        }
+                        writer.write(']');
+                    }
+                }
+                else if (!isBulkData(vr)) {
+                    writeJsonValue(writer, attribute, vr);
+                }
+                writer.write('}');
+            }
+        }
+        writer.write("\n}");
+    }
+
+
+    /**
+     * Write the values of a non-sequence attribute as XML elements.
+     */
+    private static void writeXmlValue(Writer writer, Attribute attribute, byte[] vr, String indent) throws IOException, DicomException {
+        String[] valueList = getStringValues(attribute);
+        for (int v = 0; v < valueList.length; v++) {
+            String number = "number=\"" + (v + 1) + "\"";
+            String value = valueList[v];
+            if (ValueRepresentation.isPersonNameVR(vr)) {
+                writer.write(indent + "<PersonName " + number + ">\n");
+                String[] groupList = value.split("=", -1);
+                for (int g = 0; (g < groupList.length) && (g < PERSON_NAME_GROUP.length); g++) {
+                    if (groupList[g].length() > 0) {
+                        writer.write(indent + "  <" + PERSON_NAME_GROUP[g] + ">");
+                        String[] componentList = groupList[g].split("\\^", -1);
+                        for (int c = 0; (c < componentList.length) && (c < PERSON_NAME_COMPONENT.length); c++) {
+                            if (componentList[c].length() > 0) {
+                                writer.write("<" + PERSON_NAME_COMPONENT[c] + ">" + XML.escapeSpecialChars(componentList[c]) + "</" + PERSON_NAME_COMPONENT[c] + ">");
+                            }
+                        }
+                        writer.write("</" + PERSON_NAME_GROUP[g] + ">\n");
+                    }
+                }
+                writer.write(indent + "</PersonName>\n");
+            }
+            else {
+                if (ValueRepresentation.isAttributeTagVR(vr)) {
+                    value = getAttributeTagValue(value);
+                }
+                writer.write(indent + "<Value " + number + ">" + XML.escapeSpecialChars(value) + "</Value>\n");
+            }
+        }
+    }
+
+
+    private static void writeXmlAttributes(Writer writer, AttributeList attributeList, Set<AttributeTag> includeList, String indent) throws IOException, DicomException {
+        for (Object o : attributeList.values()) {
+            Attribute attribute = (Attribute) o;
+            AttributeTag tag = attribute.getTag();
+            if (isWritten(tag, includeList)) {
+                byte[] vr = attribute.getVR();
+                String keyword = dictionary.getNameFromTag(tag);
+                writer.write(indent + "<DicomAttribute tag=\"" + getTagAsHex(tag) + "\" vr=\"" + ValueRepresentation.getAsString(vr) + "\"" +
+                        ((keyword == null) ? "" : (" keyword=\"" + keyword + "\"")) + ">\n");
+                if (attribute instanceof SequenceAttribute) {
+                    SequenceAttribute sequence = (SequenceAttribute) attribute;
+                    for (int i = 0; i < sequence.getNumberOfItems(); i++) {
+                        writer.write(indent + "  <Item number=\"" + (i + 1) + "\">\n");
+                        writeXmlAttributes(writer, sequence.getItem(i).getAttributeList(), null, indent + "    ");
+                        writer.write(indent + "  </Item>\n");
+                    }
+                }
+                else if (!isBulkData(vr)) {
+                    writeXmlValue(writer, attribute, vr, indent + "  ");
+                }
+                writer.write(indent + "</DicomAttribute>\n");
+            }
+        }
+    }
+
+
+    /**
+     * Write an attribute list as a Native DICOM Model XML element.
+     *
+     * @param writer Where to write.
+     *
+     * @param attributeList Attributes to write.
+     *
+     * @param includeList If not null, only these top level attributes are written.
+     *
+     * @throws IOException On failure to write.
+     *
+     * @throws DicomException If a value can not be read.
+     */
+    public static void writeXml(Writer writer, AttributeList attributeList, Set<AttributeTag> includeList) throws IOException, DicomException {
+        writer.write("<NativeDicomModel xml:space=\"preserve\">\n");
+        writeXmlAttributes(writer, attributeList, includeList, "  ");
+        writer.write("</NativeDicomModel>\n");
+    }
+}
@@ -20,61 +20,246 @@ import com.pixelmed.network.MultipleInstanceTransferStatusHandler
 import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.Attribute
 import com.pixelmed.dicom.TagFromName
-import com.pixelmed.network.StorageSOPClassSCU
+import com.pixelmed.dicom.TransferSyntax
+import com.pixelmed.network.Association
+import com.pixelmed.network.CompositeResponseHandler
+import com.pixelmed.network.PresentationContext
 import java.util.HashSet
-import java.util.Set
+import java.util.LinkedList
 import edu.umro.util.Log
 
 /**
  * Push an array of attributes to the given PACS and wait for it to complete.
- * 
+ *
+ * All objects are sent on one pooled association, which proposes every SOP
+ * class in the array.  If that would need more presentation contexts than
+ * one association can have, the objects are divided between associations.  Objects are sent in their original transfer syntax
+ * if the PACS accepts it, otherwise in an uncompressed one.
+ *
+ * Objects given as <code>SpooledDicom</code> are streamed from where they
+ * were uploaded, with the corresponding entry in the attribute list array
+ * holding only their header.
+ *
  * Caller may access statistics (remaining, completed, failed, warning) in a
  * different thread to get progress during transfer.
- * 
+ *
  */
-class DicomPush(pacs:PACS, attrListList:Array[AttributeList]) extends MultipleInstanceTransferStatusHandler {
+class DicomPush(pacs:PACS, attrListList:Array[AttributeList], spooledList:Array[SpooledDicom]) extends MultipleInstanceTransferStatusHandler {
+
+    def this(pacs:PACS, attrListList:Array[AttributeList]) = this(pacs, attrListList, null)
 
     var remaining:Int = 0
     var completed:Int = 0
     var failed:Int = 0
     var warning = 0
 
+    /** Number of objects that have been attempted. */
+    private var sent = 0
+
+    /** C-STORE response status of each object, or -1 if it was not sent. */
+    val instanceStatus: Array[Int] = Array.fill(attrListList.length)(-1)
+
     def updateStatus(nRemaining: Int, nCompleted: Int, nFailed: Int, nWarning: Int, sopInstanceUID: String): Unit = {
-    remaining = nRemaining
-    completed = nCompleted
-    failed = nFailed
-    warning = nWarning;
-}
+        remaining = nRemaining
+        completed = nCompleted
+        failed = nFailed
+        warning = nWarning;
+    }
 
-private val originatorPacsAETitle = ServiceConfig.getInstance().getHostedPACS()(0).aeTitle
+    private val originatorPacsAETitle = ServiceConfig.getInstance().getHostedPACS()(0).aeTitle
 
-private val MOVE_ORIGINATOR_ID = -1
-private val DEBUG_LEVEL = 0
-private val compressionLevel = 0
+    private val DEBUG_LEVEL = 0
 
-private val sopClassUID:Attribute  = attrListList(0).get(TagFromName.SOPClassUID);
-if (sopClassUID == null) {
-    throw new RuntimeException("DICOM file does not have a SOPClassUID.")
-}
-private val setOfSOPClassUIDs:HashSet[String] = new HashSet[String]();
+    attrListList.foreach(attributeList => {
+        if (attributeList.get(TagFromName.SOPClassUID) == null) {
+            throw new RuntimeException("DICOM file does not have a SOPClassUID.")
+        }
+    })
+
+    private def getSOPClass(attributeList: AttributeList): String = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.SOPClassUID).trim
+
+    private def getTransferSyntax(attributeList: AttributeList): String = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.TransferSyntaxUID).trim
+
+    private def isUncompressed(transferSyntax: String): Boolean = (transferSyntax.length == 0) || !(new TransferSyntax(transferSyntax)).isEncapsulated
+
+    /**
+     * Get the presentation contexts needed to send an object: its SOP class
+     * in its original transfer syntax, and in the uncompressed transfer
+     * syntaxes that any object that is not encapsulated can be converted to.
+     */
+    private def getContextList(attributeList: AttributeList): List[(String, LinkedList[String])] = {
+        val sopClass = getSOPClass(attributeList)
+        val original = getTransferSyntax(attributeList)
+        val uncompressedList = new LinkedList[String]
+        uncompressedList.add(TransferSyntax.ExplicitVRLittleEndian)
+        uncompressedList.add(TransferSyntax.ImplicitVRLittleEndian)
+        if ((original.length > 0) && !original.equals(TransferSyntax.ExplicitVRLittleEndian) && !original.equals(TransferSyntax.ImplicitVRLittleEndian)) {
+            val originalList = new LinkedList[String]
+            originalList.add(original)
+            List((sopClass, originalList), (sopClass, uncompressedList))
+        }
+        else List((sopClass, uncompressedList))
+    }
+
+    private def getContextKey(context: (String, LinkedList[String])): String = context._1 + context._2
+
+    /**
+     * Divide the objects into batches, in order, that each need no more than
+     * <code>AssociationPool.MAX_PRESENTATION_CONTEXTS</code> presentation
+     * contexts, because presentation context IDs are odd numbers from 1 to
+     * 255.  Each batch is sent on its own association.
+     */
+    private def getBatchList: List[List[Int]] = {
+        val batchList = new scala.collection.mutable.ListBuffer[List[Int]]
+        var batch = new scala.collection.mutable.ListBuffer[Int]
+        val proposed = new HashSet[String]
+        for (i <- 0 until attrListList.length) {
+            val needed = getContextList(attrListList(i)).map(getContextKey).filter(key => !proposed.contains(key))
+            if ((proposed.size + needed.size) > AssociationPool.MAX_PRESENTATION_CONTEXTS) {
+                batchList += batch.toList
+                batch = new scala.collection.mutable.ListBuffer[Int]
+                proposed.clear
+            }
+            getContextList(attrListList(i)).foreach(context => proposed.add(getContextKey(context)))
+            batch += i
+        }
+        if (batch.nonEmpty) batchList += batch.toList
+        batchList.toList
+    }
+
+    /**
+     * Propose each presentation context needed by the objects in a batch.
+     */
+    private def getPresentationContextList(batch: List[Int]): LinkedList[PresentationContext] = {
+        val presentationContextList = new LinkedList[PresentationContext]
+        val proposed = new HashSet[String]
+        batch.foreach(i => getContextList(attrListList(i)).foreach(context => {
+            if (proposed.add(getContextKey(context))) {
+                val id = (presentationContextList.size * 2) + 1
+                presentationContextList.add(new PresentationContext(id.toByte, context._1, context._2))
+            }
+        }))
+        presentationContextList
+    }
+
+    /**
+     * Sends each object with a C-STORE and waits for its response.
+     */
+    private class StoreOperation(batch: List[Int]) extends AssociationPool.Operation {
+
+        private class StoreResponseHandler extends CompositeResponseHandler(DEBUG_LEVEL) {
+            var status = 0xFFFF
+
+            override protected def evaluateStatusAndSetSuccess(list: AttributeList): Unit = {
+                started = true
+                status = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Status, 0xFFFF)
+                success = DicomCommand.isStoreSuccess(status)
+                setDone(true)
+            }
+        }
+
+        /**
+         * Choose the presentation context for an object, preferring the one
+         * for its original transfer syntax.
+         */
+        private def getPresentationContextID(association: Association, attributeList: AttributeList): Byte = {
+            val sopClass = getSOPClass(attributeList)
+            val original = getTransferSyntax(attributeList)
+            try {
+                if (original.length > 0) association.getSuitablePresentationContextID(sopClass, original)
+                else association.getSuitablePresentationContextID(sopClass)
+            }
+            catch {
+                case e: com.pixelmed.network.DicomNetworkException =>
+                    if (isUncompressed(original)) association.getSuitablePresentationContextID(sopClass)
+                    else throw e
+            }
+        }
+
+        // counts from the batches before this one, so that a repeated attempt starts from them
+        private val completedBefore = completed
+        private val failedBefore = failed
+        private val warningBefore = warning
+        private val sentBefore = sent
+
+        override def perform(association: Association): Unit = {
+            var nCompleted = completedBefore
+            var nFailed = failedBefore
+            var nWarning = warningBefore
+            sent = sentBefore
+            for (i <- batch) {
+                val attributeList = attrListList(i)
+                val sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.SOPInstanceUID).trim
+                val presentationContextID: Option[Byte] = try {
+                    Some(getPresentationContextID(association, attributeList))
+                }
+                catch {
+                    case e: com.pixelmed.network.DicomNetworkException => {
+                        // the PACS did not accept this SOP class or transfer syntax, but may accept the others
+                        Log.get.warning("Unable to send " + sopInstanceUID + " to " + pacs + " : " + e)
+                        None
+                    }
+                }
+                if (presentationContextID.isDefined) {
+                    val transferSyntax = association.getTransferSyntaxForPresentationContextID(presentationContextID.get)
+                    val spooled = if (spooledList == null) null else spooledList(i)
+                    val handler = new StoreResponseHandler
+                    association.setReceivedDataHandler(handler)
+                    // send the command and the data separately for the same reason as C-MOVE
+                    association.send(presentationContextID.get, DicomCommand.cStoreRequest(getSOPClass(attributeList), sopInstanceUID, DicomCommand.nextMessageID, null, 0), null)
+                    if (spooled == null) {
+                        val dataSet = new AttributeList
+                        dataSet.putAll(attributeList)
+                        dataSet.removeMetaInformationHeaderAttributes
+                        association.send(presentationContextID.get, null, DicomCommand.encodeDataSet(dataSet, transferSyntax))
+                    }
+                    else {
+                        val out = association.getAssociationOutputStream(presentationContextID.get)
+                        spooled.writeDataSet(out, transferSyntax)
+                        out.close
+                    }
+                    association.waitForPDataPDUsUntilHandlerReportsDone
+                    instanceStatus(i) = handler.status
+                }
+
+                if (instanceStatus(i) == DicomCommand.STATUS_SUCCESS) nCompleted = nCompleted + 1
+                else if ((instanceStatus(i) != -1) && DicomCommand.isStoreSuccess(instanceStatus(i))) nWarning = nWarning + 1
+                else {
+                    if (instanceStatus(i) != -1) Log.get.warning("C-STORE of " + sopInstanceUID + " to " + pacs + " failed with status 0x" + Integer.toHexString(instanceStatus(i)))
+                    nFailed = nFailed + 1
+                }
+                sent = sent + 1
+                updateStatus(attrListList.length - sent, nCompleted, nFailed, nWarning, sopInstanceUID)
+            }
+        }
+    }
 
     /**
      * Initiate transfer and wait for results.
      */
     def push:String = {
-        setOfSOPClassUIDs.add(sopClassUID.getSingleStringValueOrEmptyString());
-
-        Log.get.info("Starting DICOM transfer of " + attrListList.length + " files from " + originatorPacsAETitle + " to " + pacs.toString);
+        Log.get.info("Starting DICOM transfer of " + attrListList.length + " files from " + originatorPacsAETitle + " to " + pacs.toString)
+        remaining = attrListList.length
 
-        val sscs = new StorageSOPClassSCU(pacs.host, pacs.port, pacs.aeTitle, originatorPacsAETitle,
-                setOfSOPClassUIDs, attrListList,
-                compressionLevel, this,
-                originatorPacsAETitle, MOVE_ORIGINATOR_ID, DEBUG_LEVEL);
+        val batchList = getBatchList
+        if (batchList.size > 1) Log.get.info("Sending the " + attrListList.length + " files on " + batchList.size + " associations because they need more than " +
+            AssociationPool.MAX_PRESENTATION_CONTEXTS + " presentation contexts.")
+        val exceptionList = batchList.map(batch => {
+            try {
+                AssociationPool.getInstance.execute(pacs, originatorPacsAETitle, getPresentationContextList(batch), new StoreOperation(batch))
+                ""
+            }
+            catch {
+                case e: Exception => "\n   error: " + e
+            }
+        })
+        val exception: String = if (exceptionList.mkString.isEmpty) null else exceptionList.mkString
 
-        val error:String = if ((completed != attrListList.length) || (failed != 0) || (remaining != 0) || (warning != 0)) {
+        val error:String = if ((completed != attrListList.length) || (failed != 0) || (remaining != 0) || (warning != 0) || (exception != null)) {
             "Transfer of files to PACS completely or partially failed." +
             "\nDetails: PACS: " + pacs +
-            "\n   remaining: " + remaining + "    completed: " + completed + "    failed: " + failed + "    warning: " + warning
+            "\n   remaining: " + remaining + "    completed: " + completed + "    failed: " + failed + "    warning: " + warning +
+            (if (exception == null) "" else exception)
         }
         else null
 
@@ -21,64 +21,77 @@ import java.io.File
 import java.io.IOException
 
 import com.pixelmed.network.StorageSOPClassSCPDispatcher
-import com.pixelmed.dicom.StoredFilePathStrategy
 import com.pixelmed.dicom.StoredFilePathStrategySingleFolder
 import com.pixelmed.network.ReceivedObjectHandler
-import com.pixelmed.network.DicomNetworkException
-import com.pixelmed.dicom.DicomException
-import com.pixelmed.dicom.DicomDictionary
-import com.pixelmed.dicom.AttributeTag
-import com.pixelmed.dicom.Attribute
-import com.pixelmed.dicom.AttributeList
-import com.pixelmed.dicom.TagFromName
 
 import edu.umro.util.Log
 
-class DicomReceiver(aeTtl:String, port:Int) extends ReceivedObjectHandler {
+class DicomReceiver(aeTtl:String, port:Int) extends ReceivedObjectHandler with MemoryStorageSCPDispatcher.ObjectHandler {
 
     /**
-     * Handle incoming DICOM objects.  If a receive class has been specified, then use that, otherwise ignore it.  Ignore
-     * all read or processing errors but log them.  After file contents have been passed to the caller's processing
-     * function, the files are deleted.
+     * Handle incoming DICOM files from the file based receiver.  The file is
+     * deleted after its contents have been passed to the caller's processing
+     * function.
      */
     override def sendReceivedObjectIndication(fileName:String, transferSyntax:String, sourceAETitle:String):Unit = {
-            val file = new File(fileName)
-            if (receive == null) {
-                Log.get.finer("Ignoring DICOM object from " + sourceAETitle + "   file: " + file.getAbsolutePath)
+            val receivedDicomObject = ReceivedDicomObject.fromFile(new File(fileName), transferSyntax, sourceAETitle)
+            try {
+                receivedObject(receivedDicomObject)
             }
-            else {
-                val attributeList = new AttributeList
-                try {
-                    attributeList.read(file)
-                    Log.get.info("Processing DICOM object from " + sourceAETitle + "   file: " + file.getAbsolutePath + Utilities.dicomSummary(attributeList))
-                    receive.receive(attributeList, transferSyntax, sourceAETitle) // , transferSyntax)
+            catch {
+                case e: Exception => {
+                    Log.get.warning("Exception while processing incoming DICOM " + receivedDicomObject + " : " + e)
                 }
-                catch {
-                    case e: Exception => {
-                        Log.get.warning("Exception while processing incoming DICOM file " + file.getAbsolutePath + " : " + e)
+            }
+            receivedDicomObject.dispose
+    }
+
+    /**
+     * Handle incoming DICOM objects.  If a receive class has been specified, then use that, otherwise ignore it.
+     * Receivers that can use the object as it was received are given it without it being parsed.  Objects
+     * from PACS are added to the metadata index afterwards.
+     */
+    override def receivedObject(receivedDicomObject:ReceivedDicomObject):Unit = {
+            val rcv = receive
+            if (rcv == null) {
+                Log.get.finer("Ignoring DICOM " + receivedDicomObject)
+            }
+            else {
+                rcv match {
+                    case objectReceiver:ReceiveDicomObject => {
+                        Log.get.info("Processing DICOM " + receivedDicomObject)
+                        objectReceiver.receive(receivedDicomObject)
+                    }
+                    case _ => {
+                        val attributeList = receivedDicomObject.getAttributeList
+                        Log.get.info("Processing DICOM " + receivedDicomObject + Utilities.dicomSummary(attributeList))
+                        rcv.receive(attributeList, receivedDicomObject.getTransferSyntax, receivedDicomObject.getSourceAETitle)
                     }
                 }
             }
-            file.delete
+            MetadataIndex.getInstance.add(receivedDicomObject)
     }
 
-    private val dictionary = new DicomDictionary
     private val debugLevel = 0
     val aeTitle = aeTtl
-    private val strategy:StoredFilePathStrategy = new StoredFilePathStrategySingleFolder
-    private val temporaryDirectory:File = ServiceConfig.getInstance.getTemporaryDir
-    var receive:ReceiveDicom = null
+    @volatile var receive:ReceiveDicom = null
 
+    /** True if objects are kept in memory rather than written to the temporary directory. */
+    val inMemory = ServiceConfig.getInstance.getReceiveInMemory
 
-
-    val dispatcher = new StorageSOPClassSCPDispatcher(
-            port,               // port that we are listening on
-            aeTitle,            // our AETitle
-            temporaryDirectory, // directory for temporary and fetched files
-            strategy,           // strategy for naming incoming DICOM files
-            this,               // ReceivedObjectHandler receivedObjectHandler,
-            debugLevel);        // debug level
+    val dispatcher:Runnable = if (inMemory) {
+        new MemoryStorageSCPDispatcher(port, aeTitle, this)
+    }
+    else {
+        new StorageSOPClassSCPDispatcher(
+            port,                                           // port that we are listening on
+            aeTitle,                                        // our AETitle
+            ServiceConfig.getInstance.getTemporaryDir,      // directory for temporary and fetched files
+            new StoredFilePathStrategySingleFolder,         // strategy for naming incoming DICOM files
+            this,                                           // ReceivedObjectHandler receivedObjectHandler,
+            debugLevel)                                     // debug level
+    }
     val dispatcherThread = new Thread(dispatcher);
     dispatcherThread.start();
-    Log.get.info("Started DICOM receiver.  AE title: " + aeTitle + "  port: " + port)
+    Log.get.info("Started DICOM receiver.  AE title: " + aeTitle + "  port: " + port + "  mode: " + (if (inMemory) "memory" else "file"))
 }
@@ -0,0 +1,334 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.pixelmed.dicom.AttributeTag;
+
+import edu.umro.util.Log;
+import edu.umro.util.UMROException;
+import edu.umro.util.Utility;
+import edu.umro.util.XML;
+
+/**
+ * The DICOM dictionaries used by the service, built once and shared by all
+ * requests.  Each gives constant time look up of a tag by case insensitive
+ * name, and of a name or value representation by tag.
+ *
+ * The standard dictionary and the MRCT dictionary are always present.
+ * Custom dictionaries are the standard dictionary with items added or
+ * replaced.  They are loaded from the configured directory at startup, one
+ * file per dictionary, and may be added and deleted while running.
+ *
+ * Dictionaries are never changed once built.  Adding or deleting one
+ * replaces the map of dictionaries, so readers never need to lock.
+ *
+ * @author irrer
+ *
+ */
+public class DictionaryRegistry {
+
+    /** Name of the standard dictionary, used when none is specified. */
+    public static final String STANDARD = "standard";
+
+    /** Name of the dictionary used for MR CT. */
+    public static final String MRCT = "MRCT";
+
+    /** Suffix of files that hold custom dictionaries. */
+    private static final String FILE_SUFFIX = ".xml";
+
+    /** Custom dictionary names must match this so that they can be used as file names. */
+    private static final String NAME_PATTERN = "[A-Za-z0-9_\\-]{1,64}";
+
+    /**
+     * One entry of a dictionary.
+     */
+    public static class Item {
+        public final String name;
+        public final AttributeTag tag;
+        public final String vr;
+
+        public Item(String name, AttributeTag tag, String vr) {
+            this.name = name;
+            this.tag = tag;
+            this.vr = vr;
+        }
+    }
+
+    private static DictionaryRegistry instance = null;
+
+    private final DicomDict standard;
+
+    /** Where custom dictionaries are kept, or null if they are not saved. */
+    private final File directory;
+
+    /** Dictionaries by lower case name.  Replaced, never changed. */
+    private volatile HashMap<String, DicomDict> dictionaryMap;
+
+
+    private DictionaryRegistry() {
+        long start = System.currentTimeMillis();
+        standard = new DicomDict();
+        HashMap<String, DicomDict> map = new HashMap<String, DicomDict>();
+        map.put(STANDARD.toLowerCase(), standard);
+        map.put(MRCT.toLowerCase(), new MRCTDictionary());
+
+        directory = ServiceConfig.getInstance().getDictionaryDirectory();
+        if (directory != null) {
+            File[] fileList = directory.listFiles();
+            if (fileList != null) {
+                for (File file : fileList) {
+                    String fileName = file.getName();
+                    if (fileName.endsWith(FILE_SUFFIX)) {
+                        String name = fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+                        try {
+                            if (!name.matches(NAME_PATTERN) || map.containsKey(name.toLowerCase())) {
+                                throw new DICOMRestException("Invalid dictionary name " + name);
+                            }
+                            map.put(name.toLowerCase(), new DicomDict(name, parse(Utility.readFile(file))));
+                        }
+                        catch (Exception e) {
+                            Log.get().warning("Ignoring DICOM dictionary file " + file.getAbsolutePath() + " : " + e);
+                        }
+                    }
+                }
+            }
+        }
+        dictionaryMap = map;
+        Log.get().info("Loaded " + map.size() + " DICOM dictionaries in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    public static synchronized DictionaryRegistry getInstance() {
+        if (instance == null) {
+            instance = new DictionaryRegistry();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return The standard dictionary.
+     */
+    public DicomDict getStandard() {
+        return standard;
+    }
+
+
+    /**
+     * Get a dictionary by name, ignoring case.
+     *
+     * @param name Name of dictionary.  If null or blank, the standard dictionary is returned.
+     *
+     * @return Dictionary, or null if there is none with that name.
+     */
+    public DicomDict get(String name) {
+        if ((name == null) || (name.trim().length() == 0)) {
+            return standard;
+        }
+        return dictionaryMap.get(name.trim().toLowerCase());
+    }
+
+
+    /**
+     * @return Names of all dictionaries, sorted.
+     */
+    public List<String> getNameList() {
+        ArrayList<String> nameList = new ArrayList<String>();
+        for (DicomDict dicomDict : dictionaryMap.values()) {
+            nameList.add(dicomDict.getName());
+        }
+        Collections.sort(nameList, String.CASE_INSENSITIVE_ORDER);
+        return nameList;
+    }
+
+
+    private static boolean isBuiltIn(String name) {
+        return name.equalsIgnoreCase(STANDARD) || name.equalsIgnoreCase(MRCT);
+    }
+
+
+    private File getFile(String name) {
+        return new File(directory, name + FILE_SUFFIX);
+    }
+
+
+    /**
+     * Add or replace a custom dictionary.  It is saved so that it will be
+     * loaded when the service is restarted.
+     *
+     * @param name Name of dictionary.
+     *
+     * @param itemList Items to add to the standard dictionary.
+     *
+     * @throws DICOMRestException If the name is not valid or is that of a built in dictionary.
+     *
+     * @throws IOException If the dictionary could not be saved.
+     */
+    public synchronized void add(String name, List<Item> itemList) throws DICOMRestException, IOException {
+        if ((name == null) || !name.matches(NAME_PATTERN)) {
+            throw new DICOMRestException("Invalid dictionary name " + name + " .  Names may have up to 64 letters, digits, underscores, and dashes.");
+        }
+        if (isBuiltIn(name)) {
+            throw new DICOMRestException("The " + name + " dictionary is built in and can not be replaced.");
+        }
+        DicomDict dicomDict = new DicomDict(name, itemList);
+
+        if (directory == null) {
+            Log.get().warning("No directory is configured for DICOM dictionaries, so dictionary " + name + " will be lost when the service is restarted.");
+        }
+        else {
+            directory.mkdirs();
+            DicomDict old = dictionaryMap.get(name.toLowerCase());
+            if (old != null) {
+                getFile(old.getName()).delete();
+            }
+            FileOutputStream outputStream = new FileOutputStream(getFile(name));
+            try {
+                outputStream.write(toXml(name, itemList).getBytes("UTF-8"));
+            }
+            finally {
+                outputStream.close();
+            }
+        }
+
+        HashMap<String, DicomDict> map = new HashMap<String, DicomDict>(dictionaryMap);
+        map.put(name.toLowerCase(), dicomDict);
+        dictionaryMap = map;
+        Log.get().info("Added DICOM dictionary " + name + " with " + itemList.size() + " items");
+    }
+
+
+    /**
+     * Delete a custom dictionary.
+     *
+     * @param name Name of dictionary.
+     *
+     * @return True if it was deleted, false if there was no such dictionary.
+     *
+     * @throws DICOMRestException If the dictionary is built in.
+     */
+    public synchronized boolean delete(String name) throws DICOMRestException {
+        if (isBuiltIn(name)) {
+            throw new DICOMRestException("The " + name + " dictionary is built in and can not be deleted.");
+        }
+        DicomDict old = dictionaryMap.get(name.toLowerCase());
+        if (old == null) {
+            return false;
+        }
+        if (directory != null) {
+            getFile(old.getName()).delete();
+        }
+        HashMap<String, DicomDict> map = new HashMap<String, DicomDict>(dictionaryMap);
+        map.remove(name.toLowerCase());
+        dictionaryMap = map;
+        Log.get().info("Deleted DICOM dictionary " + name);
+        return true;
+    }
+
+
+    /**
+     * Parse the items of a dictionary from XML of the form:
+     *
+     * <pre>
+     * &lt;DicomDictionary name="..."&gt;
+     *     &lt;Item name="MyPrivateTag" group="0019" element="1010" vr="LO"/&gt;
+     * &lt;/DicomDictionary&gt;
+     * </pre>
+     *
+     * Group and element are hexadecimal.
+     *
+     * @param xml Text of dictionary.
+     *
+     * @return List of items.
+     *
+     * @throws DICOMRestException If the dictionary is not valid, with a message for the client.
+     */
+    public static List<Item> parse(String xml) throws DICOMRestException {
+        ArrayList<Item> itemList = new ArrayList<Item>();
+        try {
+            Document document = XML.parseToDocument(xml);
+            NodeList nodeList = XML.getMultipleNodes(document, "/DicomDictionary/Item");
+            for (int n = 0; n < nodeList.getLength(); n++) {
+                Node node = nodeList.item(n);
+                String name = XML.getValue(node, "@name");
+                String group = XML.getValue(node, "@group");
+                String element = XML.getValue(node, "@element");
+                String vr = XML.getValue(node, "@vr");
+                if ((name == null) || (group == null) || (element == null) || (vr == null)) {
+                    throw new DICOMRestException("Dictionary item " + (n + 1) + " must have name, group, element, and vr.");
+                }
+                name = name.trim();
+                vr = vr.trim().toUpperCase();
+                if (!name.matches("[A-Za-z][A-Za-z0-9]*")) {
+                    throw new DICOMRestException("Invalid name " + name + " in dictionary item " + (n + 1) + " .  Names must be letters and digits.");
+                }
+                if (!vr.matches("[A-Z]{2}")) {
+                    throw new DICOMRestException("Invalid vr " + vr + " in dictionary item " + (n + 1) + " .");
+                }
+                try {
+                    int g = Integer.parseInt(group.trim().replaceFirst("^0[xX]", ""), 16);
+                    int e = Integer.parseInt(element.trim().replaceFirst("^0[xX]", ""), 16);
+                    if ((g < 0) || (g > 0xFFFF) || (e < 0) || (e > 0xFFFF)) {
+                        throw new NumberFormatException();
+                    }
+                    itemList.add(new Item(name, new AttributeTag(g, e), vr));
+                }
+                catch (NumberFormatException ex) {
+                    throw new DICOMRestException("Invalid group " + group + " or element " + element + " in dictionary item " + (n + 1) + " .  They must be hexadecimal from 0000 to FFFF.");
+                }
+            }
+        }
+        catch (UMROException e) {
+            throw new DICOMRestException("Dictionary is not valid XML: " + e.getMessage());
+        }
+        return itemList;
+    }
+
+
+    /**
+     * Format the items of a dictionary as XML in the form read by <code>parse</code>.
+     *
+     * @param name Name of dictionary.
+     *
+     * @param itemList Items of dictionary.
+     *
+     * @return XML text.
+     */
+    public static String toXml(String name, List<Item> itemList) {
+        StringBuffer xml = new StringBuffer();
+        xml.append("<?xml version='1.0' encoding='utf-8'?>\n");
+        xml.append("<DicomDictionary name='" + XML.escapeSpecialChars(name) + "'>\n");
+        for (Item item : itemList) {
+            xml.append(String.format("    <Item name='%s' group='%04X' element='%04X' vr='%s'/>\n",
+                    XML.escapeSpecialChars(item.name), item.tag.getGroup(), item.tag.getElement(), item.vr));
+        }
+        xml.append("</DicomDictionary>\n");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,669 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+/**
+ * Get a single frame of a multi-frame object without parsing or decoding the
+ * whole object.  File based objects are memory mapped, and the data set is
+ * walked element by element (without reading values) to find the pixel data.
+ * For native pixel data the frames are found by their size.  For
+ * encapsulated pixel data they are found with the Extended Offset Table if
+ * present, otherwise the Basic Offset Table, otherwise by matching fragments
+ * to frames.
+ *
+ * A frame is given either as the bytes stored for it, or as a single frame
+ * object derived from the original, with its own SOP Instance UID and a
+ * Source Image Sequence referencing the frame it came from.
+ *
+ * Deflated transfer syntaxes are not supported.
+ *
+ * @author irrer
+ *
+ */
+public class FrameExtractor {
+
+    private static final int ITEM_GROUP = 0xFFFE;
+    private static final int ITEM = 0xE000;
+    private static final int ITEM_DELIMITATION = 0xE00D;
+    private static final int SEQUENCE_DELIMITATION = 0xE0DD;
+
+    private static final int PIXEL_GROUP = 0x7FE0;
+    private static final int EXTENDED_OFFSET_TABLE = 0x0001;
+    private static final int PIXEL_DATA = 0x0010;
+
+    /** Value length meaning that the value is ended by a delimiter. */
+    private static final long UNDEFINED_LENGTH = 0xFFFFFFFFL;
+
+    // metrics
+    private static long extractCount = 0;
+    private static long extractBytes = 0;
+    private static long mappedCount = 0;
+    private static long offsetTableCount = 0;
+
+    /** Object being read. */
+    private final ReceivedDicomObject receivedDicomObject;
+
+    /** Content of the object. */
+    private final ByteBuffer buffer;
+
+    private final String transferSyntax;
+    private final boolean explicitVR;
+    private final boolean encapsulated;
+
+    /** Attributes before the pixel data. */
+    private final AttributeList header;
+
+    private final int numberOfFrames;
+
+    /** VR of the pixel data as written. */
+    private String pixelDataVR = null;
+
+    /** Offset of the pixel data value. */
+    private int pixelDataOffset = -1;
+
+    /** Length of the pixel data value, or UNDEFINED_LENGTH if encapsulated. */
+    private long pixelDataLength = 0;
+
+    /** Offset of the first frame relative to the first fragment after the Basic Offset Table. */
+    private long[] extendedOffsetTable = null;
+
+    /** Size of native frames in bits. */
+    private long frameBits = 0;
+
+    /** For encapsulated pixel data, the fragments of each frame as {offset, length}. */
+    private ArrayList<ArrayList<int[]>> frameFragmentList = null;
+
+
+    /**
+     * Element tag, value representation, and length, as read from the data set.
+     */
+    private class Element {
+        final int group;
+        final int element;
+        final String vr;
+        final long length;
+        final int valueOffset;
+
+        Element(int offset, boolean explicit) throws IOException {
+            if ((offset + 8) > buffer.limit()) {
+                throw new IOException("Element at " + offset + " extends past the end of the object");
+            }
+            group = buffer.getShort(offset) & 0xffff;
+            element = buffer.getShort(offset + 2) & 0xffff;
+            if (group == ITEM_GROUP) {
+                vr = null;
+                length = buffer.getInt(offset + 4) & 0xffffffffL;
+                valueOffset = offset + 8;
+            }
+            else if (explicit) {
+                vr = new String(new byte[] { buffer.get(offset + 4), buffer.get(offset + 5) }, "US-ASCII");
+                if (TransferSyntaxDetector.LONG_VR_SET.contains(vr)) {
+                    length = buffer.getInt(offset + 8) & 0xffffffffL;
+                    valueOffset = offset + 12;
+                }
+                else {
+                    length = buffer.getShort(offset + 6) & 0xffff;
+                    valueOffset = offset + 8;
+                }
+            }
+            else {
+                vr = null;
+                length = buffer.getInt(offset + 4) & 0xffffffffL;
+                valueOffset = offset + 8;
+            }
+        }
+
+        boolean is(int g, int e) {
+            return (group == g) && (element == e);
+        }
+
+        /**
+         * @return Offset of the element after this one.
+         */
+        int skip(boolean explicit) throws IOException {
+            if (length == UNDEFINED_LENGTH) {
+                // the content of UN with undefined length is implicit VR little endian
+                return skipSequence(valueOffset, explicit && !"UN".equals(vr));
+            }
+            long next = valueOffset + length;
+            if (next > buffer.limit()) {
+                throw new IOException("Element (" + Integer.toHexString(group) + "," + Integer.toHexString(element) + ") extends past the end of the object");
+            }
+            return (int) next;
+        }
+    }
+
+
+    /**
+     * Skip the items of a sequence of undefined length.
+     *
+     * @return Offset after the sequence delimiter.
+     */
+    private int skipSequence(int offset, boolean explicit) throws IOException {
+        while (true) {
+            Element item = new Element(offset, explicit);
+            if (item.is(ITEM_GROUP, SEQUENCE_DELIMITATION)) {
+                return item.valueOffset;
+            }
+            if (!item.is(ITEM_GROUP, ITEM)) {
+                throw new IOException("Expected a sequence item at " + offset);
+            }
+            if (item.length == UNDEFINED_LENGTH) {
+                offset = item.valueOffset;
+                while (true) {
+                    Element element = new Element(offset, explicit);
+                    if (element.is(ITEM_GROUP, ITEM_DELIMITATION)) {
+                        offset = element.valueOffset;
+                        break;
+                    }
+                    offset = element.skip(explicit);
+                }
+            }
+            else {
+                offset = item.skip(explicit);
+            }
+        }
+    }
+
+
+    private FrameExtractor(ReceivedDicomObject receivedDicomObject, ByteBuffer buffer, String transferSyntax, int dataSetOffset) throws IOException, DicomException, DICOMRestException {
+        this.receivedDicomObject = receivedDicomObject;
+        this.buffer = buffer;
+        this.transferSyntax = transferSyntax;
+        if (transferSyntax.equals(TransferSyntax.DeflatedExplicitVRLittleEndian)) {
+            throw new IOException("Frames can not be extracted from deflated transfer syntax " + transferSyntax);
+        }
+        explicitVR = !transferSyntax.equals(TransferSyntax.ImplicitVRLittleEndian);
+        encapsulated = !(transferSyntax.equals(TransferSyntax.ImplicitVRLittleEndian) || transferSyntax.equals(TransferSyntax.ExplicitVRLittleEndian) ||
+                transferSyntax.equals(TransferSyntax.ExplicitVRBigEndian));
+        buffer.order(transferSyntax.equals(TransferSyntax.ExplicitVRBigEndian) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+        header = receivedDicomObject.getHeader();
+        numberOfFrames = Math.max(1, Attribute.getSingleIntegerValueOrDefault(header, TagFromName.NumberOfFrames, 1));
+
+        findPixelData(dataSetOffset);
+        if (encapsulated) {
+            findFragments();
+        }
+        else {
+            long rows = Attribute.getSingleIntegerValueOrDefault(header, TagFromName.Rows, 0);
+            long columns = Attribute.getSingleIntegerValueOrDefault(header, TagFromName.Columns, 0);
+            long samples = Attribute.getSingleIntegerValueOrDefault(header, TagFromName.SamplesPerPixel, 1);
+            long bitsAllocated = Attribute.getSingleIntegerValueOrDefault(header, TagFromName.BitsAllocated, 16);
+            String photometric = Attribute.getSingleStringValueOrEmptyString(header, TagFromName.PhotometricInterpretation).trim();
+            if (photometric.endsWith("_422")) {
+                samples = 2;   // two chrominance samples are shared by each pair of pixels
+            }
+            frameBits = rows * columns * samples * bitsAllocated;
+            if ((frameBits == 0) || ((frameBits * numberOfFrames) > (pixelDataLength * 8))) {
+                throw new IOException("Pixel data of " + pixelDataLength + " bytes is too short for " + numberOfFrames + " frames of " + frameBits + " bits");
+            }
+        }
+    }
+
+
+    /**
+     * Walk the top level of the data set to the pixel data, noting the
+     * Extended Offset Table on the way.
+     */
+    private void findPixelData(int offset) throws IOException, DICOMRestException {
+        while ((offset + 8) <= buffer.limit()) {
+            Element element = new Element(offset, explicitVR);
+            if (element.is(PIXEL_GROUP, PIXEL_DATA)) {
+                pixelDataVR = (element.vr == null) ? (encapsulated ? "OB" : "OW") : element.vr;
+                pixelDataOffset = element.valueOffset;
+                pixelDataLength = element.length;
+                if ((pixelDataLength == UNDEFINED_LENGTH) != encapsulated) {
+                    throw new IOException("Pixel data length of " + pixelDataLength + " is not valid for transfer syntax " + transferSyntax);
+                }
+                return;
+            }
+            if (element.is(PIXEL_GROUP, EXTENDED_OFFSET_TABLE) && (element.length != UNDEFINED_LENGTH)) {
+                extendedOffsetTable = new long[(int) (element.length / 8)];
+                for (int i = 0; i < extendedOffsetTable.length; i++) {
+                    extendedOffsetTable[i] = buffer.getLong(element.valueOffset + (i * 8));
+                }
+            }
+            offset = element.skip(explicitVR);
+        }
+        throw new DICOMRestException("The DICOM object has no pixel data.");
+    }
+
+
+    /**
+     * Read the Basic Offset Table and the fragments of encapsulated pixel
+     * data, and determine which fragments belong to each frame.
+     */
+    private void findFragments() throws IOException {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);    // encapsulated pixel data is always little endian
+        try {
+            Element basicOffsetTable = new Element(pixelDataOffset, false);
+            if (!basicOffsetTable.is(ITEM_GROUP, ITEM)) {
+                throw new IOException("Encapsulated pixel data does not start with a Basic Offset Table");
+            }
+            long[] offsetTable = new long[(int) (basicOffsetTable.length / 4)];
+            for (int i = 0; i < offsetTable.length; i++) {
+                offsetTable[i] = buffer.getInt(basicOffsetTable.valueOffset + (i * 4)) & 0xffffffffL;
+            }
+
+            // each fragment as {offset relative to the first, value offset, value length}
+            int first = basicOffsetTable.skip(false);
+            ArrayList<long[]> fragmentList = new ArrayList<long[]>();
+            int offset = first;
+            while (true) {
+                Element fragment = new Element(offset, false);
+                if (fragment.is(ITEM_GROUP, SEQUENCE_DELIMITATION)) {
+                    break;
+                }
+                if (!fragment.is(ITEM_GROUP, ITEM) || (fragment.length == UNDEFINED_LENGTH)) {
+                    throw new IOException("Invalid fragment in encapsulated pixel data at " + offset);
+                }
+                fragmentList.add(new long[] { offset - first, fragment.valueOffset, fragment.length });
+                offset = fragment.skip(false);
+            }
+
+            if ((extendedOffsetTable != null) && (extendedOffsetTable.length == numberOfFrames)) {
+                offsetTable = extendedOffsetTable;
+            }
+            if (offsetTable.length == numberOfFrames) {
+                synchronized (FrameExtractor.class) {
+                    offsetTableCount++;
+                }
+            }
+            else if (numberOfFrames == 1) {
+                offsetTable = new long[] { 0 };
+            }
+            else if (fragmentList.size() == numberOfFrames) {
+                offsetTable = new long[numberOfFrames];
+                for (int f = 0; f < numberOfFrames; f++) {
+                    offsetTable[f] = fragmentList.get(f)[0];
+                }
+            }
+            else {
+                // start a frame at each fragment that starts a JPEG or JPEG 2000 code stream
+                ArrayList<Long> startList = new ArrayList<Long>();
+                for (long[] fragment : fragmentList) {
+                    int value = (int) fragment[1];
+                    if ((fragment[2] >= 2) && ((buffer.get(value) & 0xff) == 0xFF) && (((buffer.get(value + 1) & 0xff) == 0xD8) || ((buffer.get(value + 1) & 0xff) == 0x4F))) {
+                        startList.add(fragment[0]);
+                    }
+                }
+                if (startList.size() != numberOfFrames) {
+                    throw new IOException("Unable to find the boundaries of " + numberOfFrames + " frames in " + fragmentList.size() + " fragments without an offset table");
+                }
+                offsetTable = new long[numberOfFrames];
+                for (int f = 0; f < numberOfFrames; f++) {
+                    offsetTable[f] = startList.get(f);
+                }
+            }
+
+            frameFragmentList = new ArrayList<ArrayList<int[]>>();
+            for (int f = 0; f < numberOfFrames; f++) {
+                long start = offsetTable[f];
+                long end = ((f + 1) < numberOfFrames) ? offsetTable[f + 1] : Long.MAX_VALUE;
+                ArrayList<int[]> frame = new ArrayList<int[]>();
+                for (long[] fragment : fragmentList) {
+                    if ((fragment[0] >= start) && (fragment[0] < end)) {
+                        frame.add(new int[] { (int) fragment[1], (int) fragment[2] });
+                    }
+                }
+                if (frame.isEmpty()) {
+                    throw new IOException("No fragments found for frame " + (f + 1) + " at offset " + start);
+                }
+                frameFragmentList.add(frame);
+            }
+        }
+        finally {
+            buffer.order(order);
+        }
+    }
+
+
+    /**
+     * Prepare to extract frames from an object.  File based objects are
+     * memory mapped, objects in memory are used where they are.
+     *
+     * @param receivedDicomObject Object to get frames from.
+     *
+     * @return Extractor for the object.
+     *
+     * @throws IOException If the object can not be read or its frames can not be found.
+     *
+     * @throws DicomException If the object is not valid DICOM.
+     *
+     * @throws DICOMRestException If the object is not an image.
+     */
+    public static FrameExtractor open(ReceivedDicomObject receivedDicomObject) throws IOException, DicomException, DICOMRestException {
+        if (receivedDicomObject.isInMemory()) {
+            return new FrameExtractor(receivedDicomObject, ByteBuffer.wrap(receivedDicomObject.getDataSet(), 0, receivedDicomObject.getDataSetLength()), receivedDicomObject.getTransferSyntax(), 0);
+        }
+
+        ByteBuffer buffer = receivedDicomObject.mapFile();
+        synchronized (FrameExtractor.class) {
+            mappedCount++;
+        }
+
+        byte[] start = new byte[Math.min(buffer.limit(), TransferSyntaxDetector.HEADER_SIZE)];
+        buffer.get(start);
+        buffer.rewind();
+        TransferSyntaxDetector.Result detected = TransferSyntaxDetector.detect(start, start.length);
+        long dataSetOffset = detected.dataSetOffset;
+        if (dataSetOffset < 0) {
+            throw new IOException("The meta header of " + receivedDicomObject.getFile() + " does not start with a group length");
+        }
+        return new FrameExtractor(receivedDicomObject, buffer, detected.transferSyntaxUID, (int) dataSetOffset);
+    }
+
+
+    /**
+     * @return Number of frames in the object.
+     */
+    public int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+
+    /**
+     * @return True if the pixel data is compressed.
+     */
+    public boolean isEncapsulated() {
+        return encapsulated;
+    }
+
+
+    /**
+     * @return Transfer syntax of the object and its frames.
+     */
+    public String getTransferSyntax() {
+        return transferSyntax;
+    }
+
+
+    private void checkFrameNumber(int frameNumber) throws DICOMRestException {
+        if ((frameNumber < 1) || (frameNumber > numberOfFrames)) {
+            throw new DICOMRestException("Frame " + frameNumber + " was requested but the image has " + numberOfFrames + " frames.");
+        }
+    }
+
+
+    private static synchronized void count(long bytes) {
+        extractCount++;
+        extractBytes += bytes;
+    }
+
+
+    /**
+     * Get the bytes stored for a frame.  Native frames are in the byte order
+     * of the transfer syntax, and encapsulated frames are the concatenation
+     * of their fragments, which for JPEG family syntaxes is one complete
+     * code stream.
+     *
+     * @param frameNumber Frame to get, starting with 1.
+     *
+     * @return Content of the frame.
+     *
+     * @throws IOException If a native frame does not start on a byte boundary.
+     *
+     * @throws DICOMRestException If there is no such frame.
+     */
+    public byte[] getFrame(int frameNumber) throws IOException, DICOMRestException {
+        checkFrameNumber(frameNumber);
+        byte[] frame;
+        if (encapsulated) {
+            ArrayList<int[]> fragmentList = frameFragmentList.get(frameNumber - 1);
+            int size = 0;
+            for (int[] fragment : fragmentList) {
+                size += fragment[1];
+            }
+            frame = new byte[size];
+            int position = 0;
+            for (int[] fragment : fragmentList) {
+                ByteBuffer source = buffer.duplicate();
+                source.position(fragment[0]);
+                source.get(frame, position, fragment[1]);
+                position += fragment[1];
+            }
+        }
+        else {
+            long startBit = frameBits * (frameNumber - 1);
+            if (((startBit % 8) != 0) || ((frameBits % 8) != 0)) {
+                throw new IOException("Frame " + frameNumber + " of single bit pixel data does not start on a byte boundary");
+            }
+            frame = new byte[(int) (frameBits / 8)];
+            ByteBuffer source = buffer.duplicate();
+            source.position(pixelDataOffset + (int) (startBit / 8));
+            source.get(frame);
+        }
+        count(frame.length);
+        return frame;
+    }
+
+
+    /**
+     * Write an element header in the encoding of the transfer syntax.
+     */
+    private void writeElementHeader(ByteArrayOutputStream out, int group, int element, String vr, long length, ByteOrder order) {
+        ByteBuffer elementHeader = ByteBuffer.allocate(12).order(order);
+        elementHeader.putShort((short) group).putShort((short) element);
+        if ((vr != null) && explicitVR) {
+            elementHeader.put((byte) vr.charAt(0)).put((byte) vr.charAt(1)).putShort((short) 0);
+        }
+        elementHeader.putInt((int) length);
+        out.write(elementHeader.array(), 0, elementHeader.position());
+    }
+
+
+    /**
+     * Make a new UID from a random UUID, as described in PS3.5 B.2.
+     */
+    private static String newUID() {
+        UUID uuid = UUID.randomUUID();
+        BigInteger high = BigInteger.valueOf(uuid.getMostSignificantBits()).and(new BigInteger("ffffffffffffffff", 16));
+        BigInteger low = BigInteger.valueOf(uuid.getLeastSignificantBits()).and(new BigInteger("ffffffffffffffff", 16));
+        return "2.25." + high.shiftLeft(64).or(low).toString();
+    }
+
+
+    /**
+     * Get a frame as a single frame DICOM object derived from this one, in
+     * the same transfer syntax.  Everything before the pixel data is copied
+     * except that the object gets a new SOP Instance UID, one frame, a
+     * Source Image Sequence that references the frame, and only that frame's
+     * item of the Per-frame Functional Groups Sequence.
+     *
+     * @param frameNumber Frame to get, starting with 1.
+     *
+     * @return DICOM Part 10 content.
+     *
+     * @throws IOException
+     *
+     * @throws DicomException
+     *
+     * @throws DICOMRestException If there is no such frame.
+     */
+    public byte[] getSingleFrameObject(int frameNumber) throws IOException, DicomException, DICOMRestException {
+        byte[] frame = getFrame(frameNumber);
+
+        AttributeList attributeList = new AttributeList();
+        for (Object o : header.values()) {
+            Attribute attribute = (Attribute) o;
+            AttributeTag tag = attribute.getTag();
+            if ((tag.getGroup() != 0x0002) && (tag.getGroup() < PIXEL_GROUP) && (tag.getElement() != 0x0000)) {
+                attributeList.put(attribute);
+            }
+        }
+
+        String sopClassUID = receivedDicomObject.getSOPClassUID();
+        String sopInstanceUID = receivedDicomObject.getSOPInstanceUID();
+
+        SequenceAttribute perFrame = (SequenceAttribute) header.get(TagFromName.PerFrameFunctionalGroupsSequence);
+        if ((perFrame != null) && (perFrame.getNumberOfItems() >= frameNumber)) {
+            SequenceAttribute one = new SequenceAttribute(TagFromName.PerFrameFunctionalGroupsSequence);
+            one.addItem(perFrame.getItem(frameNumber - 1).getAttributeList());
+            attributeList.put(one);
+        }
+
+        AttributeList reference = new AttributeList();
+        Attribute referencedClass = new UniqueIdentifierAttribute(TagFromName.ReferencedSOPClassUID);
+        referencedClass.addValue(sopClassUID);
+        reference.put(referencedClass);
+        Attribute referencedInstance = new UniqueIdentifierAttribute(TagFromName.ReferencedSOPInstanceUID);
+        referencedInstance.addValue(sopInstanceUID);
+        reference.put(referencedInstance);
+        Attribute referencedFrame = new IntegerStringAttribute(TagFromName.ReferencedFrameNumber);
+        referencedFrame.addValue(frameNumber);
+        reference.put(referencedFrame);
+        SequenceAttribute sourceImage = new SequenceAttribute(TagFromName.SourceImageSequence);
+        sourceImage.addItem(reference);
+        attributeList.put(sourceImage);
+
+        Attribute frames = new IntegerStringAttribute(TagFromName.NumberOfFrames);
+        frames.addValue(1);
+        attributeList.put(frames);
+
+        String derivedUID = newUID();
+        Attribute instance = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID);
+        instance.addValue(derivedUID);
+        attributeList.put(instance);
+
+        attributeList.putAll(new FileMetaInformation(sopClassUID, derivedUID, transferSyntax, receivedDicomObject.getSourceAETitle()).getAttributeList());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length + (64 * 1024));
+        DicomOutputStream dicomOutputStream = new DicomOutputStream(out, TransferSyntax.ExplicitVRLittleEndian, transferSyntax);
+        attributeList.write(dicomOutputStream);
+        dicomOutputStream.flush();
+
+        if (encapsulated) {
+            writeElementHeader(out, PIXEL_GROUP, PIXEL_DATA, pixelDataVR, UNDEFINED_LENGTH, ByteOrder.LITTLE_ENDIAN);
+            writeElementHeader(out, ITEM_GROUP, ITEM, null, 0, ByteOrder.LITTLE_ENDIAN);    // empty Basic Offset Table
+            int position = 0;
+            for (int[] fragment : frameFragmentList.get(frameNumber - 1)) {
+                writeElementHeader(out, ITEM_GROUP, ITEM, null, fragment[1], ByteOrder.LITTLE_ENDIAN);
+                out.write(frame, position, fragment[1]);
+                position += fragment[1];
+            }
+            writeElementHeader(out, ITEM_GROUP, SEQUENCE_DELIMITATION, null, 0, ByteOrder.LITTLE_ENDIAN);
+        }
+        else {
+            int padding = frame.length % 2;
+            writeElementHeader(out, PIXEL_GROUP, PIXEL_DATA, pixelDataVR, frame.length + padding, buffer.order());
+            out.write(frame, 0, frame.length);
+            if (padding != 0) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Get a frame of a single object from the instance cache, or retrieve it
+     * from the PACS and take the frame from the received object before it is
+     * discarded.
+     *
+     * @param pacs PACS to get the object from.
+     *
+     * @param specification Identifies a single object with its SOP Instance UID.
+     *
+     * @param frameNumber Frame to get, starting with 1.
+     *
+     * @param asObject If true, get a single frame DICOM object, otherwise the stored bytes of the frame.
+     *
+     * @return Frame, or null if the object was not found.
+     *
+     * @throws Exception If the object could not be retrieved or the frame extracted.
+     */
+    public static byte[] retrieveFrame(PACS pacs, AttributeList specification, final int frameNumber, final boolean asObject) throws Exception {
+        ArrayList<ReceivedDicomObject> cachedList = InstanceCache.getInstance().getAll(pacs, specification);
+        if ((cachedList != null) && (cachedList.size() == 1)) {
+            ReceivedDicomObject cached = cachedList.get(0);
+            try {
+                cached.open();
+                try {
+                    FrameExtractor frameExtractor = open(cached);
+                    return asObject ? frameExtractor.getSingleFrameObject(frameNumber) : frameExtractor.getFrame(frameNumber);
+                }
+                finally {
+                    cached.close();
+                }
+            }
+            catch (FileNotFoundException e) {
+                Log.get().info("Cached DICOM file was evicted before a frame could be taken from it: " + cached);
+            }
+        }
+
+        final ArrayList<byte[]> received = new ArrayList<byte[]>();
+        final ArrayList<Exception> failed = new ArrayList<Exception>();
+        DicomGet.get(pacs, specification, null, 1, new ReceiveDicomObject() {
+            @Override
+            public void receive(ReceivedDicomObject receivedDicomObject) {
+                try {
+                    FrameExtractor frameExtractor = open(receivedDicomObject);
+                    received.add(asObject ? frameExtractor.getSingleFrameObject(frameNumber) : frameExtractor.getFrame(frameNumber));
+                }
+                catch (Exception e) {
+                    failed.add(e);
+                }
+            }
+
+            @Override
+            public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+                failed.add(new IOException("Frames can only be extracted from objects as received"));
+            }
+        });
+        if (!failed.isEmpty()) {
+            throw failed.get(0);
+        }
+        return received.isEmpty() ? null : received.get(0);
+    }
+
+
+    /**
+     * @return Metrics as XML.
+     */
+    public static synchronized String getStatusAsXML() {
+        return
+            "<FrameExtractor>\n" +
+            "    <FramesExtracted>" + extractCount + "</FramesExtracted>\n" +
+            "    <BytesExtracted>" + extractBytes + "</BytesExtracted>\n" +
+            "    <FilesMapped>" + mappedCount + "</FilesMapped>\n" +
+            "    <OffsetTablesUsed>" + offsetTableCount + "</OffsetTablesUsed>\n" +
+            "</FrameExtractor>\n";
+    }
+}
@@ -0,0 +1,645 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.display.SourceImage;
+
+import edu.umro.util.Log;
+
+/**
+ * Render a frame of a DICOM image as a JPEG or PNG, with the WADO style
+ * parameters rows, columns, region, windowCenter, windowWidth, frameNumber,
+ * and imageQuality.
+ *
+ * The object is retrieved from the instance cache or the PACS.  Only the
+ * requested frame of a multi-frame object is parsed, and it is then
+ * decoded, windowed, scaled, and encoded on a fixed pool of threads so that
+ * rendering can not use more than the configured number of processors no
+ * matter how many requests arrive.  Rendered images are kept in a least
+ * recently used cache keyed by SOP instance UID and parameters, so repeated
+ * views of the same image do not retrieve or render it again.
+ *
+ * @author irrer
+ *
+ */
+public class ImageRenderer {
+
+    /** Encoded image formats. */
+    public enum Format {
+        JPEG,
+        PNG
+    }
+
+    /**
+     * How to render an image.
+     */
+    public static class Parameters {
+        /** Maximum height of the rendered image, 0 for no limit.  Images are never enlarged. */
+        public int rows = 0;
+
+        /** Maximum width of the rendered image, 0 for no limit.  Images are never enlarged. */
+        public int columns = 0;
+
+        /**
+         * Part of the image to render as left, top, right, bottom, each a
+         * fraction from 0 to 1 of the width or height, or null for all.
+         */
+        public double[] region = null;
+
+        /** Window center, or null to use the value in the image. */
+        public Double windowCenter = null;
+
+        /** Window width, or null to use the value in the image. */
+        public Double windowWidth = null;
+
+        /** Frame to render, starting with 1. */
+        public int frameNumber = 1;
+
+        /** JPEG quality from 1 to 100. */
+        public int imageQuality = ServiceConfig.getInstance().getRenderDefaultImageQuality();
+
+        public Format format = Format.JPEG;
+
+        private static int parseInt(String name, String value, int min, int max) {
+            int i;
+            try {
+                i = Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value " + value + " given for " + name + ".  It must be an integer.");
+            }
+            if ((i < min) || (i > max)) {
+                throw new IllegalArgumentException("Invalid value " + value + " given for " + name + ".  It must be from " + min + " to " + max + ".");
+            }
+            return i;
+        }
+
+        private static double parseDouble(String name, String value) {
+            try {
+                return Double.parseDouble(value.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value " + value + " given for " + name + ".  It must be a number.");
+            }
+        }
+
+        /**
+         * Set a parameter from its text value.
+         *
+         * @param name Name of parameter, case insensitive.
+         *
+         * @param value Value of parameter.
+         *
+         * @return True if the name is a rendering parameter.
+         *
+         * @throws IllegalArgumentException If the value is not valid, with
+         * a message for the client.
+         */
+        public boolean set(String name, String value) {
+            if (value == null) {
+                value = "";
+            }
+            if (name.equalsIgnoreCase("rows")) {
+                rows = parseInt(name, value, 1, 16384);
+            }
+            else if (name.equalsIgnoreCase("columns")) {
+                columns = parseInt(name, value, 1, 16384);
+            }
+            else if (name.equalsIgnoreCase("region")) {
+                String[] part = value.split(",");
+                if (part.length != 4) {
+                    throw new IllegalArgumentException("Invalid value " + value + " given for region.  It must be four comma separated numbers: left,top,right,bottom");
+                }
+                double[] r = new double[4];
+                for (int p = 0; p < 4; p++) {
+                    r[p] = parseDouble(name, part[p]);
+                }
+                if ((r[0] < 0) || (r[1] < 0) || (r[2] > 1) || (r[3] > 1) || (r[0] >= r[2]) || (r[1] >= r[3])) {
+                    throw new IllegalArgumentException("Invalid value " + value + " given for region.  Each must be from 0 to 1, with left < right and top < bottom.");
+                }
+                region = r;
+            }
+            else if (name.equalsIgnoreCase("windowCenter")) {
+                windowCenter = parseDouble(name, value);
+            }
+            else if (name.equalsIgnoreCase("windowWidth")) {
+                windowWidth = parseDouble(name, value);
+                if (windowWidth < 1) {
+                    throw new IllegalArgumentException("Invalid value " + value + " given for windowWidth.  It must be at least 1.");
+                }
+            }
+            else if (name.equalsIgnoreCase("frameNumber")) {
+                frameNumber = parseInt(name, value, 1, Integer.MAX_VALUE);
+            }
+            else if (name.equalsIgnoreCase("imageQuality")) {
+                imageQuality = parseInt(name, value, 1, 100);
+            }
+            else {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return Text that is the same for parameters that render the same image.
+         */
+        public String getKey() {
+            StringBuffer key = new StringBuffer();
+            key.append(format).append(':').append(rows).append(':').append(columns).append(':');
+            if (region != null) {
+                key.append(region[0]).append(',').append(region[1]).append(',').append(region[2]).append(',').append(region[3]);
+            }
+            key.append(':').append(windowCenter).append(':').append(windowWidth).append(':').append(frameNumber);
+            if (format == Format.JPEG) {
+                key.append(':').append(imageQuality);
+            }
+            return key.toString();
+        }
+    }
+
+    private static ImageRenderer instance = null;
+
+    /** Decodes and encodes images, limited to the configured number of threads. */
+    private final ExecutorService executor;
+
+    private final int threadCount;
+
+    /** Maximum total size of cached images. */
+    private final long maxBytes;
+
+    /** Rendered images in least recently used order. */
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+
+    private long totalBytes = 0;
+
+    // metrics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long renderCount = 0;
+    private long renderMs = 0;
+    private long failureCount = 0;
+    private long evictionCount = 0;
+
+
+    private ImageRenderer() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        threadCount = config.getRenderThreads();
+        maxBytes = config.getRenderCacheMaxBytes();
+        executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Render-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Log.get().info("Image renderer threads: " + threadCount + "  cache size: " + maxBytes);
+    }
+
+
+    public static synchronized ImageRenderer getInstance() {
+        if (instance == null) {
+            instance = new ImageRenderer();
+        }
+        return instance;
+    }
+
+
+    private static String getKey(String sopInstanceUID, Parameters parameters) {
+        return sopInstanceUID.trim() + "|" + parameters.getKey();
+    }
+
+
+    /**
+     * Get a rendered image from the cache.
+     *
+     * @param sopInstanceUID Instance to render.
+     *
+     * @param parameters How to render it.
+     *
+     * @return Encoded image, or null if it has not been rendered.
+     */
+    public synchronized byte[] getCached(String sopInstanceUID, Parameters parameters) {
+        byte[] image = cache.get(getKey(sopInstanceUID, parameters));
+        if (image == null) {
+            missCount++;
+        }
+        else {
+            hitCount++;
+        }
+        return image;
+    }
+
+
+    private synchronized void put(String key, byte[] image) {
+        if (image.length > maxBytes) {
+            return;
+        }
+        byte[] old = cache.put(key, image);
+        if (old != null) {
+            totalBytes -= old.length;
+        }
+        totalBytes += image.length;
+        Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+        while ((totalBytes > maxBytes) && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().length;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+
+    /**
+     * A parsed object and the index of the frame to render in it.
+     */
+    private static class Frame {
+        final AttributeList attributeList;
+        final int index;
+
+        Frame(AttributeList attributeList, int index) {
+            this.attributeList = attributeList;
+            this.index = index;
+        }
+    }
+
+
+    /**
+     * Parse the part of an object needed to render a frame.  For multi-frame
+     * objects only the requested frame is taken from the object, which is
+     * much cheaper than parsing all of it.  If that can not be done, the
+     * whole object is parsed.
+     */
+    private static Frame getFrame(ReceivedDicomObject receivedDicomObject, int frameNumber) throws IOException, DicomException, DICOMRestException {
+        int numberOfFrames = Attribute.getSingleIntegerValueOrDefault(receivedDicomObject.getHeader(), TagFromName.NumberOfFrames, 1);
+        if (numberOfFrames > 1) {
+            try {
+                byte[] part10 = FrameExtractor.open(receivedDicomObject).getSingleFrameObject(frameNumber);
+                AttributeList attributeList = new AttributeList();
+                DicomInputStream dicomInputStream = new DicomInputStream(new ByteArrayInputStream(part10));
+                try {
+                    attributeList.read(dicomInputStream);
+                }
+                finally {
+                    dicomInputStream.close();
+                }
+                return new Frame(attributeList, 0);
+            }
+            catch (IOException e) {
+                Log.get().info("Unable to extract frame " + frameNumber + " so parsing the whole object " + receivedDicomObject + " : " + e);
+            }
+        }
+        return new Frame(receivedDicomObject.getAttributeList(), frameNumber - 1);
+    }
+
+
+    /**
+     * Get the frame to render from the instance cache, or retrieve it from the PACS.
+     *
+     * @return Frame, or null if the object was not found.
+     */
+    private Frame retrieve(PACS pacs, AttributeList specification, final int frameNumber) throws Exception {
+        ArrayList<ReceivedDicomObject> cachedList = InstanceCache.getInstance().getAll(pacs, specification);
+        if ((cachedList != null) && (cachedList.size() == 1)) {
+            ReceivedDicomObject cached = cachedList.get(0);
+            try {
+                cached.open();
+                try {
+                    return getFrame(cached, frameNumber);
+                }
+                finally {
+                    cached.close();
+                }
+            }
+            catch (FileNotFoundException e) {
+                Log.get().info("Cached DICOM file was evicted before it could be rendered: " + cached);
+            }
+        }
+
+        final ArrayList<Frame> received = new ArrayList<Frame>();
+        final ArrayList<Exception> failed = new ArrayList<Exception>();
+        DicomGet.get(pacs, specification, null, 1, new ReceiveDicomObject() {
+            @Override
+            public void receive(ReceivedDicomObject receivedDicomObject) {
+                try {
+                    received.add(getFrame(receivedDicomObject, frameNumber));
+                }
+                catch (Exception e) {
+                    failed.add(e);
+                }
+            }
+
+            @Override
+            public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+                received.add(new Frame(attributeList, frameNumber - 1));
+            }
+        });
+        if (!failed.isEmpty()) {
+            throw failed.get(0);
+        }
+        return received.isEmpty() ? null : received.get(0);
+    }
+
+
+    /**
+     * Get the first value of a multi-valued decimal attribute.
+     */
+    private static Double getFirstDouble(AttributeList attributeList, com.pixelmed.dicom.AttributeTag tag) {
+        Attribute attribute = attributeList.get(tag);
+        if (attribute != null) {
+            try {
+                double[] valueList = attribute.getDoubleValues();
+                if ((valueList != null) && (valueList.length > 0)) {
+                    return valueList[0];
+                }
+            }
+            catch (DicomException e) {
+                Log.get().fine("Unable to read " + tag + " : " + e);
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Convert a grayscale frame to 8 bits using the modality rescale and a
+     * linear VOI window as defined in PS3.3 C.11.2.1.2.  If no window is
+     * given or in the image, the range of the pixel values is used.
+     */
+    private static BufferedImage window(BufferedImage source, SourceImage sourceImage, AttributeList attributeList, Parameters parameters) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Raster raster = source.getRaster();
+        boolean signed = sourceImage.isSigned();
+        int bitsStored = Attribute.getSingleIntegerValueOrDefault(attributeList, TagFromName.BitsStored, 16);
+        Double slope = getFirstDouble(attributeList, TagFromName.RescaleSlope);
+        Double intercept = getFirstDouble(attributeList, TagFromName.RescaleIntercept);
+        double m = (slope == null) ? 1 : slope;
+        double b = (intercept == null) ? 0 : intercept;
+
+        double[] value = new double[width * height];
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int stored = raster.getSample(x, y, 0);
+                if (signed) {
+                    stored = (short) stored;
+                    if ((bitsStored < 16) && (stored >= (1 << (bitsStored - 1)))) {
+                        stored -= (1 << bitsStored);
+                    }
+                }
+                double v = (stored * m) + b;
+                value[(y * width) + x] = v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+
+        Double center = parameters.windowCenter;
+        Double windowWidth = parameters.windowWidth;
+        if ((center == null) || (windowWidth == null)) {
+            center = getFirstDouble(attributeList, TagFromName.WindowCenter);
+            windowWidth = getFirstDouble(attributeList, TagFromName.WindowWidth);
+        }
+        if ((center == null) || (windowWidth == null) || (windowWidth < 1)) {
+            windowWidth = Math.max(1, max - min);
+            center = min + (windowWidth / 2);
+        }
+
+        boolean invert = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.PhotometricInterpretation).trim().equals("MONOCHROME1");
+        double low = center - 0.5 - ((windowWidth - 1) / 2);
+        double high = center - 0.5 + ((windowWidth - 1) / 2);
+        double scale = (windowWidth > 1) ? (255 / (windowWidth - 1)) : 255;
+
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster out = gray.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double v = value[(y * width) + x];
+                int level;
+                if (v <= low) {
+                    level = 0;
+                }
+                else if (v > high) {
+                    level = 255;
+                }
+                else {
+                    level = (int) Math.round((v - (center - 0.5)) * scale + 127.5);
+                    level = Math.max(0, Math.min(255, level));
+                }
+                out.setSample(x, y, 0, invert ? (255 - level) : level);
+            }
+        }
+        return gray;
+    }
+
+
+    /**
+     * Decode, crop, window, and scale one frame.
+     */
+    private static BufferedImage renderFrame(Frame toRender, Parameters parameters) throws DicomException, DICOMRestException {
+        AttributeList attributeList = toRender.attributeList;
+        if (attributeList.get(TagFromName.PixelData) == null) {
+            throw new DICOMRestException("The DICOM object is not an image.");
+        }
+        SourceImage sourceImage = new SourceImage(attributeList);
+        int frameCount = sourceImage.getNumberOfBufferedImages();
+        if (toRender.index >= frameCount) {
+            throw new DICOMRestException("Frame " + parameters.frameNumber + " was requested but the image has only " + frameCount + " frames.");
+        }
+        BufferedImage frame = sourceImage.getBufferedImage(toRender.index);
+
+        if (parameters.region != null) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int left = (int) Math.floor(parameters.region[0] * width);
+            int top = (int) Math.floor(parameters.region[1] * height);
+            int right = Math.max(left + 1, (int) Math.ceil(parameters.region[2] * width));
+            int bottom = Math.max(top + 1, (int) Math.ceil(parameters.region[3] * height));
+            frame = frame.getSubimage(left, top, Math.min(right, width) - left, Math.min(bottom, height) - top);
+        }
+
+        BufferedImage image;
+        if (sourceImage.isGrayscale()) {
+            image = window(frame, sourceImage, attributeList, parameters);
+        }
+        else {
+            image = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.drawImage(frame, 0, 0, null);
+            graphics.dispose();
+        }
+
+        // shrink to fit within rows and columns, keeping the aspect ratio.  Never enlarge, so
+        // that a small image or region can not be made into a huge one.
+        double scale = 1;
+        if (parameters.columns > 0) {
+            scale = Math.min(scale, ((double) parameters.columns) / image.getWidth());
+        }
+        if (parameters.rows > 0) {
+            scale = Math.min(scale, ((double) parameters.rows) / image.getHeight());
+        }
+        if (scale < 1) {
+            int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+            BufferedImage scaled = new BufferedImage(width, height, image.getType());
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+            image = scaled;
+        }
+        return image;
+    }
+
+
+    private static byte[] encode(BufferedImage image, Parameters parameters) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (parameters.format == Format.PNG) {
+            ImageIO.write(image, "png", out);
+        }
+        else {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ImageOutputStream imageOut = ImageIO.createImageOutputStream(out);
+            try {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(parameters.imageQuality / 100.0f);
+                writer.setOutput(imageOut);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            finally {
+                writer.dispose();
+                imageOut.close();
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Render an image, using the cache if possible.
+     *
+     * @param pacs PACS to get the image from.
+     *
+     * @param specification Identifies a single image with its SOP instance UID.
+     *
+     * @param parameters How to render it.
+     *
+     * @return Encoded image, or null if the image could not be retrieved.
+     *
+     * @throws DICOMRestException If the object can not be rendered as requested.
+     *
+     * @throws Exception If the image could not be retrieved or rendered.
+     */
+    public byte[] render(PACS pacs, AttributeList specification, final Parameters parameters) throws Exception {
+        String sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(specification, TagFromName.SOPInstanceUID).trim();
+        String key = getKey(sopInstanceUID, parameters);
+        synchronized (this) {
+            byte[] image = cache.get(key);
+            if (image != null) {
+                return image;
+            }
+        }
+
+        final Frame frame = retrieve(pacs, specification, parameters.frameNumber);
+        if (frame == null) {
+            return null;
+        }
+
+        Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return encode(renderFrame(frame, parameters), parameters);
+            }
+        });
+        long start = System.currentTimeMillis();
+        byte[] image;
+        try {
+            image = future.get();
+        }
+        catch (ExecutionException e) {
+            synchronized (this) {
+                failureCount++;
+            }
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            renderCount++;
+            renderMs += elapsed;
+        }
+        put(key, image);
+        Log.get().fine("Rendered " + sopInstanceUID + " as " + parameters.getKey() + " in " + elapsed + " ms, " + image.length + " bytes");
+        return image;
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<ImageRenderer>\n" +
+            "    <Threads>" + threadCount + "</Threads>\n" +
+            "    <CachedImages>" + cache.size() + "</CachedImages>\n" +
+            "    <CachedBytes>" + totalBytes + "</CachedBytes>\n" +
+            "    <MaxCachedBytes>" + maxBytes + "</MaxCachedBytes>\n" +
+            "    <Hits>" + hitCount + "</Hits>\n" +
+            "    <Misses>" + missCount + "</Misses>\n" +
+            "    <Rendered>" + renderCount + "</Rendered>\n" +
+            "    <RenderMs>" + renderMs + "</RenderMs>\n" +
+            "    <Failures>" + failureCount + "</Failures>\n" +
+            "    <Evictions>" + evictionCount + "</Evictions>\n" +
+            "</ImageRenderer>\n";
+    }
+}
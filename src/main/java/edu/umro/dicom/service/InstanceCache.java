@@ -0,0 +1,616 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import edu.umro.util.Log;
+
+/**
+ * On-disk cache of DICOM objects, so that studies that are retrieved
+ * repeatedly do not require a C-MOVE each time.
+ *
+ * Objects are stored one per file, named by SOP instance UID, as they are
+ * retrieved from a PACS or stored to one through this service.  An index of
+ * the instances in each series and the series in each study is kept in
+ * memory and rebuilt from the files on startup.  When the files take more
+ * than the configured number of bytes, the least recently used are deleted.
+ *
+ * A retrieve is only served from the cache if every object is cached and a
+ * series level C-FIND confirms that the PACS has the same number of objects
+ * in each series, so that objects added to the PACS by other means are not
+ * missed.
+ *
+ * @author irrer
+ *
+ */
+public class InstanceCache {
+
+    private static InstanceCache instance = null;
+
+    /** Suffix of cached files. */
+    private static final String SUFFIX = ".dcm";
+
+    /** Suffix of files being written. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * A cached object.
+     */
+    private static class Entry {
+        private final String sopInstanceUID;
+        private final String seriesInstanceUID;
+        private final String studyInstanceUID;
+        private final String transferSyntax;
+        private final File file;
+        private final long size;
+
+        private Entry(String sopInstanceUID, String seriesInstanceUID, String studyInstanceUID, String transferSyntax, File file) {
+            this.sopInstanceUID = sopInstanceUID;
+            this.seriesInstanceUID = seriesInstanceUID;
+            this.studyInstanceUID = studyInstanceUID;
+            this.transferSyntax = transferSyntax;
+            this.file = file;
+            this.size = file.length();
+        }
+    }
+
+    /**
+     * Writes the content of an object.
+     */
+    private interface Content {
+        void write(OutputStream outputStream) throws IOException, DicomException;
+    }
+
+    /** Where files are kept. */
+    private final File directory;
+
+    /** Maximum total size of files in bytes.  Zero disables the cache. */
+    private final long maxBytes;
+
+    /** Entries keyed by SOP instance UID in least recently used order. */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+    /** SOP instance UIDs of the cached objects in each series. */
+    private final HashMap<String, HashSet<String>> seriesIndex = new HashMap<String, HashSet<String>>();
+
+    /** Series instance UIDs of the cached series in each study. */
+    private final HashMap<String, HashSet<String>> studyIndex = new HashMap<String, HashSet<String>>();
+
+    private long totalBytes = 0;
+
+    /** True when the files present at startup have been indexed. */
+    private volatile boolean loaded = false;
+
+    // metrics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long mismatchCount = 0;
+    private long storeCount = 0;
+    private long evictionCount = 0;
+
+
+    private InstanceCache() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        directory = config.getInstanceCacheDirectory();
+        long max = config.getInstanceCacheMaxBytes();
+        if ((max > 0) && !(directory.mkdirs() || directory.isDirectory())) {
+            Log.get().warning("Unable to create instance cache directory " + directory.getAbsolutePath() + " .  Instance cache is disabled.");
+            max = 0;
+        }
+        maxBytes = max;
+        Log.get().info("Instance cache directory: " + directory.getAbsolutePath() + "  maximum bytes: " + maxBytes);
+        if (maxBytes > 0) {
+            Thread loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            }, "InstanceCacheLoader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+
+    public static synchronized InstanceCache getInstance() {
+        if (instance == null) {
+            instance = new InstanceCache();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return True if caching is enabled.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+
+    private static String getValue(AttributeList attributeList, AttributeTag tag) {
+        return Attribute.getSingleStringValueOrEmptyString(attributeList, tag).trim();
+    }
+
+
+    /**
+     * Determine whether a UID can be used as a file name.  Valid UIDs contain
+     * only digits and periods.
+     */
+    private static boolean isValidUID(String uid) {
+        return (uid.length() > 0) && (uid.length() <= 64) && uid.matches("[0-9.]+");
+    }
+
+
+    /**
+     * Get the file for an object.  Files are spread across subdirectories so
+     * that no single directory gets too large.
+     */
+    private File getFile(String sopInstanceUID) {
+        String subdirectory = Integer.toHexString(0x100 | (sopInstanceUID.hashCode() & 0xff)).substring(1);
+        return new File(new File(directory, subdirectory), sopInstanceUID + SUFFIX);
+    }
+
+
+    /**
+     * Index the files already in the cache directory, oldest first so that
+     * they are evicted first.  Partially written files are deleted.
+     */
+    private void load() {
+        long start = System.currentTimeMillis();
+        ArrayList<File> fileList = new ArrayList<File>();
+        File[] subdirectoryList = directory.listFiles();
+        if (subdirectoryList != null) {
+            for (File subdirectory : subdirectoryList) {
+                File[] list = subdirectory.listFiles();
+                if (list != null) {
+                    for (File file : list) {
+                        if (file.getName().endsWith(SUFFIX)) {
+                            fileList.add(file);
+                        }
+                        else if (file.getName().endsWith(TEMPORARY_SUFFIX) && (file.lastModified() < start)) {
+                            file.delete();
+                        }
+                    }
+                }
+            }
+        }
+        File[] sorted = fileList.toArray(new File[fileList.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+
+        for (File file : sorted) {
+            try {
+                AttributeList header = new AttributeList();
+                DicomInputStream dicomInputStream = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    header.read(dicomInputStream, TagFromName.PixelData);
+                }
+                finally {
+                    dicomInputStream.close();
+                }
+                String sopInstanceUID = getValue(header, TagFromName.SOPInstanceUID);
+                if (!file.getName().equals(sopInstanceUID + SUFFIX)) {
+                    throw new DicomException("SOP Instance UID " + sopInstanceUID + " does not match file name");
+                }
+                add(new Entry(sopInstanceUID, getValue(header, TagFromName.SeriesInstanceUID), getValue(header, TagFromName.StudyInstanceUID),
+                        getValue(header, TagFromName.TransferSyntaxUID), file));
+            }
+            catch (Exception e) {
+                Log.get().warning("Removing unreadable file " + file.getAbsolutePath() + " from instance cache: " + e);
+                file.delete();
+            }
+        }
+        loaded = true;
+        Log.get().info("Loaded " + cache.size() + " objects totaling " + totalBytes + " bytes into instance cache in " +
+                (System.currentTimeMillis() - start) + " ms.");
+    }
+
+
+    private static void addToIndex(HashMap<String, HashSet<String>> index, String key, String value) {
+        HashSet<String> set = index.get(key);
+        if (set == null) {
+            set = new HashSet<String>();
+            index.put(key, set);
+        }
+        set.add(value);
+    }
+
+
+    private static void removeFromIndex(HashMap<String, HashSet<String>> index, String key, String value) {
+        HashSet<String> set = index.get(key);
+        if (set != null) {
+            set.remove(value);
+            if (set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+
+    private synchronized void add(Entry entry) {
+        Entry old = cache.remove(entry.sopInstanceUID);
+        if (old != null) {
+            removeIndexes(old);
+        }
+        cache.put(entry.sopInstanceUID, entry);
+        addToIndex(seriesIndex, entry.seriesInstanceUID, entry.sopInstanceUID);
+        addToIndex(studyIndex, entry.studyInstanceUID, entry.seriesInstanceUID);
+        totalBytes += entry.size;
+        evict();
+    }
+
+
+    /**
+     * Remove an entry that has already been removed from the cache from the
+     * indexes and the total.
+     */
+    private void removeIndexes(Entry entry) {
+        removeFromIndex(seriesIndex, entry.seriesInstanceUID, entry.sopInstanceUID);
+        if (!seriesIndex.containsKey(entry.seriesInstanceUID)) {
+            removeFromIndex(studyIndex, entry.studyInstanceUID, entry.seriesInstanceUID);
+        }
+        totalBytes -= entry.size;
+    }
+
+
+    /**
+     * Delete least recently used files until the total is within the limit.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = cache.values().iterator();
+        while ((totalBytes > maxBytes) && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            removeIndexes(entry);
+            entry.file.delete();
+            evictionCount++;
+        }
+    }
+
+
+    /**
+     * Write an object to the cache.  The file is written under a temporary
+     * name and renamed when complete, so that a partially written file is
+     * never served.
+     *
+     * @param header Attributes of the object, at least those before the pixel data.
+     *
+     * @param transferSyntax Transfer syntax of the data set.
+     *
+     * @param replace If true, replace an existing copy.
+     *
+     * @param content Writes the object as a Part 10 file.
+     */
+    private void store(AttributeList header, String transferSyntax, boolean replace, Content content) {
+        String sopInstanceUID = getValue(header, TagFromName.SOPInstanceUID);
+        String seriesInstanceUID = getValue(header, TagFromName.SeriesInstanceUID);
+        String studyInstanceUID = getValue(header, TagFromName.StudyInstanceUID);
+        if (!(isValidUID(sopInstanceUID) && isValidUID(seriesInstanceUID) && isValidUID(studyInstanceUID))) {
+            Log.get().fine("Not caching object without valid SOP instance, series, and study UIDs: " + sopInstanceUID);
+            return;
+        }
+        synchronized (this) {
+            if (!replace && (cache.get(sopInstanceUID) != null)) {
+                return;
+            }
+        }
+
+        File file = getFile(sopInstanceUID);
+        File temporary = new File(file.getParentFile(), sopInstanceUID + "." + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024);
+            try {
+                content.write(outputStream);
+            }
+            finally {
+                outputStream.close();
+            }
+            synchronized (this) {
+                file.delete();
+                if (!temporary.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temporary.getAbsolutePath() + " to " + file.getAbsolutePath());
+                }
+                add(new Entry(sopInstanceUID, seriesInstanceUID, studyInstanceUID, transferSyntax, file));
+                storeCount++;
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to write object " + sopInstanceUID + " to instance cache: " + e);
+            temporary.delete();
+        }
+    }
+
+
+    /**
+     * Cache an object retrieved from a PACS, unless it is already cached.
+     *
+     * @param receivedDicomObject Object as received.
+     */
+    public void put(final ReceivedDicomObject receivedDicomObject) {
+        if (isEnabled()) {
+            try {
+                store(receivedDicomObject.getHeader(), receivedDicomObject.getTransferSyntax(), false, new Content() {
+                    @Override
+                    public void write(OutputStream outputStream) throws IOException, DicomException {
+                        receivedDicomObject.writePart10(outputStream, receivedDicomObject.getSourceAETitle());
+                    }
+                });
+            }
+            catch (Exception e) {
+                Log.get().warning("Unable to cache object " + receivedDicomObject + " : " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Cache a parsed object retrieved from a PACS, unless it is already cached.
+     *
+     * @param attributeList Object.  Not modified.
+     *
+     * @param transferSyntax Transfer syntax it was received in.
+     *
+     * @param sourceAETitle Sender.
+     */
+    public void put(final AttributeList attributeList, final String transferSyntax, final String sourceAETitle) {
+        if (isEnabled()) {
+            final String ts = (transferSyntax == null) ? TransferSyntax.ExplicitVRLittleEndian : transferSyntax;
+            store(attributeList, ts, false, new Content() {
+                @Override
+                public void write(OutputStream outputStream) throws IOException, DicomException {
+                    AttributeList copy = new AttributeList();
+                    copy.putAll(attributeList);
+                    copy.removeMetaInformationHeaderAttributes();
+                    FileMetaInformation.addFileMetaInformation(copy, ts, sourceAETitle);
+                    copy.write(new DicomOutputStream(outputStream, TransferSyntax.ExplicitVRLittleEndian, ts));
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Cache an object that was stored to a PACS, replacing any cached copy.
+     *
+     * @param spooled Uploaded object.
+     *
+     * @param sourceAETitle Put in the file meta information.
+     */
+    public void put(final SpooledDicom spooled, final String sourceAETitle) {
+        if (isEnabled()) {
+            store(spooled.getHeader(), spooled.getTransferSyntaxUID(), true, new Content() {
+                @Override
+                public void write(OutputStream outputStream) throws IOException, DicomException {
+                    spooled.writePart10(outputStream, sourceAETitle);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Construct a receiver that caches each object and then passes it on.
+     *
+     * @param receive Receiver of objects.
+     *
+     * @return Caching receiver, or the given one if caching is disabled.
+     */
+    public ReceiveDicom fill(final ReceiveDicom receive) {
+        if (!isEnabled()) {
+            return receive;
+        }
+        return new ReceiveDicomObject() {
+            @Override
+            public void receive(ReceivedDicomObject receivedDicomObject) {
+                try {
+                    if (receive instanceof ReceiveDicomObject) {
+                        ((ReceiveDicomObject)receive).receive(receivedDicomObject);
+                    }
+                    else {
+                        receive.receive(receivedDicomObject.getAttributeList(), receivedDicomObject.getTransferSyntax(), receivedDicomObject.getSourceAETitle());
+                    }
+                }
+                catch (Exception e) {
+                    Log.get().warning("Unable to pass on DICOM " + receivedDicomObject + " : " + e);
+                }
+                // the receiver disposes of the object when this returns, so cache it now
+                put(receivedDicomObject);
+            }
+
+            @Override
+            public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+                // cache first because the receiver may modify the list
+                put(attributeList, transferSyntax, sourceAETitle);
+                receive.receive(attributeList, transferSyntax, sourceAETitle);
+            }
+        };
+    }
+
+
+    /**
+     * Get the cached objects for the series in a list, or null if any are
+     * missing or the number cached differs from the number the PACS has.
+     */
+    private synchronized ArrayList<ReceivedDicomObject> getSeries(PACS pacs, ArrayList<AttributeList> seriesList) {
+        ArrayList<ReceivedDicomObject> list = new ArrayList<ReceivedDicomObject>();
+        for (AttributeList series : seriesList) {
+            String seriesInstanceUID = getValue(series, TagFromName.SeriesInstanceUID);
+            int count = Attribute.getSingleIntegerValueOrDefault(series, TagFromName.NumberOfSeriesRelatedInstances, -1);
+            HashSet<String> sopInstanceUIDSet = seriesIndex.get(seriesInstanceUID);
+            if ((sopInstanceUIDSet == null) || (count != sopInstanceUIDSet.size())) {
+                if ((sopInstanceUIDSet != null) && (count >= 0)) {
+                    Log.get().info("Instance cache has " + sopInstanceUIDSet.size() + " objects for series " + seriesInstanceUID +
+                            " but PACS " + pacs + " has " + count);
+                    mismatchCount++;
+                }
+                return null;
+            }
+            for (String sopInstanceUID : sopInstanceUIDSet) {
+                Entry entry = cache.get(sopInstanceUID);
+                list.add(ReceivedDicomObject.fromFile(entry.file, entry.transferSyntax, pacs.aeTitle));
+            }
+        }
+        return list;
+    }
+
+
+    private synchronized boolean isStudyCached(String studyInstanceUID) {
+        return studyIndex.containsKey(studyInstanceUID);
+    }
+
+
+    /**
+     * Get all of the objects for a retrieve from the cache.  A single
+     * instance is returned if it is cached.  For a series, study, or patient,
+     * the series are listed with a C-FIND, and the objects are only returned
+     * if the number of objects cached for each series matches the number the
+     * PACS reports.  That C-FIND always goes to the PACS, because a count
+     * from the C-FIND cache or metadata index could be stale and make a
+     * partly cached series look complete.
+     *
+     * The returned objects refer to the cached files, and must not be
+     * disposed of.  A file may be evicted or replaced at any time, so each
+     * object should be opened with <code>ReceivedDicomObject.open</code>
+     * before it is read and closed afterwards.  If it can not be opened then
+     * it was evicted, and the caller should get the missing objects from
+     * the PACS.
+     *
+     * @param pacs PACS the objects are being retrieved from.
+     *
+     * @param specification Objects being retrieved.
+     *
+     * @return Cached objects, or null if the retrieve must go to the PACS.
+     */
+    public ArrayList<ReceivedDicomObject> getAll(PACS pacs, AttributeList specification) {
+        if (!(isEnabled() && loaded)) {
+            return null;
+        }
+        ArrayList<ReceivedDicomObject> list = null;
+        String sopInstanceUID = getValue(specification, TagFromName.SOPInstanceUID);
+        String seriesInstanceUID = getValue(specification, TagFromName.SeriesInstanceUID);
+        String studyInstanceUID = getValue(specification, TagFromName.StudyInstanceUID);
+        try {
+            if (sopInstanceUID.length() > 0) {
+                synchronized (this) {
+                    Entry entry = cache.get(sopInstanceUID);
+                    if (entry != null) {
+                        list = new ArrayList<ReceivedDicomObject>();
+                        list.add(ReceivedDicomObject.fromFile(entry.file, entry.transferSyntax, pacs.aeTitle));
+                    }
+                }
+            }
+            else if (seriesInstanceUID.length() > 0) {
+                // the series must be cached to know its study, which some PACS require for the C-FIND
+                String cachedStudyInstanceUID = null;
+                synchronized (this) {
+                    HashSet<String> sopInstanceUIDSet = seriesIndex.get(seriesInstanceUID);
+                    if (sopInstanceUIDSet != null) {
+                        cachedStudyInstanceUID = cache.get(sopInstanceUIDSet.iterator().next()).studyInstanceUID;
+                    }
+                }
+                if (cachedStudyInstanceUID != null) {
+                    AttributeList study = new AttributeList();
+                    study.putAll(specification);
+                    Attribute attribute = AttributeFactory.newAttribute(TagFromName.StudyInstanceUID);
+                    attribute.addValue(cachedStudyInstanceUID);
+                    study.put(attribute);
+                    study.remove(TagFromName.SeriesInstanceUID);
+                    ArrayList<AttributeList> seriesList = new ArrayList<AttributeList>();
+                    for (AttributeList series : ParallelCMove.findSeries(pacs, study, true)) {
+                        if (getValue(series, TagFromName.SeriesInstanceUID).equals(seriesInstanceUID)) {
+                            seriesList.add(series);
+                        }
+                    }
+                    if (!seriesList.isEmpty()) {
+                        list = getSeries(pacs, seriesList);
+                    }
+                }
+            }
+            else if ((studyInstanceUID.length() == 0) || isStudyCached(studyInstanceUID)) {
+                ArrayList<AttributeList> seriesList = ParallelCMove.findSeries(pacs, specification, true);
+                if (!seriesList.isEmpty()) {
+                    list = getSeries(pacs, seriesList);
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to check instance cache for retrieve from PACS " + pacs + " : " + e);
+            list = null;
+        }
+        synchronized (this) {
+            if (list == null) {
+                missCount++;
+            }
+            else {
+                hitCount++;
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     * @return Statistics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<InstanceCache>\n" +
+            "    <Loaded>" + loaded + "</Loaded>\n" +
+            "    <Instances>" + cache.size() + "</Instances>\n" +
+            "    <Series>" + seriesIndex.size() + "</Series>\n" +
+            "    <Studies>" + studyIndex.size() + "</Studies>\n" +
+            "    <Bytes>" + totalBytes + "</Bytes>\n" +
+            "    <MaxBytes>" + maxBytes + "</MaxBytes>\n" +
+            "    <Hits>" + hitCount + "</Hits>\n" +
+            "    <Misses>" + missCount + "</Misses>\n" +
+            "    <CountMismatches>" + mismatchCount + "</CountMismatches>\n" +
+            "    <Stored>" + storeCount + "</Stored>\n" +
+            "    <Evictions>" + evictionCount + "</Evictions>\n" +
+            "</InstanceCache>\n";
+    }
+}
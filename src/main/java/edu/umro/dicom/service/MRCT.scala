@@ -44,7 +44,7 @@ import com.sun.xml.internal.messaging.saaj.util.ByteOutputStream
 class MRCT {
 
     private val config = ServiceConfig.getInstance.getMRCT
-    private val MRCTDictionary = new MRCTDictionary
+    private val MRCTDictionary = DictionaryRegistry.getInstance.get(DictionaryRegistry.MRCT)
     private val channelLifetime: Long = 60 * 60 * 1000
 
     class Chan(val channel: Channel, val expirationTime: Long);
@@ -194,7 +194,11 @@ class MRCT {
                 case pacs: Some[PACS] => {
                     val dicomPush: DicomPush = new DicomPush(pacs.get, Array(attributeList))
                     val message = dicomPush.push
-                    if (message == null) Log.get.info("Sent MR CT file to PACS " + destPacs)
+                    CFindCache.getInstance.invalidate(attributeList)
+                    if (message == null) {
+                        MetadataIndex.getInstance.add(pacs.get, attributeList)
+                        Log.get.info("Sent MR CT file to PACS " + destPacs)
+                    }
                     else Log.get.warning("Unable to send file to PACS: " + message)
                 }
                 case _ => ;
@@ -19,16 +19,16 @@ package edu.umro.dicom.service;
 import java.util.ArrayList;
 
 import com.pixelmed.dicom.AttributeTag;
-import com.pixelmed.dicom.DicomDictionary;
 import com.pixelmed.dicom.TagFromName;
 
 /**
- * Provide special overrides for DICOM attributes.
- * 
+ * Provide special overrides for DICOM attributes.  Use the shared instance
+ * from <code>DictionaryRegistry</code> rather than constructing one.
+ *
  * @author irrer
  *
  */
-public class MRCTDictionary extends DicomDictionary {
+public class MRCTDictionary extends DicomDict {
 
     private class Special {
         String newName;
@@ -47,7 +47,7 @@ public class MRCTDictionary extends DicomDictionary {
 
     @SuppressWarnings("unchecked")
     public MRCTDictionary() {
-        super();
+        super(DictionaryRegistry.MRCT, null);
 
         if (special == null) {
             special = new ArrayList<Special>();
@@ -60,6 +60,7 @@ public class MRCTDictionary extends DicomDictionary {
             nameByTag.put(s.tag, s.newName);
             tagByName.put(s.newName, s.tag);
         }
+        index();
     }
 
 }
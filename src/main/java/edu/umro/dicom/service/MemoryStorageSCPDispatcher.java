@@ -0,0 +1,381 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.network.AReleaseException;
+import com.pixelmed.network.Association;
+import com.pixelmed.network.AssociationFactory;
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.PDataPDU;
+import com.pixelmed.network.PresentationDataValue;
+import com.pixelmed.network.ReceivedDataHandler;
+import com.pixelmed.network.UnencapsulatedExplicitStoreFindMoveGetPresentationContextSelectionPolicy;
+
+import edu.umro.util.Log;
+
+/**
+ * DICOM C-STORE SCP that keeps incoming objects in memory instead of
+ * writing them to the temporary directory.  This is an alternative to
+ * Pixelmed's <code>StorageSOPClassSCPDispatcher</code>, which always writes
+ * each object to a file that then has to be read back and deleted.
+ *
+ * Each inbound association is serviced by its own thread, up to a configured
+ * number at the same time.  C-ECHO is also answered, and associations that
+ * send any other command are aborted.
+ *
+ * Data sets are accumulated in buffers from the <code>BufferPool</code>, which
+ * bounds the memory used for them.  A data set that does not fit in a buffer
+ * that the pool will provide is written to a Part 10 file in the temporary
+ * directory instead, which is deleted after the object has been processed.
+ *
+ * @author irrer
+ *
+ */
+public class MemoryStorageSCPDispatcher implements Runnable {
+
+    /** Pixelmed debug level. */
+    private static final int DEBUG_LEVEL = 0;
+
+    /** Size of buffer used when writing a data set to a file. */
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Consumer of objects received by this dispatcher.
+     */
+    public interface ObjectHandler {
+        /**
+         * Process a received object.  Any exception thrown causes a failure
+         * status to be returned to the sender.  The object's memory is re-used
+         * and its file deleted when this returns, so it must not be kept.
+         *
+         * @param receivedDicomObject Object that was received.
+         */
+        void receivedObject(ReceivedDicomObject receivedDicomObject) throws Exception;
+    }
+
+    /** Port to listen on. */
+    private final int port;
+
+    /** Our AE title. */
+    private final String aeTitle;
+
+    /** Where incoming objects go. */
+    private final ObjectHandler objectHandler;
+
+    /** Limits the number of associations serviced at the same time. */
+    private final Semaphore associationPermit = new Semaphore(ServiceConfig.getInstance().getReceiveMaxAssociations());
+
+
+    /**
+     * Accumulates the PDVs of a single C-STORE request (command and data set).
+     * The data set is put in a pooled buffer, or in a file if the pool will
+     * not provide one large enough.  It must be released when done.
+     */
+    private class StoreRequestHandler extends ReceivedDataHandler {
+        private ByteArrayOutputStream commandBytes = new ByteArrayOutputStream(256);
+        private AttributeList command = null;
+        private byte presentationContextID = 0;
+
+        /** True if any of a data set has been received. */
+        private boolean hasDataSet = false;
+
+        /** Data set if in memory. */
+        private byte[] buffer = null;
+
+        /** Number of bytes of the data set in <code>buffer</code>. */
+        private int length = 0;
+
+        /** Part 10 file if the data set did not fit in memory. */
+        private File file = null;
+
+        /** Writes to <code>file</code> while the data set is being received. */
+        private OutputStream fileOutputStream = null;
+
+        StoreRequestHandler() {
+            super(DEBUG_LEVEL);
+        }
+
+        /**
+         * Append part of the data set, moving it to a larger buffer or to a
+         * file when it does not fit.
+         */
+        private void writeDataSet(byte[] value, Association association) throws DicomException, IOException {
+            hasDataSet = true;
+            if ((file == null) && ((buffer == null) || ((length + value.length) > buffer.length))) {
+                BufferPool pool = BufferPool.getInstance();
+                byte[] bigger = ((length + value.length) < 0) ? null : pool.acquire(Math.max(pool.getMinimumSize(), length + value.length));
+                if (bigger == null) {
+                    writeToFile(association);
+                }
+                else {
+                    if (buffer != null) {
+                        System.arraycopy(buffer, 0, bigger, 0, length);
+                        pool.release(buffer);
+                    }
+                    buffer = bigger;
+                }
+            }
+            if (file == null) {
+                System.arraycopy(value, 0, buffer, length, value.length);
+                length += value.length;
+            }
+            else {
+                fileOutputStream.write(value);
+            }
+        }
+
+        /**
+         * Start writing the data set to a Part 10 file, beginning with what
+         * has been received so far.
+         */
+        private void writeToFile(Association association) throws DicomException, IOException {
+            String transferSyntax = association.getTransferSyntaxForPresentationContextID(presentationContextID);
+            byte[] fileMetaInformation = ReceivedDicomObject.encodeFileMetaInformation(
+                    Attribute.getSingleStringValueOrEmptyString(command, TagFromName.AffectedSOPClassUID).trim(),
+                    Attribute.getSingleStringValueOrEmptyString(command, TagFromName.AffectedSOPInstanceUID).trim(),
+                    transferSyntax, association.getCallingAETitle());
+            file = File.createTempFile("receive", ".dcm", ServiceConfig.getInstance().getTemporaryDir());
+            fileOutputStream = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            fileOutputStream.write(fileMetaInformation);
+            if (buffer != null) {
+                fileOutputStream.write(buffer, 0, length);
+                BufferPool.getInstance().release(buffer);
+                buffer = null;
+                length = 0;
+            }
+            Log.get().fine("Receiving data set from " + association.getCallingAETitle() + " into temporary file " + file.getAbsolutePath());
+        }
+
+        @Override
+        public void sendPDataIndication(PDataPDU pData, Association association) throws DicomNetworkException, DicomException, IOException {
+            for (Iterator<?> i = pData.getPDVList().iterator(); i.hasNext(); ) {
+                PresentationDataValue pdv = (PresentationDataValue)i.next();
+                presentationContextID = pdv.getPresentationContextID();
+                if (pdv.isCommand()) {
+                    commandBytes.write(pdv.getValue());
+                    if (pdv.isLastFragment()) {
+                        command = DicomCommand.decode(commandBytes.toByteArray());
+                        commandBytes = null;
+                        if (Attribute.getSingleIntegerValueOrDefault(command, TagFromName.CommandDataSetType, DicomCommand.NO_DATA_SET) == DicomCommand.NO_DATA_SET) {
+                            done = true;
+                        }
+                    }
+                }
+                else {
+                    writeDataSet(pdv.getValue(), association);
+                    if (pdv.isLastFragment()) {
+                        done = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the received data set as an object, which is only valid until
+         * <code>release</code> is called.
+         */
+        private ReceivedDicomObject getReceivedDicomObject(Association association) throws IOException {
+            String transferSyntax = association.getTransferSyntaxForPresentationContextID(presentationContextID);
+            if (file == null) {
+                return ReceivedDicomObject.fromMemory(buffer, length, transferSyntax, association.getCallingAETitle(), command);
+            }
+            fileOutputStream.close();
+            fileOutputStream = null;
+            return ReceivedDicomObject.fromFile(file, transferSyntax, association.getCallingAETitle(), command);
+        }
+
+        /**
+         * Return the buffer to the pool or delete the file.  Releasing more
+         * than once has no effect.
+         */
+        private void release() {
+            BufferPool.getInstance().release(buffer);
+            buffer = null;
+            if (fileOutputStream != null) {
+                try {
+                    fileOutputStream.close();
+                }
+                catch (IOException e) {
+                    Log.get().fine("Ignoring exception while closing temporary file: " + e);
+                }
+                fileOutputStream = null;
+            }
+            if (file != null) {
+                if (!file.delete()) {
+                    Log.get().warning("Unable to delete temporary file " + file.getAbsolutePath());
+                }
+                file = null;
+            }
+        }
+    }
+
+
+    /**
+     * Service a single inbound association until it is released or aborted.
+     */
+    private class AssociationServer implements Runnable {
+        private final Socket socket;
+
+        AssociationServer(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Respond to one request.  C-STORE and C-ECHO are supported.  Any
+         * other command aborts the association, because there is no response
+         * that would be correct for it.
+         *
+         * @return True if the association should continue to be serviced.
+         */
+        private boolean processRequest(Association association, StoreRequestHandler handler) throws DicomNetworkException, DicomException, IOException {
+            int commandField = Attribute.getSingleIntegerValueOrDefault(handler.command, TagFromName.CommandField, -1);
+            switch (commandField) {
+            case DicomCommand.C_STORE_RQ:
+                association.send(handler.presentationContextID, DicomCommand.cStoreResponse(handler.command, store(association, handler)), null);
+                return true;
+            case DicomCommand.C_ECHO_RQ:
+                association.send(handler.presentationContextID, DicomCommand.cEchoResponse(handler.command), null);
+                return true;
+            default:
+                Log.get().warning("Aborting association from " + association.getCallingAETitle() + " because of unsupported DICOM command " +
+                        String.format("0x%04x", commandField) + " : " + handler.command.toString().replace('\0', ' '));
+                association.abort();
+                return false;
+            }
+        }
+
+        /**
+         * Pass a received object to the handler.
+         *
+         * @return C-STORE status to report.
+         */
+        private int store(Association association, StoreRequestHandler handler) throws DicomNetworkException, IOException {
+            if (!handler.hasDataSet) {
+                Log.get().warning("Rejecting C-STORE without data set from " + association.getCallingAETitle() + " : " + handler.command.toString().replace('\0', ' '));
+                return DicomCommand.STATUS_CANNOT_UNDERSTAND;
+            }
+            ReceivedDicomObject receivedDicomObject = handler.getReceivedDicomObject(association);
+            try {
+                objectHandler.receivedObject(receivedDicomObject);
+                return DicomCommand.STATUS_SUCCESS;
+            }
+            catch (Exception e) {
+                Log.get().warning("Exception while processing incoming DICOM object " + receivedDicomObject + " : " + e);
+                return DicomCommand.STATUS_CANNOT_UNDERSTAND;
+            }
+            finally {
+                handler.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            Association association = null;
+            StoreRequestHandler handler = null;
+            try {
+                // a peer that stops sending would otherwise hold this thread forever
+                socket.setSoTimeout(ServiceConfig.getInstance().getReceiveTimeoutSeconds() * 1000);
+                association = AssociationFactory.createNewAssociation(socket, aeTitle,
+                        new UnencapsulatedExplicitStoreFindMoveGetPresentationContextSelectionPolicy(), DEBUG_LEVEL);
+                Log.get().fine("Accepted association from " + association.getCallingAETitle() + " on " + aeTitle);
+                boolean more = true;
+                while (more) {
+                    handler = new StoreRequestHandler();
+                    association.setReceivedDataHandler(handler);
+                    association.waitForPDataPDUsUntilHandlerReportsDone();
+                    more = processRequest(association, handler);
+                }
+            }
+            catch (AReleaseException e) {
+                Log.get().fine("Association released on " + aeTitle);
+            }
+            catch (Exception e) {
+                Log.get().warning("Association on " + aeTitle + " port " + port + " ended unexpectedly: " + e);
+            }
+            finally {
+                if (handler != null) {
+                    handler.release();
+                }
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    Log.get().fine("Ignoring exception while closing socket: " + e);
+                }
+                associationPermit.release();
+            }
+        }
+    }
+
+
+    /**
+     * Construct a dispatcher.  Call <code>run</code> (usually in a separate
+     * thread) to start accepting associations.
+     *
+     * @param port Port to listen on.
+     *
+     * @param aeTitle Our AE title.
+     *
+     * @param objectHandler Where incoming objects go.
+     */
+    public MemoryStorageSCPDispatcher(int port, String aeTitle, ObjectHandler objectHandler) {
+        this.port = port;
+        this.aeTitle = aeTitle;
+        this.objectHandler = objectHandler;
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            ServerSocket serverSocket = new ServerSocket(port);
+            while (true) {
+                // connections wait in the listen backlog until an association ends
+                associationPermit.acquireUninterruptibly();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (IOException e) {
+                    associationPermit.release();
+                    throw e;
+                }
+                Thread thread = new Thread(new AssociationServer(socket), "DICOM " + aeTitle + " from " + socket.getInetAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (IOException e) {
+            Log.get().severe("DICOM receiver " + aeTitle + " is unable to listen on port " + port + " : " + e);
+        }
+    }
+}
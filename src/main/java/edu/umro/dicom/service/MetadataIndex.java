@@ -0,0 +1,1512 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+import edu.umro.util.UMROException;
+
+/**
+ * Local index of the patients, studies, series, and instances on each PACS,
+ * so that C-FINDs the index can answer do not go to the PACS.  It is fed by
+ * the results of C-FINDs, by objects received from PACS, and by objects
+ * stored to PACS through this service.
+ *
+ * The index only answers a C-FIND when it knows that it has everything the
+ * PACS would return.  That is known when the PACS has recently answered a
+ * C-FIND constrained only by one of the attributes the index is organized
+ * by (a PatientID, StudyDate range, StudyInstanceUID, SeriesInstanceUID, or
+ * SOPInstanceUID) and asking for at least the same attributes.  Such a
+ * C-FIND is recorded as a scope, and later C-FINDs within a scope that is
+ * no older than the configured maximum age are answered from the index,
+ * with any further constraints matched locally.  Everything else goes to
+ * the PACS.  Counts of related objects are those reported by the PACS when
+ * the scope was loaded, and do not include objects stored since.
+ *
+ * UIDs and other values made of digits and periods are kept packed two
+ * characters to a byte.  Sequences and bulk data are not indexed, and are
+ * not included in answers.
+ *
+ * Lookups share a read lock so that they do not wait for each other, and
+ * changes take the write lock.  Objects received from PACS are queued and
+ * added by a background thread so that receiving never waits for the
+ * index.
+ *
+ * Changes are appended to a log in the configured directory, which is read
+ * on startup and rewritten without superseded entries when it has grown to
+ * several times the size of the index.  Entries are collected in memory
+ * while changes are made and written to the file by the background thread
+ * without holding the lock.  Records that have not been seen for the
+ * configured number of days are dropped when the log is rewritten.
+ *
+ * @author irrer
+ *
+ */
+public class MetadataIndex {
+
+    /** Identifies the log file format. */
+    private static final int MAGIC = 0x44494458;
+
+    private static final byte ENTRY_RECORD = 1;
+    private static final byte ENTRY_SCOPE = 2;
+    private static final byte ENTRY_REMOVE = 3;
+
+    private static final byte VALUE_STRING = 0;
+    private static final byte VALUE_PACKED = 1;
+
+    private static final String LOG_FILE_NAME = "metadata.log";
+
+    /** Longer values, such as comments, are not indexed. */
+    private static final int MAX_VALUE_LENGTH = 1024;
+
+    /** Maximum number of received objects waiting to be added.  More are not indexed. */
+    private static final int QUEUE_DEPTH = 10000;
+
+    /** Longest time in ms that log entries wait to be written. */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private static MetadataIndex instance = null;
+
+    /**
+     * A value made of digits and periods, such as a UID, packed two
+     * characters to a byte.
+     */
+    static final class Packed {
+        private final byte[] data;
+        private final int length;
+        private final int hash;
+
+        private Packed(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+            hash = (Arrays.hashCode(data) * 31) + length;
+        }
+
+        /**
+         * Pack a value.
+         *
+         * @return Packed value, or null if it contains other characters or is too long.
+         */
+        static Packed pack(String text) {
+            int length = text.length();
+            if ((length == 0) || (length > 255)) {
+                return null;
+            }
+            byte[] data = new byte[(length + 1) / 2];
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                int nibble;
+                if ((c >= '0') && (c <= '9')) {
+                    nibble = c - '0';
+                }
+                else if (c == '.') {
+                    nibble = 10;
+                }
+                else {
+                    return null;
+                }
+                data[i / 2] |= ((i % 2) == 0) ? (nibble << 4) : nibble;
+            }
+            return new Packed(data, length);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Packed) && (((Packed)other).length == length) && Arrays.equals(((Packed)other).data, data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            char[] text = new char[length];
+            for (int i = 0; i < length; i++) {
+                int nibble = ((i % 2) == 0) ? ((data[i / 2] >> 4) & 0xf) : (data[i / 2] & 0xf);
+                text[i] = (nibble == 10) ? '.' : (char)('0' + nibble);
+            }
+            return new String(text);
+        }
+    }
+
+    /**
+     * An object received from a PACS, waiting to be added.
+     */
+    private static final class Received {
+        private final PACS pacs;
+        private final AttributeList attributeList;
+
+        private Received(PACS pacs, AttributeList attributeList) {
+            this.pacs = pacs;
+            this.attributeList = attributeList;
+        }
+    }
+
+    /**
+     * Identifies a record: the PACS and the value of the unique key of its level.
+     */
+    private static final class Key {
+        private final String pacs;
+        private final Object id;
+
+        private Key(String pacs, Object id) {
+            this.pacs = pacs;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Key) && ((Key)other).pacs.equals(pacs) && ((Key)other).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return (pacs.hashCode() * 31) + id.hashCode();
+        }
+    }
+
+    /**
+     * The attributes of one patient, study, series, or instance on one PACS.
+     * Tags are kept sorted.
+     */
+    private static final class Record {
+        private final Key key;
+        private final QueryLevel queryLevel;
+        private int[] tagList;
+        private Object[] valueList;
+        private long updated;
+
+        private Record(Key key, QueryLevel queryLevel, int[] tagList, Object[] valueList, long updated) {
+            this.key = key;
+            this.queryLevel = queryLevel;
+            this.tagList = tagList;
+            this.valueList = valueList;
+            this.updated = updated;
+        }
+
+        /**
+         * @return Value of the attribute, or null if it has none.
+         */
+        private String getValue(int tag) {
+            int i = Arrays.binarySearch(tagList, tag);
+            return (i < 0) ? null : valueList[i].toString();
+        }
+
+        /**
+         * Take the values of another record of the same object, which take precedence.
+         */
+        private void merge(Record other) {
+            TreeMap<Integer, Object> map = new TreeMap<Integer, Object>();
+            for (int i = 0; i < tagList.length; i++) {
+                map.put(tagList[i], valueList[i]);
+            }
+            for (int i = 0; i < other.tagList.length; i++) {
+                map.put(other.tagList[i], other.valueList[i]);
+            }
+            int[] tl = new int[map.size()];
+            Object[] vl = new Object[map.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Object> entry : map.entrySet()) {
+                tl[i] = entry.getKey();
+                vl[i] = entry.getValue();
+                i++;
+            }
+            tagList = tl;
+            valueList = vl;
+            updated = Math.max(updated, other.updated);
+        }
+    }
+
+    /**
+     * A C-FIND that the PACS answered completely, so that C-FINDs within it
+     * may be answered from the index.
+     */
+    private static final class Scope {
+        private final String pacs;
+        private final QueryLevel queryLevel;
+        private final int tag;
+
+        /** Value as given in the C-FIND, a date range for StudyDate. */
+        private final String value;
+
+        /** Attributes that the C-FIND asked for. */
+        private final HashSet<Integer> tagSet;
+
+        private final long loaded;
+
+        private Scope(String pacs, QueryLevel queryLevel, int tag, String value, HashSet<Integer> tagSet, long loaded) {
+            this.pacs = pacs;
+            this.queryLevel = queryLevel;
+            this.tag = tag;
+            this.value = value;
+            this.tagSet = tagSet;
+            this.loaded = loaded;
+        }
+
+        private String getName() {
+            return pacs + "|" + queryLevel + "|" + tag + "|" + value;
+        }
+    }
+
+    /**
+     * Secondary index of the records of one level by the value of one attribute.
+     */
+    private static final class Index {
+        private final QueryLevel queryLevel;
+        private final int tag;
+        private final Map<Object, HashSet<Record>> map;
+
+        /**
+         * @param sorted If true, values are kept as text in order so that ranges may be found.
+         */
+        private Index(QueryLevel queryLevel, AttributeTag tag, boolean sorted) {
+            this.queryLevel = queryLevel;
+            this.tag = toInt(tag);
+            if (sorted) {
+                map = new TreeMap<Object, HashSet<Record>>();
+            }
+            else {
+                map = new HashMap<Object, HashSet<Record>>();
+            }
+        }
+
+        private Object toIndexValue(String value) {
+            return (map instanceof TreeMap) ? value : toValue(value);
+        }
+
+        private void add(Record record) {
+            String value = record.getValue(tag);
+            if ((record.queryLevel == queryLevel) && (value != null)) {
+                Object indexValue = toIndexValue(value);
+                HashSet<Record> set = map.get(indexValue);
+                if (set == null) {
+                    set = new HashSet<Record>();
+                    map.put(indexValue, set);
+                }
+                set.add(record);
+            }
+        }
+
+        private void remove(Record record) {
+            String value = record.getValue(tag);
+            if ((record.queryLevel == queryLevel) && (value != null)) {
+                Object indexValue = toIndexValue(value);
+                HashSet<Record> set = map.get(indexValue);
+                if (set != null) {
+                    set.remove(record);
+                    if (set.isEmpty()) {
+                        map.remove(indexValue);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the records with the given value, or within the given range for a sorted index.
+         */
+        private List<Record> get(String low, String high) {
+            ArrayList<Record> list = new ArrayList<Record>();
+            if (map instanceof TreeMap) {
+                TreeMap<Object, HashSet<Record>> tree = (TreeMap<Object, HashSet<Record>>)map;
+                Map<Object, HashSet<Record>> range;
+                if (low.length() == 0) {
+                    range = (high.length() == 0) ? tree : tree.headMap(high + Character.MAX_VALUE);
+                }
+                else {
+                    range = (high.length() == 0) ? tree.tailMap(low) : tree.subMap(low, high + Character.MAX_VALUE);
+                }
+                for (HashSet<Record> set : range.values()) {
+                    list.addAll(set);
+                }
+            }
+            else {
+                HashSet<Record> set = map.get(toValue(low));
+                if (set != null) {
+                    list.addAll(set);
+                }
+            }
+            return list;
+        }
+    }
+
+    /** Directory of the log, or null if the index is not kept on disk. */
+    private final File directory;
+
+    /** Maximum age of a scope that may be used to answer a C-FIND, in ms.  Zero disables answering. */
+    private final long maxAge;
+
+    /** Time after which records not seen again are dropped, in ms. */
+    private final long retain;
+
+    /** Maximum number of records.  Zero disables the index. */
+    private final int maxRecords;
+
+    /** Records of each level by key. */
+    private final ArrayList<HashMap<Key, Record>> recordMapList = new ArrayList<HashMap<Key, Record>>();
+
+    private final List<Index> indexList = Arrays.asList(
+            new Index(QueryLevel.STUDY, TagFromName.PatientID, false),
+            new Index(QueryLevel.STUDY, TagFromName.StudyDate, true),
+            new Index(QueryLevel.SERIES, TagFromName.StudyInstanceUID, false),
+            new Index(QueryLevel.SERIES, TagFromName.Modality, false),
+            new Index(QueryLevel.IMAGE, TagFromName.SeriesInstanceUID, false));
+
+    /** Scopes by name, oldest first. */
+    private final LinkedHashMap<String, Scope> scopeMap = new LinkedHashMap<String, Scope>();
+
+    /** Attributes kept at each level for objects stored or received. */
+    private final ArrayList<HashSet<AttributeTag>> levelTagSetList = new ArrayList<HashSet<AttributeTag>>();
+
+    /** Guards the records, indexes, scopes, and pending log entries. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Received objects waiting to be added. */
+    private final LinkedBlockingQueue<Received> receivedQueue = new LinkedBlockingQueue<Received>(QUEUE_DEPTH);
+
+    /** Log file, only written by the background thread.  Null if not kept on disk. */
+    private volatile DataOutputStream log = null;
+
+    /** Log entries not yet written to the file. */
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+
+    private long logEntryCount = 0;
+    private boolean full = false;
+
+    // metrics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long loadCount = 0;
+    private long compactionCount = 0;
+    private long droppedCount = 0;
+
+
+    /**
+     * Convert a tag to an int for compact storage.
+     */
+    private static int toInt(AttributeTag tag) {
+        return (tag.getGroup() << 16) | tag.getElement();
+    }
+
+
+    private static AttributeTag toTag(int tag) {
+        return new AttributeTag(tag >>> 16, tag & 0xffff);
+    }
+
+
+    /**
+     * Get the form in which a value is kept, packed if possible.
+     */
+    private static Object toValue(String value) {
+        Packed packed = Packed.pack(value);
+        return (packed == null) ? value : packed;
+    }
+
+
+    /**
+     * Get the scope attributes of a level, those that a complete C-FIND may
+     * be constrained by.
+     */
+    private static List<AttributeTag> getScopeTagList(QueryLevel queryLevel) {
+        switch (queryLevel) {
+            case PATIENT:
+                return Arrays.asList(TagFromName.PatientID);
+            case STUDY:
+                return Arrays.asList(TagFromName.PatientID, TagFromName.StudyDate, TagFromName.StudyInstanceUID);
+            case SERIES:
+                return Arrays.asList(TagFromName.StudyInstanceUID, TagFromName.SeriesInstanceUID);
+            default:
+                return Arrays.asList(TagFromName.SeriesInstanceUID, TagFromName.SOPInstanceUID);
+        }
+    }
+
+
+    /**
+     * Get the value of an attribute as text, multiple values separated by backslashes.
+     *
+     * @return Value, or an empty string if it has none.
+     */
+    private static String getText(Attribute attribute) {
+        try {
+            String[] valueList = attribute.getStringValues();
+            if (valueList == null) {
+                return "";
+            }
+            StringBuffer text = new StringBuffer();
+            for (int v = 0; v < valueList.length; v++) {
+                text.append(((v == 0) ? "" : "\\") + ((valueList[v] == null) ? "" : valueList[v].trim()));
+            }
+            return text.toString().replace('\0', ' ').trim();
+        }
+        catch (DicomException e) {
+            return "";
+        }
+    }
+
+
+    /**
+     * Determine whether an attribute can be indexed.
+     */
+    private static boolean isIndexable(Attribute attribute) {
+        AttributeTag tag = attribute.getTag();
+        byte[] vr = attribute.getVR();
+        return
+            !(attribute instanceof SequenceAttribute) &&
+            !tag.equals(TagFromName.QueryRetrieveLevel) &&
+            (tag.getGroup() != 0x0002) &&
+            (tag.getGroup() != 0x7fe0) &&
+            !ValueRepresentation.isOtherByteVR(vr) &&
+            !ValueRepresentation.isOtherWordVR(vr) &&
+            !ValueRepresentation.isOtherFloatVR(vr) &&
+            !ValueRepresentation.isUnknownVR(vr);
+    }
+
+
+    /**
+     * Determine whether the value of an attribute matches a C-FIND
+     * constraint: a single value, a list of values separated by
+     * backslashes, a range for dates and times, or a pattern with * and ?.
+     * Person names are matched without regard to case.  A constraint of
+     * only * also matches an empty or absent value, as it would on the PACS.
+     */
+    private static boolean matches(String constraint, String value, byte[] vr) {
+        if (constraint.indexOf('\\') != -1) {
+            for (String one : constraint.split("\\\\")) {
+                if (matches(one, value, vr)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // a constraint of only * matches anything, including no value
+        if (constraint.replace("*", "").length() == 0) {
+            return true;
+        }
+        if (value == null) {
+            return false;
+        }
+        boolean ignoreCase = ValueRepresentation.isPersonNameVR(vr);
+        if ((ValueRepresentation.isDateVR(vr) || ValueRepresentation.isTimeVR(vr) || ValueRepresentation.isDateTimeVR(vr)) && (constraint.indexOf('-') != -1)) {
+            int dash = constraint.indexOf('-');
+            String low = constraint.substring(0, dash).trim();
+            String high = constraint.substring(dash + 1).trim();
+            return ((low.length() == 0) || (value.compareTo(low) >= 0)) && ((high.length() == 0) || (value.compareTo(high + Character.MAX_VALUE) < 0));
+        }
+        if ((constraint.indexOf('*') != -1) || (constraint.indexOf('?') != -1)) {
+            return wildcardMatches(ignoreCase ? constraint.toUpperCase() : constraint, 0, ignoreCase ? value.toUpperCase() : value, 0);
+        }
+        return ignoreCase ? constraint.equalsIgnoreCase(value) : constraint.equals(value);
+    }
+
+
+    private static boolean wildcardMatches(String pattern, int p, String value, int v) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = v; i <= value.length(); i++) {
+                    if (wildcardMatches(pattern, p + 1, value, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if ((v >= value.length()) || ((c != '?') && (c != value.charAt(v)))) {
+                return false;
+            }
+            p++;
+            v++;
+        }
+        return v == value.length();
+    }
+
+
+    private MetadataIndex() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        maxAge = config.getMetadataIndexMaxAgeSeconds() * 1000L;
+        retain = config.getMetadataIndexRetainDays() * 24L * 60 * 60 * 1000;
+        maxRecords = config.getMetadataIndexMaxRecords();
+        DicomDictionary dicomDictionary = DictionaryRegistry.getInstance().getStandard();
+        for (QueryLevel queryLevel : QueryLevel.values()) {
+            recordMapList.add(new HashMap<Key, Record>());
+            HashSet<AttributeTag> tagSet = new HashSet<AttributeTag>();
+            try {
+                for (String tagName : config.getCFindTagList(queryLevel)) {
+                    AttributeTag tag = dicomDictionary.getTagFromName(tagName);
+                    if (tag != null) {
+                        tagSet.add(tag);
+                    }
+                }
+            }
+            catch (UMROException e) {
+                Log.get().severe("Unable to get the C-FIND attributes for level " + queryLevel + " : " + e);
+            }
+            tagSet.add(ParallelCFind.getKeyTag(queryLevel));
+            levelTagSetList.add(tagSet);
+        }
+
+        File dir = null;
+        if (isEnabled()) {
+            dir = config.getMetadataIndexDirectory();
+            dir.mkdirs();
+            if (!dir.isDirectory()) {
+                Log.get().warning("Unable to create metadata index directory " + dir.getAbsolutePath() + " .  The index will not be kept on disk.");
+                dir = null;
+            }
+        }
+        directory = dir;
+        if (directory != null) {
+            open();
+        }
+        if (isEnabled()) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            addReceived();
+                            writeLog();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        catch (RuntimeException e) {
+                            Log.get().warning("Unexpected error updating metadata index: " + e);
+                        }
+                    }
+                }
+            }, "MetadataIndex");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Log.get().info("Metadata index directory: " + ((directory == null) ? "none" : directory.getAbsolutePath()) + "  records: " + getRecordCount() +
+                "  scopes: " + scopeMap.size() + "  maximum age ms: " + maxAge + "  retain ms: " + retain + "  maximum records: " + maxRecords);
+    }
+
+
+    public static synchronized MetadataIndex getInstance() {
+        if (instance == null) {
+            instance = new MetadataIndex();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return True if the index is kept.
+     */
+    public boolean isEnabled() {
+        return maxRecords > 0;
+    }
+
+
+    private int getRecordCount() {
+        int count = 0;
+        for (HashMap<Key, Record> recordMap : recordMapList) {
+            count += recordMap.size();
+        }
+        return count;
+    }
+
+
+    /**
+     * Construct a record from attributes.
+     *
+     * @param tagSet Attributes to keep, or null for all.
+     *
+     * @return Record, or null if the attributes do not have the unique key of the level.
+     */
+    private Record newRecord(String pacs, QueryLevel queryLevel, AttributeList attributeList, HashSet<AttributeTag> tagSet, long now) {
+        String id = Attribute.getSingleStringValueOrEmptyString(attributeList, ParallelCFind.getKeyTag(queryLevel)).trim();
+        if (id.length() == 0) {
+            return null;
+        }
+        TreeMap<Integer, Object> map = new TreeMap<Integer, Object>();
+        for (Object o : attributeList.values()) {
+            Attribute attribute = (Attribute)o;
+            if (((tagSet == null) || tagSet.contains(attribute.getTag())) && isIndexable(attribute)) {
+                String value = getText(attribute);
+                if ((value.length() > 0) && (value.length() <= MAX_VALUE_LENGTH)) {
+                    map.put(toInt(attribute.getTag()), toValue(value));
+                }
+            }
+        }
+        int[] tagList = new int[map.size()];
+        Object[] valueList = new Object[map.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Object> entry : map.entrySet()) {
+            tagList[i] = entry.getKey();
+            valueList[i] = entry.getValue();
+            i++;
+        }
+        return new Record(new Key(pacs, toValue(id)), queryLevel, tagList, valueList, now);
+    }
+
+
+    /**
+     * Add a record, or merge it with the existing record of the same object.
+     *
+     * @return False if the index is full and the record is new.
+     */
+    private boolean upsert(Record record) {
+        HashMap<Key, Record> recordMap = recordMapList.get(record.queryLevel.ordinal());
+        Record existing = recordMap.get(record.key);
+        if (existing == null) {
+            if (getRecordCount() >= maxRecords) {
+                if (!full) {
+                    Log.get().warning("Metadata index is full with " + maxRecords + " records.  No more objects will be added until old records are dropped.");
+                    full = true;
+                }
+                return false;
+            }
+            recordMap.put(record.key, record);
+            for (Index index : indexList) {
+                index.add(record);
+            }
+        }
+        else {
+            for (Index index : indexList) {
+                index.remove(existing);
+            }
+            existing.merge(record);
+            for (Index index : indexList) {
+                index.add(existing);
+            }
+        }
+        return true;
+    }
+
+
+    private void remove(Record record) {
+        recordMapList.get(record.queryLevel.ordinal()).remove(record.key);
+        for (Index index : indexList) {
+            index.remove(record);
+        }
+    }
+
+
+    /**
+     * Get the non-empty constraints of a C-FIND request.
+     */
+    private static HashMap<Integer, String> getConstraintMap(AttributeList request) {
+        HashMap<Integer, String> constraintMap = new HashMap<Integer, String>();
+        for (Object o : request.values()) {
+            Attribute attribute = (Attribute)o;
+            if (isIndexable(attribute)) {
+                String value = getText(attribute);
+                if (value.length() > 0) {
+                    constraintMap.put(toInt(attribute.getTag()), value);
+                }
+            }
+        }
+        return constraintMap;
+    }
+
+
+    private static boolean isExact(String value) {
+        return (value.indexOf('*') == -1) && (value.indexOf('?') == -1) && (value.indexOf('\\') == -1);
+    }
+
+
+    /**
+     * Get the records that may match the constraints, using the unique key
+     * or a secondary index where possible.
+     */
+    private List<Record> getCandidateList(String pacs, QueryLevel queryLevel, HashMap<Integer, String> constraintMap) {
+        String id = constraintMap.get(toInt(ParallelCFind.getKeyTag(queryLevel)));
+        if ((id != null) && (id.indexOf('*') == -1) && (id.indexOf('?') == -1)) {
+            ArrayList<Record> list = new ArrayList<Record>();
+            for (String one : id.split("\\\\")) {
+                Record record = recordMapList.get(queryLevel.ordinal()).get(new Key(pacs, toValue(one.trim())));
+                if (record != null) {
+                    list.add(record);
+                }
+            }
+            return list;
+        }
+        for (Index index : indexList) {
+            String value = constraintMap.get(index.tag);
+            if ((index.queryLevel == queryLevel) && (value != null) && isExact(value)) {
+                if (index.map instanceof TreeMap) {
+                    String[] range = getRange(value);
+                    return index.get(range[0], range[1]);
+                }
+                return index.get(value, null);
+            }
+        }
+        return new ArrayList<Record>(recordMapList.get(queryLevel.ordinal()).values());
+    }
+
+
+    /**
+     * Get the low and high ends of a date range, either of which may be
+     * empty.  A single date is a range of one day.
+     */
+    private static String[] getRange(String value) {
+        int dash = value.indexOf('-');
+        if (dash == -1) {
+            return new String[] { value.trim(), value.trim() };
+        }
+        return new String[] { value.substring(0, dash).trim(), value.substring(dash + 1).trim() };
+    }
+
+
+    /**
+     * Determine whether a scope contains everything that a C-FIND with the
+     * given constraints would find.
+     */
+    private static boolean covers(Scope scope, HashMap<Integer, String> constraintMap) {
+        String value = constraintMap.get(scope.tag);
+        if ((value == null) || !isExact(value)) {
+            return false;
+        }
+        if (scope.tag == toInt(TagFromName.StudyDate)) {
+            String[] inner = getRange(value);
+            String[] outer = getRange(scope.value);
+            return
+                ((outer[0].length() == 0) || ((inner[0].length() > 0) && (inner[0].compareTo(outer[0]) >= 0))) &&
+                ((outer[1].length() == 0) || ((inner[1].length() > 0) && (inner[1].compareTo(outer[1]) <= 0)));
+        }
+        return value.equals(scope.value);
+    }
+
+
+    /**
+     * Find the results of a C-FIND in the index if it can answer it.
+     *
+     * @param pacs PACS to query.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.
+     *
+     * @return Results, or null if the index can not answer the C-FIND and the PACS must be asked.
+     */
+    public ArrayList<AttributeList> find(PACS pacs, QueryLevel queryLevel, AttributeList request) {
+        if (!isEnabled() || (maxAge <= 0)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            ArrayList<AttributeList> resultList = findIndexed(pacs, queryLevel, request);
+            count(resultList != null);
+            return resultList;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private synchronized void count(boolean hit) {
+        if (hit) {
+            hitCount++;
+        }
+        else {
+            missCount++;
+        }
+    }
+
+
+    /**
+     * Answer a C-FIND from the index while holding the read lock.  Scopes
+     * that are too old are skipped, and removed when scopes are added or
+     * the log is rewritten.
+     */
+    private ArrayList<AttributeList> findIndexed(PACS pacs, QueryLevel queryLevel, AttributeList request) {
+        long now = System.currentTimeMillis();
+        HashMap<Integer, String> constraintMap = getConstraintMap(request);
+
+        Scope scope = null;
+        for (Scope s : scopeMap.values()) {
+            if ((now - s.loaded) > maxAge) {
+                continue;
+            }
+            if ((s.queryLevel == queryLevel) && s.pacs.equals(pacs.aeTitle) && covers(s, constraintMap)) {
+                boolean all = true;
+                for (Object oTag : request.keySet()) {
+                    AttributeTag tag = (AttributeTag)oTag;
+                    if (!tag.equals(TagFromName.QueryRetrieveLevel) && !s.tagSet.contains(toInt(tag))) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) {
+                    scope = s;
+                    break;
+                }
+            }
+        }
+        if (scope == null) {
+            return null;
+        }
+
+        ArrayList<AttributeList> resultList = new ArrayList<AttributeList>();
+        for (Record record : getCandidateList(pacs.aeTitle, queryLevel, constraintMap)) {
+            boolean match = true;
+            for (Map.Entry<Integer, String> constraint : constraintMap.entrySet()) {
+                if (!matches(constraint.getValue(), record.getValue(constraint.getKey()), request.get(toTag(constraint.getKey())).getVR())) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                resultList.add(toAttributeList(record, request, queryLevel));
+            }
+        }
+        return resultList;
+    }
+
+
+    /**
+     * Construct a C-FIND result from a record with the attributes of the request.
+     */
+    private static AttributeList toAttributeList(Record record, AttributeList request, QueryLevel queryLevel) {
+        AttributeList attributeList = new AttributeList();
+        for (Object o : request.values()) {
+            Attribute requested = (Attribute)o;
+            if (isIndexable(requested)) {
+                try {
+                    Attribute attribute = AttributeFactory.newAttribute(requested.getTag(), requested.getVR());
+                    String value = record.getValue(toInt(requested.getTag()));
+                    if (value != null) {
+                        for (String one : value.split("\\\\")) {
+                            attribute.addValue(one);
+                        }
+                    }
+                    attributeList.put(attribute);
+                }
+                catch (DicomException e) {
+                    Log.get().warning("Unable to construct attribute " + requested.getTag() + " from metadata index: " + e);
+                }
+            }
+        }
+        try {
+            Attribute level = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel, ValueRepresentation.CS);
+            level.addValue(queryLevel.toString());
+            attributeList.put(level);
+        }
+        catch (DicomException e) {
+            Log.get().warning("Unable to construct query retrieve level: " + e);
+        }
+        return attributeList;
+    }
+
+
+    /**
+     * Get the scope of a C-FIND, if it is constrained only by one scope attribute.
+     *
+     * @return Scope, or null if the C-FIND does not have one.
+     */
+    private static Scope getScope(String pacs, QueryLevel queryLevel, AttributeList request, long started) {
+        HashMap<Integer, String> constraintMap = getConstraintMap(request);
+        if (constraintMap.size() != 1) {
+            return null;
+        }
+        Map.Entry<Integer, String> constraint = constraintMap.entrySet().iterator().next();
+        boolean isScopeTag = false;
+        for (AttributeTag tag : getScopeTagList(queryLevel)) {
+            isScopeTag = isScopeTag || (toInt(tag) == constraint.getKey());
+        }
+        String value = constraint.getValue();
+        if (!isScopeTag || !isExact(value)) {
+            return null;
+        }
+        HashSet<Integer> tagSet = new HashSet<Integer>();
+        for (Object oTag : request.keySet()) {
+            tagSet.add(toInt((AttributeTag)oTag));
+        }
+        return new Scope(pacs, queryLevel, constraint.getKey(), value, tagSet, started);
+    }
+
+
+    /**
+     * Add the complete results of a C-FIND.  If the C-FIND was constrained
+     * only by a scope attribute, then it becomes a scope that may be used to
+     * answer C-FINDs, and records within it that the PACS did not return
+     * are removed.
+     *
+     * @param pacs PACS queried.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param request Request attributes.
+     *
+     * @param resultList All of the results.  Not modified.
+     *
+     * @param started Time that the C-FIND was started.
+     */
+    public void add(PACS pacs, QueryLevel queryLevel, AttributeList request, List<AttributeList> resultList, long started) {
+        if (!isEnabled()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            addResults(pacs, queryLevel, request, resultList, started);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private void addResults(PACS pacs, QueryLevel queryLevel, AttributeList request, List<AttributeList> resultList, long started) {
+        long now = System.currentTimeMillis();
+        boolean complete = true;
+        for (AttributeList result : resultList) {
+            Record record = newRecord(pacs.aeTitle, queryLevel, result, null, now);
+            if (record != null) {
+                if (upsert(record)) {
+                    writeRecord(record);
+                }
+                else {
+                    complete = false;
+                }
+            }
+        }
+
+        Scope scope = getScope(pacs.aeTitle, queryLevel, request, started);
+        if ((scope != null) && complete) {
+            HashMap<Integer, String> constraintMap = new HashMap<Integer, String>();
+            constraintMap.put(scope.tag, scope.value);
+            DicomDictionary dicomDictionary = DictionaryRegistry.getInstance().getStandard();
+            byte[] vr = dicomDictionary.getValueRepresentationFromTag(toTag(scope.tag));
+            for (Record record : getCandidateList(pacs.aeTitle, queryLevel, constraintMap)) {
+                if ((record.updated < started) && matches(scope.value, record.getValue(scope.tag), vr)) {
+                    remove(record);
+                    writeRemove(record);
+                }
+            }
+            scopeMap.remove(scope.getName());
+            scopeMap.put(scope.getName(), scope);
+            writeScope(scope);
+            loadCount++;
+            // lookups only skip scopes that are too old, so remove them here, oldest first
+            for (Iterator<Scope> i = scopeMap.values().iterator(); i.hasNext(); ) {
+                if ((now - i.next().loaded) <= maxAge) {
+                    break;
+                }
+                i.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Add an object that is known to be on a PACS because it was stored to
+     * or received from it.
+     *
+     * @param pacs PACS that has the object.
+     *
+     * @param attributeList Attributes of the object.  Not modified.
+     */
+    public void add(PACS pacs, AttributeList attributeList) {
+        if (!isEnabled()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            addObject(pacs, attributeList);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private void addObject(PACS pacs, AttributeList attributeList) {
+        long now = System.currentTimeMillis();
+        for (QueryLevel queryLevel : QueryLevel.values()) {
+            Record record = newRecord(pacs.aeTitle, queryLevel, attributeList, levelTagSetList.get(queryLevel.ordinal()), now);
+            if (record != null) {
+                if (upsert(record)) {
+                    writeRecord(record);
+                }
+                else {
+                    // scopes of this PACS can no longer be known to be complete
+                    for (Iterator<Scope> i = scopeMap.values().iterator(); i.hasNext(); ) {
+                        if (i.next().pacs.equals(pacs.aeTitle)) {
+                            i.remove();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Queue an object received from a PACS to be added by the background
+     * thread, so that the receiver does not wait for the index.  Objects
+     * from senders that are not configured PACS are ignored, and objects
+     * received while the queue is full are not indexed.
+     *
+     * @param receivedDicomObject Object received.
+     */
+    public void add(ReceivedDicomObject receivedDicomObject) {
+        if (isEnabled()) {
+            String sourceAETitle = receivedDicomObject.getSourceAETitle();
+            for (PACS pacs : ServiceConfig.getInstance().getPacsList()) {
+                if (pacs.aeTitle.equals(sourceAETitle)) {
+                    try {
+                        // the header is read now because the object may be disposed of later
+                        if (!receivedQueue.offer(new Received(pacs, receivedDicomObject.getHeader()))) {
+                            synchronized (this) {
+                                droppedCount++;
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        Log.get().warning("Unable to index received DICOM " + receivedDicomObject + " : " + e);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Wait for received objects and add all of those waiting under one
+     * lock.  Returns after <code>FLUSH_INTERVAL</code> if there are none.
+     */
+    private void addReceived() throws InterruptedException {
+        Received received = receivedQueue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        if (received != null) {
+            ArrayList<Received> batch = new ArrayList<Received>();
+            batch.add(received);
+            receivedQueue.drainTo(batch);
+            lock.writeLock().lock();
+            try {
+                for (Received r : batch) {
+                    addObject(r.pacs, r.attributeList);
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Packed) {
+            Packed packed = (Packed)value;
+            out.writeByte(VALUE_PACKED);
+            out.writeByte(packed.length);
+            out.write(packed.data);
+        }
+        else {
+            out.writeByte(VALUE_STRING);
+            out.writeUTF(value.toString());
+        }
+    }
+
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        if (in.readByte() == VALUE_PACKED) {
+            int length = in.readUnsignedByte();
+            byte[] data = new byte[(length + 1) / 2];
+            in.readFully(data);
+            return new Packed(data, length);
+        }
+        return in.readUTF();
+    }
+
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeByte(ENTRY_RECORD);
+        out.writeLong(record.updated);
+        out.writeUTF(record.key.pacs);
+        out.writeByte(record.queryLevel.ordinal());
+        writeValue(out, record.key.id);
+        out.writeShort(record.tagList.length);
+        for (int i = 0; i < record.tagList.length; i++) {
+            out.writeInt(record.tagList[i]);
+            writeValue(out, record.valueList[i]);
+        }
+    }
+
+
+    private static void writeScope(DataOutputStream out, Scope scope) throws IOException {
+        out.writeByte(ENTRY_SCOPE);
+        out.writeLong(scope.loaded);
+        out.writeUTF(scope.pacs);
+        out.writeByte(scope.queryLevel.ordinal());
+        out.writeInt(scope.tag);
+        out.writeUTF(scope.value);
+        out.writeShort(scope.tagSet.size());
+        for (int tag : scope.tagSet) {
+            out.writeInt(tag);
+        }
+    }
+
+
+    private void writeRecord(Record record) {
+        if (log != null) {
+            try {
+                writeRecord(pending, record);
+                logEntryCount++;
+            }
+            catch (IOException e) {
+                logFailed(e);
+            }
+        }
+    }
+
+
+    private void writeScope(Scope scope) {
+        if (log != null) {
+            try {
+                writeScope(pending, scope);
+                logEntryCount++;
+            }
+            catch (IOException e) {
+                logFailed(e);
+            }
+        }
+    }
+
+
+    private void writeRemove(Record record) {
+        if (log != null) {
+            try {
+                pending.writeByte(ENTRY_REMOVE);
+                pending.writeUTF(record.key.pacs);
+                pending.writeByte(record.queryLevel.ordinal());
+                writeValue(pending, record.key.id);
+                logEntryCount++;
+            }
+            catch (IOException e) {
+                logFailed(e);
+            }
+        }
+    }
+
+
+    /**
+     * Write the pending entries to the log file without holding the lock,
+     * and rewrite the log if it has grown much larger than the index.  Only
+     * called by the background thread, so entries are written in order.
+     */
+    private void writeLog() {
+        if (log == null) {
+            return;
+        }
+        byte[] bytes;
+        boolean compact;
+        lock.writeLock().lock();
+        try {
+            bytes = pendingBytes.toByteArray();
+            pendingBytes.reset();
+            compact = logEntryCount > ((getRecordCount() + scopeMap.size()) * 3L + 10000);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if (bytes.length > 0) {
+            try {
+                log.write(bytes);
+                log.flush();
+            }
+            catch (IOException e) {
+                logFailed(e);
+            }
+        }
+        if (compact && (log != null)) {
+            compact();
+        }
+    }
+
+
+    private void logFailed(IOException e) {
+        Log.get().severe("Unable to write metadata index log, it will no longer be kept on disk: " + e);
+        try {
+            log.close();
+        }
+        catch (IOException ex) {
+            // ignore, already failed
+        }
+        log = null;
+    }
+
+
+    /**
+     * Read the log, rewrite it if it is damaged or has grown large, and
+     * open it for appending.
+     */
+    private void open() {
+        File file = new File(directory, LOG_FILE_NAME);
+        boolean damaged = false;
+        if (file.exists()) {
+            long start = System.currentTimeMillis();
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a metadata index log");
+                }
+                QueryLevel[] levelList = QueryLevel.values();
+                while (true) {
+                    int type = in.read();
+                    if (type == -1) {
+                        break;
+                    }
+                    logEntryCount++;
+                    switch (type) {
+                        case ENTRY_RECORD: {
+                            long updated = in.readLong();
+                            String pacs = in.readUTF().intern();
+                            QueryLevel queryLevel = levelList[in.readByte()];
+                            Object id = readValue(in);
+                            int count = in.readShort();
+                            int[] tagList = new int[count];
+                            Object[] valueList = new Object[count];
+                            for (int i = 0; i < count; i++) {
+                                tagList[i] = in.readInt();
+                                valueList[i] = readValue(in);
+                            }
+                            upsert(new Record(new Key(pacs, id), queryLevel, tagList, valueList, updated));
+                            break;
+                        }
+                        case ENTRY_SCOPE: {
+                            long loaded = in.readLong();
+                            String pacs = in.readUTF().intern();
+                            QueryLevel queryLevel = levelList[in.readByte()];
+                            int tag = in.readInt();
+                            String value = in.readUTF();
+                            int count = in.readShort();
+                            HashSet<Integer> tagSet = new HashSet<Integer>();
+                            for (int i = 0; i < count; i++) {
+                                tagSet.add(in.readInt());
+                            }
+                            Scope scope = new Scope(pacs, queryLevel, tag, value, tagSet, loaded);
+                            scopeMap.remove(scope.getName());
+                            scopeMap.put(scope.getName(), scope);
+                            break;
+                        }
+                        case ENTRY_REMOVE: {
+                            String pacs = in.readUTF();
+                            QueryLevel queryLevel = levelList[in.readByte()];
+                            Record record = recordMapList.get(queryLevel.ordinal()).get(new Key(pacs, readValue(in)));
+                            if (record != null) {
+                                remove(record);
+                            }
+                            break;
+                        }
+                        default:
+                            throw new IOException("unknown entry type " + type);
+                    }
+                }
+            }
+            catch (EOFException e) {
+                Log.get().warning("Metadata index log " + file.getAbsolutePath() + " ends with an incomplete entry, which is ignored.");
+                damaged = true;
+            }
+            catch (Exception e) {
+                Log.get().warning("Unable to read all of metadata index log " + file.getAbsolutePath() + " , using the entries before the error: " + e);
+                damaged = true;
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        // ignore, was only reading
+                    }
+                }
+            }
+            Log.get().info("Read " + logEntryCount + " metadata index log entries in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        if (damaged || !file.exists() || (logEntryCount > ((getRecordCount() + scopeMap.size()) * 3L + 10000))) {
+            compact();
+        }
+        else {
+            try {
+                log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+            }
+            catch (IOException e) {
+                Log.get().severe("Unable to open metadata index log " + file.getAbsolutePath() + " , it will not be kept on disk: " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Rewrite the log with only the current records and scopes, dropping
+     * records that have not been seen within the retention time and scopes
+     * too old to be used.  Old records are dropped under the write lock, and
+     * the log is rewritten under the read lock so that lookups may continue.
+     */
+    private void compact() {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                try {
+                    log.close();
+                }
+                catch (IOException e) {
+                    Log.get().warning("Unable to close metadata index log: " + e);
+                }
+                log = null;
+            }
+
+            for (HashMap<Key, Record> recordMap : recordMapList) {
+                for (Record record : new ArrayList<Record>(recordMap.values())) {
+                    if ((start - record.updated) > retain) {
+                        remove(record);
+                    }
+                }
+            }
+            for (Iterator<Scope> i = scopeMap.values().iterator(); i.hasNext(); ) {
+                if ((start - i.next().loaded) > maxAge) {
+                    i.remove();
+                }
+            }
+            full = false;
+            // everything pending is in the rewritten log
+            pendingBytes.reset();
+            lock.readLock().lock();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            rewrite(start);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Write the current records and scopes to a new log, replace the old
+     * one with it, and open it for appending.
+     */
+    private void rewrite(long start) {
+        File file = new File(directory, LOG_FILE_NAME);
+        File newFile = new File(directory, LOG_FILE_NAME + ".new");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), 64 * 1024));
+            out.writeInt(MAGIC);
+            for (HashMap<Key, Record> recordMap : recordMapList) {
+                for (Record record : recordMap.values()) {
+                    writeRecord(out, record);
+                }
+            }
+            for (Scope scope : scopeMap.values()) {
+                writeScope(out, scope);
+            }
+            out.close();
+            out = null;
+            if ((file.exists() && !file.delete()) || !newFile.renameTo(file)) {
+                throw new IOException("unable to replace " + file.getAbsolutePath() + " with " + newFile.getAbsolutePath());
+            }
+            logEntryCount = getRecordCount() + scopeMap.size();
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+            compactionCount++;
+            Log.get().info("Rewrote metadata index log with " + logEntryCount + " entries in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        catch (IOException e) {
+            Log.get().severe("Unable to rewrite metadata index log, it will no longer be kept on disk: " + e);
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ex) {
+                    // ignore, already failed
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public String getStatusAsXML() {
+        lock.readLock().lock();
+        try {
+            synchronized (this) {
+                return getStatusAsXMLLocked();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private String getStatusAsXMLLocked() {
+        return
+            "<MetadataIndex>\n" +
+            "    <Directory>" + ((directory == null) ? "" : directory.getAbsolutePath()) + "</Directory>\n" +
+            "    <Patients>" + recordMapList.get(QueryLevel.PATIENT.ordinal()).size() + "</Patients>\n" +
+            "    <Studies>" + recordMapList.get(QueryLevel.STUDY.ordinal()).size() + "</Studies>\n" +
+            "    <Series>" + recordMapList.get(QueryLevel.SERIES.ordinal()).size() + "</Series>\n" +
+            "    <Instances>" + recordMapList.get(QueryLevel.IMAGE.ordinal()).size() + "</Instances>\n" +
+            "    <MaxRecords>" + maxRecords + "</MaxRecords>\n" +
+            "    <Scopes>" + scopeMap.size() + "</Scopes>\n" +
+            "    <MaxAgeMs>" + maxAge + "</MaxAgeMs>\n" +
+            "    <Hits>" + hitCount + "</Hits>\n" +
+            "    <Misses>" + missCount + "</Misses>\n" +
+            "    <Loads>" + loadCount + "</Loads>\n" +
+            "    <LogEntries>" + logEntryCount + "</LogEntries>\n" +
+            "    <Compactions>" + compactionCount + "</Compactions>\n" +
+            "    <Queued>" + receivedQueue.size() + "</Queued>\n" +
+            "    <Dropped>" + droppedCount + "</Dropped>\n" +
+            "</MetadataIndex>\n";
+    }
+}
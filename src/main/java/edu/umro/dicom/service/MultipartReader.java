@@ -0,0 +1,227 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Reads the parts of a MIME multipart body (such as multipart/related) one
+ * at a time from a stream, without reading the whole body first.  The
+ * content of each part is itself a stream, so parts of any size can be read
+ * without holding them in memory.
+ *
+ * @author irrer
+ *
+ */
+public class MultipartReader {
+
+    /**
+     * A part of the body.
+     */
+    public class Part {
+        private final HashMap<String, String> headerList = new HashMap<String, String>();
+        private final PartInputStream partInputStream = new PartInputStream();
+
+        private Part() {
+        }
+
+        /**
+         * @param name Header name, case insensitive.
+         *
+         * @return Header value, or null if not present.
+         */
+        public String getHeader(String name) {
+            return headerList.get(name.toLowerCase());
+        }
+
+        /**
+         * Get the content of the part.  It must be read before the next part is
+         * requested, otherwise it is skipped.
+         *
+         * @return Content, which ends at the delimiter.
+         */
+        public InputStream getInputStream() {
+            return partInputStream;
+        }
+    }
+
+    /**
+     * Returns the bytes of a part up to the next delimiter.  Bytes that might
+     * be the start of the delimiter are held back until it is known whether
+     * they are.  Those held back are always the first <code>matched</code>
+     * bytes of the delimiter, so they are not stored separately.
+     */
+    private class PartInputStream extends InputStream {
+        private int matched = 0;
+        private final byte[] emitBuffer = new byte[delimiter.length + 1];
+        private int emitFrom = 0;
+        private int emitTo = 0;
+        private boolean ended = false;
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                if (emitFrom < emitTo) {
+                    return emitBuffer[emitFrom++] & 0xff;
+                }
+                if (ended) {
+                    return -1;
+                }
+                int b = inputStream.read();
+                if (b == -1) {
+                    throw new IOException("Multipart body ended without closing boundary.");
+                }
+                int m = matched;
+                while ((m > 0) && (b != (delimiter[m] & 0xff))) {
+                    m = failure[m - 1];
+                }
+                if (b == (delimiter[m] & 0xff)) {
+                    m++;
+                }
+                // of the held back bytes followed by b, the last m are still held back
+                int emitCount = matched + 1 - m;
+                for (int i = 0; i < emitCount; i++) {
+                    emitBuffer[i] = (i < matched) ? delimiter[i] : (byte)b;
+                }
+                emitFrom = 0;
+                emitTo = emitCount;
+                matched = m;
+                if (matched == delimiter.length) {
+                    ended = true;
+                }
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < length) {
+                if ((emitFrom >= emitTo) && (count > 0) && (inputStream.available() == 0)) {
+                    // return what is available rather than blocking
+                    break;
+                }
+                int b = read();
+                if (b == -1) {
+                    break;
+                }
+                buffer[offset + count] = (byte)b;
+                count++;
+            }
+            return (count == 0) ? -1 : count;
+        }
+
+        /**
+         * Read and discard the rest of the part.
+         */
+        private void skipRest() throws IOException {
+            while (read() != -1) {
+            }
+        }
+    }
+
+    private final InputStream inputStream;
+
+    /** Delimiter between parts. */
+    private final byte[] delimiter;
+
+    /** KMP failure function for <code>delimiter</code>. */
+    private final int[] failure;
+
+    /** Part most recently returned. */
+    private Part current = null;
+
+    private boolean done = false;
+
+
+    /**
+     * @param inputStream Multipart body.
+     *
+     * @param boundary Boundary parameter from the content type.
+     */
+    public MultipartReader(InputStream inputStream, String boundary) {
+        this.inputStream = new BufferedInputStream(inputStream, 64 * 1024);
+        delimiter = ("\r\n--" + boundary).getBytes();
+        failure = new int[delimiter.length];
+        int k = 0;
+        for (int i = 1; i < delimiter.length; i++) {
+            while ((k > 0) && (delimiter[i] != delimiter[k])) {
+                k = failure[k - 1];
+            }
+            if (delimiter[i] == delimiter[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+
+    private String readLine() throws IOException {
+        StringBuffer line = new StringBuffer();
+        int b;
+        while (((b = inputStream.read()) != -1) && (b != '\n')) {
+            if (b != '\r') {
+                line.append((char)b);
+            }
+        }
+        return line.toString();
+    }
+
+
+    /**
+     * Get the next part.  Any unread content of the previous part is skipped.
+     *
+     * @return The next part, or null if there are no more.
+     *
+     * @throws IOException If the body is malformed.
+     */
+    public Part next() throws IOException {
+        if (done) {
+            return null;
+        }
+        if (current == null) {
+            // The first delimiter is not preceded by a line break, so start as if one had been read.
+            PartInputStream preamble = new PartInputStream();
+            preamble.matched = 2;
+            while (preamble.read() != -1) {
+            }
+        }
+        else {
+            current.partInputStream.skipRest();
+        }
+
+        String rest = readLine();
+        if (rest.startsWith("--")) {
+            done = true;
+            return null;
+        }
+        current = new Part();
+        String line;
+        while ((line = readLine()).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                current.headerList.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return current;
+    }
+}
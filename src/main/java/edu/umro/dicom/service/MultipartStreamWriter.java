@@ -0,0 +1,168 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+
+/**
+ * Write a <code>multipart/related; type="application/dicom"</code> stream as
+ * used by DICOMweb, one DICOM object per part.  The content of each part is
+ * written as it is given, with no buffering beyond that of the underlying
+ * stream, and each part is flushed when it is closed.
+ *
+ * @author irrer
+ *
+ */
+public class MultipartStreamWriter extends ArchiveStreamWriter {
+
+    /** Media type of the stream, without its parameters. */
+    public static final MediaType MEDIA_TYPE = new MediaType("multipart/related", "Multipart related content");
+
+    /** Media type of each part. */
+    public static final String PART_MEDIA_TYPE = "application/dicom";
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /** Where the parts go. */
+    private final OutputStream out;
+
+    /** Separates parts.  Random so that it will not appear in the content. */
+    private final String boundary;
+
+    /** True if a part is being written. */
+    private boolean inPart = false;
+
+    private boolean finished = false;
+    private boolean closed = false;
+
+
+    /**
+     * Start a multipart stream.
+     *
+     * @param outputStream Where the parts are written.  Closed when this is closed.
+     *
+     * @param boundary Boundary between parts, as given in the media type.
+     */
+    public MultipartStreamWriter(OutputStream outputStream, String boundary) {
+        this.out = new BufferedOutputStream(outputStream, 64 * 1024);
+        this.boundary = boundary;
+    }
+
+
+    /**
+     * @return A boundary that is very unlikely to appear in any content.
+     */
+    public static String newBoundary() {
+        return "DICOM-" + UUID.randomUUID().toString();
+    }
+
+
+    /**
+     * Get the media type of a multipart stream, including its parameters.
+     *
+     * @param boundary Boundary between parts.
+     *
+     * @return Media type to give the response.
+     */
+    public static MediaType getMediaType(String boundary) {
+        Form parameters = new Form();
+        parameters.add("type", "\"" + PART_MEDIA_TYPE + "\"");
+        parameters.add("boundary", boundary);
+        return new MediaType(MEDIA_TYPE.getName(), parameters);
+    }
+
+
+    private void writeAscii(String text) throws IOException {
+        out.write(text.getBytes("US-ASCII"));
+    }
+
+
+    /**
+     * Start a part.  The name is given as the Content-Location of the part.
+     */
+    @Override
+    public void putNextEntry(String name) throws IOException {
+        if (finished) {
+            throw new IOException("Multipart stream is already finished");
+        }
+        closeEntry();
+        writeAscii("--" + boundary + "\r\n" +
+                "Content-Type: " + PART_MEDIA_TYPE + "\r\n" +
+                "Content-Location: " + name + "\r\n" +
+                "\r\n");
+        inPart = true;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!inPart) {
+            throw new IOException("No part has been started");
+        }
+        out.write(b, off, len);
+    }
+
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (inPart) {
+            out.write(CRLF);
+            out.flush();
+            inPart = false;
+        }
+    }
+
+
+    /**
+     * Finish with the closing boundary.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        finished = true;
+        writeAscii("--" + boundary + "--\r\n");
+        out.flush();
+    }
+
+
+    /**
+     * Finish the stream and close the underlying stream.  Calling this more
+     * than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+}
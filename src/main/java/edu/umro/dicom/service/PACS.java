@@ -16,7 +16,10 @@ package edu.umro.dicom.service;
  * limitations under the License.
  */
 
+import java.io.IOException;
+import java.io.Writer;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import edu.umro.dicom.common.Util;
 import edu.umro.util.UMROException;
@@ -134,55 +137,64 @@ public class PACS {
 
 
     /**
-     * Get the list of PACS as HTML.
+     * Write a list of PACS as HTML.
      * 
-     * @return HTML representation of all PACS.
+     * @param writer Where to write.
      * 
-     * @throws RemoteException If configuration is unavailable.
-     * @throws UMROException 
+     * @param pacsList PACS to write.
+     * 
+     * @throws IOException On failure to write.
      */
-    public static String getPACSListAsHTML() throws RemoteException, UMROException {
+    public static void writePACSListAsHTML(Writer writer, List<PACS> pacsList) throws IOException {
         String title = "List of Configured PACS";
-        StringBuffer html = new StringBuffer(Util.getHtmlHead(title));
-        html.append("<center><p><h2>" + title + "</h2><p>\n");
-        html.append("<table class='sortable' id='anyid' cellpadding='0' cellspacing='0'>\n");
+        writer.write(Util.getHtmlHead(title));
+        writer.write("<center><p><h2>" + title + "</h2><p>\n");
+        writer.write("<table class='sortable' id='anyid' cellpadding='0' cellspacing='0'>\n");
 
-        html.append("  <tr>\n");
-        html.append("    <th>AE&nbsp;Title&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;</th>\n");
-        html.append("    <th>Host</th>\n");
-        html.append("    <th>Port</th>\n");
-        html.append("  </tr>\n\n");
+        writer.write("  <tr>\n");
+        writer.write("    <th>AE&nbsp;Title&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;</th>\n");
+        writer.write("    <th>Host</th>\n");
+        writer.write("    <th>Port</th>\n");
+        writer.write("  </tr>\n\n");
 
         boolean even = true;
-        for (PACS pacs : ServiceConfig.getInstance().getPacsList()) {
-            html.append("  <tr class='" + (even ? "even" : "odd") + "'>\n");
-            html.append("    <td>" + pacs.aeTitle + "</td>\n");
-            html.append("    <td>" + pacs.host    + "</td>\n");
-            html.append("    <td>" + pacs.port    + "</td>\n");
-            html.append("  </tr>\n\n");
+        for (PACS pacs : pacsList) {
+            writer.write("  <tr class='" + (even ? "even" : "odd") + "'>\n");
+            even = !even;
+            writer.write("    <td>");
+            TextStreamRepresentation.writeEscaped(writer, pacs.aeTitle);
+            writer.write("</td>\n");
+            writer.write("    <td>");
+            TextStreamRepresentation.writeEscaped(writer, pacs.host);
+            writer.write("</td>\n");
+            writer.write("    <td>" + pacs.port + "</td>\n");
+            writer.write("  </tr>\n\n");
         }
         
-        html.append("</table></center>\n");
-        html.append("</body></html>\n");
-        return html.toString();
+        writer.write("</table></center>\n");
+        writer.write("</body></html>\n");
     }
 
 
     /**
-     * Get the list of PACS as XML.
+     * Write a list of PACS as XML.
      * 
-     * @return XML representation of all PACS.
+     * @param writer Where to write.
      * 
-     * @throws RemoteException If configuration is unavailable.
-     * @throws UMROException 
+     * @param pacsList PACS to write.
+     * 
+     * @throws IOException On failure to write.
      */
-    public static String getPACSListAsXML() throws RemoteException, UMROException {
-        StringBuffer xml = new StringBuffer("<?xml version='1.0' encoding='utf-8'?>\n");
-        xml.append("<PacsList>\n");
-        for (PACS pacs : ServiceConfig.getInstance().getPacsList()) {
-            xml.append("  <PACS AETitle='" + pacs.aeTitle + "' Host='" + pacs.host + "' Port='" + pacs.port + "'/>\n");
+    public static void writePACSListAsXML(Writer writer, List<PACS> pacsList) throws IOException {
+        writer.write("<?xml version='1.0' encoding='utf-8'?>\n");
+        writer.write("<PacsList>\n");
+        for (PACS pacs : pacsList) {
+            writer.write("  <PACS AETitle='");
+            TextStreamRepresentation.writeEscaped(writer, pacs.aeTitle);
+            writer.write("' Host='");
+            TextStreamRepresentation.writeEscaped(writer, pacs.host);
+            writer.write("' Port='" + pacs.port + "'/>\n");
         }
-        xml.append("</PacsList>\n");
-        return xml.toString();
+        writer.write("</PacsList>\n");
     }
 }
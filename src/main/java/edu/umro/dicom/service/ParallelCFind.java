@@ -0,0 +1,394 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+
+/**
+ * Perform the same C-FIND on multiple PACS at the same time and merge the
+ * results.  Each PACS is given a deadline, and if it does not respond in
+ * time then the results from the PACS that did respond are used, so that the
+ * total time is that of the slowest responsive PACS rather than the sum of
+ * all of them.  Results that appear in more than one PACS are only reported
+ * once.
+ *
+ * Results may either be collected and fetched when all PACS are done, or
+ * passed to a listener as soon as they arrive so that the caller can start
+ * sending them to the client immediately.
+ *
+ * @author irrer
+ *
+ */
+public class ParallelCFind {
+
+    /** Shared by all C-FINDs so that the total number of concurrent C-FINDs is bounded. */
+    private static ExecutorService executor = null;
+
+    /**
+     * Outcome of the C-FIND for one PACS.
+     */
+    public enum Outcome {
+        /** All results were received. */
+        SUCCESS,
+        /** The PACS did not respond before the deadline. */
+        TIMEOUT,
+        /** The PACS returned more results than the limit. */
+        OVER_LIMIT,
+        /** The C-FIND failed. */
+        FAILED
+    }
+
+    /**
+     * Status of the C-FIND for one PACS.
+     */
+    public static class PacsStatus {
+        public final PACS pacs;
+        public final Outcome outcome;
+        public final int count;
+        public final long elapsed;
+        public final String message;
+
+        PacsStatus(PACS pacs, Outcome outcome, int count, long elapsed, String message) {
+            this.pacs = pacs;
+            this.outcome = outcome;
+            this.count = count;
+            this.elapsed = elapsed;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return pacs.aeTitle + " : " + outcome + "  results: " + count + "  elapsed ms: " + elapsed + ((message == null) ? "" : ("  " + message));
+        }
+    }
+
+    /**
+     * Receives merged results as they arrive.  Calls are serialized.
+     */
+    public interface ResultListener {
+        /**
+         * Process a single result.
+         *
+         * @param attributeList Result.
+         *
+         * @param pacs PACS it came from.
+         */
+        void result(AttributeList attributeList, PACS pacs);
+    }
+
+    /**
+     * A C-FIND run on the shared executor that can be stopped at its
+     * deadline.  Cancelling the future does not release a thread that is
+     * blocked reading from a PACS, so the association that the thread is
+     * using is aborted as well.
+     */
+    static abstract class AbortableTask implements Callable<Long> {
+        /** Thread running the task, while it is. */
+        private Thread thread = null;
+        private boolean aborted = false;
+
+        /**
+         * Perform the task.
+         */
+        abstract Long perform() throws Exception;
+
+        @Override
+        public final Long call() throws Exception {
+            synchronized (this) {
+                if (aborted) {
+                    return null;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                return perform();
+            }
+            finally {
+                synchronized (this) {
+                    thread = null;
+                }
+            }
+        }
+
+        /**
+         * Stop the task, aborting its association if it is running.
+         *
+         * @param future Future returned when the task was submitted.
+         *
+         * @return True if the task was running and its association was aborted.
+         */
+        synchronized boolean abort(Future<?> future) {
+            aborted = true;
+            future.cancel(true);
+            return (thread != null) && AssociationPool.getInstance().abort(thread);
+        }
+    }
+
+    /**
+     * Accepts the results from one PACS.
+     */
+    private class PacsListener implements CFind.Listener {
+        private final PACS pacs;
+        private int count = 0;
+        private boolean open = true;
+
+        private PacsListener(PACS pacs) {
+            this.pacs = pacs;
+        }
+
+        @Override
+        public void identifier(AttributeList attributeList) {
+            deliver(this, attributeList);
+        }
+    }
+
+    /** Identifies each result at the query level. */
+    private final AttributeTag keyTag;
+
+    /** Keys of results already delivered. */
+    private final HashSet<String> keySet = new HashSet<String>();
+
+    /** Where results go, or null to keep them in the list. */
+    private final ResultListener resultListener;
+
+    /** Merged results. */
+    private final ArrayList<AttributeList> list = new ArrayList<AttributeList>();
+
+    /** PACS that each result came from.  If it came from more than one, the first to respond. */
+    private final IdentityHashMap<AttributeList, PACS> sourceList = new IdentityHashMap<AttributeList, PACS>();
+
+    /** Status for each PACS in the order given. */
+    private final ArrayList<PacsStatus> pacsStatusList = new ArrayList<PacsStatus>();
+
+
+    /**
+     * @return Executor shared by everything that performs C-FINDs concurrently.
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int parallelism = ServiceConfig.getInstance().getCFindParallelism();
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                private int count = 0;
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CFind-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            Log.get().info("Performing up to " + parallelism + " C-FINDs concurrently.");
+        }
+        return executor;
+    }
+
+
+    /**
+     * Get the attribute that uniquely identifies a result at the given level.
+     */
+    static AttributeTag getKeyTag(QueryLevel queryLevel) {
+        switch (queryLevel) {
+            case PATIENT:
+                return TagFromName.PatientID;
+            case STUDY:
+                return TagFromName.StudyInstanceUID;
+            case SERIES:
+                return TagFromName.SeriesInstanceUID;
+            default:
+                return TagFromName.SOPInstanceUID;
+        }
+    }
+
+
+    /**
+     * Perform the C-FIND on each of the given PACS concurrently and wait
+     * until all have finished or the deadline has passed.
+     *
+     * @param pacsList PACS to query.
+     *
+     * @param queryLevel Query level.
+     *
+     * @param attributeList Request attributes.  Not modified.
+     *
+     * @param limit Maximum number of results per PACS, or 0 or less to use
+     * the configured default.
+     *
+     * @throws DicomException
+     */
+    public ParallelCFind(List<PACS> pacsList, QueryLevel queryLevel, AttributeList attributeList, long limit) throws DicomException {
+        this(pacsList, queryLevel, attributeList, limit, null);
+    }
+
+
+    /**
+     * Perform the C-FIND on each of the given PACS concurrently, passing each
+     * result to the listener as it arrives, and wait until all have finished
+     * or the deadline has passed.  Results are not kept.  Results from a PACS
+     * that arrive after its deadline are discarded.
+     *
+     * @param resultListener Receives results, or null to keep them.
+     */
+    public ParallelCFind(List<PACS> pacsList, final QueryLevel queryLevel, AttributeList attributeList, final long limit, ResultListener resultListener) throws DicomException {
+        this.resultListener = resultListener;
+        keyTag = getKeyTag(queryLevel);
+        // Set the query level up front so that the concurrent C-FINDs only read the list.  The
+        // caller's list is copied so that it is not changed.
+        final AttributeList request = new AttributeList();
+        request.putAll(attributeList);
+        if (Attribute.getSingleStringValueOrEmptyString(request, TagFromName.QueryRetrieveLevel).trim().length() == 0) {
+            Attribute queryAttribute = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel, ValueRepresentation.CS);
+            queryAttribute.addValue(queryLevel.toString());
+            request.put(queryAttribute);
+        }
+
+        final long start = System.currentTimeMillis();
+        ArrayList<PacsListener> listenerList = new ArrayList<PacsListener>();
+        ArrayList<AbortableTask> taskList = new ArrayList<AbortableTask>();
+        ArrayList<Future<Long>> futureList = new ArrayList<Future<Long>>();
+        for (final PACS pacs : pacsList) {
+            final PacsListener pacsListener = new PacsListener(pacs);
+            listenerList.add(pacsListener);
+            AbortableTask task = new AbortableTask() {
+                @Override
+                Long perform() throws Exception {
+                    return CFindCache.getInstance().find(pacs, queryLevel, request, limit, pacsListener);
+                }
+            };
+            taskList.add(task);
+            futureList.add(getExecutor().submit(task));
+        }
+
+        int deadlineSeconds = ServiceConfig.getInstance().getCFindDeadlineSeconds();
+        long deadline = start + (deadlineSeconds * 1000L);
+
+        for (int p = 0; p < pacsList.size(); p++) {
+            PACS pacs = pacsList.get(p);
+            PacsListener pacsListener = listenerList.get(p);
+            Future<Long> future = futureList.get(p);
+            Outcome outcome = Outcome.SUCCESS;
+            String message = null;
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                boolean aborted = taskList.get(p).abort(future);
+                outcome = Outcome.TIMEOUT;
+                message = "Did not respond within the deadline of " + deadlineSeconds + " seconds" + (aborted ? ", C-FIND association aborted." : ".");
+            }
+            catch (ExecutionException e) {
+                Throwable cause = (e.getCause() == null) ? e : e.getCause();
+                outcome = (cause instanceof RemoteException) ? Outcome.OVER_LIMIT : Outcome.FAILED;
+                message = cause.getMessage();
+            }
+            catch (InterruptedException e) {
+                taskList.get(p).abort(future);
+                outcome = Outcome.FAILED;
+                message = "Interrupted.";
+            }
+            PacsStatus status;
+            synchronized (this) {
+                pacsListener.open = false;
+                status = new PacsStatus(pacs, outcome, pacsListener.count, System.currentTimeMillis() - start, message);
+            }
+            if (status.outcome != Outcome.SUCCESS) {
+                Log.get().warning("C-FIND on " + status);
+            }
+            pacsStatusList.add(status);
+        }
+        Log.get().info("Parallel C-FIND of " + pacsList.size() + " PACS got " + keySet.size() + " distinct results in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+
+    /**
+     * Accept a result from a PACS if it has not already been received from
+     * another PACS.  The first one received is used.
+     */
+    private synchronized void deliver(PacsListener pacsListener, AttributeList result) {
+        if (pacsListener.open) {
+            pacsListener.count++;
+            String key = Attribute.getSingleStringValueOrEmptyString(result, keyTag).trim();
+            if ((key.length() == 0) || keySet.add(key)) {
+                if (resultListener == null) {
+                    list.add(result);
+                    sourceList.put(result, pacsListener.pacs);
+                }
+                else {
+                    resultListener.result(result, pacsListener.pacs);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return Merged, de-duplicated results.  Empty if a listener was given.
+     */
+    public ArrayList<AttributeList> getList() {
+        return list;
+    }
+
+
+    /**
+     * @return The PACS that the given result came from.
+     */
+    public PACS getSource(AttributeList result) {
+        return sourceList.get(result);
+    }
+
+
+    /**
+     * @return Status of each PACS queried.
+     */
+    public ArrayList<PacsStatus> getPacsStatusList() {
+        return pacsStatusList;
+    }
+
+
+    /**
+     * @return The first PACS status that indicates that the limit was exceeded, or null if none did.
+     */
+    public PacsStatus getOverLimit() {
+        for (PacsStatus status : pacsStatusList) {
+            if (status.outcome == Outcome.OVER_LIMIT) {
+                return status;
+            }
+        }
+        return null;
+    }
+}
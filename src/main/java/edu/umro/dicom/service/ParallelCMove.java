@@ -0,0 +1,529 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+
+/**
+ * Retrieve a whole study or patient as a set of concurrent per-series
+ * C-MOVEs instead of a single C-MOVE.  The PACS sends the objects of a
+ * single C-MOVE one at a time, so splitting a large retrieve lets several
+ * series arrive at once, and a series that stalls or fails does not hold up
+ * the rest.  Series that fail are retried.
+ *
+ * The series are found with C-FINDs, and the number of series C-MOVEs in
+ * progress on each PACS is bounded across all parallel retrieves.  Series
+ * wait in a queue for their PACS, in the order they were requested, and are
+ * only given a thread when one of the PACS's places is free.  Every C-MOVE
+ * in progress also takes a retrieve admission slot: one series of a
+ * retrieve runs under the retrieve's own ticket, and each other series
+ * that runs at the same time needs a ticket of its own, so that the total
+ * is bounded by the admission limit.  All objects
+ * are passed to the same receiver, which must accept objects from multiple
+ * threads.  The limit on the number of objects applies to the whole
+ * retrieve, and when it is exceeded the series in progress are aborted and
+ * the rest are not started.
+ *
+ * @author irrer
+ *
+ */
+public class ParallelCMove {
+
+    /**
+     * Runs the series C-MOVEs.  A series is only submitted when its PACS has
+     * a free place and it has an admission slot, so the number of threads is
+     * bounded by both.
+     */
+    private static ExecutorService executor = null;
+
+    /** Series C-MOVEs in progress and waiting for each PACS, keyed by AE title. */
+    private static final HashMap<String, Lane> laneList = new HashMap<String, Lane>();
+
+    /**
+     * The series C-MOVEs of one PACS.  Guarded by <code>ParallelCMove</code>.
+     */
+    private static class Lane {
+        private final LinkedList<SeriesRetrieve> queue = new LinkedList<SeriesRetrieve>();
+        private int running = 0;
+    }
+
+    /**
+     * The parallel retrieve of one study or patient.
+     */
+    private static class Retrieve {
+        private final PACS pacs;
+        private final int limit;
+        private final ReceiveDicom receive;
+        private final int attempts;
+        private final RetrieveAdmission.Ticket ticket;
+
+        /** True if a series is running under this retrieve's ticket.  Guarded by <code>ParallelCMove</code>. */
+        private boolean ticketInUse = false;
+
+        private final ArrayList<SeriesRetrieve> runningList = new ArrayList<SeriesRetrieve>();
+        private int outstanding = 0;
+        private int failed = 0;
+
+        /** Number of objects (C-MOVE sub-operations) of the series that have finished. */
+        private long finishedTotal = 0;
+        private boolean cancelled = false;
+
+        private Retrieve(PACS pacs, int limit, ReceiveDicom receive, int attempts, RetrieveAdmission.Ticket ticket) {
+            this.pacs = pacs;
+            this.limit = limit;
+            this.receive = receive;
+            this.attempts = attempts;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Cancel the retrieve if it has gone over the limit.  Must be called
+         * while synchronized.
+         */
+        private void checkLimit() {
+            if ((limit > 0) && !cancelled) {
+                long total = finishedTotal;
+                for (SeriesRetrieve seriesRetrieve : runningList) {
+                    total += seriesRetrieve.total;
+                }
+                if (total > limit) {
+                    Log.get().info("Stopping parallel retrieve from PACS " + pacs + " because the limit of " + limit + " was exceeded by " + total);
+                    cancelled = true;
+                }
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+        }
+
+        private synchronized void started(SeriesRetrieve seriesRetrieve) {
+            runningList.add(seriesRetrieve);
+        }
+
+        private synchronized void finished(SeriesRetrieve seriesRetrieve, boolean success) {
+            if (runningList.remove(seriesRetrieve)) {
+                finishedTotal += seriesRetrieve.total;
+            }
+            if (!success) {
+                failed++;
+            }
+            outstanding--;
+            notifyAll();
+        }
+
+        /**
+         * Wait for every series to finish.
+         */
+        private synchronized void waitUntilDone() throws InterruptedException {
+            while (outstanding > 0) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * The C-MOVE of one series of a parallel retrieve.  It follows the
+     * progress of the C-MOVE so that the limit can be applied to the whole
+     * retrieve, and aborts the C-MOVE if the retrieve is cancelled.
+     */
+    private static class SeriesRetrieve implements Runnable, CMove.CancellableProgressProcessor {
+        private final Retrieve retrieve;
+        private final AttributeList specification;
+
+        /** Objects of the current attempt that the PACS has reported.  Guarded by the retrieve. */
+        private long total = 0;
+
+        /**
+         * Admission for this series if it is not running under the retrieve's
+         * ticket, otherwise null.  Guarded by <code>ParallelCMove</code>.
+         */
+        private RetrieveAdmission.Ticket additionalTicket = null;
+
+        private SeriesRetrieve(Retrieve retrieve, AttributeList specification) {
+            this.retrieve = retrieve;
+            this.specification = specification;
+        }
+
+        @Override
+        public void process(AttributeList response) {
+            synchronized (retrieve) {
+                total =
+                    Attribute.getSingleIntegerValueOrDefault(response, TagFromName.NumberOfCompletedSuboperations, 0) +
+                    Attribute.getSingleIntegerValueOrDefault(response, TagFromName.NumberOfFailedSuboperations, 0) +
+                    Attribute.getSingleIntegerValueOrDefault(response, TagFromName.NumberOfWarningSuboperations, 0);
+                retrieve.checkLimit();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return retrieve.isCancelled();
+        }
+
+        @Override
+        public void run() {
+            boolean success = false;
+            try {
+                if (!retrieve.isCancelled()) {
+                    retrieve.started(this);
+                    success = getSeries(this);
+                }
+            }
+            catch (Exception e) {
+                Log.get().warning("Unexpected exception retrieving series from PACS " + retrieve.pacs + " : " + e);
+            }
+            finally {
+                // give back the slot before the retrieve can finish and release its ticket
+                finished(this);
+                retrieve.finished(this, success);
+            }
+        }
+    }
+
+
+    /**
+     * Constructor is private.
+     */
+    private ParallelCMove() {
+    }
+
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int count = 0;
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CMove-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+
+    private static Lane getLane(PACS pacs) {
+        Lane lane = laneList.get(pacs.aeTitle);
+        if (lane == null) {
+            lane = new Lane();
+            laneList.put(pacs.aeTitle, lane);
+        }
+        return lane;
+    }
+
+
+    /**
+     * Start the waiting series of a PACS for which there are free places and
+     * admission slots.  A series whose retrieve's ticket is in use is passed
+     * over if no other slot is free, so that series of other retrieves may
+     * start.  Must be called while synchronized.
+     */
+    private static void startWaiting(Lane lane) {
+        int maxPerPacs = ServiceConfig.getInstance().getParallelRetrievePerPacs();
+        for (Iterator<SeriesRetrieve> i = lane.queue.iterator(); i.hasNext() && (lane.running < maxPerPacs); ) {
+            SeriesRetrieve seriesRetrieve = i.next();
+            Retrieve retrieve = seriesRetrieve.retrieve;
+            // a cancelled series ends without a C-MOVE, so it needs no slot
+            if (retrieve.ticketInUse && !retrieve.isCancelled()) {
+                seriesRetrieve.additionalTicket = retrieve.ticket.tryAcquireAdditional();
+                if (seriesRetrieve.additionalTicket == null) {
+                    continue;
+                }
+            }
+            else {
+                retrieve.ticketInUse = true;
+            }
+            i.remove();
+            lane.running++;
+            getExecutor().execute(seriesRetrieve);
+        }
+    }
+
+
+    /**
+     * Queue a series to be retrieved when its PACS has a free place.
+     */
+    private static synchronized void submit(SeriesRetrieve seriesRetrieve) {
+        Lane lane = getLane(seriesRetrieve.retrieve.pacs);
+        lane.queue.add(seriesRetrieve);
+        startWaiting(lane);
+    }
+
+
+    /**
+     * Free the place and admission slot of a series that has finished and
+     * start the series waiting for them.  The slot may be used by a series
+     * of any PACS.
+     */
+    private static synchronized void finished(SeriesRetrieve seriesRetrieve) {
+        getLane(seriesRetrieve.retrieve.pacs).running--;
+        if (seriesRetrieve.additionalTicket == null) {
+            seriesRetrieve.retrieve.ticketInUse = false;
+        }
+        else {
+            seriesRetrieve.additionalTicket.release();
+            seriesRetrieve.additionalTicket = null;
+        }
+        for (Lane lane : laneList.values()) {
+            startWaiting(lane);
+        }
+    }
+
+
+    private static String getValue(AttributeList attributeList, AttributeTag tag) {
+        return Attribute.getSingleStringValueOrEmptyString(attributeList, tag).trim();
+    }
+
+
+    private static void put(AttributeList attributeList, AttributeTag tag, String value) throws DicomException {
+        Attribute attribute = AttributeFactory.newAttribute(tag);
+        if (value.length() > 0) {
+            attribute.addValue(value);
+        }
+        attributeList.put(attribute);
+    }
+
+
+    /**
+     * Determine whether a retrieve is for a whole study or patient, which
+     * are the ones worth splitting.
+     */
+    private static boolean isStudyOrPatient(AttributeList specification) {
+        return
+            (getValue(specification, TagFromName.SOPInstanceUID).length() == 0) &&
+            (getValue(specification, TagFromName.SeriesInstanceUID).length() == 0) &&
+            ((getValue(specification, TagFromName.StudyInstanceUID).length() > 0) || (getValue(specification, TagFromName.PatientID).length() > 0));
+    }
+
+
+    /**
+     * Perform a C-FIND, either through the cache or directly on the PACS.
+     *
+     * @param live If true, ask the PACS even if the results are cached or indexed.
+     */
+    private static ArrayList<AttributeList> find(PACS pacs, QueryLevel queryLevel, AttributeList request, boolean live) throws Exception {
+        return live ? new CFind(pacs, queryLevel, request, 0).getList() : CFindCache.getInstance().find(pacs, queryLevel, request, 0);
+    }
+
+
+    /**
+     * Find the UIDs of the studies to be retrieved.  Some PACS require the
+     * study UID for a series level C-FIND, so the studies of a patient are
+     * listed first.
+     */
+    private static LinkedHashSet<String> findStudies(PACS pacs, AttributeList specification, boolean live) throws Exception {
+        LinkedHashSet<String> studyList = new LinkedHashSet<String>();
+        String studyInstanceUID = getValue(specification, TagFromName.StudyInstanceUID);
+        if (studyInstanceUID.length() > 0) {
+            studyList.add(studyInstanceUID);
+        }
+        else {
+            AttributeList request = new AttributeList();
+            put(request, TagFromName.PatientID, getValue(specification, TagFromName.PatientID));
+            put(request, TagFromName.StudyInstanceUID, "");
+            for (AttributeList result : find(pacs, QueryLevel.STUDY, request, live)) {
+                String uid = getValue(result, TagFromName.StudyInstanceUID);
+                if (uid.length() > 0) {
+                    studyList.add(uid);
+                }
+            }
+        }
+        return studyList;
+    }
+
+
+    /**
+     * List the series of a study or patient with C-FINDs.  Each result has
+     * its study and series UIDs, and the number of instances in the series
+     * if the PACS provides it.
+     *
+     * @param pacs PACS to query.
+     *
+     * @param specification Study or patient to list.
+     *
+     * @param live If true, the PACS is asked even if the results are in the
+     * C-FIND cache or metadata index, for when they must be current.
+     *
+     * @return One result per series.
+     *
+     * @throws Exception If a C-FIND fails.
+     */
+    static ArrayList<AttributeList> findSeries(PACS pacs, AttributeList specification, boolean live) throws Exception {
+        String patientID = getValue(specification, TagFromName.PatientID);
+        ArrayList<AttributeList> seriesList = new ArrayList<AttributeList>();
+        LinkedHashSet<String> seriesSet = new LinkedHashSet<String>();
+        for (String studyInstanceUID : findStudies(pacs, specification, live)) {
+            AttributeList request = new AttributeList();
+            if (patientID.length() > 0) {
+                put(request, TagFromName.PatientID, patientID);
+            }
+            put(request, TagFromName.StudyInstanceUID, studyInstanceUID);
+            put(request, TagFromName.SeriesInstanceUID, "");
+            put(request, TagFromName.NumberOfSeriesRelatedInstances, "");
+            for (AttributeList result : find(pacs, QueryLevel.SERIES, request, live)) {
+                String seriesInstanceUID = getValue(result, TagFromName.SeriesInstanceUID);
+                if ((seriesInstanceUID.length() > 0) && seriesSet.add(seriesInstanceUID)) {
+                    if (getValue(result, TagFromName.StudyInstanceUID).length() == 0) {
+                        // cached results are shared, so add the study UID to a copy
+                        AttributeList copy = new AttributeList();
+                        copy.putAll(result);
+                        put(copy, TagFromName.StudyInstanceUID, studyInstanceUID);
+                        result = copy;
+                    }
+                    seriesList.add(result);
+                }
+            }
+        }
+        return seriesList;
+    }
+
+
+    /**
+     * Construct a series level C-MOVE specification containing only the unique keys.
+     */
+    private static AttributeList getSeriesSpecification(String patientID, AttributeList series) throws DicomException {
+        AttributeList specification = new AttributeList();
+        if (patientID.length() > 0) {
+            put(specification, TagFromName.PatientID, patientID);
+        }
+        put(specification, TagFromName.StudyInstanceUID, getValue(series, TagFromName.StudyInstanceUID));
+        put(specification, TagFromName.SeriesInstanceUID, getValue(series, TagFromName.SeriesInstanceUID));
+        Attribute level = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel, ValueRepresentation.CS);
+        level.addValue(QueryLevel.SERIES.toString());
+        specification.put(level);
+        return specification;
+    }
+
+
+    /**
+     * Retrieve one series, trying again if it fails.  The limit is applied
+     * by the series to the whole retrieve, so none is given to the C-MOVE.
+     *
+     * @return True on success.
+     */
+    private static boolean getSeries(SeriesRetrieve seriesRetrieve) {
+        Retrieve retrieve = seriesRetrieve.retrieve;
+        String seriesInstanceUID = getValue(seriesRetrieve.specification, TagFromName.SeriesInstanceUID);
+        for (int attempt = 1; attempt <= retrieve.attempts; attempt++) {
+            synchronized (retrieve) {
+                seriesRetrieve.total = 0;
+            }
+            if (DicomGet.get(retrieve.pacs, seriesRetrieve.specification, seriesRetrieve, 0, retrieve.receive)) {
+                return true;
+            }
+            if (retrieve.isCancelled()) {
+                return false;
+            }
+            Log.get().warning("Attempt " + attempt + " of " + retrieve.attempts + " to retrieve series " + seriesInstanceUID + " from PACS " + retrieve.pacs + " failed.");
+        }
+        return false;
+    }
+
+
+    /**
+     * Get DICOM files.  A study or patient is retrieved as concurrent series
+     * C-MOVEs.  Anything else, or a study or patient whose series can not be
+     * listed, is retrieved with a single C-MOVE as by <code>DicomGet.get</code>.
+     * Do not return until all transfers are done.
+     *
+     * @param pacs Where the files are to be retrieved from.
+     *
+     * @param specification Qualifications of files.
+     *
+     * @param limit Maximum number of DICOM files to receive, or 0 or less for
+     * no limit.  When it is exceeded the retrieve is stopped and reported as
+     * failed.
+     *
+     * @param receive Receives DICOM content from multiple threads.
+     *
+     * @param ticket Admission of the retrieve, which covers one C-MOVE.  It
+     * is not released.
+     *
+     * @return True if all objects were sent.
+     */
+    public static boolean get(PACS pacs, AttributeList specification, int limit, ReceiveDicom receive, RetrieveAdmission.Ticket ticket) {
+        if (!isStudyOrPatient(specification)) {
+            return DicomGet.get(pacs, specification, null, limit, receive);
+        }
+
+        ArrayList<AttributeList> seriesList = new ArrayList<AttributeList>();
+        try {
+            String patientID = getValue(specification, TagFromName.PatientID);
+            for (AttributeList series : findSeries(pacs, specification, false)) {
+                seriesList.add(getSeriesSpecification(patientID, series));
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to list series for parallel retrieve from PACS " + pacs + ", using a single C-MOVE instead: " + e);
+            return DicomGet.get(pacs, specification, null, limit, receive);
+        }
+        if (seriesList.size() < 2) {
+            return DicomGet.get(pacs, specification, null, limit, receive);
+        }
+
+        long start = System.currentTimeMillis();
+        Retrieve retrieve = new Retrieve(pacs, limit, receive, ServiceConfig.getInstance().getParallelRetrieveAttempts(), ticket);
+        synchronized (retrieve) {
+            retrieve.outstanding = seriesList.size();
+        }
+        for (AttributeList series : seriesList) {
+            submit(new SeriesRetrieve(retrieve, series));
+        }
+
+        try {
+            retrieve.waitUntilDone();
+        }
+        catch (InterruptedException e) {
+            Log.get().warning("Interrupted while waiting for series retrieves from PACS " + pacs);
+            retrieve.cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        int failed;
+        synchronized (retrieve) {
+            failed = retrieve.failed;
+        }
+        Log.get().info("Parallel retrieve of " + seriesList.size() + " series from PACS " + pacs + " finished in " +
+                (System.currentTimeMillis() - start) + " ms with " + failed + " series failed.");
+        return failed == 0;
+    }
+}
@@ -0,0 +1,430 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+import edu.umro.util.XML;
+
+/**
+ * Retrieves studies and series into the <code>InstanceCache</code> in the
+ * background when they are listed by <code>RestDicomList</code>, because the
+ * user usually downloads one of them next.
+ *
+ * Prefetches do not hold up other retrieves: one only starts when a
+ * retrieve slot is free and no request is waiting for one, and a running
+ * prefetch is stopped at the next progress report from the PACS when a
+ * request is waiting for a slot.  Each PACS has at most
+ * one prefetch running, and prefetches to a PACS start no more often than
+ * the configured interval.  The most recently listed are done first, and
+ * the oldest are dropped when too many are queued.  Queued and running
+ * prefetches may be cancelled.
+ *
+ * @author irrer
+ *
+ */
+public class Prefetcher {
+
+    private static Prefetcher instance = null;
+
+    /** User that prefetches are admitted as. */
+    private static final String USER = "prefetch";
+
+    /** How often the queue is checked when waiting for the service to be idle. */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * Accepts retrieved objects.  They are cached by <code>DicomGet</code>, so
+     * nothing else needs to be done with them.
+     */
+    private static final ReceiveDicomObject DISCARD = new ReceiveDicomObject() {
+        @Override
+        public void receive(ReceivedDicomObject receivedDicomObject) {
+        }
+
+        @Override
+        public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+        }
+    };
+
+    /**
+     * A study or series to be retrieved.
+     */
+    private static class Task implements CMove.CancellableProgressProcessor {
+        private final PACS pacs;
+        private final AttributeList specification;
+        private final String uid;
+        private final String key;
+        private volatile boolean cancelled = false;
+        private volatile boolean preempted = false;
+        private boolean running = false;
+        private RetrieveAdmission.Ticket ticket = null;
+
+        private Task(PACS pacs, AttributeList specification, String uid) {
+            this.pacs = pacs;
+            this.specification = specification;
+            this.uid = uid;
+            this.key = pacs.aeTitle + " " + uid;
+        }
+
+        @Override
+        public void process(AttributeList attributeList) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            if (!cancelled && !preempted && RetrieveAdmission.getInstance().isWaitingForSlot()) {
+                preempted = true;
+            }
+            return cancelled || preempted;
+        }
+    }
+
+    /** Number of most recent studies to prefetch from a study list. */
+    private final int maxStudies;
+
+    /** Number of most recent series to prefetch from a series list. */
+    private final int maxSeries;
+
+    /** Maximum number of queued prefetches. */
+    private final int queueDepth;
+
+    /** Minimum time in ms between the starts of prefetches from the same PACS. */
+    private final long minInterval;
+
+    /** Waiting prefetches, most recently requested first. */
+    private final LinkedList<Task> queue = new LinkedList<Task>();
+
+    /** Queued and running prefetches by key. */
+    private final HashMap<String, Task> taskList = new HashMap<String, Task>();
+
+    /** AE titles of PACS with a prefetch running. */
+    private final HashSet<String> busyPacs = new HashSet<String>();
+
+    /** When the last prefetch from each PACS started, by AE title. */
+    private final HashMap<String, Long> lastStart = new HashMap<String, Long>();
+
+    // metrics
+    private long queuedCount = 0;
+    private long completedCount = 0;
+    private long alreadyCachedCount = 0;
+    private long failedCount = 0;
+    private long cancelledCount = 0;
+    private long preemptedCount = 0;
+    private long droppedCount = 0;
+
+
+    private Prefetcher() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        boolean cacheEnabled = InstanceCache.getInstance().isEnabled();
+        maxStudies = cacheEnabled ? config.getPrefetchMaxStudies() : 0;
+        maxSeries = cacheEnabled ? config.getPrefetchMaxSeries() : 0;
+        queueDepth = config.getPrefetchQueueDepth();
+        minInterval = config.getPrefetchMinIntervalSeconds() * 1000L;
+        int threads = config.getPrefetchThreads();
+        Log.get().info("Prefetch studies: " + maxStudies + "  series: " + maxSeries + "  queue depth: " + queueDepth +
+                "  minimum interval per PACS ms: " + minInterval + "  threads: " + threads);
+        if (isEnabled()) {
+            for (int t = 0; t < threads; t++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            try {
+                                perform(take());
+                            }
+                            catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }, "Prefetch-" + (t + 1));
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+            }
+        }
+    }
+
+
+    public static synchronized Prefetcher getInstance() {
+        if (instance == null) {
+            instance = new Prefetcher();
+        }
+        return instance;
+    }
+
+
+    /**
+     * @return True if prefetching is enabled.
+     */
+    public boolean isEnabled() {
+        return (maxStudies > 0) || (maxSeries > 0);
+    }
+
+
+    private static String getValue(AttributeList attributeList, AttributeTag tag) {
+        return Attribute.getSingleStringValueOrEmptyString(attributeList, tag).trim();
+    }
+
+
+    private static void put(AttributeList attributeList, AttributeTag tag, String value) throws DicomException {
+        Attribute attribute = AttributeFactory.newAttribute(tag);
+        attribute.addValue(value);
+        attributeList.put(attribute);
+    }
+
+
+    /**
+     * Get the given number of results with the latest date and time.
+     */
+    private static ArrayList<AttributeList> getMostRecent(ArrayList<AttributeList> list, final AttributeTag dateTag, final AttributeTag timeTag, int count) {
+        ArrayList<AttributeList> sorted = new ArrayList<AttributeList>(list);
+        Collections.sort(sorted, new Comparator<AttributeList>() {
+            @Override
+            public int compare(AttributeList a, AttributeList b) {
+                String aDateTime = getValue(a, dateTag) + getValue(a, timeTag);
+                String bDateTime = getValue(b, dateTag) + getValue(b, timeTag);
+                return bDateTime.compareTo(aDateTime);
+            }
+        });
+        return new ArrayList<AttributeList>(sorted.subList(0, Math.min(count, sorted.size())));
+    }
+
+
+    private static AttributeList getSpecification(QueryLevel queryLevel, String studyInstanceUID, String seriesInstanceUID) throws DicomException {
+        AttributeList specification = new AttributeList();
+        put(specification, TagFromName.StudyInstanceUID, studyInstanceUID);
+        if (seriesInstanceUID != null) {
+            put(specification, TagFromName.SeriesInstanceUID, seriesInstanceUID);
+        }
+        Attribute level = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel, ValueRepresentation.CS);
+        level.addValue(queryLevel.toString());
+        specification.put(level);
+        return specification;
+    }
+
+
+    /**
+     * Queue a prefetch unless it is already queued or running.  Newest first,
+     * dropping the oldest if there are too many.
+     */
+    private synchronized void enqueue(Task task) {
+        if (!taskList.containsKey(task.key)) {
+            queue.addFirst(task);
+            taskList.put(task.key, task);
+            queuedCount++;
+            while (queue.size() > queueDepth) {
+                Task dropped = queue.removeLast();
+                taskList.remove(dropped.key);
+                droppedCount++;
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Queue prefetches for the most recent studies in a study list.
+     *
+     * @param pacs PACS the studies were listed from.
+     *
+     * @param studyList Study level C-FIND results.
+     */
+    public void prefetchStudies(PACS pacs, ArrayList<AttributeList> studyList) {
+        try {
+            for (AttributeList study : getMostRecent(studyList, TagFromName.StudyDate, TagFromName.StudyTime, maxStudies)) {
+                String studyInstanceUID = getValue(study, TagFromName.StudyInstanceUID);
+                if (studyInstanceUID.length() > 0) {
+                    enqueue(new Task(pacs, getSpecification(QueryLevel.STUDY, studyInstanceUID, null), studyInstanceUID));
+                }
+            }
+        }
+        catch (DicomException e) {
+            Log.get().warning("Unable to queue study prefetch: " + e);
+        }
+    }
+
+
+    /**
+     * Queue prefetches for the most recent series in a series list.
+     *
+     * @param pacs PACS the series were listed from.
+     *
+     * @param studyInstanceUID Study the series belong to.
+     *
+     * @param seriesList Series level C-FIND results.
+     */
+    public void prefetchSeries(PACS pacs, String studyInstanceUID, ArrayList<AttributeList> seriesList) {
+        try {
+            for (AttributeList series : getMostRecent(seriesList, TagFromName.SeriesDate, TagFromName.SeriesTime, maxSeries)) {
+                String seriesInstanceUID = getValue(series, TagFromName.SeriesInstanceUID);
+                if (seriesInstanceUID.length() > 0) {
+                    enqueue(new Task(pacs, getSpecification(QueryLevel.SERIES, studyInstanceUID, seriesInstanceUID), seriesInstanceUID));
+                }
+            }
+        }
+        catch (DicomException e) {
+            Log.get().warning("Unable to queue series prefetch: " + e);
+        }
+    }
+
+
+    /**
+     * Cancel prefetches.  Queued ones are removed, and running ones are
+     * aborted at the next progress report from the PACS.
+     *
+     * @param uid Study or series instance UID to cancel, or null for all.
+     *
+     * @return Number of prefetches cancelled.
+     */
+    public synchronized int cancel(String uid) {
+        int count = 0;
+        Iterator<Task> iterator = taskList.values().iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+            if ((uid == null) || task.uid.equals(uid)) {
+                task.cancelled = true;
+                if (!task.running) {
+                    queue.remove(task);
+                    iterator.remove();
+                }
+                count++;
+            }
+        }
+        cancelledCount += count;
+        return count;
+    }
+
+
+    /**
+     * Wait for a prefetch that may start: its PACS is not busy or recently
+     * used, and the service has a spare retrieve slot.
+     */
+    private synchronized Task take() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = POLL_INTERVAL;
+            for (Task task : queue) {
+                if (busyPacs.contains(task.pacs.aeTitle)) {
+                    continue;
+                }
+                Long last = lastStart.get(task.pacs.aeTitle);
+                if ((last != null) && ((now - last) < minInterval)) {
+                    wait = Math.min(wait, minInterval - (now - last));
+                    continue;
+                }
+                RetrieveAdmission.Ticket ticket = RetrieveAdmission.getInstance().tryAcquireIdle(USER);
+                if (ticket == null) {
+                    break;
+                }
+                queue.remove(task);
+                task.running = true;
+                task.ticket = ticket;
+                busyPacs.add(task.pacs.aeTitle);
+                lastStart.put(task.pacs.aeTitle, now);
+                return task;
+            }
+            wait(Math.max(1, wait));
+        }
+    }
+
+
+    private void perform(Task task) {
+        long start = System.currentTimeMillis();
+        String outcome;
+        try {
+            if (InstanceCache.getInstance().getAll(task.pacs, task.specification) != null) {
+                outcome = "already cached";
+                synchronized (this) {
+                    alreadyCachedCount++;
+                }
+            }
+            else {
+                boolean success = DicomGet.get(task.pacs, task.specification, task, 0, DISCARD);
+                outcome = task.cancelled ? "cancelled" : (task.preempted ? "preempted by a waiting retrieve" : (success ? "done" : "failed"));
+                synchronized (this) {
+                    if (success) {
+                        completedCount++;
+                    }
+                    else if (task.preempted && !task.cancelled) {
+                        preemptedCount++;
+                    }
+                    else if (!task.cancelled) {
+                        failedCount++;
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            outcome = "failed: " + e;
+            synchronized (this) {
+                failedCount++;
+            }
+        }
+        finally {
+            task.ticket.release();
+            synchronized (this) {
+                busyPacs.remove(task.pacs.aeTitle);
+                taskList.remove(task.key);
+                notifyAll();
+            }
+        }
+        Log.get().info("Prefetch of " + task.key + " " + outcome + " in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+
+    /**
+     * @return State and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        StringBuffer xml = new StringBuffer();
+        xml.append("<Prefetch>\n");
+        xml.append("    <Enabled>" + isEnabled() + "</Enabled>\n");
+        xml.append("    <Queued>" + queue.size() + "</Queued>\n");
+        xml.append("    <Running>" + (taskList.size() - queue.size()) + "</Running>\n");
+        xml.append("    <TotalQueued>" + queuedCount + "</TotalQueued>\n");
+        xml.append("    <Completed>" + completedCount + "</Completed>\n");
+        xml.append("    <AlreadyCached>" + alreadyCachedCount + "</AlreadyCached>\n");
+        xml.append("    <Failed>" + failedCount + "</Failed>\n");
+        xml.append("    <Cancelled>" + cancelledCount + "</Cancelled>\n");
+        xml.append("    <Preempted>" + preemptedCount + "</Preempted>\n");
+        xml.append("    <Dropped>" + droppedCount + "</Dropped>\n");
+        for (Task task : taskList.values()) {
+            xml.append("    <Task PACS='" + XML.escapeSpecialChars(task.pacs.aeTitle) + "' UID='" + XML.escapeSpecialChars(task.uid) +
+                    "' State='" + (task.running ? "RUNNING" : "QUEUED") + "'/>\n");
+        }
+        xml.append("</Prefetch>\n");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,663 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+import edu.umro.util.UMROException;
+
+/**
+ * Turns a flat set of constraints on attributes at any level into the
+ * sequence of hierarchical C-FINDs that strict PACS require, and runs it.
+ * For example, "CT series for patients named SMITH*" becomes a PATIENT
+ * C-FIND for the name, a STUDY C-FIND for each patient found, and a SERIES
+ * C-FIND with the Modality for each study found.
+ *
+ * Levels at the top of the plan that are constrained only by a single
+ * value of their unique key, such as a PatientID, are not queried, the key
+ * being passed to the level below instead.  Each result at one level
+ * starts the C-FIND for the level below as soon as it arrives, and the
+ * number of C-FINDs in progress on any one PACS is bounded.  Results at
+ * the requested level are joined with the attributes of the results above
+ * them and passed on as they arrive.
+ *
+ * @author irrer
+ *
+ */
+public class QueryPlanner {
+
+    private static QueryPlanner instance = null;
+
+    /** Level that each attribute belongs to, the highest level whose configured C-FIND list contains it. */
+    private final HashMap<AttributeTag, QueryLevel> levelByTag = new HashMap<AttributeTag, QueryLevel>();
+
+    /** Maximum number of C-FINDs in progress on one PACS for one plan. */
+    private final int maxPerPacs;
+
+    /** Maximum number of C-FINDs for one plan. */
+    private final int maxQueries;
+
+    /** Time allowed for a plan to finish in ms. */
+    private final long deadline;
+
+    private int planCount = 0;
+    private int activeCount = 0;
+    private long queryCount = 0;
+    private long rowCount = 0;
+    private int timeoutCount = 0;
+    private int truncatedCount = 0;
+
+    /**
+     * One level of a plan.
+     */
+    public static class Step {
+        public final QueryLevel queryLevel;
+
+        /** Attributes with the values to match at this level. */
+        private final AttributeList constraintList;
+
+        private Step(QueryLevel queryLevel, AttributeList constraintList) {
+            this.queryLevel = queryLevel;
+            this.constraintList = constraintList;
+        }
+    }
+
+    /**
+     * The C-FINDs needed to find results at one level.
+     */
+    public static class Plan {
+        private final QueryLevel queryLevel;
+
+        /** Unique keys of the levels above the first step that were not queried. */
+        private final AttributeList keyList;
+
+        private final List<Step> stepList;
+
+        private final String description;
+
+        private Plan(QueryLevel queryLevel, AttributeList keyList, List<Step> stepList, DicomDictionary dicomDictionary) {
+            this.queryLevel = queryLevel;
+            this.keyList = keyList;
+            this.stepList = stepList;
+            StringBuffer text = new StringBuffer();
+            for (Object o : keyList.values()) {
+                text.append(dicomDictionary.getNameFromTag(((Attribute)o).getTag()) + " -> ");
+            }
+            for (Step step : stepList) {
+                text.append(step.queryLevel + "(");
+                boolean first = true;
+                for (Object o : step.constraintList.values()) {
+                    text.append((first ? "" : " ") + dicomDictionary.getNameFromTag(((Attribute)o).getTag()));
+                    first = false;
+                }
+                text.append(")" + ((step == stepList.get(stepList.size() - 1)) ? "" : " -> "));
+            }
+            description = text.toString();
+        }
+
+        /**
+         * @return Level of the results.
+         */
+        public QueryLevel getQueryLevel() {
+            return queryLevel;
+        }
+
+        /**
+         * @return Levels queried, from the top.
+         */
+        public List<Step> getStepList() {
+            return stepList;
+        }
+
+        /**
+         * @return Every attribute that is constrained by the plan.
+         */
+        public List<AttributeTag> getConstrainedTagList() {
+            ArrayList<AttributeTag> tagList = new ArrayList<AttributeTag>();
+            for (Object oTag : keyList.keySet()) {
+                tagList.add((AttributeTag)oTag);
+            }
+            for (Step step : stepList) {
+                for (Object oTag : step.constraintList.keySet()) {
+                    tagList.add((AttributeTag)oTag);
+                }
+            }
+            return tagList;
+        }
+
+        /**
+         * @return Levels and the attributes constrained at each, as in
+         * <code>PATIENT(PatientName) -> STUDY(StudyDate) -> SERIES(Modality)</code>
+         */
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+
+    private QueryPlanner() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        maxPerPacs = config.getQueryPlannerMaxPerPacs();
+        maxQueries = config.getQueryPlannerMaxQueries();
+        deadline = config.getQueryPlannerDeadlineSeconds() * 1000L;
+        DicomDictionary dicomDictionary = DictionaryRegistry.getInstance().getStandard();
+        for (QueryLevel queryLevel : QueryLevel.values()) {
+            try {
+                for (String tagName : config.getCFindTagList(queryLevel)) {
+                    AttributeTag tag = dicomDictionary.getTagFromName(tagName);
+                    if ((tag != null) && !levelByTag.containsKey(tag)) {
+                        levelByTag.put(tag, queryLevel);
+                    }
+                }
+            }
+            catch (UMROException e) {
+                Log.get().severe("Unable to get the C-FIND attributes for level " + queryLevel + " : " + e);
+            }
+        }
+        Log.get().info("Query planner maximum C-FINDs per PACS: " + maxPerPacs + "  maximum C-FINDs per plan: " + maxQueries + "  deadline ms: " + deadline);
+    }
+
+
+    public static synchronized QueryPlanner getInstance() {
+        if (instance == null) {
+            instance = new QueryPlanner();
+        }
+        return instance;
+    }
+
+
+    /**
+     * Get the unique keys of the levels above the given one that a C-FIND at
+     * that level is constrained by.  In the study root model series and
+     * images are only found within a study, and studies may be constrained
+     * by patient.
+     */
+    private static List<AttributeTag> getParentKeyList(QueryLevel queryLevel) {
+        switch (queryLevel) {
+            case STUDY:
+                return Arrays.asList(TagFromName.PatientID);
+            case SERIES:
+                return Arrays.asList(TagFromName.StudyInstanceUID);
+            case IMAGE:
+                return Arrays.asList(TagFromName.StudyInstanceUID, TagFromName.SeriesInstanceUID);
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+
+    /**
+     * Determine whether the constraints of a level are a single value of its
+     * unique key, so that the level need not be queried.
+     */
+    private static boolean isSingleKey(QueryLevel queryLevel, AttributeList constraintList) {
+        if (constraintList.size() != 1) {
+            return false;
+        }
+        String value = Attribute.getSingleStringValueOrEmptyString(constraintList, ParallelCFind.getKeyTag(queryLevel));
+        return (value.length() > 0) && (value.indexOf('*') == -1) && (value.indexOf('?') == -1) && (value.indexOf('\\') == -1);
+    }
+
+
+    /**
+     * Get the level that the given attribute is matched at.
+     *
+     * @param tag Attribute.
+     *
+     * @return Level, or null if the attribute is not on any configured C-FIND list.
+     */
+    public QueryLevel getQueryLevel(AttributeTag tag) {
+        return levelByTag.get(tag);
+    }
+
+
+    /**
+     * Determine the C-FINDs needed to find the results at the given level
+     * that satisfy the constraints.
+     *
+     * @param queryLevel Level of the results.
+     *
+     * @param constraintList Attributes with the values to match, at any
+     * level at or above the level of the results.  Attributes not on a
+     * configured C-FIND list are matched at the level of the results.
+     *
+     * @param dicomDictionary Dictionary for names in messages.
+     *
+     * @return Plan.
+     *
+     * @throws DICOMRestException If the constraints can not be satisfied
+     * with hierarchical C-FINDs, or would mean finding everything on a PACS.
+     */
+    public Plan plan(QueryLevel queryLevel, AttributeList constraintList, DicomDictionary dicomDictionary) throws DICOMRestException {
+        AttributeList[] levelConstraintList = new AttributeList[queryLevel.ordinal() + 1];
+        for (int l = 0; l < levelConstraintList.length; l++) {
+            levelConstraintList[l] = new AttributeList();
+        }
+        for (Object o : constraintList.values()) {
+            Attribute attribute = (Attribute)o;
+            QueryLevel level = levelByTag.get(attribute.getTag());
+            if (level == null) {
+                level = queryLevel;
+            }
+            if (level.ordinal() > queryLevel.ordinal()) {
+                throw new DICOMRestException(dicomDictionary.getNameFromTag(attribute.getTag()) + " is matched at the " + level +
+                        " level and can not be used to find results at the " + queryLevel + " level.");
+            }
+            levelConstraintList[level.ordinal()].put(attribute);
+        }
+
+        // start at the highest constrained level, but series and images can only be found within a study
+        int start = queryLevel.ordinal();
+        for (int l = 0; l < levelConstraintList.length; l++) {
+            if (!levelConstraintList[l].isEmpty()) {
+                start = l;
+                break;
+            }
+        }
+        start = Math.min(start, QueryLevel.STUDY.ordinal());
+
+        // levels given by a single key need not be queried, the key is passed down instead
+        AttributeList keyList = new AttributeList();
+        while ((start < queryLevel.ordinal()) && isSingleKey(QueryLevel.values()[start], levelConstraintList[start])) {
+            keyList.putAll(levelConstraintList[start]);
+            start++;
+        }
+
+        ArrayList<Step> stepList = new ArrayList<Step>();
+        for (int l = start; l <= queryLevel.ordinal(); l++) {
+            stepList.add(new Step(QueryLevel.values()[l], levelConstraintList[l]));
+        }
+        if ((stepList.size() > 1) && stepList.get(0).constraintList.isEmpty() && keyList.isEmpty()) {
+            throw new DICOMRestException("Finding results at the " + queryLevel + " level would mean listing every " + stepList.get(0).queryLevel +
+                    " on the PACS.  Constrain the " + stepList.get(0).queryLevel + " level or a level above it, for example with PatientID, StudyDate, or StudyInstanceUID.");
+        }
+        return new Plan(queryLevel, keyList, stepList, dicomDictionary);
+    }
+
+
+    /**
+     * The C-FINDs of one plan on one PACS.
+     */
+    private static class Lane {
+        private final PACS pacs;
+        private final LinkedList<Task> queue = new LinkedList<Task>();
+        private final HashSet<Task> runningSet = new HashSet<Task>();
+        private int queries = 0;
+        private int failed = 0;
+        private int overLimit = 0;
+        private int rows = 0;
+        private String message = null;
+        private long finished = 0;
+
+        /** True if C-FINDs were still running at the deadline. */
+        private boolean late = false;
+
+        private Lane(PACS pacs) {
+            this.pacs = pacs;
+        }
+    }
+
+    /**
+     * One C-FIND of a plan.
+     */
+    private class Task extends ParallelCFind.AbortableTask {
+        private final Execution execution;
+        private final Lane lane;
+        private final int stepIndex;
+
+        /** Joined result of the level above, or the keys of the levels not queried for the first step. */
+        private final AttributeList parent;
+
+        private final AttributeList request;
+        private Future<?> future = null;
+
+        private Task(Execution execution, Lane lane, int stepIndex, AttributeList parent, AttributeList request) {
+            this.execution = execution;
+            this.lane = lane;
+            this.stepIndex = stepIndex;
+            this.parent = parent;
+            this.request = request;
+        }
+
+        @Override
+        Long perform() {
+            String failure = null;
+            boolean over = false;
+            try {
+                CFindCache.getInstance().find(lane.pacs, execution.plan.stepList.get(stepIndex).queryLevel, request, execution.limit, new CFind.Listener() {
+                    @Override
+                    public void identifier(AttributeList attributeList) {
+                        execution.result(Task.this, attributeList);
+                    }
+                });
+            }
+            catch (RemoteException e) {
+                over = true;
+                failure = e.getMessage();
+            }
+            catch (Exception e) {
+                failure = e.toString();
+            }
+            execution.finished(this, over, failure);
+            return null;
+        }
+    }
+
+    /**
+     * The running of one plan.
+     */
+    private class Execution {
+        private final Plan plan;
+        private final long limit;
+        private final ParallelCFind.ResultListener listener;
+        private final ArrayList<Lane> laneList = new ArrayList<Lane>();
+
+        /** Identifies the C-FINDs already started, so that each is only done once. */
+        private final HashSet<String> querySet = new HashSet<String>();
+
+        /** Keys of results already delivered. */
+        private final HashSet<String> keySet = new HashSet<String>();
+
+        private final AttributeTag keyTag;
+        private int outstanding = 0;
+        private int queries = 0;
+        private boolean truncated = false;
+        private boolean closed = false;
+
+        private Execution(Plan plan, List<PACS> pacsList, long limit, ParallelCFind.ResultListener listener) {
+            this.plan = plan;
+            this.limit = limit;
+            this.listener = listener;
+            keyTag = ParallelCFind.getKeyTag(plan.queryLevel);
+            for (PACS pacs : pacsList) {
+                laneList.add(new Lane(pacs));
+            }
+        }
+
+        /**
+         * Queue the C-FIND for the given step within the given parent, unless
+         * it has already been done or the plan has done too many.  Must be
+         * called while synchronized.
+         */
+        private void submit(Lane lane, int stepIndex, AttributeList parent) {
+            if (closed) {
+                return;
+            }
+            Step step = plan.stepList.get(stepIndex);
+            AttributeList request;
+            try {
+                request = CFind.constructDefaultList(step.queryLevel, null);
+            }
+            catch (Exception e) {
+                Log.get().severe("Unable to construct " + step.queryLevel + " C-FIND request: " + e);
+                return;
+            }
+            request.putAll(step.constraintList);
+            StringBuffer identity = new StringBuffer(lane.pacs.aeTitle + "|" + stepIndex);
+            for (AttributeTag tag : getParentKeyList(step.queryLevel)) {
+                Attribute key = parent.get(tag);
+                String value = (key == null) ? "" : key.getSingleStringValueOrEmptyString().trim();
+                if (value.length() > 0) {
+                    request.put(key);
+                }
+                else if ((stepIndex > 0) || (step.queryLevel != QueryLevel.STUDY)) {
+                    // without the key the C-FIND would not be limited to the parent
+                    Log.get().warning("Query plan " + plan + " : result from " + lane.pacs.aeTitle + " has no " + tag + " , not querying its " + step.queryLevel + " level.");
+                    return;
+                }
+                identity.append("|" + value);
+            }
+            if (!querySet.add(identity.toString())) {
+                return;
+            }
+            if (queries >= maxQueries) {
+                truncated = true;
+                return;
+            }
+            queries++;
+            lane.queries++;
+            outstanding++;
+            Task task = new Task(this, lane, stepIndex, parent, request);
+            if (lane.runningSet.size() < maxPerPacs) {
+                start(task);
+            }
+            else {
+                lane.queue.add(task);
+            }
+        }
+
+        private void start(Task task) {
+            task.lane.runningSet.add(task);
+            task.future = ParallelCFind.getExecutor().submit(task);
+        }
+
+        /**
+         * Join a result with the one above it and either pass it on or query
+         * the level below it.  Values in the result take precedence.
+         */
+        private synchronized void result(Task task, AttributeList attributeList) {
+            if (closed) {
+                return;
+            }
+            AttributeList joined = new AttributeList();
+            joined.putAll(task.parent);
+            for (Object o : attributeList.values()) {
+                Attribute attribute = (Attribute)o;
+                if ((attribute.getSingleStringValueOrEmptyString().trim().length() > 0) || !joined.containsKey(attribute.getTag())) {
+                    joined.put(attribute);
+                }
+            }
+            if (task.stepIndex < (plan.stepList.size() - 1)) {
+                submit(task.lane, task.stepIndex + 1, joined);
+            }
+            else {
+                String key = Attribute.getSingleStringValueOrEmptyString(joined, keyTag).trim();
+                if ((key.length() == 0) || keySet.add(key)) {
+                    task.lane.rows++;
+                    listener.result(joined, task.lane.pacs);
+                }
+            }
+        }
+
+        /**
+         * Record the end of a C-FIND and start the next one waiting for the same PACS.
+         */
+        private synchronized void finished(Task task, boolean over, String failure) {
+            Lane lane = task.lane;
+            lane.runningSet.remove(task);
+            if (failure != null) {
+                if (over) {
+                    lane.overLimit++;
+                }
+                else {
+                    lane.failed++;
+                }
+                if (lane.message == null) {
+                    lane.message = failure;
+                }
+                if (!closed) {
+                    Log.get().warning("Query plan " + plan + " : " + plan.stepList.get(task.stepIndex).queryLevel + " C-FIND on " + lane.pacs.aeTitle + " failed: " + failure);
+                }
+            }
+            if (!closed && !lane.queue.isEmpty()) {
+                start(lane.queue.removeFirst());
+            }
+            if (lane.runningSet.isEmpty() && lane.queue.isEmpty()) {
+                lane.finished = System.currentTimeMillis();
+            }
+            outstanding--;
+            notifyAll();
+        }
+
+        /**
+         * Run the plan and wait for it to finish or for the deadline.
+         *
+         * @return True if it finished.
+         */
+        private synchronized boolean run() {
+            for (Lane lane : laneList) {
+                submit(lane, 0, plan.keyList);
+            }
+            long end = System.currentTimeMillis() + deadline;
+            while (outstanding > 0) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+            closed = true;
+            if (outstanding > 0) {
+                // cancelling does not release a thread blocked reading from a PACS, so each is aborted
+                for (Lane lane : laneList) {
+                    if (!(lane.runningSet.isEmpty() && lane.queue.isEmpty())) {
+                        lane.late = true;
+                        int aborted = 0;
+                        for (Task task : lane.runningSet) {
+                            if (task.abort(task.future)) {
+                                aborted++;
+                            }
+                        }
+                        Log.get().warning("Query plan " + plan + " : " + lane.pacs.aeTitle + " did not finish within the deadline.  Aborted " +
+                                aborted + " C-FINDs in progress and skipped " + lane.queue.size() + " waiting.");
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * Run a plan on each of the given PACS and wait until it has finished
+     * or the deadline has passed.  Each result at the level of the plan is
+     * passed to the listener as it arrives, joined with the results above
+     * it.  A result found on more than one PACS is passed once.
+     *
+     * @param plan Plan to run.
+     *
+     * @param pacsList PACS to query.
+     *
+     * @param limit Maximum number of results of each C-FIND, or 0 or less to
+     * use the configured default.
+     *
+     * @param listener Receives results.  Calls are serialized.
+     *
+     * @return Status of each PACS.  The count is the number of results passed
+     * on from that PACS.
+     */
+    public List<ParallelCFind.PacsStatus> execute(Plan plan, List<PACS> pacsList, long limit, ParallelCFind.ResultListener listener) {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            planCount++;
+            activeCount++;
+        }
+        Execution execution = new Execution(plan, pacsList, limit, listener);
+        boolean done = false;
+        try {
+            done = execution.run();
+        }
+        finally {
+            synchronized (this) {
+                activeCount--;
+            }
+        }
+
+        ArrayList<ParallelCFind.PacsStatus> pacsStatusList = new ArrayList<ParallelCFind.PacsStatus>();
+        int rows = 0;
+        synchronized (execution) {
+            for (Lane lane : execution.laneList) {
+                ParallelCFind.Outcome outcome = ParallelCFind.Outcome.SUCCESS;
+                String message = lane.queries + " C-FINDs";
+                boolean unfinished = lane.late;
+                if (unfinished) {
+                    outcome = ParallelCFind.Outcome.TIMEOUT;
+                    message += ", did not finish within the deadline of " + (deadline / 1000) + " seconds";
+                }
+                else if (lane.overLimit > 0) {
+                    outcome = ParallelCFind.Outcome.OVER_LIMIT;
+                    message += ", " + lane.overLimit + " over limit: " + lane.message;
+                }
+                else if (lane.failed > 0) {
+                    outcome = ParallelCFind.Outcome.FAILED;
+                    message += ", " + lane.failed + " failed: " + lane.message;
+                }
+                else if (execution.truncated) {
+                    outcome = ParallelCFind.Outcome.OVER_LIMIT;
+                    message += ", stopped because the plan reached the maximum of " + maxQueries + " C-FINDs";
+                }
+                long elapsed = (unfinished ? System.currentTimeMillis() : Math.max(lane.finished, start)) - start;
+                pacsStatusList.add(new ParallelCFind.PacsStatus(lane.pacs, outcome, lane.rows, elapsed, message));
+                rows += lane.rows;
+            }
+        }
+
+        synchronized (this) {
+            queryCount += execution.queries;
+            rowCount += rows;
+            if (!done) timeoutCount++;
+            if (execution.truncated) truncatedCount++;
+        }
+        Log.get().info("Query plan " + plan + " on " + pacsList.size() + " PACS performed " + execution.queries + " C-FINDs and got " + rows +
+                " results in " + (System.currentTimeMillis() - start) + " ms." + (done ? "" : "  Deadline exceeded.") + (execution.truncated ? "  Maximum C-FINDs reached." : ""));
+        return pacsStatusList;
+    }
+
+
+    /**
+     * Get the status of the query planner as XML for the status page.
+     *
+     * @return Status as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        return
+            "<QueryPlanner>\n" +
+            "    <MaxPerPacs>" + maxPerPacs + "</MaxPerPacs>\n" +
+            "    <MaxQueries>" + maxQueries + "</MaxQueries>\n" +
+            "    <DeadlineMs>" + deadline + "</DeadlineMs>\n" +
+            "    <Plans>" + planCount + "</Plans>\n" +
+            "    <Active>" + activeCount + "</Active>\n" +
+            "    <CFinds>" + queryCount + "</CFinds>\n" +
+            "    <Results>" + rowCount + "</Results>\n" +
+            "    <Timeouts>" + timeoutCount + "</Timeouts>\n" +
+            "    <Truncated>" + truncatedCount + "</Truncated>\n" +
+            "</QueryPlanner>\n";
+    }
+}
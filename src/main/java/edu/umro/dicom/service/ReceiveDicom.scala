@@ -21,3 +21,12 @@ import com.pixelmed.dicom.AttributeList
 trait ReceiveDicom {
     def receive(attributeList:AttributeList, transferSyntax:String, sourceAETitle:String):Unit
 }
+
+/**
+ * A consumer of DICOM that can work directly with the object as it was
+ * received, without having it parsed first.  Receivers check for this and
+ * use it in preference to the parsed version.
+ */
+trait ReceiveDicomObject extends ReceiveDicom {
+    def receive(receivedDicomObject:ReceivedDicomObject):Unit
+}
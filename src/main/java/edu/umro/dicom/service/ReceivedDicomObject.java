@@ -0,0 +1,551 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import edu.umro.util.Log;
+
+/**
+ * A single DICOM object received from a remote PACS.  It is either held in
+ * memory as the raw data set that came over the association (no file meta
+ * information) or as a Part 10 file in the temporary directory, depending on
+ * how the receiver was configured.
+ *
+ * The attribute list is only parsed when somebody asks for it, and then only
+ * once.
+ *
+ * A file that may be deleted or replaced while it is being used, such as one
+ * in the instance cache, should be opened with <code>open</code> first, so
+ * that every read uses the same open file.
+ *
+ * @author irrer
+ *
+ */
+public class ReceivedDicomObject {
+
+    /** Raw data set, or null if file based. */
+    private final byte[] dataSet;
+
+    /** Number of bytes of <code>dataSet</code> that hold the data set. */
+    private final int dataSetLength;
+
+    /** Part 10 file, or null if memory based. */
+    private final File file;
+
+    /** Transfer syntax of the data. */
+    private final String transferSyntax;
+
+    /** AE title of the sender. */
+    private final String sourceAETitle;
+
+    /** C-STORE command that delivered the object, or null if not known. */
+    private final AttributeList command;
+
+    /** File opened by <code>open</code>, or null if not open. */
+    private FileInputStream openFile = null;
+
+    /** Parsed version of the object, created on demand. */
+    private AttributeList attributeList = null;
+
+    /** Parsed header (everything before the pixel data), created on demand. */
+    private AttributeList header = null;
+
+
+    private ReceivedDicomObject(byte[] dataSet, int dataSetLength, File file, String transferSyntax, String sourceAETitle, AttributeList command) {
+        this.dataSet = dataSet;
+        this.dataSetLength = dataSetLength;
+        this.file = file;
+        this.transferSyntax = transferSyntax;
+        this.sourceAETitle = sourceAETitle;
+        this.command = command;
+    }
+
+
+    /**
+     * Construct from a data set received over the network.
+     *
+     * @param dataSet Raw data set in the given transfer syntax.
+     *
+     * @param transferSyntax Transfer syntax negotiated for the presentation context.
+     *
+     * @param sourceAETitle Sender.
+     *
+     * @param command C-STORE-RQ that delivered the data set.
+     */
+    public static ReceivedDicomObject fromMemory(byte[] dataSet, String transferSyntax, String sourceAETitle, AttributeList command) {
+        return fromMemory(dataSet, dataSet.length, transferSyntax, sourceAETitle, command);
+    }
+
+
+    /**
+     * Construct from a data set received over the network into a buffer
+     * that may be larger than the data set, so that it need not be copied.
+     *
+     * @param dataSet Buffer that starts with the raw data set in the given transfer syntax.
+     *
+     * @param dataSetLength Number of bytes in the data set.
+     *
+     * @param transferSyntax Transfer syntax negotiated for the presentation context.
+     *
+     * @param sourceAETitle Sender.
+     *
+     * @param command C-STORE-RQ that delivered the data set.
+     */
+    public static ReceivedDicomObject fromMemory(byte[] dataSet, int dataSetLength, String transferSyntax, String sourceAETitle, AttributeList command) {
+        return new ReceivedDicomObject(dataSet, dataSetLength, null, transferSyntax, sourceAETitle, command);
+    }
+
+
+    /**
+     * Construct from a Part 10 file written by the file based receiver.
+     *
+     * @param file DICOM file.
+     *
+     * @param transferSyntax Transfer syntax of the data set in the file.
+     *
+     * @param sourceAETitle Sender.
+     */
+    public static ReceivedDicomObject fromFile(File file, String transferSyntax, String sourceAETitle) {
+        return fromFile(file, transferSyntax, sourceAETitle, null);
+    }
+
+
+    /**
+     * Construct from a Part 10 file that a data set received over the
+     * network was written to.
+     *
+     * @param file DICOM file.
+     *
+     * @param transferSyntax Transfer syntax of the data set in the file.
+     *
+     * @param sourceAETitle Sender.
+     *
+     * @param command C-STORE-RQ that delivered the data set, or null if not known.
+     */
+    public static ReceivedDicomObject fromFile(File file, String transferSyntax, String sourceAETitle, AttributeList command) {
+        return new ReceivedDicomObject(null, 0, file, transferSyntax, sourceAETitle, command);
+    }
+
+
+    /**
+     * @return True if the object is held in memory.
+     */
+    public boolean isInMemory() {
+        return dataSet != null;
+    }
+
+
+    /**
+     * @return Buffer that starts with the raw data set (no file meta
+     * information), or null if file based.  Only the first
+     * <code>getDataSetLength</code> bytes belong to the data set.
+     */
+    public byte[] getDataSet() {
+        return dataSet;
+    }
+
+
+    /**
+     * @return Number of bytes of the data set held in memory, or 0 if file based.
+     */
+    public int getDataSetLength() {
+        return dataSetLength;
+    }
+
+
+    /**
+     * @return Part 10 file, or null if memory based.
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * Open the file of a file based object, and read it only through the
+     * open file until <code>close</code> is called.  The object can then
+     * still be read in full if the file is deleted or replaced in the
+     * meantime.  Does nothing for objects in memory or if already open.
+     *
+     * @throws FileNotFoundException If the file no longer exists.
+     */
+    public synchronized void open() throws FileNotFoundException {
+        if ((file != null) && (openFile == null)) {
+            openFile = new FileInputStream(file);
+        }
+    }
+
+
+    /**
+     * Close the file opened by <code>open</code>.  Does nothing if it is not open.
+     */
+    public synchronized void close() {
+        if (openFile != null) {
+            try {
+                openFile.close();
+            }
+            catch (IOException e) {
+                Log.get().fine("Ignoring exception while closing " + file.getAbsolutePath() + " : " + e);
+            }
+            openFile = null;
+        }
+    }
+
+
+    /**
+     * Get a stream that reads the file from the beginning, through the open
+     * file if there is one.  Closing the stream does not close the open file.
+     */
+    private InputStream getFileInputStream() throws IOException {
+        if (openFile == null) {
+            return new FileInputStream(file);
+        }
+        FileChannel channel = openFile.getChannel();
+        channel.position(0);
+        return new FilterInputStream(Channels.newInputStream(channel)) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+
+    /**
+     * Memory map the Part 10 file of a file based object.
+     *
+     * @return Read only mapping of the whole file, which stays valid after
+     * the file is closed or deleted.
+     *
+     * @throws IOException If the file can not be read or is too large to map.
+     */
+    public synchronized ByteBuffer mapFile() throws IOException {
+        FileInputStream fileInputStream = (openFile == null) ? new FileInputStream(file) : openFile;
+        try {
+            FileChannel channel = fileInputStream.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Objects larger than " + Integer.MAX_VALUE + " bytes can not be mapped");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            if (fileInputStream != openFile) {
+                fileInputStream.close();
+            }
+        }
+    }
+
+
+    public String getTransferSyntax() {
+        return transferSyntax;
+    }
+
+
+    public String getSourceAETitle() {
+        return sourceAETitle;
+    }
+
+
+    /**
+     * @return The C-STORE-RQ command that delivered this object, or null if
+     * it was not available (file based receiving).
+     */
+    public AttributeList getCommand() {
+        return command;
+    }
+
+
+    /**
+     * Get the parsed version of the object.  The object is parsed on the first
+     * call and the result is re-used for subsequent calls.
+     *
+     * @return Parsed DICOM.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public synchronized AttributeList getAttributeList() throws IOException, DicomException {
+        if (attributeList == null) {
+            AttributeList al = new AttributeList();
+            if (dataSet != null) {
+                al.read(new DicomInputStream(new ByteArrayInputStream(dataSet, 0, dataSetLength), transferSyntax, false));
+            }
+            else {
+                DicomInputStream dicomInputStream = new DicomInputStream(new BufferedInputStream(getFileInputStream()));
+                try {
+                    al.read(dicomInputStream);
+                }
+                finally {
+                    dicomInputStream.close();
+                }
+            }
+            attributeList = al;
+        }
+        return attributeList;
+    }
+
+
+    /**
+     * Get the attributes that precede the pixel data.  If the full object has
+     * already been parsed then that is returned, otherwise only the header is
+     * read.  This is much cheaper than <code>getAttributeList</code> for large
+     * images.
+     *
+     * @return Header attributes.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public synchronized AttributeList getHeader() throws IOException, DicomException {
+        if (attributeList != null) {
+            return attributeList;
+        }
+        if (header == null) {
+            AttributeList al = new AttributeList();
+            if (dataSet != null) {
+                al.read(new DicomInputStream(new ByteArrayInputStream(dataSet, 0, dataSetLength), transferSyntax, false), TagFromName.PixelData);
+            }
+            else {
+                DicomInputStream dicomInputStream = new DicomInputStream(new BufferedInputStream(getFileInputStream()));
+                try {
+                    al.read(dicomInputStream, TagFromName.PixelData);
+                }
+                finally {
+                    dicomInputStream.close();
+                }
+            }
+            header = al;
+        }
+        return header;
+    }
+
+
+    /**
+     * Get a value that identifies the object, preferring the C-STORE command
+     * so that the object does not have to be parsed.
+     */
+    private String getUID(AttributeTag commandTag, AttributeTag dataTag, AttributeTag metaTag) throws IOException, DicomException {
+        String uid = (command == null) ? null : Attribute.getSingleStringValueOrNull(command, commandTag);
+        if (uid == null) {
+            AttributeList al = getHeader();
+            uid = Attribute.getSingleStringValueOrNull(al, dataTag);
+            if (uid == null) {
+                uid = Attribute.getSingleStringValueOrNull(al, metaTag);
+            }
+        }
+        return (uid == null) ? null : uid.trim();
+    }
+
+
+    /**
+     * @return SOP Instance UID of the object.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public String getSOPInstanceUID() throws IOException, DicomException {
+        return getUID(TagFromName.AffectedSOPInstanceUID, TagFromName.SOPInstanceUID, TagFromName.MediaStorageSOPInstanceUID);
+    }
+
+
+    /**
+     * @return SOP Class UID of the object.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public String getSOPClassUID() throws IOException, DicomException {
+        return getUID(TagFromName.AffectedSOPClassUID, TagFromName.SOPClassUID, TagFromName.MediaStorageSOPClassUID);
+    }
+
+
+    /**
+     * Get the preamble and file meta information that are prepended to an
+     * object held in memory to make it a Part 10 file.
+     *
+     * @param sourceApplicationEntityTitle Put in the file meta information.
+     *
+     * @return Encoded preamble and file meta information, or null if file
+     * based, because the file already has them.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public byte[] getFileMetaInformation(String sourceApplicationEntityTitle) throws IOException, DicomException {
+        if (dataSet == null) {
+            return null;
+        }
+        return encodeFileMetaInformation(getSOPClassUID(), getSOPInstanceUID(), transferSyntax, sourceApplicationEntityTitle);
+    }
+
+
+    /**
+     * Encode the preamble and file meta information that precede a data set
+     * in a Part 10 file.
+     *
+     * @param sopClassUID SOP Class UID of the object.
+     *
+     * @param sopInstanceUID SOP Instance UID of the object.
+     *
+     * @param transferSyntax Transfer syntax of the data set.
+     *
+     * @param sourceApplicationEntityTitle Put in the file meta information.
+     *
+     * @return Encoded preamble and file meta information.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public static byte[] encodeFileMetaInformation(String sopClassUID, String sopInstanceUID, String transferSyntax, String sourceApplicationEntityTitle) throws IOException, DicomException {
+        AttributeList meta = new FileMetaInformation(sopClassUID, sopInstanceUID, transferSyntax, sourceApplicationEntityTitle).getAttributeList();
+        ByteArrayOutputStream metaBytes = new ByteArrayOutputStream(512);
+        meta.write(new DicomOutputStream(metaBytes, TransferSyntax.ExplicitVRLittleEndian, transferSyntax));
+        return metaBytes.toByteArray();
+    }
+
+
+    /**
+     * Write the object as a DICOM Part 10 file, exactly as it was received.
+     * The data set is not parsed or re-encoded.  Objects held in memory get
+     * a preamble and file meta information prepended, file based objects are
+     * copied with a channel transfer.  The output stream is neither flushed
+     * nor closed.
+     *
+     * @param outputStream Destination.
+     *
+     * @param sourceApplicationEntityTitle Put in the file meta information.
+     *
+     * @throws IOException
+     * @throws DicomException
+     */
+    public void writePart10(OutputStream outputStream, String sourceApplicationEntityTitle) throws IOException, DicomException {
+        writePart10(outputStream, getFileMetaInformation(sourceApplicationEntityTitle));
+    }
+
+
+    /**
+     * Write the object as a DICOM Part 10 file with file meta information
+     * that has already been encoded, so that it may be written more than
+     * once without encoding it again.
+     *
+     * @param outputStream Destination.
+     *
+     * @param fileMetaInformation From <code>getFileMetaInformation</code>.
+     *
+     * @throws IOException
+     */
+    public synchronized void writePart10(OutputStream outputStream, byte[] fileMetaInformation) throws IOException {
+        if (dataSet != null) {
+            outputStream.write(fileMetaInformation);
+            outputStream.write(dataSet, 0, dataSetLength);
+        }
+        else {
+            WritableByteChannel channel = Channels.newChannel(outputStream);
+            FileInputStream fileInputStream = (openFile == null) ? new FileInputStream(file) : openFile;
+            try {
+                FileChannel fileChannel = fileInputStream.getChannel();
+                long size = fileChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += fileChannel.transferTo(position, size - position, channel);
+                }
+            }
+            finally {
+                if (fileInputStream != openFile) {
+                    fileInputStream.close();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get the size of the Part 10 file written by <code>writePart10</code>.
+     *
+     * @param fileMetaInformation From <code>getFileMetaInformation</code>.
+     *
+     * @return Size in bytes.
+     */
+    public long getPart10Size(byte[] fileMetaInformation) {
+        return (dataSet != null) ? (fileMetaInformation.length + dataSetLength) : getFileSize();
+    }
+
+
+    /**
+     * @return Size in bytes of the object's data.
+     */
+    public long getSize() {
+        return (dataSet != null) ? dataSetLength : getFileSize();
+    }
+
+
+    /**
+     * Get the size of the file, from the open file if there is one.
+     */
+    private synchronized long getFileSize() {
+        if (openFile != null) {
+            try {
+                return openFile.getChannel().size();
+            }
+            catch (IOException e) {
+                Log.get().fine("Unable to get size of open file " + file.getAbsolutePath() + " : " + e);
+            }
+        }
+        return file.length();
+    }
+
+
+    /**
+     * Release resources held by this object.  Files are deleted.
+     */
+    public void dispose() {
+        close();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return (isInMemory() ? ("memory data set of " + dataSetLength + " bytes") : ("file: " + file.getAbsolutePath())) +
+            " from " + sourceAETitle + " transfer syntax: " + transferSyntax;
+    }
+}
@@ -16,7 +16,8 @@ package edu.umro.dicom.service;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,8 +25,8 @@ import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.restlet.Response;
 import org.restlet.data.MediaType;
@@ -41,17 +42,14 @@ import com.pixelmed.dicom.TransferSyntax;
 import edu.umro.util.Log;
 
 /**
- * Streams DICOM objects directly from a PACS to a client via a zip stream.
+ * Streams DICOM objects directly from a PACS to a client via a zip, tar, or
+ * multipart/related stream.  Each object is written as soon as it arrives.
  * 
  * @author irrer
  * 
  */
 public class RepresentationCMove extends OutputRepresentation implements
-ReceiveDicom {
-
-    /** Buffer size for transferring DICOM files to zip. */
-    private static final int DEFAULT_DICOM_BUFFER_SIZE = 1024; // 10 * 1024 *
-    // 1024;
+ReceiveDicomObject {
 
     /** Name of this program. */
     private static final String PROGRAM_NAME = "dicomsvc";
@@ -63,44 +61,14 @@ ReceiveDicom {
     private AttributeList specification = null;
 
 
-    /**
-     * Make private class that keeps track of whether stream is open.
-     * 
-     * @author irrer
-     * 
-     */
-    private class ZipOut extends ZipOutputStream {
-        boolean open = true;
-
-        public ZipOut(OutputStream outputStream) {
-            super(outputStream);
-        }
-
-        @Override
-        public void close() {
-            if (open) {
-                try {
-                    super.flush();
-                    super.close();
-                }
-                catch (IOException e) {
-                    Log.get().warning("Error while closing DICOM zip output stream: " + e);
-                }
-                finally {
-                    open = false;
-                }
-            }
-        }
-
-        @Override
-        public void flush() {
-            close();
-        }
+    /** Place to write DICOM objects. */
+    private ArchiveStreamWriter archiveOut = null;
 
-    }
+    /** Format of the stream: zip, tar, or multipart. */
+    private MediaType archiveMediaType = null;
 
-    /** Place to write DICOM objects. */
-    private ZipOut zipOut = null;
+    /** Boundary between parts of a multipart stream. */
+    private String boundary = null;
 
     /** Number of DICOM objects sent. */
     private int dicomObjectCount = 0;
@@ -111,22 +79,73 @@ ReceiveDicom {
     /** Maximum number of allowed DICOM files before initiating abort. */
     private int limit = 0;
 
+    /**
+     * Transfer syntax requested by the client, or null to send objects
+     * unchanged in the transfer syntax they were received in.
+     */
+    private String transferSyntax = null;
+
+    /** Permission to perform the retrieve, released when done. */
+    private RetrieveAdmission.Ticket ticket = null;
+
+    /** If true, retrieve a study or patient as concurrent per-series C-MOVEs. */
+    private boolean parallel = false;
+
+    /** How the zip entries are compressed.  Not used for other formats. */
+    private ZipStreamWriter.Compression compression = null;
+
+    /**
+     * SOP instance UIDs of objects written.  A series that is retried may
+     * send objects again, and each must appear only once in the stream.
+     */
+    private final HashSet<String> sentList = new HashSet<String>();
+
     /**
      * Construct a ReSTLet Representation that streams directly from a PACS to a
-     * client via a zip stream.
+     * client.
      * 
      * @param response
      * @param pacs
      * @param specification
+     * @param limit
+     * @param transferSyntax Transfer syntax to convert objects to, or null
+     * to send them exactly as they were received.
+     * @param ticket Admission to perform the retrieve.  Released when the
+     * transfer is done or the representation is released.
+     * @param parallel If true, retrieve a study or patient as concurrent
+     * per-series C-MOVEs merged into the one stream.
+     * @param mediaType Format of the stream, one of zip,
+     * <code>TarStreamWriter.MEDIA_TYPE</code>, or
+     * <code>MultipartStreamWriter.MEDIA_TYPE</code>.
+     * @param compression How the zip entries are compressed.
      */
     public RepresentationCMove(Response response, PACS pacs,
-            AttributeList specification, int limit) {
-        super(MediaType.APPLICATION_ZIP, -1);
+            AttributeList specification, int limit, String transferSyntax, RetrieveAdmission.Ticket ticket, boolean parallel,
+            MediaType mediaType, ZipStreamWriter.Compression compression) {
+        super(mediaType, -1);
         setTransient(true);
+        this.archiveMediaType = mediaType;
+        if (MultipartStreamWriter.MEDIA_TYPE.equals(mediaType)) {
+            boundary = MultipartStreamWriter.newBoundary();
+            setMediaType(MultipartStreamWriter.getMediaType(boundary));
+        }
         this.response = response;
         this.pacs = pacs;
         this.specification = specification;
         this.limit = limit;
+        this.transferSyntax = transferSyntax;
+        this.ticket = ticket;
+        this.parallel = parallel;
+        this.compression = compression;
+    }
+
+    /**
+     * Give up the retrieve slot if the transfer never happened.
+     */
+    @Override
+    public void release() {
+        ticket.release();
+        super.release();
     }
 
     @Override
@@ -168,7 +187,7 @@ ReceiveDicom {
     }
 
     /**
-     * Get the matching DICOM objects and put them into a zip stream. Stream the
+     * Get the matching DICOM objects and put them into the stream. Stream the
      * file to the client as they are received from the PACS.
      * 
      * A special check is done to determine if zero matching DICOM objects were
@@ -185,11 +204,29 @@ ReceiveDicom {
     @Override
     public void write(OutputStream outputStream) throws IOException {
 
-        this.zipOut = new ZipOut(outputStream);
+        if (TarStreamWriter.MEDIA_TYPE.equals(archiveMediaType)) {
+            this.archiveOut = new TarStreamWriter(outputStream);
+        }
+        else if (boundary != null) {
+            this.archiveOut = new MultipartStreamWriter(outputStream, boundary);
+        }
+        else {
+            this.archiveOut = new ZipStreamWriter(outputStream, compression);
+        }
 
         try {
-            DicomGet.get(this.pacs, this.specification, null, limit, this);
+            ArrayList<ReceivedDicomObject> cachedList = InstanceCache.getInstance().getAll(pacs, specification);
+            if ((cachedList != null) && sendCached(cachedList)) {
+                Log.get().info("Served " + cachedList.size() + " DICOM objects from the instance cache for " + response.getRequest());
+            }
+            else if (parallel) {
+                ParallelCMove.get(this.pacs, this.specification, limit, this, ticket);
+            }
+            else {
+                DicomGet.get(this.pacs, this.specification, null, limit, this);
+            }
         } finally {
+            ticket.release();
             if (dicomObjectCount == 0) {
                 Log.get().info(
                         "No matching DICOM objects for "
@@ -197,7 +234,7 @@ ReceiveDicom {
                 outputStream.flush();
                 outputStream.close();
             } else {
-                zipOut.close();
+                closeArchive();
                 Log.get().info(
                         "Found and sent " + dicomObjectCount
                         + " matching DICOM objects for "
@@ -206,46 +243,165 @@ ReceiveDicom {
         }
     }
 
+    /**
+     * Finish the stream.  It is closed when the limit is reached and again
+     * when the transfer ends, and errors are logged rather than thrown so
+     * that they do not stop the transfer from the PACS.
+     */
+    private void closeArchive() {
+        try {
+            archiveOut.close();
+        }
+        catch (IOException e) {
+            Log.get().warning("Error while closing DICOM output stream: " + e);
+        }
+    }
+
+    /**
+     * Send objects from the instance cache.  Each file is opened once and
+     * sent from the open file, so that it can not be evicted part way through.
+     *
+     * @return True if all were sent, false if any must be retrieved from the PACS.
+     */
+    private boolean sendCached(ArrayList<ReceivedDicomObject> cachedList) {
+        for (ReceivedDicomObject receivedDicomObject : cachedList) {
+            try {
+                receivedDicomObject.open();
+            }
+            catch (FileNotFoundException e) {
+                Log.get().info("Cached DICOM file was evicted before it could be sent: " + receivedDicomObject);
+                return false;
+            }
+            try {
+                receive(receivedDicomObject);
+            }
+            finally {
+                receivedDicomObject.close();
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Output stream for the current entry that does not pass flush or
+     * close through to the archive stream, which would end the whole transfer.
+     */
+    private class EntryOutputStream extends FilterOutputStream {
+        EntryOutputStream() {
+            super(archiveOut);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            archiveOut.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    /**
+     * Write a single DICOM object to the stream as its own entry.  If the
+     * client did not ask for a specific transfer syntax, or asked for the one
+     * the object was received in, then the object is copied byte for byte
+     * without being parsed.  Otherwise it is parsed and re-encoded.
+     *
+     * @param receivedDicomObject Object to write.
+     */
+    private void writeEntry(final ReceivedDicomObject receivedDicomObject) throws IOException, DicomException {
+        String sourceApplicationEntityTitle = receivedDicomObject.getSourceAETitle() + " via " + PROGRAM_NAME;
+        String fileName = receivedDicomObject.getSOPInstanceUID() + ".dcm";
+        if ((transferSyntax == null) || transferSyntax.equals(receivedDicomObject.getTransferSyntax())) {
+            // the size is known, so the archive need not buffer the entry
+            final byte[] fileMetaInformation = receivedDicomObject.getFileMetaInformation(sourceApplicationEntityTitle);
+            try {
+                archiveOut.writeEntry(fileName, receivedDicomObject.getPart10Size(fileMetaInformation), new ArchiveStreamWriter.EntrySource() {
+                    @Override
+                    public void writeTo(OutputStream outputStream) throws IOException {
+                        receivedDicomObject.writePart10(outputStream, fileMetaInformation);
+                    }
+                });
+            }
+            finally {
+                dicomObjectCount++;
+            }
+        }
+        else {
+            archiveOut.putNextEntry(fileName);
+            try {
+                AttributeList attributeList = receivedDicomObject.getAttributeList();
+                FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, sourceApplicationEntityTitle);
+                attributeList.write(new DicomOutputStream(new EntryOutputStream(), TransferSyntax.ExplicitVRLittleEndian, transferSyntax));
+            }
+            finally {
+                archiveOut.closeEntry();
+                dicomObjectCount++;
+            }
+        }
+        Log.get().fine("Transferred DICOM object " + dicomObjectCount + " : " + fileName);
+    }
+
+
+    @Override
+    public synchronized void receive(ReceivedDicomObject receivedDicomObject) {
+        if ((limit > 0) && (dicomObjectCount >= limit)) {
+            closeArchive();
+            Log.get().info("Closed DICOM stream because limit of " + limit + " was reached.");
+        }
+        else {
+            try {
+                String sopInstanceUID = receivedDicomObject.getSOPInstanceUID();
+                if (sentList.add(sopInstanceUID)) {
+                    writeEntry(receivedDicomObject);
+                }
+                else {
+                    Log.get().fine("Ignoring duplicate DICOM object " + sopInstanceUID);
+                }
+            }
+            catch (IOException e) {
+                Log.get().severe("Unable to transfer DICOM file to client because of IOException: " + e);
+            }
+            catch (DicomException e) {
+                Log.get().severe("Unable to transfer DICOM file to client because of DicomException: " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Support receivers that only provide parsed DICOM.  The object is
+     * always re-encoded in this case.
+     */
     @Override
-    public void receive(AttributeList attributeList, String transferSyntax,
-            String sourceAETitle) {
+    public synchronized void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
         if ((limit > 0) && (dicomObjectCount >= limit)) {
-            zipOut.close();
+            closeArchive();
             Log.get().info(
                     "Closed DICOM stream because limit of " + limit
                     + " was reached.");
+        } else if (!sentList.add(attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrNull())) {
+            Log.get().fine("Ignoring duplicate DICOM object " + attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrNull());
         } else {
+            String outTransferSyntax = (this.transferSyntax == null) ? TransferSyntax.ExplicitVRLittleEndian : this.transferSyntax;
+            String fileName = attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrNull() + ".dcm";
             try {
                 FileMetaInformation.addFileMetaInformation(attributeList,
-                        TransferSyntax.ExplicitVRLittleEndian, sourceAETitle
+                        outTransferSyntax, sourceAETitle
                         + " via " + PROGRAM_NAME);
-
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(
-                        DEFAULT_DICOM_BUFFER_SIZE);
-                DicomOutputStream dicomOutputStream = new DicomOutputStream(
-                        byteArrayOutputStream,
-                        TransferSyntax.ExplicitVRLittleEndian,
-                        TransferSyntax.ExplicitVRLittleEndian);
-                attributeList.write(dicomOutputStream);
-
-                String fileName = attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrNull() + ".dcm";
-
+                archiveOut.putNextEntry(fileName);
                 try {
-                    zipOut.putNextEntry(new ZipEntry(fileName));
-                    zipOut.write(byteArrayOutputStream.toByteArray());
-                } catch (Exception e) {
-                    String msg = "Unexpected IOException while writing zip stream entry "
-                        + fileName + " : " + e;
-                    Log.get().severe(msg);
+                    attributeList.write(new DicomOutputStream(new EntryOutputStream(),
+                            TransferSyntax.ExplicitVRLittleEndian, outTransferSyntax));
                 } finally {
-                    try {
-                        zipOut.closeEntry();
-                        dicomObjectCount++;
-                    } catch (IOException e) {
-                        String msg = "Unexpected IOException while closing zip stream entry "
-                            + fileName + " : " + e;
-                        Log.get().severe(msg);
-                    }
+                    archiveOut.closeEntry();
+                    dicomObjectCount++;
                 }
 
                 Log.get().fine(
@@ -253,11 +409,11 @@ ReceiveDicom {
                         + Utilities.dicomSummary(attributeList));
             } catch (IOException e) {
                 Log.get().severe(
-                        "Unable to transfer DICOM file to client because of IOException: "
+                        "Unable to transfer DICOM file " + fileName + " to client because of IOException: "
                         + e);
             } catch (DicomException e) {
                 Log.get().severe(
-                        "Unable to transfer DICOM file to client because of DicomException: "
+                        "Unable to transfer DICOM file " + fileName + " to client because of DicomException: "
                         + e);
             }
         }
@@ -89,7 +89,7 @@ public class RestAnonymize {
      * @throws UMROException 
      */
     public void anonymize(AttributeList attributeList, DicomDictionary dictionary) throws RemoteException, DicomException, UMROException {
-        dictionary = (dictionary == null) ? new DicomDictionary() : dictionary;
+        dictionary = (dictionary == null) ? DictionaryRegistry.getInstance().getStandard() : dictionary;
         ArrayList<String> anonymizeList = ServiceConfig.getInstance().getAnonymizeList();
         for (String tagName : anonymizeList) {
             AttributeTag tag = dictionary.getTagFromName(tagName);
@@ -108,7 +108,7 @@ public class RestAnonymize {
 
 
     public void anonymize(AttributeList attributeList) throws RemoteException, DicomException, UMROException {
-        anonymize(attributeList, new DicomDictionary());
+        anonymize(attributeList, DictionaryRegistry.getInstance().getStandard());
     }
 
 
@@ -18,14 +18,15 @@ package edu.umro.dicom.service;
 
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.Restlet;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
 import org.restlet.data.Method;
@@ -37,7 +38,6 @@ import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomDictionary;
 import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.TagFromName;
-import com.pixelmed.dicom.ValueRepresentation;
 import com.pixelmed.network.DicomNetworkException;
 import com.pixelmed.utils.StringUtilities;
 
@@ -45,12 +45,23 @@ import edu.umro.dicom.common.Util;
 import edu.umro.dicom.service.CFind.QueryLevel;
 import edu.umro.util.Log;
 import edu.umro.util.UMROException;
-import edu.umro.util.XML;
 
 public class RestDicomCFind extends Restlet {
 
     static private final String MEDIA_TYPE_PARAMETER_NAME = "media_type";
 
+    /** If true, send results to the client as they arrive from the PACS. */
+    static private final String STREAM_PARAMETER_NAME = "stream";
+
+    /** Maximum number of results on a page. */
+    static private final String PAGE_SIZE_PARAMETER_NAME = "page_size";
+
+    /** Position in the sorted results of the first result on a page, from 0. */
+    static private final String OFFSET_PARAMETER_NAME = "offset";
+
+    /** Attributes to sort paged results by, as in StudyDate:desc,PatientName */
+    static private final String SORT_PARAMETER_NAME = "sort";
+
 
     /**
      * Set the return status, message, and the return content.
@@ -66,46 +77,14 @@ public class RestDicomCFind extends Restlet {
         response.setEntity(msg, MediaType.TEXT_PLAIN);
     }
 
-    private DicomDictionary setDictionary(HashMap<String, String> parameterList) {
-        String dictionaryName = parameterList.get("dictionary");  // TODO : set up local dictionaries
-        if (dictionaryName != null) {
-            // TODO Search 
-            String msg =
-                "The caller specified that the DICOM dictionary " + dictionaryName +
-                " was to be used, but this is not yet supported and is being ignored." +
-                "  The standard dictionary will be used instead.";
-            Log.get().warning(msg);
-        }
-        return new DicomDictionary();
-
-
-    }
-
-
-    @SuppressWarnings("unchecked")
-    private AttributeTag findInDictByName(String normalizedTagName, DicomDictionary dicomDictionary) {
-        for (Iterator<AttributeTag> dictTagIter = (Iterator<AttributeTag>)dicomDictionary.getTagIterator(); dictTagIter.hasNext(); ) {
-            AttributeTag tag = (AttributeTag)dictTagIter.next();
-            String dictTagName = dicomDictionary.getNameFromTag(tag);
-            if (normalizedTagName.equalsIgnoreCase(dictTagName)) {
-                return tag;
-            }
-        }
-        return null;
-    }
-
-
-
-    @SuppressWarnings("unchecked")
-    private AttributeTag findAttribute(AttributeList attributeList, String tagName, DicomDictionary dicomDictionary) {
-        for (Iterator<Attribute> iterator = attributeList.values().iterator(); iterator.hasNext(); ) {
-            Attribute attribute = iterator.next();
-            String dictName = dicomDictionary.getNameFromTag(attribute.getTag());
-            if ((dictName != null) && dictName.equalsIgnoreCase(tagName)) {
-                return attribute.getTag();
-            }
-        }
-        return null;
+    /**
+     * Get the dictionary named by the <code>dictionary</code> parameter, or the
+     * standard dictionary if none was named.
+     *
+     * @return Dictionary, or null if the named dictionary does not exist.
+     */
+    private DicomDict setDictionary(HashMap<String, String> parameterList) {
+        return DictionaryRegistry.getInstance().get(parameterList.get("dictionary"));
     }
 
 
@@ -127,7 +106,7 @@ public class RestDicomCFind extends Restlet {
      * can use this list to determine if the caller specified any parameters that will
      * not be recognized and should be considered erroneous.
      */
-    private ArrayList<String> setAttributeValues(AttributeList requestAttributeList, HashMap<String, String> parameterList, DicomDictionary dicomDictionary) {
+    private ArrayList<String> setAttributeValues(AttributeList requestAttributeList, HashMap<String, String> parameterList, DicomDict dicomDictionary) {
         ArrayList<String> recognizedParameters = new ArrayList<String>();
         for (String tagName : parameterList.keySet()) {
             String normalizedTagName = tagName.trim().toLowerCase().replaceFirst("^dt", "");
@@ -139,14 +118,7 @@ public class RestDicomCFind extends Restlet {
             else {
                 value = StringUtilities.removeLeadingOrTrailingWhitespaceOrISOControl(value).trim();
 
-                // first look in the request attributes for a match.  If it is there, then use
-                // it.  Search this list before the DICOM dictionary because it is most likely
-                // here and this is a smaller list to search.
-                AttributeTag dictTag = findAttribute(requestAttributeList, normalizedTagName, dicomDictionary);
-
-                if (dictTag == null) {
-                    dictTag = findInDictByName(normalizedTagName, dicomDictionary);
-                }
+                AttributeTag dictTag = dicomDictionary.getTagByCaseInsensitiveName(normalizedTagName);
                 if (dictTag != null) {  // if the dictTag is null, then it was probably not intended as a DICOM tag, so just ignore it.
                     Attribute requestAttribute = (Attribute)requestAttributeList.get(dictTag);
                     if (requestAttribute == null) {
@@ -179,91 +151,7 @@ public class RestDicomCFind extends Restlet {
     }
 
 
-    private String getHtmlItemSpecification(AttributeTag tag, AttributeList attributeList, DicomDictionary dicomDictionary) {
-        String value = attributeList.get(tag).getSingleStringValueOrNull();
-        if (value != null) {
-            return dicomDictionary.getNameFromTag(tag) + "=" + value;
-        }
-        return null;
-    }
-
-
-    private String formatHtmlDownload(Request request, AttributeList attributeList, PACS pacs, QueryLevel queryLevel, DicomDictionary dicomDictionary) {
-        String specification = null;
-
-        switch (queryLevel) {
-            case PATIENT:
-                specification = getHtmlItemSpecification(TagFromName.PatientID, attributeList, dicomDictionary);
-                break;
-            case STUDY:
-                specification = getHtmlItemSpecification(TagFromName.StudyInstanceUID, attributeList, dicomDictionary);
-                break;
-            case SERIES:
-                specification = getHtmlItemSpecification(TagFromName.SeriesInstanceUID, attributeList, dicomDictionary);
-                break;
-            case IMAGE:
-                specification = getHtmlItemSpecification(TagFromName.SOPInstanceUID, attributeList, dicomDictionary);
-                break;
-        }
-
-        if (specification == null) {
-            return "  <td></td>";
-        }
-        else {
-            StringBuffer html = new StringBuffer("  <td>");
-            String download = request.getHostRef() + "/dicom/get?aetitle=" + pacs.aeTitle + "&media_type=application/zip&" + specification;
-            html.append("<a href='" + download + "' >Download</a>");
-            html.append("</td>\n");
-            return html.toString();
-        }
-    }
-
-
-    private String formatHtmlList(Request request, AttributeList attributeList, PACS pacs, QueryLevel queryLevel, DicomDictionary dicomDictionary) {
-        String specification = null;
-
-        String level = null;
-
-        switch (queryLevel) {
-            case PATIENT:
-                specification = getHtmlItemSpecification(TagFromName.PatientID, attributeList, dicomDictionary);
-                level = QueryLevel.STUDY.toString();
-                break;
-            case STUDY:
-                specification = getHtmlItemSpecification(TagFromName.StudyInstanceUID, attributeList, dicomDictionary);
-                level = QueryLevel.SERIES.toString();
-                break;
-            case SERIES:
-                specification = getHtmlItemSpecification(TagFromName.SeriesInstanceUID, attributeList, dicomDictionary);
-                level = QueryLevel.IMAGE.toString();
-                break;
-            case IMAGE:
-                break;
-        }
-
-        if (specification == null) {
-            return "  <td></td>";
-        }
-        else {
-            StringBuffer html = new StringBuffer("  <td>");
-            String download = request.getHostRef() + "/dicom/cfind/" + level + "?aetitle=" + pacs.aeTitle + "&" + specification;
-            html.append("<a href='" + download + "' >List</a>");
-            html.append("</td>\n");
-            return html.toString();
-        }
-    }
-
-
-    private boolean isInterestingAttribute(AttributeTag tag, HashSet<AttributeTag> hasValues, DicomDictionary dicomDictionary) {
-        if (!hasValues.contains(tag)) return false;
-        if (tag.equals(TagFromName.QueryRetrieveLevel)) return false;
-        byte[] vr = dicomDictionary.getValueRepresentationFromTag(tag);
-        if (ValueRepresentation.isUniqueIdentifierVR(vr)) return false;
-        return true;
-    }
-
-    
-    private String getQueryLevelAsString(QueryLevel queryLevel, ArrayList<AttributeList> responseData) {
+    private String getQueryLevelAsString(QueryLevel queryLevel, List<AttributeList> responseData) {
         String queryLevelText = queryLevel.toString();
         if (!responseData.isEmpty()) {
             Attribute ql = responseData.get(0).get(TagFromName.QueryRetrieveLevel);
@@ -275,89 +163,169 @@ public class RestDicomCFind extends Restlet {
         return queryLevelText;
     }
 
-    
-    private String formatToHtml(Request request, ArrayList<AttributeList> responseData, PACS pacs, QueryLevel queryLevel, DicomDictionary dicomDictionary) {
-        StringBuffer html = new StringBuffer(Util.getHtmlHead("CFind"));
-        String queryLevelText = getQueryLevelAsString(queryLevel, responseData);
-        html.append("Query Level: " + queryLevelText +  " &nbsp; &nbsp; &nbsp; &nbsp; &nbsp; Number of entries: " + responseData.size() + "</p>\n");
-        html.append("\n");
-        html.append("<table class='sortable' id='anyid' cellpadding='0' cellspacing='0'>\n");
-
-        if (!responseData.isEmpty()) {
 
-            // go through all values and eliminate empty columns
-            HashSet<AttributeTag> hasValues = new HashSet<AttributeTag>();
-            for (AttributeList attributeList : responseData) {
-                for (Object oTag : attributeList.keySet()) {
+    /**
+     * Sends C-FIND results that have all been received, or one page of them.
+     * The value of each cell is read once, and the HTML columns are those
+     * that have a value in at least one result.
+     */
+    private class ResultRepresentation extends TextStreamRepresentation {
+        private final QueryLevel queryLevel;
+        private final List<AttributeList> responseData;
+        private final List<PACS> sourceList;
+        private final List<ParallelCFind.PacsStatus> pacsStatusList;
+        private final int total;
+        private final CFindResultWriter resultWriter;
+        private final String[][] valueTable;
+
+        /**
+         * @param responseData Results to send.
+         *
+         * @param sourceList PACS that each result came from.
+         *
+         * @param pacsStatusList Status of each PACS.
+         *
+         * @param total Number of results, of which these may be a page.
+         */
+        ResultRepresentation(Request request, List<AttributeList> responseData, List<PACS> sourceList, List<ParallelCFind.PacsStatus> pacsStatusList, int total,
+                QueryLevel queryLevel, DicomDictionary dicomDictionary, CFindResultWriter.Format format) {
+            super(format.mediaType);
+            this.queryLevel = queryLevel;
+            this.responseData = responseData;
+            this.sourceList = sourceList;
+            this.pacsStatusList = pacsStatusList;
+            this.total = total;
+
+            ArrayList<AttributeTag> columnList = new ArrayList<AttributeTag>();
+            if ((format == CFindResultWriter.Format.HTML) && !responseData.isEmpty()) {
+                ArrayList<AttributeTag> candidateList = new ArrayList<AttributeTag>();
+                for (Object oTag : responseData.get(0).keySet()) {
                     AttributeTag tag = (AttributeTag)oTag;
-                    Attribute a = attributeList.get(tag);
-                    String value = a.getSingleStringValueOrEmptyString();
-                    if (!value.isEmpty()) hasValues.add(tag);
+                    if (CFindResultWriter.isColumn(tag, dicomDictionary)) candidateList.add(tag);
+                }
+                String[][] candidateTable = new String[responseData.size()][candidateList.size()];
+                boolean[] hasValue = new boolean[candidateList.size()];
+                for (int r = 0; r < responseData.size(); r++) {
+                    for (int c = 0; c < candidateList.size(); c++) {
+                        String value = Attribute.getSingleStringValueOrEmptyString(responseData.get(r), candidateList.get(c));
+                        candidateTable[r][c] = value;
+                        if (value.length() > 0) hasValue[c] = true;
+                    }
                 }
-            }
 
-            AttributeList first = responseData.get(0);
-            html.append("  <tr>\n");
-            if (queryLevel != QueryLevel.IMAGE) html.append("    <th>List</th>");
-            html.append("    <th>Download</th>");
-            for (Object oTag : first.keySet()) {
-                AttributeTag tag = (AttributeTag)oTag;
-                if (isInterestingAttribute(tag, hasValues, dicomDictionary)) {
-                    String title = dicomDictionary.getNameFromTag(tag);
-                    html.append("    <th title='" + title + "'>");
-                    html.append(dicomDictionary.getFullNameFromTag(tag));
-                    html.append("    </th>");
+                // eliminate empty columns
+                ArrayList<Integer> keep = new ArrayList<Integer>();
+                for (int c = 0; c < candidateList.size(); c++) {
+                    if (hasValue[c]) {
+                        columnList.add(candidateList.get(c));
+                        keep.add(c);
+                    }
                 }
-            }
-            html.append("  </tr>\n");
-
-            boolean even = true;
-            for (AttributeList attributeList : responseData) {
-                html.append("  <tr class='" + (even ? "even" : "odd") + "'>\n");
-                if (queryLevel != QueryLevel.IMAGE) html.append(formatHtmlList(request, attributeList, pacs, queryLevel, dicomDictionary));
-                html.append(formatHtmlDownload(request, attributeList, pacs, queryLevel, dicomDictionary));
-                even = !even;
-                for (Object oTag : attributeList.keySet()) {
-                    AttributeTag tag = (AttributeTag)oTag;
-                    if (isInterestingAttribute(tag, hasValues, dicomDictionary)) {
-                        html.append("    <td>");
-                        Attribute a = attributeList.get(tag);
-                        html.append(a.getSingleStringValueOrEmptyString());
-                        html.append("</td>\n");
+                valueTable = new String[responseData.size()][keep.size()];
+                for (int r = 0; r < responseData.size(); r++) {
+                    for (int k = 0; k < keep.size(); k++) {
+                        valueTable[r][k] = candidateTable[r][keep.get(k)];
                     }
                 }
-                html.append("  </tr>\n");
             }
+            else {
+                valueTable = null;
+            }
+            resultWriter = new CFindResultWriter(format, queryLevel, dicomDictionary, request.getHostRef().toString(), columnList);
         }
-        html.append("\n</html></body>");
-        return html.toString();
-    }
 
+        CFindResultWriter getResultWriter() {
+            return resultWriter;
+        }
 
-    private String formatToXml(Request request, ArrayList<AttributeList> responseData, QueryLevel queryLevel, DicomDictionary dicomDictionary) {
-        StringBuffer xml = new StringBuffer("<?xml version='1.0' encoding='utf-8'?>\n");
-        xml.append("<CFindResultList QueryLevel='" + queryLevel + "'>\n");
+        @Override
+        public void write(Writer writer) throws IOException {
+            resultWriter.writeHeader(writer, getQueryLevelAsString(queryLevel, responseData), total, pacsStatusList);
+            for (int r = 0; r < responseData.size(); r++) {
+                resultWriter.writeResult(writer, responseData.get(r), sourceList.get(r), (valueTable == null) ? null : valueTable[r]);
+            }
+            resultWriter.writeTrailer(writer, null);
+        }
+    }
 
-        for (AttributeList attributeList : responseData) {
-            xml.append("  <CFindResult>\n");
-            for (Object oTag : attributeList.keySet()) {
+
+    /**
+     * Sends C-FIND results to the client as they arrive from the PACS instead
+     * of waiting for all of them.  Each result is rendered and flushed on its
+     * own, so the time to the first result is that of the first PACS response
+     * and memory use does not grow with the number of results.  Because the
+     * HTML columns can not be chosen by looking at all of the results, they
+     * are taken from the request attributes.  The status of each PACS is
+     * reported after the results.
+     */
+    private class StreamingRepresentation extends TextStreamRepresentation implements ParallelCFind.ResultListener {
+        private final ArrayList<PACS> pacsList;
+        private final QueryLevel queryLevel;
+        private final AttributeList requestAttributeList;
+        private final long limit;
+        private final CFindResultWriter resultWriter;
+        private Writer writer = null;
+        private IOException writeFailure = null;
+
+        StreamingRepresentation(Request request, ArrayList<PACS> pacsList, QueryLevel queryLevel, AttributeList requestAttributeList, long limit, DicomDictionary dicomDictionary, CFindResultWriter.Format format) {
+            super(format.mediaType);
+            this.pacsList = pacsList;
+            this.queryLevel = queryLevel;
+            this.requestAttributeList = requestAttributeList;
+            this.limit = limit;
+            ArrayList<AttributeTag> columnList = new ArrayList<AttributeTag>();
+            for (Object oTag : requestAttributeList.keySet()) {
                 AttributeTag tag = (AttributeTag)oTag;
-                String tagName = dicomDictionary.getNameFromTag(tag);
-                String value = attributeList.get(tag).getSingleStringValueOrEmptyString();
-                value = value.replace('\0', ' ');
-                xml.append("    <"+tagName+">"+XML.escapeSpecialChars(value)+"</"+tagName+">\n");
+                if (CFindResultWriter.isColumn(tag, dicomDictionary)) {
+                    columnList.add(tag);
+                }
             }
-            xml.append("  </CFindResult>\n");
+            resultWriter = new CFindResultWriter(format, queryLevel, dicomDictionary, request.getHostRef().toString(), columnList);
         }
-        xml.append("</CFindResultList>\n");
 
-        return xml.toString();
+        /**
+         * Write one result and push it to the client.  If the client has gone
+         * away then the remaining results are ignored.
+         */
+        @Override
+        public void result(AttributeList attributeList, PACS pacs) {
+            if (writeFailure == null) {
+                try {
+                    resultWriter.writeResult(writer, attributeList, pacs, null);
+                    writer.flush();
+                }
+                catch (IOException e) {
+                    writeFailure = e;
+                    Log.get().info("Unable to send C-FIND result to client, ignoring the remaining results: " + e);
+                }
+            }
+        }
+
+        @Override
+        public void write(Writer writer) throws IOException {
+            this.writer = writer;
+            resultWriter.writeHeader(writer, queryLevel.toString(), -1, null);
+            writer.flush();
+
+            ParallelCFind parallelCFind;
+            try {
+                parallelCFind = new ParallelCFind(pacsList, queryLevel, requestAttributeList, limit, this);
+            }
+            catch (DicomException e) {
+                throw new IOException("Unable to perform C-FIND: " + e);
+            }
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+
+            resultWriter.writeTrailer(writer, parallelCFind.getPacsStatusList());
+        }
     }
 
 
     private void cfind(Request request, Response response, QueryLevel queryLevel) throws DicomNetworkException, DicomException, IOException, UMROException {
         HashMap<String, String> parameterList = Util.getParameterList(request);
-        AttributeList requestAttributeList = CFind.constructDefaultList(queryLevel, null);
+        AttributeList requestAttributeList = CFind.constructDefaultList(queryLevel, DictionaryRegistry.getInstance().getStandard());
 
         long limit = -1;
 
@@ -366,53 +334,158 @@ public class RestDicomCFind extends Restlet {
         }
 
 
-        DicomDictionary dicomDictionary = setDictionary(parameterList);
+        DicomDict dicomDictionary = setDictionary(parameterList);
+        if (dicomDictionary == null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unknown dictionary " + parameterList.get("dictionary") +
+                    " .  Known dictionaries are: " + DictionaryRegistry.getInstance().getNameList());
+            return;
+        }
 
         // AnonymizeGUI anonymize = AnonymizeGUI.get(request, response, parameterList);
 
         setAttributeValues(requestAttributeList, parameterList, dicomDictionary);
 
-        ArrayList<AttributeList> responseData = new ArrayList<AttributeList>();
-
         ArrayList<PACS> pacsList = ServiceConfig.getInstance().getPacsList();
         String pacsValue = parameterList.get("aetitle");
-        PACS requestedPacs = null;
+        ArrayList<PACS> requestedPacsList = new ArrayList<PACS>();
         if (pacsValue != null) {
             for (String pacsName : pacsValue.split(",")) {
                 for (PACS pacs : pacsList) {
-                    if (pacs.aeTitle.equalsIgnoreCase(pacsName.trim())) {
-                        requestedPacs = pacs;
-                        CFind cFind = new CFind(pacs, queryLevel, requestAttributeList, limit);
-                        responseData.addAll(cFind.getList());
+                    if (pacs.aeTitle.equalsIgnoreCase(pacsName.trim()) && !requestedPacsList.contains(pacs)) {
+                        requestedPacsList.add(pacs);
                     }
                 }
             }
         }
         else {
-            for (PACS pacs : pacsList) {
-                CFind cFind = new CFind(pacs, queryLevel, requestAttributeList, limit);
-                try {
-                    ArrayList<AttributeList> resultList = cFind.getList();
-                    responseData.addAll(resultList);
-                }
-                catch (java.rmi.RemoteException ex) {
-                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, ex.getMessage());
-                    return;
-                }
-            }
+            requestedPacsList.addAll(pacsList);
+        }
+
+        CFindResultWriter.Format format = CFindResultWriter.Format.fromMediaTypeName(parameterList.get(MEDIA_TYPE_PARAMETER_NAME));
+        if (format == null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unsupported " + MEDIA_TYPE_PARAMETER_NAME + " " + parameterList.get(MEDIA_TYPE_PARAMETER_NAME) +
+                    " .  Use one of " + MediaType.TEXT_HTML.getName() + " " + MediaType.TEXT_XML.getName() + " " + CFindResultWriter.APPLICATION_DICOM_JSON.getName());
+            return;
+        }
+
+        boolean stream = parameterList.containsKey(STREAM_PARAMETER_NAME) && parameterList.get(STREAM_PARAMETER_NAME).trim().equalsIgnoreCase("true");
+        boolean pageRequested = parameterList.containsKey(PAGE_SIZE_PARAMETER_NAME) || parameterList.containsKey(OFFSET_PARAMETER_NAME) || parameterList.containsKey(SORT_PARAMETER_NAME);
+
+        if (stream && pageRequested) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Results can not be both streamed and paged.  Use either " + STREAM_PARAMETER_NAME +
+                    " or " + PAGE_SIZE_PARAMETER_NAME + ", " + OFFSET_PARAMETER_NAME + ", and " + SORT_PARAMETER_NAME + ".");
+            return;
         }
 
-        if (parameterList.containsKey(MEDIA_TYPE_PARAMETER_NAME) && parameterList.get(MEDIA_TYPE_PARAMETER_NAME).equalsIgnoreCase(MediaType.TEXT_XML.getName())) {
+        if (stream) {
             setError(response, Status.SUCCESS_OK, "Success");
-            String xml = formatToXml(request, responseData, queryLevel, dicomDictionary);
-            response.setEntity(xml, MediaType.TEXT_XML);
+            response.setEntity(new StreamingRepresentation(request, requestedPacsList, queryLevel, requestAttributeList, limit, dicomDictionary, format));
+            return;
+        }
 
+        // HTML is paged by default so that the first page is small and the browser does not have to sort a large table
+        int defaultPageSize = ServiceConfig.getInstance().getCFindPageSize();
+        if (pageRequested || ((format == CFindResultWriter.Format.HTML) && (defaultPageSize > 0))) {
+            page(request, response, parameterList, requestedPacsList, queryLevel, requestAttributeList, limit, dicomDictionary, format, defaultPageSize);
+            return;
         }
-        else {
-            String html = formatToHtml(request, responseData, requestedPacs, queryLevel, dicomDictionary);
-            setError(response, Status.SUCCESS_OK, "SUCCESS_OK");
-            response.setEntity(html, MediaType.TEXT_HTML);
+
+        ParallelCFind parallelCFind = new ParallelCFind(requestedPacsList, queryLevel, requestAttributeList, limit);
+        ParallelCFind.PacsStatus overLimit = parallelCFind.getOverLimit();
+        if (overLimit != null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, overLimit.message);
+            return;
+        }
+
+        ArrayList<AttributeList> responseData = parallelCFind.getList();
+        ArrayList<PACS> sourceList = new ArrayList<PACS>(responseData.size());
+        for (AttributeList attributeList : responseData) {
+            sourceList.add(parallelCFind.getSource(attributeList));
         }
+        setError(response, Status.SUCCESS_OK, "Success");
+        response.setEntity(new ResultRepresentation(request, responseData, sourceList, parallelCFind.getPacsStatusList(), responseData.size(), queryLevel, dicomDictionary, format));
+    }
+
+
+    /**
+     * Get a non-negative integer parameter.
+     *
+     * @return Value, the default if not given, or null if it is not valid, in which case the response has been set.
+     */
+    private Integer getIntParameter(Response response, HashMap<String, String> parameterList, String name, int defaultValue, int minimum) {
+        String value = parameterList.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int i = Integer.parseInt(value.trim());
+            if (i >= minimum) {
+                return i;
+            }
+        }
+        catch (NumberFormatException e) {
+            // fall through to error
+        }
+        setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Invalid " + name + " " + value + " .  It must be an integer of at least " + minimum + ".");
+        return null;
+    }
+
+
+    /**
+     * Get the link to this request without the offset and sort, so that
+     * they can be appended for other pages and sorts.
+     */
+    private String getPageUrl(Request request) {
+        Form form = request.getResourceRef().getQueryAsForm();
+        form.removeAll(OFFSET_PARAMETER_NAME, true);
+        form.removeAll(SORT_PARAMETER_NAME, true);
+        String query = form.getQueryString();
+        return request.getResourceRef().getPath() + "?" + (((query == null) || (query.length() == 0)) ? "" : (query + "&"));
+    }
+
+
+    /**
+     * Send one page of the sorted results.  The whole result set is fetched
+     * from the PACS on the first request and kept, so that other pages and
+     * sorts are cut from it without querying the PACS again.
+     */
+    private void page(Request request, Response response, HashMap<String, String> parameterList, ArrayList<PACS> requestedPacsList, QueryLevel queryLevel,
+            AttributeList requestAttributeList, long limit, DicomDict dicomDictionary, CFindResultWriter.Format format, int defaultPageSize) throws DicomException {
+        Integer pageSize = getIntParameter(response, parameterList, PAGE_SIZE_PARAMETER_NAME, (defaultPageSize > 0) ? defaultPageSize : Integer.MAX_VALUE, 1);
+        Integer offset = getIntParameter(response, parameterList, OFFSET_PARAMETER_NAME, 0, 0);
+        if ((pageSize == null) || (offset == null)) {
+            return;
+        }
+
+        List<CFindPager.SortKey> sortList;
+        try {
+            sortList = CFindPager.parseSort(parameterList.get(SORT_PARAMETER_NAME), dicomDictionary, queryLevel);
+        }
+        catch (DICOMRestException e) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        CFindPager.ResultSet resultSet = CFindPager.getInstance().find(requestedPacsList, queryLevel, requestAttributeList, limit, sortList);
+        for (ParallelCFind.PacsStatus status : resultSet.getPacsStatusList()) {
+            if (status.outcome == ParallelCFind.Outcome.OVER_LIMIT) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, status.message);
+                return;
+            }
+        }
+
+        int end = (int)Math.min((long)offset + pageSize, resultSet.getTotal());
+        ArrayList<AttributeList> page = new ArrayList<AttributeList>();
+        ArrayList<PACS> sourceList = new ArrayList<PACS>();
+        for (int r = offset; r < end; r++) {
+            page.add(resultSet.get(r));
+            sourceList.add(resultSet.getSource(r));
+        }
+
+        ResultRepresentation representation = new ResultRepresentation(request, page, sourceList, resultSet.getPacsStatusList(), resultSet.getTotal(), queryLevel, dicomDictionary, format);
+        representation.getResultWriter().setPage(offset, pageSize, getPageUrl(request), sortList);
+        setError(response, Status.SUCCESS_OK, "Success");
+        response.setEntity(representation);
     }
 
 
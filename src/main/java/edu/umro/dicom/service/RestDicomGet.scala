@@ -17,6 +17,7 @@ package edu.umro.dicom.service
  */
 
 import java.util.ArrayList
+import java.util.Date
 import java.io.IOException
 import java.util.zip.ZipOutputStream
 import java.util.zip.ZipException
@@ -26,6 +27,7 @@ import java.io.PipedOutputStream
 import java.io.ByteArrayOutputStream
 import java.io.BufferedInputStream
 import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
 import java.util.zip.ZipEntry
 import org.restlet.Restlet
 import org.restlet.Application
@@ -45,6 +47,7 @@ import edu.umro.util.Log
 import org.restlet.data.Parameter
 import java.io.PipedInputStream
 import org.restlet.representation.Representation
+import org.restlet.representation.InputRepresentation
 import org.restlet.resource.ServerResource
 import org.restlet.resource.Get
 
@@ -65,8 +68,46 @@ class RestDicomGet() extends Restlet { // StatusFilter {
                 "Some PACS allow you to get DICOM files by PatientName or other\n" +
                 "parameters, but the four attributes listed above work on all PACS.\n" +
                 "\n" +
-                "The following media types are supported:\n" +
+                "DICOM files are sent in the transfer syntax they are stored in.  To\n" +
+                "have them converted, use:\n" +
+                "\n" +
+                "    transfer_syntax=[uid]    One of " + Utilities.listToString(Utilities.REENCODABLE_TRANSFER_SYNTAX_LIST) + "\n" +
+                "\n" +
+                "A study or patient may be retrieved one series at a time with several series\n" +
+                "transferring at once, which is faster for large studies.  To do this, use:\n" +
+                "\n" +
+                "    parallel=true\n" +
+                "\n" +
+                "A zip file is compressed as configured unless this is given:\n" +
+                "\n" +
+                "    compression=stored            No compression, fastest on a fast network\n" +
+                "    compression=deflate[:level]   Compressed as sent, level 0 to 9\n" +
+                "    compression=parallel[:level]  Compressed on several threads\n" +
+                "\n" +
+                "The following media types are supported, given with media_type=[type]:\n" +
                 "    application/zip\n" +
+                "    multipart/related    One application/dicom part per file, as in DICOMweb\n" +
+                "    application/x-tar    Uncompressed tar file\n" +
+                "\n" +
+                "Multipart and tar files are sent a file at a time as they arrive, so a client\n" +
+                "can start using them before the transfer ends.\n" +
+                "\n" +
+                "A single image (given by SOPInstanceUID) may be rendered with media_type\n" +
+                "image/jpeg or image/png, using these optional parameters as in WADO:\n" +
+                "\n" +
+                "    rows=[n]                 Maximum height in pixels\n" +
+                "    columns=[n]              Maximum width in pixels\n" +
+                "    region=[l,t,r,b]         Part of the image, each 0 to 1\n" +
+                "    windowCenter=[value]     Window center, default from the image\n" +
+                "    windowWidth=[value]      Window width, default from the image\n" +
+                "    frameNumber=[n]          Frame of a multi-frame image, default 1\n" +
+                "    imageQuality=[1-100]     JPEG quality\n" +
+                "\n" +
+                "A single frame of a multi-frame image may be gotten without the rest of\n" +
+                "it being parsed, using frameNumber=[n] with one of these media types:\n" +
+                "\n" +
+                "    application/dicom          Single frame DICOM object derived from the image\n" +
+                "    application/octet-stream   Frame as stored, compressed or not\n" +
                 "\n" +
                 "The following PACS can be accessed:\n" +
                 Utilities.pacsList.map(p => "    " + p.aeTitle + "\n").fold("") {(total, s) => total + s} + "\n" +
@@ -85,8 +126,10 @@ class RestDicomGet() extends Restlet { // StatusFilter {
                 false
             }
 
-        MediaType.APPLICATION_ZIP
-        val mediaType = Utilities.getMediaType(request, response, List(MediaType.APPLICATION_ZIP), paramList)
+        val mediaType = Utilities.getMediaType(request, response, List(MediaType.APPLICATION_ZIP, MultipartStreamWriter.MEDIA_TYPE, TarStreamWriter.MEDIA_TYPE, MediaType.IMAGE_JPEG, MediaType.IMAGE_PNG, Utilities.DICOM_MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM), paramList)
+
+        // must be before the DICOM attributes because rows and columns are also attribute names
+        val renderParameters = Utilities.getRenderParameters(response, paramList, mediaType)
 
         val specification:Option[AttributeList] = Utilities.getDicomAttributes(request, response, paramList) match {
             case Some(s) if (s.size > 1) || ((s.size > 0) && s.get(TagFromName.QueryRetrieveLevel) == null) => Some(s)
@@ -102,11 +145,122 @@ class RestDicomGet() extends Restlet { // StatusFilter {
 
         val limit = Utilities.getLimit(response, paramList)
 
+        val transferSyntax = Utilities.getTransferSyntax(response, paramList)
+
+        val parallel = Utilities.getParallel(response, paramList)
+
+        val compression = Utilities.getCompression(response, paramList)
+
         val allRecognized = Utilities.checkForUnrecognizedParameters(response, paramList)
 
-        def sendDicom:Unit = {
-            response.setStatus(Status.SUCCESS_OK)  // have to do this before starting the transfer or Restlet freaks.
-            response.setEntity(new RepresentationCMove(response, pacs.get, specification.get, limit.get))
+        def user = if (request.getChallengeResponse != null) request.getChallengeResponse.getIdentifier else request.getClientInfo.getAddress
+
+        def tooBusy(what:String) = {
+            val admission = RetrieveAdmission.getInstance
+            val msg = "The service is too busy to " + what + ".  Try again in " + admission.getRetryAfterSeconds + " seconds."
+            response.setRetryAfter(new Date(System.currentTimeMillis + (admission.getRetryAfterSeconds * 1000L)))
+            response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, msg)
+            response.setEntity(msg, MediaType.TEXT_PLAIN)
+        }
+
+        def sendDicom(mt:MediaType):Unit = {
+            val priority = RetrieveAdmission.Priority.fromSpecification(specification.get)
+            val ticket = RetrieveAdmission.getInstance.acquire(user, priority)
+            if (ticket == null) {
+                tooBusy("start this retrieve")
+            }
+            else {
+                response.setStatus(Status.SUCCESS_OK)  // have to do this before starting the transfer or Restlet freaks.
+                val ts = if (transferSyntax.get.length == 0) null else transferSyntax.get
+                response.setEntity(new RepresentationCMove(response, pacs.get, specification.get, limit.get, ts, ticket, parallel.get, mt, compression.get))
+            }
+        }
+
+        /**
+         * Send a single image rendered as JPEG or PNG.  Rendered images are
+         * cached, and only a cache miss takes a retrieve ticket.
+         */
+        def sendImage(mt:MediaType):Unit = {
+            val sopInstanceUID = specification.get.get(TagFromName.SOPInstanceUID)
+            if (sopInstanceUID == null) {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                response.setEntity("A SOPInstanceUID must be given to render an image.", MediaType.TEXT_PLAIN)
+                logError
+                return
+            }
+            val renderer = ImageRenderer.getInstance
+            val uid = sopInstanceUID.getSingleStringValueOrEmptyString
+            val cached = renderer.getCached(uid, renderParameters.get)
+            val image = if (cached != null) cached else {
+                val ticket = RetrieveAdmission.getInstance.acquire(user, RetrieveAdmission.Priority.fromSpecification(specification.get))
+                if (ticket == null) {
+                    tooBusy("render this image")
+                    return
+                }
+                try {
+                    renderer.render(pacs.get, specification.get, renderParameters.get)
+                }
+                catch {
+                    case e:DICOMRestException => {
+                        response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                        response.setEntity(e.getMessage, MediaType.TEXT_PLAIN)
+                        logError
+                        return
+                    }
+                }
+                finally {
+                    ticket.release
+                }
+            }
+            if (image == null) {
+                response.setStatus(Status.CLIENT_ERROR_NOT_FOUND)
+                response.setEntity("No image was found with SOPInstanceUID " + uid, MediaType.TEXT_PLAIN)
+            }
+            else {
+                response.setStatus(Status.SUCCESS_OK)
+                response.setEntity(new InputRepresentation(new ByteArrayInputStream(image), mt, image.length))
+            }
+        }
+
+        /**
+         * Send a single frame of an image, either as a single frame DICOM
+         * object or as the bytes stored for it.
+         */
+        def sendFrame(mt:MediaType):Unit = {
+            val sopInstanceUID = specification.get.get(TagFromName.SOPInstanceUID)
+            if (sopInstanceUID == null) {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                response.setEntity("A SOPInstanceUID must be given to get a frame.", MediaType.TEXT_PLAIN)
+                logError
+                return
+            }
+            val ticket = RetrieveAdmission.getInstance.acquire(user, RetrieveAdmission.Priority.fromSpecification(specification.get))
+            if (ticket == null) {
+                tooBusy("get this frame")
+                return
+            }
+            val frame = try {
+                FrameExtractor.retrieveFrame(pacs.get, specification.get, renderParameters.get.frameNumber, mt.equals(Utilities.DICOM_MEDIA_TYPE))
+            }
+            catch {
+                case e:DICOMRestException => {
+                    response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                    response.setEntity(e.getMessage, MediaType.TEXT_PLAIN)
+                    logError
+                    return
+                }
+            }
+            finally {
+                ticket.release
+            }
+            if (frame == null) {
+                response.setStatus(Status.CLIENT_ERROR_NOT_FOUND)
+                response.setEntity("No image was found with SOPInstanceUID " + sopInstanceUID.getSingleStringValueOrEmptyString, MediaType.TEXT_PLAIN)
+            }
+            else {
+                response.setStatus(Status.SUCCESS_OK)
+                response.setEntity(new InputRepresentation(new ByteArrayInputStream(frame), mt, frame.length))
+            }
         }
 
         def logError = {
@@ -130,11 +284,16 @@ class RestDicomGet() extends Restlet { // StatusFilter {
             // if dictionary specified, then use that dictionary
             //     - could specify invalid dictionary
 
-            (isGet, mediaType, specification, pacs, limit, allRecognized) match {
-                case (true, mediaType:Some[MediaType], specification:Some[AttributeList], pacs:Some[PACS], lim:Some[Int], true) => mediaType.get match {
-                    case MediaType.APPLICATION_ZIP => sendDicom
+            (isGet, mediaType, specification, pacs, limit, transferSyntax, parallel, compression, renderParameters, allRecognized) match {
+                case (true, mediaType:Some[MediaType], specification:Some[AttributeList], pacs:Some[PACS], lim:Some[Int], ts:Some[String], par:Some[Boolean], comp:Some[ZipStreamWriter.Compression], rp:Some[ImageRenderer.Parameters], true) => mediaType.get match {
+                    case MediaType.APPLICATION_ZIP => sendDicom(MediaType.APPLICATION_ZIP)
+                    case MultipartStreamWriter.MEDIA_TYPE => sendDicom(MultipartStreamWriter.MEDIA_TYPE)
+                    case TarStreamWriter.MEDIA_TYPE => sendDicom(TarStreamWriter.MEDIA_TYPE)
                     case MediaType.TEXT_HTML =>   // TODO 
-                    case MediaType.IMAGE_JPEG =>  // TODO 
+                    case MediaType.IMAGE_JPEG => sendImage(MediaType.IMAGE_JPEG)
+                    case MediaType.IMAGE_PNG => sendImage(MediaType.IMAGE_PNG)
+                    case Utilities.DICOM_MEDIA_TYPE => sendFrame(Utilities.DICOM_MEDIA_TYPE)
+                    case MediaType.APPLICATION_OCTET_STREAM => sendFrame(MediaType.APPLICATION_OCTET_STREAM)
                     case MediaType.TEXT_XML =>    // TODO 
                     case MediaType.TEXT_PLAIN =>  // TODO
                     case _ => logError
@@ -18,6 +18,7 @@ package edu.umro.dicom.service;
 
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.ArrayList;
 
@@ -43,7 +44,7 @@ import edu.umro.util.UMROException;
 
 public class RestDicomList extends Restlet {
 
-    static private final DicomDictionary DICOM_DICTIONARY = new DicomDictionary();
+    static private final DicomDictionary DICOM_DICTIONARY = DictionaryRegistry.getInstance().getStandard();
 
     /** AE Title of PACS to search. */
     static private String dicomListAETitle = null;
@@ -84,6 +85,58 @@ public class RestDicomList extends Restlet {
     };
 
 
+    /**
+     * How a column of a results table is formatted.
+     */
+    private enum Kind { DATE, TIME, TEXT }
+
+    /**
+     * One column of a results table.
+     */
+    private static class Column {
+        final String heading;
+        final AttributeTag tag;
+        final Kind kind;
+
+        Column(String heading, AttributeTag tag, Kind kind) {
+            this.heading = heading;
+            this.tag = tag;
+            this.kind = kind;
+        }
+
+        /**
+         * Write the value of this column for one result, escaped.
+         */
+        void write(Writer writer, AttributeList attributeList) throws IOException {
+            String value = Attribute.getSingleStringValueOrEmptyString(attributeList, tag);
+            switch (kind) {
+                case DATE: value = Util.formatDicomDate(value); break;
+                case TIME: value = Util.formatDicomTime(value); break;
+                default: break;
+            }
+            TextStreamRepresentation.writeEscaped(writer, value);
+        }
+    }
+
+    /** Columns of the study list.  The first links to the series of the study. */
+    private static final Column[] STUDY_COLUMN_LIST = {
+        new Column("Study Date", TagFromName.StudyDate, Kind.DATE),
+        new Column("Study Time", TagFromName.StudyTime, Kind.TIME),
+        new Column("Study ID", TagFromName.StudyID, Kind.TEXT),
+        new Column("Modalities in Study", TagFromName.ModalitiesInStudy, Kind.TEXT),
+        new Column("Study Description", TagFromName.StudyDescription, Kind.TEXT)
+    };
+
+    /** Columns of the series list. */
+    private static final Column[] SERIES_COLUMN_LIST = {
+        new Column("Series Date", TagFromName.SeriesDate, Kind.DATE),
+        new Column("Series Time", TagFromName.SeriesTime, Kind.TIME),
+        new Column("Modality", TagFromName.Modality, Kind.TEXT),
+        new Column("Number", TagFromName.SeriesNumber, Kind.TEXT),
+        new Column("Description", TagFromName.SeriesDescription, Kind.TEXT)
+    };
+
+
     /**
      * Set the return status, message, and the return content.
      *
@@ -93,10 +146,15 @@ public class RestDicomList extends Restlet {
      *
      * @param msg Error message.
      */
-    private void setError(Response response, Status status, String msg) {
-        StringBuffer html = getHtmlHeader();
-        html.append(msg);
-        addHtmlTrailer(response, html);
+    private void setError(Response response, Status status, final String msg) {
+        response.setEntity(new TextStreamRepresentation(MediaType.TEXT_HTML) {
+            @Override
+            public void write(Writer writer) throws IOException {
+                writeHtmlHeader(writer);
+                TextStreamRepresentation.writeEscaped(writer, msg);
+                writeHtmlTrailer(writer);
+            }
+        });
         response.setStatus(status, msg);
     }
 
@@ -113,145 +171,144 @@ public class RestDicomList extends Restlet {
         return dicomListAETitle;
     }
 
-    private void addEntryForm(StringBuffer html) {
-        html.append("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eefeee'>\n");
-        html.append("<tr bgcolor='#ffffff'>\n");
-        html.append("<td>\n");
-        html.append("<form action='" + URL_BRANCH + "'>\n");
-        html.append("Enter Patient Reg Number: <input type='text' name='" + INPUT_FIELD_NAME + "' />\n");
-        html.append("</form>\n");
-        html.append("</td>\n");
-        html.append("</tr>\n");
-        html.append("</table>\n");
+    private void writeEntryForm(Writer writer) throws IOException {
+        writer.write("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eefeee'>\n");
+        writer.write("<tr bgcolor='#ffffff'>\n");
+        writer.write("<td>\n");
+        writer.write("<form action='" + URL_BRANCH + "'>\n");
+        writer.write("Enter Patient Reg Number: <input type='text' name='" + INPUT_FIELD_NAME + "' />\n");
+        writer.write("</form>\n");
+        writer.write("</td>\n");
+        writer.write("</tr>\n");
+        writer.write("</table>\n");
     }
 
-    private StringBuffer getHtmlHeader() {
-        StringBuffer html = new StringBuffer();
-        html.append("<html xmlns='http://www.w3.org/1999/xhtml'>\n");
-        html.append("<head>\n");
-        html.append("<title>List Scans</title>\n");
-        html.append("</title>\n");
-        html.append("<link rel='stylesheet' type='text/css' href='/example.css'/>\n");
-        html.append("</head>\n");
-        html.append("<center>\n");
-
-        html.append("<table border='0' cellspacing='30'>\n");
-        html.append("<tr>\n");
+    private void writeHtmlHeader(Writer writer) throws IOException {
+        writer.write("<html xmlns='http://www.w3.org/1999/xhtml'>\n");
+        writer.write("<head>\n");
+        writer.write("<title>List Scans</title>\n");
+        writer.write("</title>\n");
+        writer.write("<link rel='stylesheet' type='text/css' href='/example.css'/>\n");
+        writer.write("</head>\n");
+        writer.write("<center>\n");
+
+        writer.write("<table border='0' cellspacing='30'>\n");
+        writer.write("<tr>\n");
         {
-            html.append("<td><br><p>&nbsp;&nbsp;&nbsp;&nbsp;<img src='/images/umhslogo.gif'></td>\n");
-            html.append("<td>\n");
-            html.append("\n");
-
-            html.append("<table border='0' cellspacing='30'>\n");
-            html.append("<tr><td><h3>Search UMRADONC-ARCHIVE PACS</h3></td></tr>\n");
-            html.append("<tr><td>\n");
-            addEntryForm(html);
-            html.append("</td></tr>\n");
-            html.append("</table>\n");
-
-            html.append("</td>\n");
+            writer.write("<td><br><p>&nbsp;&nbsp;&nbsp;&nbsp;<img src='/images/umhslogo.gif'></td>\n");
+            writer.write("<td>\n");
+            writer.write("\n");
+
+            writer.write("<table border='0' cellspacing='30'>\n");
+            writer.write("<tr><td><h3>Search UMRADONC-ARCHIVE PACS</h3></td></tr>\n");
+            writer.write("<tr><td>\n");
+            writeEntryForm(writer);
+            writer.write("</td></tr>\n");
+            writer.write("</table>\n");
+
+            writer.write("</td>\n");
         }
-        html.append("</tr>\n");
-        html.append("</table>\n");
-        html.append("<br><p><br>\n");
-        return html;
+        writer.write("</tr>\n");
+        writer.write("</table>\n");
+        writer.write("<br><p><br>\n");
     }
 
 
-    private void addHtmlTrailer(Response response, StringBuffer html) {
-        html.append("<br><p>Please note: An audit trail is made of all activity.");
-        html.append("</center>\n");
-        html.append("</html>\n");
-        response.setEntity(html.toString(), MediaType.TEXT_HTML);
+    private void writeHtmlTrailer(Writer writer) throws IOException {
+        writer.write("<br><p>Please note: An audit trail is made of all activity.");
+        writer.write("</center>\n");
+        writer.write("</html>\n");
     }
 
 
-    private void formatStudyResults(String patientID, ArrayList<AttributeList> list, Response response) {
-        StringBuffer html = getResultsHeader(list.get(0));
+    private void writeResultsHeader(Writer writer, AttributeList al) throws IOException {
+        writeHtmlHeader(writer);
 
-        html.append("<br><p>\n");
+        writer.write("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eefeee'>\n");
 
-        html.append("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eeeeff'>\n");
+        writer.write("<tr bgcolor='#ffffff'>\n");
+        writer.write("<td>Reg Number: ");
+        TextStreamRepresentation.writeEscaped(writer, Attribute.getSingleStringValueOrEmptyString(al, TagFromName.PatientID));
+        writer.write("</td>\n");
+        writer.write("<td>Patient Name: ");
+        TextStreamRepresentation.writeEscaped(writer, Attribute.getSingleStringValueOrEmptyString(al, TagFromName.PatientName));
+        writer.write("</td>\n");
+        writer.write("</tr>\n");
 
-        html.append("<tr bgcolor='#f8f8f8'>\n");
-        html.append("<td>Study Date</td>\n");
-        html.append("<td>Study Time</td>\n");
-        html.append("<td>Study ID</td>\n");
-        html.append("<td>Modalities in Study</td>\n");
-        html.append("<td>Study Description</td>\n");
-        html.append("</tr>\n");
+        writer.write("<tr bgcolor='#ffffff'>\n");
+        writer.write("<td>Birth: ");
+        TextStreamRepresentation.writeEscaped(writer, Util.formatDicomDate(Attribute.getSingleStringValueOrEmptyString(al, TagFromName.PatientBirthDate)));
+        writer.write("</td>\n");
+        writer.write("<td>Sex: ");
+        TextStreamRepresentation.writeEscaped(writer, Attribute.getSingleStringValueOrEmptyString(al, TagFromName.PatientSex));
+        writer.write("</td>\n");
+        writer.write("</tr>\n");
 
-        for (AttributeList al : list) {
-            html.append("<tr bgcolor='#ffffff'>\n");
-            String studyDate = Util.formatDicomDate(al.get(TagFromName.StudyDate).getSingleStringValueOrEmptyString());
-            String pre = "<a title='Show Series' href='/dicom/" + URL_BRANCH + "?StudyInstanceUID=" + al.get(TagFromName.StudyInstanceUID).getSingleStringValueOrEmptyString() + "'>\n";
-            html.append("<td>" + pre + studyDate + "</a></td>\n");
-            String studyTime = Util.formatDicomTime(al.get(TagFromName.StudyTime).getSingleStringValueOrEmptyString());
-            html.append("<td>" + studyTime + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.StudyID).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.ModalitiesInStudy).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.StudyDescription).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("</tr>\n");
-        }
-        html.append("</table><br>\n");
-
-
-        addHtmlTrailer(response, html);
-        response.setStatus(Status.SUCCESS_OK, "Success");
+        writer.write("</table>\n");
+        writer.write("<br><p>\n");
     }
 
 
-    private StringBuffer getResultsHeader(AttributeList al) {
-        StringBuffer html = getHtmlHeader();
-
-        html.append("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eefeee'>\n");
-
-        html.append("<tr bgcolor='#ffffff'>\n");
-        html.append("<td>Reg Number: " + al.get(TagFromName.PatientID).getSingleStringValueOrEmptyString() + "</td>\n");
-        html.append("<td>Patient Name: " + al.get(TagFromName.PatientName).getSingleStringValueOrEmptyString() + "</td>\n");
-        html.append("</tr>\n");
-
-        html.append("<tr bgcolor='#ffffff'>\n");
-        String birth = Util.formatDicomDate(al.get(TagFromName.PatientBirthDate).getSingleStringValueOrEmptyString());
-        html.append("<td>Birth: " + birth + "</td>\n");
-        html.append("<td>Sex: " + al.get(TagFromName.PatientSex).getSingleStringValueOrEmptyString() + "</td>\n");
-        html.append("</tr>\n");
+    /**
+     * Write a table of results with a heading row.
+     *
+     * @param linkStudies If true, the first column links to the series of each study.
+     */
+    private void writeResultTable(Writer writer, Column[] columnList, ArrayList<AttributeList> list, boolean linkStudies) throws IOException {
+        writer.write("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eeeeff'>\n");
 
-        html.append("</table>\n");
-        html.append("<br><p>\n");
+        writer.write("<tr bgcolor='#f8f8f8'>\n");
+        for (Column column : columnList) {
+            writer.write("<td>" + column.heading + "</td>\n");
+        }
+        writer.write("</tr>\n");
 
-        return html;
+        for (AttributeList al : list) {
+            writer.write("<tr bgcolor='#ffffff'>\n");
+            for (int c = 0; c < columnList.length; c++) {
+                writer.write("<td>");
+                if (linkStudies && (c == 0)) {
+                    writer.write("<a title='Show Series' href='/dicom/" + URL_BRANCH + "?StudyInstanceUID=");
+                    TextStreamRepresentation.writeEscaped(writer, Attribute.getSingleStringValueOrEmptyString(al, TagFromName.StudyInstanceUID));
+                    writer.write("'>\n");
+                    columnList[c].write(writer, al);
+                    writer.write("</a>");
+                }
+                else {
+                    columnList[c].write(writer, al);
+                }
+                writer.write("</td>\n");
+            }
+            writer.write("</tr>\n");
+        }
+        writer.write("</table><br>\n");
     }
 
-    private void formatSeriesResults(String studyID, ArrayList<AttributeList> list, Response response) {
-        StringBuffer html = getResultsHeader(list.get(0));
-
-        html.append("Number of series: " + list.size() + "<b><p>");
 
-        html.append("<table border='0' cellpadding='10' cellspacing='10' bgcolor='#eeeeff'>\n");
-
-        html.append("<tr bgcolor='#f8f8f8'>\n");
-        html.append("<td>Series Date</td>\n");
-        html.append("<td>Series Time</td>\n");
-        html.append("<td>Modality</td>\n");
-        html.append("<td>Number</td>\n");
-        html.append("<td>Description</td>\n");
-        html.append("</tr>\n");
+    private void formatStudyResults(String patientID, final ArrayList<AttributeList> list, Response response) {
+        response.setEntity(new TextStreamRepresentation(MediaType.TEXT_HTML) {
+            @Override
+            public void write(Writer writer) throws IOException {
+                writeResultsHeader(writer, list.get(0));
+                writer.write("<br><p>\n");
+                writeResultTable(writer, STUDY_COLUMN_LIST, list, true);
+                writeHtmlTrailer(writer);
+            }
+        });
+        response.setStatus(Status.SUCCESS_OK, "Success");
+    }
 
-        for (AttributeList al : list) {
-            html.append("<tr bgcolor='#ffffff'>\n");
-            String studyDate = Util.formatDicomDate(al.get(TagFromName.SeriesDate).getSingleStringValueOrEmptyString());
-            html.append("<td>" + studyDate + "</td>\n");
-            String studyTime = Util.formatDicomTime(al.get(TagFromName.SeriesTime).getSingleStringValueOrEmptyString());
-            html.append("<td>" + studyTime + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.Modality).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.SeriesNumber).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("<td>" + al.get(TagFromName.SeriesDescription).getSingleStringValueOrEmptyString() + "</td>\n");
-            html.append("</tr>\n");
-        }
-        html.append("</table><br>\n");
 
-        addHtmlTrailer(response, html);
+    private void formatSeriesResults(String studyID, final ArrayList<AttributeList> list, Response response) {
+        response.setEntity(new TextStreamRepresentation(MediaType.TEXT_HTML) {
+            @Override
+            public void write(Writer writer) throws IOException {
+                writeResultsHeader(writer, list.get(0));
+                writer.write("Number of series: " + list.size() + "<b><p>");
+                writeResultTable(writer, SERIES_COLUMN_LIST, list, false);
+                writeHtmlTrailer(writer);
+            }
+        });
         response.setStatus(Status.SUCCESS_OK, "Success");
     }
 
@@ -294,13 +351,14 @@ public class RestDicomList extends Restlet {
             return;
         }
 
-        ArrayList<AttributeList> list = new CFind(pacs, QueryLevel.STUDY, requestAttributeList, LIMIT).getList();
+        ArrayList<AttributeList> list = CFindCache.getInstance().find(pacs, QueryLevel.STUDY, requestAttributeList, LIMIT);
 
         if (list.isEmpty()) {
             setError(response, Status.CLIENT_ERROR_NOT_FOUND, "No matches for patient ID " + patientID);
         }
         else {
             formatStudyResults(patientID, list, response);
+            Prefetcher.getInstance().prefetchStudies(pacs, list);
         }
 
     }
@@ -335,7 +393,7 @@ public class RestDicomList extends Restlet {
         }
 
         long start = System.currentTimeMillis();
-        ArrayList<AttributeList> list = new CFind(pacs, QueryLevel.SERIES, requestAttributeList, LIMIT).getList();
+        ArrayList<AttributeList> list = CFindCache.getInstance().find(pacs, QueryLevel.SERIES, requestAttributeList, LIMIT);
         long elapsed = System.currentTimeMillis() - start;
         Log.get().info("Performed series level C-FIND on " + pacs + " with StudyInstanceUID " + studyID + " and got " + list.size() + " entries in " + elapsed + " milliseconds by user " + request.getChallengeResponse().getIdentifier());
 
@@ -344,6 +402,7 @@ public class RestDicomList extends Restlet {
         }
         else {
             formatSeriesResults(studyID, list, response);
+            Prefetcher.getInstance().prefetchSeries(pacs, studyID, list);
         }
 
     }
@@ -374,8 +433,14 @@ public class RestDicomList extends Restlet {
                             cfindSeries(request, response, studyID);
                         }
                         else {
-                            StringBuffer html = getHtmlHeader();
-                            addHtmlTrailer(response, html);
+                            response.setStatus(Status.SUCCESS_OK);
+                            response.setEntity(new TextStreamRepresentation(MediaType.TEXT_HTML) {
+                                @Override
+                                public void write(Writer writer) throws IOException {
+                                    writeHtmlHeader(writer);
+                                    writeHtmlTrailer(writer);
+                                }
+                            });
                         }
                     }
                 }
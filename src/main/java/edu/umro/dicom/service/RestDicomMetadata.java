@@ -0,0 +1,456 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+
+/**
+ * Get the metadata of DICOM objects as DICOM JSON or Native DICOM Model XML,
+ * one entry per object, without sending the pixel data to the client.
+ *
+ * Objects are retrieved from the PACS (or the instance cache) and only
+ * read up to the pixel data.  Other bulk data is not returned.  With
+ * <code>indexedOnly=true</code> the objects are not retrieved at all, and
+ * the values indexed by the PACS are returned from an image level C-FIND.
+ * A <code>metaDataList</code> of attribute names limits the attributes
+ * returned.  Each object is sent to the client as soon as it is available.
+ *
+ * @author irrer
+ *
+ */
+public class RestDicomMetadata extends Restlet {
+
+    static private final String MEDIA_TYPE_PARAMETER_NAME = "media_type";
+
+    static private final String INDEXED_ONLY_PARAMETER_NAME = "indexedOnly";
+
+    static private final String META_DATA_LIST_PARAMETER_NAME = "metaDataList";
+
+    static private final String LIMIT_PARAMETER_NAME = "limit";
+
+    static private final String AE_TITLE_PARAMETER_NAME = "aetitle";
+
+    /** Attributes that may be used to specify the objects, most specific first. */
+    private static final AttributeTag[] KEY_LIST = {
+        TagFromName.SOPInstanceUID,
+        TagFromName.SeriesInstanceUID,
+        TagFromName.StudyInstanceUID,
+        TagFromName.PatientID
+    };
+
+    private static final DicomDictionary DICOM_DICTIONARY = DictionaryRegistry.getInstance().getStandard();
+
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    private static String getUsage() {
+        return
+            "\nUsage:\n\n" +
+            "    aetitle=[PACS]                PACS to get metadata from\n" +
+            "    SOPInstanceUID=[uid]          One of these four specifies the objects\n" +
+            "    SeriesInstanceUID=[uid]\n" +
+            "    StudyInstanceUID=[uid]\n" +
+            "    PatientID=[patient id]\n" +
+            "    media_type=[type]             application/json (default), application/dicom+json, or text/xml\n" +
+            "    indexedOnly=true              Only return the values indexed by the PACS\n" +
+            "    metaDataList=[name,name,...]  Only return these attributes\n" +
+            "    limit=[count]                 Maximum number of objects to return\n";
+    }
+
+
+    /**
+     * Get a parameter, ignoring the case of its name.
+     */
+    private static String getParameter(HashMap<String, String> parameterList, String name) {
+        for (String key : parameterList.keySet()) {
+            if (key.trim().equalsIgnoreCase(name)) {
+                String value = parameterList.get(key);
+                return (value == null) ? null : value.trim();
+            }
+        }
+        return null;
+    }
+
+
+    private static void put(AttributeList attributeList, AttributeTag tag, String value) throws DicomException {
+        Attribute attribute = AttributeFactory.newAttribute(tag, DICOM_DICTIONARY.getValueRepresentationFromTag(tag));
+        if ((value != null) && (value.length() > 0)) {
+            attribute.addValue(value);
+        }
+        attributeList.put(attribute);
+    }
+
+
+    /**
+     * Get the tag of an attribute given by name, or by group and element as
+     * eight hexadecimal digits.
+     *
+     * @return Tag, or null if not known.
+     */
+    private static AttributeTag getTag(String name) {
+        if (name.matches("[0-9a-fA-F]{8}")) {
+            return new AttributeTag(Integer.parseInt(name.substring(0, 4), 16), Integer.parseInt(name.substring(4), 16));
+        }
+        return DICOM_DICTIONARY.getTagFromName(name);
+    }
+
+
+    /**
+     * Streams the metadata of each object to the client as it becomes
+     * available.
+     */
+    private class MetadataRepresentation extends OutputRepresentation implements ReceiveDicomObject {
+        private final Request request;
+        private final PACS pacs;
+        private final AttributeList specification;
+        private final LinkedHashSet<AttributeTag> includeList;
+        private final boolean isXml;
+        private final boolean indexedOnly;
+        private final int limit;
+        private final RetrieveAdmission.Ticket ticket;
+        private final HashSet<String> sentList = new HashSet<String>();
+        private Writer writer = null;
+        private IOException writeFailure = null;
+        private int count = 0;
+
+        MetadataRepresentation(Request request, PACS pacs, AttributeList specification, LinkedHashSet<AttributeTag> includeList,
+                MediaType mediaType, boolean indexedOnly, int limit, RetrieveAdmission.Ticket ticket) {
+            super(mediaType, -1);
+            setTransient(true);
+            this.request = request;
+            this.pacs = pacs;
+            this.specification = specification;
+            this.includeList = includeList;
+            this.isXml = mediaType.equals(MediaType.TEXT_XML);
+            this.indexedOnly = indexedOnly;
+            this.limit = limit;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Give up the retrieve slot if the transfer never happened.
+         */
+        @Override
+        public void release() {
+            if (ticket != null) {
+                ticket.release();
+            }
+            super.release();
+        }
+
+        /**
+         * Write the metadata of one object and push it to the client.  If the
+         * client has gone away or the limit has been reached then the
+         * remaining objects are ignored.
+         */
+        private synchronized void writeInstance(String sopInstanceUID, AttributeList attributeList) {
+            if ((writeFailure != null) || ((limit > 0) && (count >= limit)) || ((sopInstanceUID != null) && !sentList.add(sopInstanceUID))) {
+                return;
+            }
+            try {
+                if (isXml) {
+                    DicomMetadataWriter.writeXml(writer, attributeList, includeList);
+                }
+                else {
+                    writer.write((count == 0) ? "\n" : ",\n");
+                    DicomMetadataWriter.writeJson(writer, attributeList, includeList);
+                }
+                writer.flush();
+                count++;
+            }
+            catch (IOException e) {
+                writeFailure = e;
+                Log.get().info("Unable to send DICOM metadata to client, ignoring the remaining objects: " + e);
+            }
+            catch (DicomException e) {
+                Log.get().warning("Unable to format DICOM metadata for " + sopInstanceUID + " : " + e);
+            }
+        }
+
+        @Override
+        public void receive(ReceivedDicomObject receivedDicomObject) {
+            try {
+                writeInstance(receivedDicomObject.getSOPInstanceUID(), receivedDicomObject.getHeader());
+            }
+            catch (IOException e) {
+                Log.get().warning("Unable to read DICOM metadata of " + receivedDicomObject + " : " + e);
+            }
+            catch (DicomException e) {
+                Log.get().warning("Unable to read DICOM metadata of " + receivedDicomObject + " : " + e);
+            }
+        }
+
+        @Override
+        public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+            writeInstance(Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SOPInstanceUID), attributeList);
+        }
+
+        /**
+         * Read the headers of the objects, from the instance cache if they
+         * are all there, otherwise from the PACS.
+         */
+        private void retrieve() {
+            ArrayList<ReceivedDicomObject> cachedList = InstanceCache.getInstance().getAll(pacs, specification);
+            if (cachedList != null) {
+                boolean all = true;
+                for (ReceivedDicomObject receivedDicomObject : cachedList) {
+                    try {
+                        receivedDicomObject.open();
+                        try {
+                            receive(receivedDicomObject);
+                        }
+                        finally {
+                            receivedDicomObject.close();
+                        }
+                    }
+                    catch (FileNotFoundException e) {
+                        all = false;
+                    }
+                }
+                if (all) {
+                    Log.get().info("Served metadata of " + cachedList.size() + " DICOM objects from the instance cache for " + request);
+                    return;
+                }
+            }
+            DicomGet.get(pacs, specification, null, limit, this);
+        }
+
+        /**
+         * Get the values indexed by the PACS with image level C-FINDs.  A
+         * study or patient is listed one series at a time because some PACS
+         * require the series for an image level query.
+         */
+        private void findIndexed() throws Exception {
+            AttributeList base = CFind.constructDefaultList(QueryLevel.IMAGE, DICOM_DICTIONARY);
+            if (includeList != null) {
+                for (AttributeTag tag : includeList) {
+                    if (base.get(tag) == null) {
+                        put(base, tag, null);
+                    }
+                }
+            }
+            for (AttributeTag tag : KEY_LIST) {
+                put(base, tag, Attribute.getSingleStringValueOrNull(specification, tag));
+            }
+
+            ArrayList<AttributeList> requestList = new ArrayList<AttributeList>();
+            if ((specification.get(TagFromName.SOPInstanceUID) != null) || (specification.get(TagFromName.SeriesInstanceUID) != null)) {
+                requestList.add(base);
+            }
+            else {
+                for (AttributeList series : ParallelCMove.findSeries(pacs, specification, false)) {
+                    AttributeList request = new AttributeList();
+                    request.putAll(base);
+                    put(request, TagFromName.StudyInstanceUID, Attribute.getSingleStringValueOrNull(series, TagFromName.StudyInstanceUID));
+                    put(request, TagFromName.SeriesInstanceUID, Attribute.getSingleStringValueOrNull(series, TagFromName.SeriesInstanceUID));
+                    requestList.add(request);
+                }
+            }
+
+            for (AttributeList request : requestList) {
+                if ((writeFailure != null) || ((limit > 0) && (count >= limit))) {
+                    break;
+                }
+                CFindCache.getInstance().find(pacs, QueryLevel.IMAGE, request, 0, new CFind.Listener() {
+                    @Override
+                    public void identifier(AttributeList attributeList) {
+                        String sopInstanceUID = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SOPInstanceUID);
+                        writeInstance((sopInstanceUID == null) ? null : sopInstanceUID.trim(), attributeList);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void write(OutputStream outputStream) throws IOException {
+            long start = System.currentTimeMillis();
+            writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+            writer.write(isXml ? "<?xml version='1.0' encoding='utf-8'?>\n<NativeDicomModelList>\n" : "[");
+            writer.flush();
+            try {
+                if (indexedOnly) {
+                    findIndexed();
+                }
+                else {
+                    retrieve();
+                }
+            }
+            catch (Exception e) {
+                Log.get().warning("Unable to get DICOM metadata for " + request + " : " + e);
+            }
+            finally {
+                if (ticket != null) {
+                    ticket.release();
+                }
+            }
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            writer.write(isXml ? "</NativeDicomModelList>\n" : "\n]\n");
+            writer.flush();
+            Log.get().info("Sent metadata of " + count + " DICOM objects" + (indexedOnly ? " from C-FIND" : "") + " in " +
+                    (System.currentTimeMillis() - start) + " ms for " + request);
+        }
+    }
+
+
+    private void getMetadata(Request request, Response response) throws Exception {
+        HashMap<String, String> parameterList = Util.getParameterList(request);
+
+        PACS pacs = PACS.findPacs(getParameter(parameterList, AE_TITLE_PARAMETER_NAME));
+        if (pacs == null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "A valid " + AE_TITLE_PARAMETER_NAME + " must be given." + getUsage());
+            return;
+        }
+
+        AttributeList specification = new AttributeList();
+        for (AttributeTag tag : KEY_LIST) {
+            String value = getParameter(parameterList, DICOM_DICTIONARY.getNameFromTag(tag));
+            if ((value != null) && (value.length() > 0)) {
+                put(specification, tag, value);
+            }
+        }
+        if (specification.isEmpty()) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "No objects were specified." + getUsage());
+            return;
+        }
+
+        String mediaType = getParameter(parameterList, MEDIA_TYPE_PARAMETER_NAME);
+        MediaType representationType = MediaType.APPLICATION_JSON;
+        if ((mediaType != null) && !mediaType.equalsIgnoreCase(MediaType.APPLICATION_JSON.getName())) {
+            if (mediaType.equalsIgnoreCase(MediaType.TEXT_XML.getName()) || mediaType.equalsIgnoreCase(MediaType.APPLICATION_XML.getName())) {
+                representationType = MediaType.TEXT_XML;
+            }
+            else if (mediaType.equalsIgnoreCase(CFindResultWriter.APPLICATION_DICOM_JSON.getName())) {
+                representationType = CFindResultWriter.APPLICATION_DICOM_JSON;
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_UNSUPPORTED_MEDIA_TYPE, "Unsupported media type " + mediaType + getUsage());
+                return;
+            }
+        }
+
+        String indexedOnlyValue = getParameter(parameterList, INDEXED_ONLY_PARAMETER_NAME);
+        boolean indexedOnly = (indexedOnlyValue != null) && indexedOnlyValue.equalsIgnoreCase("true");
+
+        LinkedHashSet<AttributeTag> includeList = null;
+        String metaDataList = getParameter(parameterList, META_DATA_LIST_PARAMETER_NAME);
+        if ((metaDataList != null) && (metaDataList.length() > 0)) {
+            includeList = new LinkedHashSet<AttributeTag>();
+            for (String name : metaDataList.split("[, \t]+")) {
+                if (name.length() > 0) {
+                    AttributeTag tag = getTag(name);
+                    if (tag == null) {
+                        setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unknown DICOM attribute " + name + " in " + META_DATA_LIST_PARAMETER_NAME + getUsage());
+                        return;
+                    }
+                    includeList.add(tag);
+                }
+            }
+            // always identify the object
+            includeList.add(TagFromName.SOPInstanceUID);
+        }
+
+        int limit = 0;
+        String limitValue = getParameter(parameterList, LIMIT_PARAMETER_NAME);
+        if (limitValue != null) {
+            try {
+                limit = Integer.parseInt(limitValue);
+            }
+            catch (NumberFormatException e) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Invalid " + LIMIT_PARAMETER_NAME + " " + limitValue + getUsage());
+                return;
+            }
+        }
+
+        RetrieveAdmission.Ticket ticket = null;
+        if (!indexedOnly) {
+            String user = (request.getChallengeResponse() != null) ? request.getChallengeResponse().getIdentifier() : request.getClientInfo().getAddress();
+            RetrieveAdmission admission = RetrieveAdmission.getInstance();
+            ticket = admission.acquire(user, RetrieveAdmission.Priority.fromSpecification(specification));
+            if (ticket == null) {
+                String msg = "The service is too busy to start this retrieve.  Try again in " + admission.getRetryAfterSeconds() + " seconds.";
+                response.setRetryAfter(new Date(System.currentTimeMillis() + (admission.getRetryAfterSeconds() * 1000L)));
+                setError(response, Status.SERVER_ERROR_SERVICE_UNAVAILABLE, msg);
+                return;
+            }
+        }
+
+        response.setStatus(Status.SUCCESS_OK);
+        response.setEntity(new MetadataRepresentation(request, pacs, specification, includeList, representationType, indexedOnly, limit, ticket));
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        try {
+            if (request.getMethod().equals(Method.GET)) {
+                getMetadata(request, response);
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only HTTP GET is supported.");
+            }
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -17,11 +17,9 @@ package edu.umro.dicom.service;
  */
 
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import org.restlet.Request;
 import org.restlet.Response;
@@ -35,9 +33,7 @@ import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeList;
 import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomException;
-import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.TagFromName;
-import com.pixelmed.dicom.TransferSyntax;
 
 import edu.umro.dicom.common.Util;
 import edu.umro.util.Log;
@@ -47,39 +43,6 @@ public class RestDicomPut extends Restlet {
     //private static final int DEBUG_LEVEL = 0;
     //private static final int MOVE_ORIGINATOR_ID = -1;
 
-    private static LinkedList<String> transferSyntaxList = null;
-
-    static {
-        transferSyntaxList = new LinkedList<String>();
-        String[] transferArray =
-        {
-                TransferSyntax.ExplicitVRLittleEndian,
-                TransferSyntax.ImplicitVRLittleEndian,
-                TransferSyntax.ExplicitVRBigEndian,
-                TransferSyntax.DeflatedExplicitVRLittleEndian,
-                TransferSyntax.JPEGBaseline,
-                TransferSyntax.JPEGExtended,
-                TransferSyntax.JPEGLossless,
-                TransferSyntax.JPEGLosslessSV1,
-                TransferSyntax.JPEGLS,
-                TransferSyntax.JPEGNLS,
-                TransferSyntax.JPEG2000Lossless,
-                TransferSyntax.JPEG2000,
-                TransferSyntax.MPEG2MPML,
-                TransferSyntax.MPEG2MPHL,
-                TransferSyntax.MPEG4HP41,
-                TransferSyntax.MPEG4HP41BD,
-                TransferSyntax.PixelMedBzip2ExplicitVRLittleEndian,
-                TransferSyntax.PixelMedEncapsulatedRawLittleEndian
-        };
-        for (String xs : transferArray) {
-            transferSyntaxList.add(xs);
-        }
-    }
-    
-    /** Buffer for reading stream from client. */
-    private byte[] buffer = new byte[8*1024*1024];
-
     /**
      * Set the return status, message, and the return content.
      * 
@@ -123,32 +86,17 @@ public class RestDicomPut extends Restlet {
 
         return text.toString();
     }
-    
-    private int readStream(InputStream httpInputStream) throws IOException {
-        int length;
-        int totalLength = 0;
-        Log.get().info("Starting read of input stream ...");
-        while ((length = httpInputStream.read(buffer, totalLength, buffer.length - totalLength)) != -1) {
-            totalLength += length;
-            if ((totalLength == buffer.length) && (length != -1)) {
-                Log.get().info("Allocating larger buffer of size " + (buffer.length*2));
-                byte[] biggerBuffer = new byte[buffer.length * 2];
-                System.arraycopy(buffer, 0, biggerBuffer, 0, buffer.length);
-                buffer = biggerBuffer;
-            }
-        }
-        Log.get().info("Finished read of input stream.  Length: " + totalLength);
-        return totalLength;
-    }
 
 
     /**
-     * Note that this method is <code>synchronized</code> because it reuses the
-     * <code>buffer</code> field.  If the synchronization becomes a bottleneck,
-     * then it could be corrected by making a thread safe pool of buffers.
+     * Uploads are held in buffers from the shared <code>BufferPool</code>, or
+     * temporary files if they are large, so requests are handled concurrently.
+     * Only the attributes before the pixel data are parsed, and the object is
+     * streamed from the upload to the PACS, so large objects do not use a
+     * correspondingly large amount of memory.
      */
     @Override
-    public synchronized void handle(Request request, Response response) {
+    public void handle(Request request, Response response) {
         Log.get().info("RestDicomPut.handle Request: " + request);
         // assume failure until an operation succeeds.
         setError(response, Status.SERVER_ERROR_INTERNAL, this.getClass() + " Internal server error.");
@@ -202,58 +150,54 @@ public class RestDicomPut extends Restlet {
             }
             Log.get().info("Got httpInputStream");
 
-            // convert byte stream into DICOM file
-            AttributeList attributeList = new AttributeList();
-            Log.get().info("Constructed empty AttributeList");
+            // spool the upload and parse the attributes before the pixel data
+            SpooledDicom spooled = null;
+            Upload upload = null;
             try {
-                int length = readStream(httpInputStream);
+                try {
+                    Log.get().info("Starting read of input stream ...");
+                    upload = Upload.read(httpInputStream);
+                    Log.get().info("Finished read of input stream.  Length: " + upload.getLength() + (upload.isInFile() ? " in temporary file" : ""));
 
-                boolean converted = false;
-                for (String xferSyntax : transferSyntaxList) {
-                    try {
-                        InputStream byteInputStream = new ByteArrayInputStream(buffer, 0, length);
-                        DicomInputStream dicomInputStream = new DicomInputStream(byteInputStream, xferSyntax, true);
-                        attributeList.read(dicomInputStream);
-                        converted = attributeList.get(TagFromName.SOPInstanceUID) != null;
-                        if (converted) {
-                            Log.get().info("Read DICOM image from client of size " + length + " bytes.");
-                            if (!xferSyntax.equals(transferSyntaxList.getFirst())) {
-                                transferSyntaxList.remove(xferSyntax);
-                                transferSyntaxList.push(xferSyntax);
-                            }
-                            break;
-                        }
-                    }
-                    catch (DicomException e) {
-                        Log.get().info("Error reading DICOM stream with transfer syntax " + xferSyntax);
-                    }
+                    spooled = SpooledDicom.read(upload);
+                    Log.get().info("Read DICOM image from client of size " + upload.getLength() + " bytes.");
                 }
-                if (!converted) {
-                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unable to interpret data as valid DICOM");
+                catch (DicomException ex) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unable to interpret data as valid DICOM: " + ex.getMessage());
                     return;
                 }
-            }
-            catch (IOException ex) {
-                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "IO error uploadinging DICOM data: " + ex.getMessage());
-                return;
+                catch (IOException ex) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "IO error uploadinging DICOM data: " + ex.getMessage());
+                    return;
+                }
+                finally {
+                    httpInputStream.close();
+                }
+
+                AttributeList attributeList = spooled.getHeader();
+                String aeTitle = ServiceConfig.getInstance().getHostedPACS()[0].aeTitle;
+                String attrName = constructName(attributeList);
+                Log.get().info("Starting DICOM transfer from " + aeTitle + " to " + pacs.aeTitle + "@" + pacs.host + ":" + pacs.port + "  " + attrName);
+                // transfer the data to the PACS, streaming it from the upload
+                DicomPush dicomPush = new DicomPush(pacs, new AttributeList[]{ attributeList }, new SpooledDicom[]{ spooled });
+                String msg = dicomPush.push();
+                if (msg != null) {
+                    setError(response, Status.SERVER_ERROR_SERVICE_UNAVAILABLE, msg);
+                    return;
+                }
+
+                CFindCache.getInstance().invalidate(attributeList);
+                MetadataIndex.getInstance().add(pacs, attributeList);
+                InstanceCache.getInstance().put(spooled, aeTitle);
+                Log.get().info("Completed dicom put to PACS: " + pacs);
+                setError(response, Status.SUCCESS_OK, "put one DICOM file to " + pacs);
             }
             finally {
-                httpInputStream.close();
-            }
-
-            String aeTitle = ServiceConfig.getInstance().getHostedPACS()[0].aeTitle;
-            String attrName = constructName(attributeList);
-            Log.get().info("Starting DICOM transfer from " + aeTitle + " to " + pacs.aeTitle + "@" + pacs.host + ":" + pacs.port + "  " + attrName);
-            // transfer the data to the PACS
-            DicomPush dicomPush = new DicomPush(pacs, new AttributeList[]{ attributeList });
-            String msg = dicomPush.push();
-            if (msg != null) {
-                setError(response, Status.SERVER_ERROR_SERVICE_UNAVAILABLE, msg);
-                return;
+                // the spooled object reads from the upload, so release it only after the push
+                if (upload != null) {
+                    upload.release();
+                }
             }
-
-            Log.get().info("Completed dicom put to PACS: " + pacs);
-            setError(response, Status.SUCCESS_OK, "put one DICOM file to " + pacs);
         }
         catch (DOMException e) {
             setError(response, Status.SERVER_ERROR_INTERNAL, "XML error.  Unable to process request: " + e);
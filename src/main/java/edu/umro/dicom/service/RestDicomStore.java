@@ -0,0 +1,313 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.util.Log;
+import edu.umro.util.XML;
+
+/**
+ * Store many DICOM objects to a PACS with one HTTP request, in the manner
+ * of DICOMweb STOW-RS.  The body may be a zip file or a multipart/related
+ * body with one object per part.  Parts are read one at a time as they
+ * arrive and spooled to pooled buffers or temporary files, with only the
+ * attributes before the pixel data parsed.  All objects are then streamed
+ * to the PACS on one association that proposes every SOP class present.
+ *
+ * The result of each object is returned as XML.  The HTTP status is OK if
+ * all were stored, ACCEPTED if some were, and CONFLICT if none were.
+ *
+ * @author irrer
+ *
+ */
+public class RestDicomStore extends Restlet {
+
+    /**
+     * One object from the request body.
+     */
+    private static class Instance {
+        private final String name;
+
+        /** Content, or null if the part could not be read. */
+        private final SpooledDicom spooled;
+
+        /** Attributes before the pixel data, or null if the part could not be read. */
+        private final AttributeList attributeList;
+
+        /** Why the part could not be read, or null if it was. */
+        private final String error;
+
+        private Instance(String name, SpooledDicom spooled, String error) {
+            this.name = name;
+            this.spooled = spooled;
+            this.attributeList = (spooled == null) ? null : spooled.getHeader();
+            this.error = error;
+        }
+    }
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    /**
+     * Spool one part and parse the attributes before its pixel data.
+     */
+    private static Instance readInstance(String name, InputStream inputStream) throws IOException {
+        Upload upload = Upload.read(inputStream);
+        try {
+            return new Instance(name, SpooledDicom.read(upload), null);
+        }
+        catch (DicomException e) {
+            Log.get().info("Unable to interpret part " + name + " of size " + upload.getLength() + " as DICOM: " + e.getMessage());
+            upload.release();
+            return new Instance(name, null, e.getMessage());
+        }
+        catch (IOException e) {
+            upload.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Release the content of all parts.
+     */
+    private static void release(ArrayList<Instance> instanceList) {
+        for (Instance instance : instanceList) {
+            if (instance.spooled != null) {
+                instance.spooled.release();
+            }
+        }
+    }
+
+
+    /**
+     * Read each entry of a zip file into <code>instanceList</code>.  Directories are skipped.
+     */
+    private static void readZip(InputStream inputStream, ArrayList<Instance> instanceList) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                // the zip stream ends at the end of the entry
+                instanceList.add(readInstance(entry.getName(), zipInputStream));
+            }
+            zipInputStream.closeEntry();
+        }
+    }
+
+
+    /**
+     * Read each part of a multipart body into <code>instanceList</code>.
+     */
+    private static void readMultipart(InputStream inputStream, String boundary, ArrayList<Instance> instanceList) throws IOException {
+        MultipartReader reader = new MultipartReader(inputStream, boundary);
+        MultipartReader.Part part;
+        while ((part = reader.next()) != null) {
+            String name = part.getHeader("Content-Location");
+            if (name == null) {
+                name = "part " + (instanceList.size() + 1);
+            }
+            instanceList.add(readInstance(name, part.getInputStream()));
+        }
+    }
+
+
+    private static String statusToString(int status) {
+        return (status == -1) ? "" : ("0x" + Integer.toHexString(status));
+    }
+
+
+    private static String getResult(Instance instance, int status) {
+        if (instance.attributeList == null) {
+            return "UNREADABLE";
+        }
+        if (status == DicomCommand.STATUS_SUCCESS) {
+            return "SUCCESS";
+        }
+        if ((status != -1) && DicomCommand.isStoreSuccess(status)) {
+            return "WARNING";
+        }
+        return (status == -1) ? "NOT_SENT" : "FAILED";
+    }
+
+
+    private static String formatResultToXml(PACS pacs, ArrayList<Instance> instanceList, int[] statusList, int stored, String message) {
+        StringBuffer xml = new StringBuffer("<?xml version='1.0' encoding='utf-8'?>\n");
+        xml.append("<StoreResult PACS='" + XML.escapeSpecialChars(pacs.aeTitle) + "' Total='" + instanceList.size() + "' Stored='" + stored + "'>\n");
+        if (message != null) {
+            xml.append("  <Message>" + XML.escapeSpecialChars(message) + "</Message>\n");
+        }
+        for (int i = 0; i < instanceList.size(); i++) {
+            Instance instance = instanceList.get(i);
+            xml.append("  <Instance Name='" + XML.escapeSpecialChars(instance.name) + "'");
+            if (instance.attributeList != null) {
+                xml.append(" SOPClassUID='" + Attribute.getSingleStringValueOrEmptyString(instance.attributeList, TagFromName.SOPClassUID).trim() + "'");
+                xml.append(" SOPInstanceUID='" + Attribute.getSingleStringValueOrEmptyString(instance.attributeList, TagFromName.SOPInstanceUID).trim() + "'");
+            }
+            xml.append(" Result='" + getResult(instance, statusList[i]) + "' Status='" + statusToString(statusList[i]) + "'");
+            if (instance.error != null) {
+                xml.append(" Error='" + XML.escapeSpecialChars(instance.error) + "'");
+            }
+            xml.append("/>\n");
+        }
+        xml.append("</StoreResult>\n");
+        return xml.toString();
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        try {
+            if (!(request.getMethod().equals(Method.POST) || request.getMethod().equals(Method.PUT))) {
+                setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only POST and PUT are supported.");
+                return;
+            }
+
+            HashMap<String, String> parameterList = Util.getParameterList(request);
+            String pacsAETitle = parameterList.get("pacs");
+            if (pacsAETitle == null) {
+                pacsAETitle = parameterList.get("aetitle");
+            }
+            if (pacsAETitle == null) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "No data PACS specified as destination.  Use the 'pacs=MY_AETITLE' parameter in the URL.");
+                return;
+            }
+            PACS pacs = PACS.findPacs(pacsAETitle.trim());
+            if (pacs == null) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unknown PACS AE title given: " + pacsAETitle);
+                return;
+            }
+            if ((pacs.compression != null) && (!pacs.compression.toString().equalsIgnoreCase(PACS.Compression.UN.toString()))) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST,
+                        "The specified PACS: " + pacs + " does not support uncompressed transfers, and this server only supports uncompressed transfers");
+                return;
+            }
+
+            if ((request.getEntity() == null) || (request.getEntity().getStream() == null)) {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "No data given to store.");
+                return;
+            }
+            MediaType mediaType = request.getEntity().getMediaType();
+            InputStream inputStream = request.getEntity().getStream();
+            ArrayList<Instance> instanceList = new ArrayList<Instance>();
+            try {
+                try {
+                    if ((mediaType != null) && mediaType.getName().equalsIgnoreCase("multipart/related")) {
+                        String boundary = mediaType.getParameters().getFirstValue("boundary");
+                        if (boundary == null) {
+                            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "The multipart/related content type does not have a boundary parameter.");
+                            return;
+                        }
+                        readMultipart(inputStream, boundary, instanceList);
+                    }
+                    else if ((mediaType != null) && (mediaType.equals(MediaType.APPLICATION_ZIP, true) || mediaType.getName().equalsIgnoreCase("application/x-zip-compressed"))) {
+                        readZip(inputStream, instanceList);
+                    }
+                    else {
+                        setError(response, Status.CLIENT_ERROR_UNSUPPORTED_MEDIA_TYPE, "Content must be either application/zip or multipart/related.  Use /dicom/put to store a single object.");
+                        return;
+                    }
+                }
+                catch (IOException e) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "IO error uploading DICOM data: " + e.getMessage());
+                    return;
+                }
+                finally {
+                    inputStream.close();
+                }
+
+                ArrayList<AttributeList> readableList = new ArrayList<AttributeList>();
+                ArrayList<SpooledDicom> spooledList = new ArrayList<SpooledDicom>();
+                for (Instance instance : instanceList) {
+                    if (instance.spooled != null) {
+                        readableList.add(instance.attributeList);
+                        spooledList.add(instance.spooled);
+                    }
+                }
+                if (readableList.isEmpty()) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "None of the " + instanceList.size() + " parts could be interpreted as DICOM.");
+                    return;
+                }
+
+                Log.get().info("Storing " + readableList.size() + " of " + instanceList.size() + " objects to PACS " + pacs);
+                DicomPush dicomPush = new DicomPush(pacs, readableList.toArray(new AttributeList[readableList.size()]),
+                        spooledList.toArray(new SpooledDicom[spooledList.size()]));
+                String message = dicomPush.push();
+
+                int[] statusList = new int[instanceList.size()];
+                int stored = 0;
+                int readable = 0;
+                for (int i = 0; i < instanceList.size(); i++) {
+                    Instance instance = instanceList.get(i);
+                    statusList[i] = -1;
+                    if (instance.attributeList != null) {
+                        statusList[i] = dicomPush.instanceStatus()[readable++];
+                        if ((statusList[i] != -1) && DicomCommand.isStoreSuccess(statusList[i])) {
+                            stored++;
+                            CFindCache.getInstance().invalidate(instance.attributeList);
+                            MetadataIndex.getInstance().add(pacs, instance.attributeList);
+                            InstanceCache.getInstance().put(instance.spooled, ServiceConfig.getInstance().getHostedPACS()[0].aeTitle);
+                        }
+                    }
+                }
+
+                Status status = (stored == instanceList.size()) ? Status.SUCCESS_OK : ((stored > 0) ? Status.SUCCESS_ACCEPTED : Status.CLIENT_ERROR_CONFLICT);
+                response.setStatus(status);
+                response.setEntity(formatResultToXml(pacs, instanceList, statusList, stored, message), MediaType.TEXT_XML);
+                Log.get().info("Stored " + stored + " of " + instanceList.size() + " objects to PACS " + pacs);
+            }
+            finally {
+                release(instanceList);
+            }
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+}
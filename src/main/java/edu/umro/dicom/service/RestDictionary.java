@@ -0,0 +1,199 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.util.Log;
+import edu.umro.util.XML;
+
+/**
+ * List, get, add, and delete DICOM dictionaries.
+ *
+ * <pre>
+ *     GET    /dictionary              List the names of the dictionaries.
+ *     GET    /dictionary?name=[name]  Get the entries of a dictionary.
+ *     PUT    /dictionary?name=[name]  Add or replace a custom dictionary, given as XML in the body.
+ *     DELETE /dictionary?name=[name]  Delete a custom dictionary.
+ * </pre>
+ *
+ * A custom dictionary is given as the entries that it adds to or replaces
+ * in the standard dictionary, as in:
+ *
+ * <pre>
+ * &lt;DicomDictionary&gt;
+ *     &lt;Item name="MyPrivateTag" group="0019" element="1010" vr="LO"/&gt;
+ * &lt;/DicomDictionary&gt;
+ * </pre>
+ *
+ * Requests that accept a <code>dictionary</code> parameter then interpret
+ * attribute names with the named dictionary.
+ *
+ * @author irrer
+ *
+ */
+public class RestDictionary extends Restlet {
+
+    private static final String NAME_PARAMETER_NAME = "name";
+
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    /**
+     * Get the name parameter, checking that there are no others.
+     *
+     * @return Name, or null if it was not given or there were other parameters.
+     */
+    private String getName(Request request, Response response, boolean required) {
+        HashMap<String, String> parameterList = Util.getParameterList(request);
+        String name = null;
+        for (String key : parameterList.keySet()) {
+            if (key.trim().equalsIgnoreCase(NAME_PARAMETER_NAME) && (parameterList.get(key) != null)) {
+                name = parameterList.get(key).trim();
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "The parameter " + key + " is not supported.  The only accepted parameter is " + NAME_PARAMETER_NAME);
+                return null;
+            }
+        }
+        if (required && (name == null)) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "The " + NAME_PARAMETER_NAME + " of the dictionary must be given.");
+        }
+        return name;
+    }
+
+
+    private void get(Request request, Response response) {
+        HashMap<String, String> parameterList = Util.getParameterList(request);
+        String name = getName(request, response, false);
+        if ((name == null) && !parameterList.isEmpty()) {
+            return;
+        }
+        DictionaryRegistry registry = DictionaryRegistry.getInstance();
+
+        if (name == null) {
+            StringBuffer xml = new StringBuffer();
+            xml.append("<?xml version='1.0' encoding='utf-8'?>\n<DicomDictionaryList>\n");
+            for (String dictionaryName : registry.getNameList()) {
+                xml.append("    <DicomDictionary>" + XML.escapeSpecialChars(dictionaryName) + "</DicomDictionary>\n");
+            }
+            xml.append("</DicomDictionaryList>\n");
+            response.setStatus(Status.SUCCESS_OK);
+            response.setEntity(xml.toString(), MediaType.TEXT_XML);
+            return;
+        }
+
+        DicomDict dicomDict = registry.get(name);
+        if (dicomDict == null) {
+            setError(response, Status.CLIENT_ERROR_NOT_FOUND, "There is no dictionary named " + name + " .  Known dictionaries are: " + registry.getNameList());
+            return;
+        }
+        response.setStatus(Status.SUCCESS_OK);
+        response.setEntity(DictionaryRegistry.toXml(dicomDict.getName(), dicomDict.getItemList()), MediaType.TEXT_XML);
+    }
+
+
+    private void put(Request request, Response response) throws Exception {
+        String name = getName(request, response, true);
+        if (name == null) {
+            return;
+        }
+        if ((request.getEntity() == null) || !request.getEntity().isAvailable()) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "The dictionary must be given as XML in the body of the request.");
+            return;
+        }
+        try {
+            List<DictionaryRegistry.Item> itemList = DictionaryRegistry.parse(request.getEntity().getText());
+            DictionaryRegistry.getInstance().add(name, itemList);
+            setError(response, Status.SUCCESS_OK, "Dictionary " + name + " added with " + itemList.size() + " items.");
+            Log.get().info("DICOM dictionary " + name + " added by user " + Util.getUserId(request, response, Util.getParameterList(request)));
+        }
+        catch (DICOMRestException e) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+
+    private void delete(Request request, Response response) throws Exception {
+        String name = getName(request, response, true);
+        if (name == null) {
+            return;
+        }
+        try {
+            if (DictionaryRegistry.getInstance().delete(name)) {
+                setError(response, Status.SUCCESS_OK, "Dictionary " + name + " deleted.");
+                Log.get().info("DICOM dictionary " + name + " deleted by user " + Util.getUserId(request, response, Util.getParameterList(request)));
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_NOT_FOUND, "There is no dictionary named " + name);
+            }
+        }
+        catch (DICOMRestException e) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        // assume failure until an operation succeeds.
+        setError(response, Status.SERVER_ERROR_INTERNAL, this.getClass() + " Internal server error.");
+        try {
+            if (request.getMethod() == Method.GET) {
+                get(request, response);
+                return;
+            }
+            if (request.getMethod() == Method.PUT) {
+                put(request, response);
+                return;
+            }
+            if (request.getMethod() == Method.DELETE) {
+                delete(request, response);
+                return;
+            }
+
+            setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only HTTP GET, PUT, and DELETE are supported.");
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+
+}
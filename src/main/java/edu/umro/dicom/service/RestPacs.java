@@ -18,6 +18,7 @@ package edu.umro.dicom.service;
 
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.ArrayList;
 
@@ -122,16 +123,20 @@ public class RestPacs extends Restlet {
         // At this point the media type has been determined to be valid, so it's got to be
         // either XML or HTML.
 
-        if (mediaType.getName().equals(MediaType.TEXT_XML.getName())) {
-            setError(response, Status.SUCCESS_OK, "Success");
-            String xml = PACS.getPACSListAsXML();
-            response.setEntity(xml, MediaType.TEXT_XML);
-        }
-        else {
-            String html = PACS.getPACSListAsHTML();
-            setError(response, Status.SUCCESS_OK, "Success");
-            response.setEntity(html, MediaType.TEXT_HTML);
-        }
+        final ArrayList<PACS> pacsList = ServiceConfig.getInstance().getPacsList();
+        final boolean isXml = mediaType.getName().equals(MediaType.TEXT_XML.getName());
+        setError(response, Status.SUCCESS_OK, "Success");
+        response.setEntity(new TextStreamRepresentation(isXml ? MediaType.TEXT_XML : MediaType.TEXT_HTML) {
+            @Override
+            public void write(Writer writer) throws IOException {
+                if (isXml) {
+                    PACS.writePACSListAsXML(writer, pacsList);
+                }
+                else {
+                    PACS.writePACSListAsHTML(writer, pacsList);
+                }
+            }
+        });
         Log.get().info("List of PACS fetched by user " + userId + " with media type " + mediaType.getName());
 
     }
@@ -0,0 +1,82 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.util.Log;
+
+/**
+ * List background prefetches with GET, or cancel them with DELETE.  A
+ * StudyInstanceUID or SeriesInstanceUID parameter cancels only that
+ * prefetch, otherwise all are cancelled.
+ *
+ * @author irrer
+ *
+ */
+public class RestPrefetch extends Restlet {
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        try {
+            if (request.getMethod().equals(Method.GET)) {
+                response.setStatus(Status.SUCCESS_OK);
+                response.setEntity("<?xml version='1.0' encoding='utf-8'?>\n" + Prefetcher.getInstance().getStatusAsXML(), MediaType.TEXT_XML);
+            }
+            else if (request.getMethod().equals(Method.DELETE)) {
+                HashMap<String, String> parameterList = Util.getParameterList(request);
+                String uid = parameterList.get("StudyInstanceUID");
+                if (uid == null) {
+                    uid = parameterList.get("SeriesInstanceUID");
+                }
+                int count = Prefetcher.getInstance().cancel((uid == null) ? null : uid.trim());
+                Log.get().info("Cancelled " + count + " prefetches for " + ((uid == null) ? "all" : uid));
+                setError(response, Status.SUCCESS_OK, "Cancelled " + count + " prefetches.");
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only HTTP GET and DELETE are supported.");
+            }
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.utils.StringUtilities;
+
+import edu.umro.dicom.common.Util;
+import edu.umro.dicom.service.CFind.QueryLevel;
+import edu.umro.util.Log;
+
+/**
+ * Find results at one level given constraints at that level and any level
+ * above it, as in
+ *
+ * <code>/dicom/query/series?PatientName=SMITH*&StudyDate=20130101-20131231&Modality=CT</code>
+ *
+ * The hierarchical C-FINDs needed are planned and performed by
+ * <code>QueryPlanner</code>, and the results are sent as they arrive, each
+ * joined with the attributes of the patient and study that it belongs to.
+ * The status of each PACS is reported after the results.
+ *
+ * @author irrer
+ *
+ */
+public class RestQuery extends Restlet {
+
+    static private final String MEDIA_TYPE_PARAMETER_NAME = "media_type";
+
+    /** Parameters that are not DICOM attributes. */
+    static private final List<String> RESERVED_PARAMETER_LIST = Arrays.asList(MEDIA_TYPE_PARAMETER_NAME, "aetitle", "limit", "dictionary");
+
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    /**
+     * Sends the results of a plan to the client as they arrive.
+     */
+    private class PlanRepresentation extends TextStreamRepresentation implements ParallelCFind.ResultListener {
+        private final QueryPlanner.Plan plan;
+        private final List<PACS> pacsList;
+        private final long limit;
+        private final CFindResultWriter resultWriter;
+        private Writer writer = null;
+        private IOException writeFailure = null;
+
+        PlanRepresentation(Request request, QueryPlanner.Plan plan, List<PACS> pacsList, long limit, DicomDict dicomDictionary, CFindResultWriter.Format format) throws Exception {
+            super(format.mediaType);
+            this.plan = plan;
+            this.pacsList = pacsList;
+            this.limit = limit;
+
+            // the attributes returned at the level of the results, and those constrained above it
+            ArrayList<AttributeTag> columnList = new ArrayList<AttributeTag>();
+            ArrayList<AttributeTag> candidateList = new ArrayList<AttributeTag>();
+            for (Object oTag : CFind.constructDefaultList(plan.getQueryLevel(), null).keySet()) {
+                candidateList.add((AttributeTag)oTag);
+            }
+            candidateList.addAll(plan.getConstrainedTagList());
+            for (AttributeTag tag : candidateList) {
+                if (CFindResultWriter.isColumn(tag, dicomDictionary) && !columnList.contains(tag)) {
+                    columnList.add(tag);
+                }
+            }
+            resultWriter = new CFindResultWriter(format, plan.getQueryLevel(), dicomDictionary, request.getHostRef().toString(), columnList);
+        }
+
+        /**
+         * Write one result and push it to the client.  If the client has gone
+         * away then the remaining results are ignored.
+         */
+        @Override
+        public void result(AttributeList attributeList, PACS pacs) {
+            if (writeFailure == null) {
+                try {
+                    resultWriter.writeResult(writer, attributeList, pacs, null);
+                    writer.flush();
+                }
+                catch (IOException e) {
+                    writeFailure = e;
+                    Log.get().info("Unable to send query result to client, ignoring the remaining results: " + e);
+                }
+            }
+        }
+
+        @Override
+        public void write(Writer writer) throws IOException {
+            this.writer = writer;
+            resultWriter.writeHeader(writer, plan.getQueryLevel() + " : " + plan, -1, null);
+            writer.flush();
+            List<ParallelCFind.PacsStatus> pacsStatusList = QueryPlanner.getInstance().execute(plan, pacsList, limit, this);
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            resultWriter.writeTrailer(writer, pacsStatusList);
+        }
+    }
+
+
+    /**
+     * Get the constraints from the parameters that name DICOM attributes.
+     *
+     * @return Constraints, or null if a parameter is not valid, in which case the response has been set.
+     */
+    private AttributeList getConstraintList(Response response, HashMap<String, String> parameterList, DicomDict dicomDictionary) {
+        AttributeList constraintList = new AttributeList();
+        for (String name : parameterList.keySet()) {
+            if (RESERVED_PARAMETER_LIST.contains(name.trim().toLowerCase())) {
+                continue;
+            }
+            AttributeTag tag = dicomDictionary.getTagByCaseInsensitiveName(name.trim().toLowerCase().replaceFirst("^dt", ""));
+            if (tag == null) {
+                // ignoring it would quietly widen the query, possibly to a very large number of C-FINDs
+                setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unknown parameter " + name + " .  It is neither a DICOM attribute nor one of " + RESERVED_PARAMETER_LIST);
+                return null;
+            }
+            String value = parameterList.get(name);
+            value = (value == null) ? "" : StringUtilities.removeLeadingOrTrailingWhitespaceOrISOControl(value).trim();
+            if (value.length() > 0) {
+                try {
+                    Attribute attribute = AttributeFactory.newAttribute(tag, dicomDictionary.getValueRepresentationFromTag(tag));
+                    attribute.setValue(value);
+                    constraintList.put(attribute);
+                }
+                catch (DicomException e) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Invalid value " + value + " for " + name + " : " + e.getMessage());
+                    return null;
+                }
+            }
+        }
+        return constraintList;
+    }
+
+
+    private void query(Request request, Response response, QueryLevel queryLevel) throws Exception {
+        HashMap<String, String> parameterList = Util.getParameterList(request);
+
+        long limit = -1;
+        if (parameterList.containsKey("limit")) {
+            limit = Long.parseLong(parameterList.get("limit"));
+        }
+
+        DicomDict dicomDictionary = DictionaryRegistry.getInstance().get(parameterList.get("dictionary"));
+        if (dicomDictionary == null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unknown dictionary " + parameterList.get("dictionary") +
+                    " .  Known dictionaries are: " + DictionaryRegistry.getInstance().getNameList());
+            return;
+        }
+
+        CFindResultWriter.Format format = CFindResultWriter.Format.fromMediaTypeName(parameterList.get(MEDIA_TYPE_PARAMETER_NAME));
+        if (format == null) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "Unsupported " + MEDIA_TYPE_PARAMETER_NAME + " " + parameterList.get(MEDIA_TYPE_PARAMETER_NAME) +
+                    " .  Use one of " + MediaType.TEXT_HTML.getName() + " " + MediaType.TEXT_XML.getName() + " " + CFindResultWriter.APPLICATION_DICOM_JSON.getName());
+            return;
+        }
+
+        AttributeList constraintList = getConstraintList(response, parameterList, dicomDictionary);
+        if (constraintList == null) {
+            return;
+        }
+
+        QueryPlanner.Plan plan;
+        try {
+            plan = QueryPlanner.getInstance().plan(queryLevel, constraintList, dicomDictionary);
+        }
+        catch (DICOMRestException e) {
+            setError(response, Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        ArrayList<PACS> pacsList = ServiceConfig.getInstance().getPacsList();
+        String pacsValue = parameterList.get("aetitle");
+        ArrayList<PACS> requestedPacsList = new ArrayList<PACS>();
+        if (pacsValue != null) {
+            for (String pacsName : pacsValue.split(",")) {
+                for (PACS pacs : pacsList) {
+                    if (pacs.aeTitle.equalsIgnoreCase(pacsName.trim()) && !requestedPacsList.contains(pacs)) {
+                        requestedPacsList.add(pacs);
+                    }
+                }
+            }
+        }
+        else {
+            requestedPacsList.addAll(pacsList);
+        }
+
+        Log.get().info("Query plan for " + queryLevel + " : " + plan);
+        setError(response, Status.SUCCESS_OK, "Success");
+        response.setEntity(new PlanRepresentation(request, plan, requestedPacsList, limit, dicomDictionary, format));
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        // assume failure until an operation succeeds.
+        setError(response, Status.SERVER_ERROR_INTERNAL, this.getClass() + " Internal server error.");
+        try {
+            if (request.getMethod() == Method.GET) {
+                String subCall = (String)(request.getAttributes().get("queryLevel"));
+                QueryLevel queryLevel = QueryLevel.stringToQueryLevel(subCall);
+                if (queryLevel == null) {
+                    setError(response, Status.CLIENT_ERROR_BAD_REQUEST, "The level of the results must be given, as in /dicom/query/series");
+                }
+                else {
+                    query(request, response, queryLevel);
+                }
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only HTTP GET is supported.");
+            }
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+/**
+ * Report the internal state of the service, such as how many retrieves are
+ * in progress and waiting, as XML.  Intended for monitoring.
+ *
+ * @author irrer
+ *
+ */
+public class RestStatus extends Restlet {
+
+    /**
+     * Set the return status, message, and the return content.
+     *
+     * @param response Response to client.
+     *
+     * @param status HTTP return status to use.
+     *
+     * @param msg Error message.
+     */
+    private void setError(Response response, Status status, String msg) {
+        response.setStatus(status, msg);
+        response.setEntity(msg, MediaType.TEXT_PLAIN);
+    }
+
+
+    /**
+     * @return Status of all monitored components as XML.
+     */
+    private String getStatusAsXML() {
+        return
+            "<?xml version='1.0' encoding='utf-8'?>\n" +
+            "<DicomServiceStatus>\n" +
+            RetrieveAdmission.getInstance().getStatusAsXML() +
+            CFindCache.getInstance().getStatusAsXML() +
+            CFindPager.getInstance().getStatusAsXML() +
+            MetadataIndex.getInstance().getStatusAsXML() +
+            QueryPlanner.getInstance().getStatusAsXML() +
+            AssociationPool.getInstance().getStatusAsXML() +
+            BufferPool.getInstance().getStatusAsXML() +
+            InstanceCache.getInstance().getStatusAsXML() +
+            Prefetcher.getInstance().getStatusAsXML() +
+            ZipStreamWriter.getStatusAsXML() +
+            ImageRenderer.getInstance().getStatusAsXML() +
+            FrameExtractor.getStatusAsXML() +
+            "</DicomServiceStatus>\n";
+    }
+
+
+    @Override
+    public void handle(Request request, Response response) {
+        try {
+            if (request.getMethod() == Method.GET) {
+                response.setStatus(Status.SUCCESS_OK);
+                response.setEntity(getStatusAsXML(), MediaType.TEXT_XML);
+            }
+            else {
+                setError(response, Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "Only HTTP GET is supported.");
+            }
+        }
+        catch (Exception e) {
+            setError(response, Status.SERVER_ERROR_INTERNAL, "Unexpected error.  Unable to process request: " + e);
+            e.printStackTrace();
+        }
+    }
+
+}
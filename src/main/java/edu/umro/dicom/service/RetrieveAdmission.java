@@ -0,0 +1,330 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.util.Log;
+
+/**
+ * Decides when a retrieve may start.  There are a limited number of
+ * retrieve slots.  Requests that can not get one immediately wait in a
+ * queue of limited depth for a limited time, and are rejected if they can
+ * not get one in time so that the HTTP worker threads are not all tied up
+ * waiting.
+ *
+ * When a slot becomes free it is given to the highest priority waiting
+ * request, oldest first, skipping requests from users that already have
+ * their fair share of slots.
+ *
+ * @author irrer
+ *
+ */
+public class RetrieveAdmission {
+
+    /**
+     * Priority of a retrieve.  Earlier values are served first.
+     */
+    public enum Priority {
+        /** Single instance or series, usually somebody waiting at a screen. */
+        INTERACTIVE,
+        /** Whole study or patient. */
+        BULK;
+
+        /**
+         * Determine the priority from what is being retrieved.
+         *
+         * @param specification Retrieve specification.
+         *
+         * @return Priority appropriate for the specification.
+         */
+        public static Priority fromSpecification(AttributeList specification) {
+            String level = Attribute.getSingleStringValueOrEmptyString(specification, TagFromName.QueryRetrieveLevel).trim();
+            if (level.equalsIgnoreCase("IMAGE") || level.equalsIgnoreCase("SERIES")) {
+                return INTERACTIVE;
+            }
+            if ((level.length() == 0) &&
+                    ((specification.get(TagFromName.SOPInstanceUID) != null) || (specification.get(TagFromName.SeriesInstanceUID) != null))) {
+                return INTERACTIVE;
+            }
+            return BULK;
+        }
+    }
+
+    /**
+     * Permission to run a retrieve.  Must be released when the retrieve is
+     * done.  Releasing more than once has no effect.
+     */
+    public class Ticket {
+        private final String user;
+        private boolean released = false;
+
+        private Ticket(String user) {
+            this.user = user;
+        }
+
+        /**
+         * Get another slot for the same user, for work of this retrieve that
+         * runs alongside it, such as the series C-MOVEs of a parallel
+         * retrieve.  The slot is only given if doing so can not delay any
+         * other request.  Never waits.
+         *
+         * @return Ticket, or null if the service is busy or this ticket has
+         * been released.
+         */
+        public Ticket tryAcquireAdditional() {
+            return RetrieveAdmission.this.tryAcquireAdditional(this);
+        }
+
+        /**
+         * Give up the slot.
+         */
+        public void release() {
+            RetrieveAdmission.this.release(this);
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static class Waiter {
+        private final String user;
+        private final Priority priority;
+        private final long sequence;
+
+        private Waiter(String user, Priority priority, long sequence) {
+            this.user = user;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private static RetrieveAdmission instance = null;
+
+    /** Number of retrieves that may run at the same time. */
+    private final int maxInProgress;
+
+    /** Number of retrieves that one user may run at the same time. */
+    private final int maxPerUser;
+
+    /** Maximum number of requests that may be waiting. */
+    private final int maxQueueDepth;
+
+    /** Maximum time in milliseconds that a request will wait. */
+    private final long maxWait;
+
+    private final ArrayList<Waiter> waitingList = new ArrayList<Waiter>();
+    private final HashMap<String, Integer> inProgressByUser = new HashMap<String, Integer>();
+    private int inProgress = 0;
+    private long sequence = 0;
+
+    // metrics
+    private long admittedCount = 0;
+    private long rejectedQueueFullCount = 0;
+    private long rejectedTimeoutCount = 0;
+    private long totalWait = 0;
+    private long maxObservedWait = 0;
+    private int maxObservedQueueDepth = 0;
+
+
+    private RetrieveAdmission() {
+        ServiceConfig config = ServiceConfig.getInstance();
+        maxInProgress = config.getMaxConcurrentRetrieve();
+        maxPerUser = config.getMaxConcurrentRetrievePerUser();
+        maxQueueDepth = config.getRetrieveQueueDepth();
+        maxWait = config.getRetrieveMaxWaitSeconds() * 1000L;
+        Log.get().info("Retrieve admission: slots: " + maxInProgress + "  per user: " + maxPerUser +
+                "  queue depth: " + maxQueueDepth + "  maximum wait ms: " + maxWait);
+    }
+
+
+    public static synchronized RetrieveAdmission getInstance() {
+        if (instance == null) {
+            instance = new RetrieveAdmission();
+        }
+        return instance;
+    }
+
+
+    private int getInProgress(String user) {
+        Integer count = inProgressByUser.get(user);
+        return (count == null) ? 0 : count;
+    }
+
+
+    /**
+     * Determine which waiting request should get the next free slot, if any.
+     */
+    private Waiter next() {
+        if (inProgress >= maxInProgress) {
+            return null;
+        }
+        Waiter best = null;
+        for (Waiter waiter : waitingList) {
+            if (getInProgress(waiter.user) < maxPerUser) {
+                if ((best == null) || (waiter.priority.ordinal() < best.priority.ordinal()) ||
+                        ((waiter.priority == best.priority) && (waiter.sequence < best.sequence))) {
+                    best = waiter;
+                }
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * Get a slot for a retrieve, waiting if necessary.
+     *
+     * @param user User making the request.
+     *
+     * @param priority Priority of request.
+     *
+     * @return Ticket, or null if the request was rejected because too many
+     * requests are waiting or a slot did not become available in time.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized Ticket acquire(String user, Priority priority) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Waiter waiter = new Waiter(user, priority, sequence++);
+        waitingList.add(waiter);
+        try {
+            if ((next() != waiter) && (waitingList.size() > maxQueueDepth)) {
+                rejectedQueueFullCount++;
+                Log.get().info("Rejected " + priority + " retrieve for " + user + " because " + (waitingList.size() - 1) + " requests are already waiting.");
+                return null;
+            }
+            maxObservedQueueDepth = Math.max(maxObservedQueueDepth, waitingList.size());
+            long deadline = start + maxWait;
+            while (next() != waiter) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    rejectedTimeoutCount++;
+                    Log.get().info("Rejected " + priority + " retrieve for " + user + " because no slot became available within " + maxWait + " ms.");
+                    return null;
+                }
+                wait(remaining);
+            }
+            inProgress++;
+            inProgressByUser.put(user, getInProgress(user) + 1);
+            long waited = System.currentTimeMillis() - start;
+            admittedCount++;
+            totalWait += waited;
+            maxObservedWait = Math.max(maxObservedWait, waited);
+            Log.get().fine("Admitted " + priority + " retrieve for " + user + " after waiting " + waited + " ms.");
+            return new Ticket(user);
+        }
+        finally {
+            waitingList.remove(waiter);
+            // another waiter might have been held up behind this one, or a
+            // slot might still be free if tickets were released together
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Get a slot for a background retrieve, but only if doing so can not
+     * delay any other request: nobody is waiting, and at least one slot
+     * will still be free.  Never waits.
+     *
+     * @param user User making the request.
+     *
+     * @return Ticket, or null if the service is busy.
+     */
+    public synchronized Ticket tryAcquireIdle(String user) {
+        if (!waitingList.isEmpty() || ((inProgress + 1) >= maxInProgress) || (getInProgress(user) >= maxPerUser)) {
+            return null;
+        }
+        inProgress++;
+        inProgressByUser.put(user, getInProgress(user) + 1);
+        admittedCount++;
+        return new Ticket(user);
+    }
+
+
+    private synchronized Ticket tryAcquireAdditional(Ticket ticket) {
+        return ticket.released ? null : tryAcquireIdle(ticket.user);
+    }
+
+
+    /**
+     * Determine whether a request is waiting that could start if one more
+     * slot were free, so that background retrieves can give up theirs.
+     *
+     * @return True if such a request is waiting.
+     */
+    public synchronized boolean isWaitingForSlot() {
+        for (Waiter waiter : waitingList) {
+            if (getInProgress(waiter.user) < maxPerUser) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private synchronized void release(Ticket ticket) {
+        if (!ticket.released) {
+            ticket.released = true;
+            inProgress--;
+            int count = getInProgress(ticket.user) - 1;
+            if (count > 0) {
+                inProgressByUser.put(ticket.user, count);
+            }
+            else {
+                inProgressByUser.remove(ticket.user);
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * @return Suggested number of seconds for a rejected client to wait before trying again.
+     */
+    public int getRetryAfterSeconds() {
+        return (int)Math.max(1, maxWait / 1000);
+    }
+
+
+    /**
+     * @return Current state and metrics as XML.
+     */
+    public synchronized String getStatusAsXML() {
+        long averageWait = (admittedCount == 0) ? 0 : (totalWait / admittedCount);
+        return
+            "<RetrieveAdmission>\n" +
+            "    <Slots>" + maxInProgress + "</Slots>\n" +
+            "    <SlotsPerUser>" + maxPerUser + "</SlotsPerUser>\n" +
+            "    <InProgress>" + inProgress + "</InProgress>\n" +
+            "    <QueueDepth>" + waitingList.size() + "</QueueDepth>\n" +
+            "    <MaxQueueDepth>" + maxQueueDepth + "</MaxQueueDepth>\n" +
+            "    <MaxObservedQueueDepth>" + maxObservedQueueDepth + "</MaxObservedQueueDepth>\n" +
+            "    <Admitted>" + admittedCount + "</Admitted>\n" +
+            "    <RejectedQueueFull>" + rejectedQueueFullCount + "</RejectedQueueFull>\n" +
+            "    <RejectedTimeout>" + rejectedTimeoutCount + "</RejectedTimeout>\n" +
+            "    <AverageWaitMs>" + averageWait + "</AverageWaitMs>\n" +
+            "    <MaxWaitMs>" + maxObservedWait + "</MaxWaitMs>\n" +
+            "</RetrieveAdmission>\n";
+    }
+}
@@ -0,0 +1,235 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.util.Log;
+
+/**
+ * Directs DICOM objects arriving at the shared receiver to the retrieve
+ * (C-MOVE) that requested them, so that any number of retrieves can be in
+ * progress at the same time on a single port.
+ *
+ * Objects are matched by the Move Originator Message ID and Move Originator
+ * AE title in the C-STORE command, which the PACS copies from the C-MOVE
+ * request.  Both must match, so that objects moved by another SCU that
+ * happens to use the same message ID are not mixed into a retrieve.  If the
+ * command has no move originator (some PACS do not send it, and the file
+ * based receiver does not see the command) then the object's identifiers
+ * (patient, study, series, instance) are compared with the specification of
+ * the retrieve from the sending PACS, but only when exactly one retrieve
+ * from that PACS is in progress, so that there is no ambiguity.  Objects
+ * that do not match any retrieve, such as those that arrive after their
+ * retrieve has ended, are dropped.
+ *
+ * @author irrer
+ *
+ */
+public class RetrieveRouter implements ReceiveDicomObject {
+
+    /** Identifiers compared when matching an object to a specification, from most to least specific. */
+    private static final AttributeTag[] MATCH_TAG_LIST = {
+        TagFromName.SOPInstanceUID,
+        TagFromName.SeriesInstanceUID,
+        TagFromName.StudyInstanceUID,
+        TagFromName.PatientID
+    };
+
+    /**
+     * A retrieve that is in progress.
+     */
+    public static class Registration {
+        private final int messageID;
+        private final String callingAETitle;
+        private final PACS pacs;
+        private final AttributeList specification;
+        private final ReceiveDicom receive;
+
+        private Registration(int messageID, String callingAETitle, PACS pacs, AttributeList specification, ReceiveDicom receive) {
+            this.messageID = messageID;
+            this.callingAETitle = callingAETitle;
+            this.pacs = pacs;
+            this.specification = specification;
+            this.receive = receive;
+        }
+
+        /**
+         * Determine whether the given object satisfies this retrieve's
+         * specification.  Only identifiers given in the specification are
+         * compared.
+         */
+        private boolean matches(AttributeList header) {
+            boolean compared = false;
+            for (AttributeTag tag : MATCH_TAG_LIST) {
+                String wanted = Attribute.getSingleStringValueOrEmptyString(specification, tag).trim();
+                if (wanted.length() > 0) {
+                    if (!wanted.equals(Attribute.getSingleStringValueOrEmptyString(header, tag).trim())) {
+                        return false;
+                    }
+                    compared = true;
+                }
+            }
+            return compared;
+        }
+
+        @Override
+        public String toString() {
+            return "retrieve " + messageID + " from " + pacs.aeTitle;
+        }
+    }
+
+    /** Retrieves in progress, indexed by C-MOVE message ID. */
+    private final HashMap<Integer, Registration> registrationList = new HashMap<Integer, Registration>();
+
+
+    /**
+     * Register a retrieve so that objects sent for it will be passed to its
+     * receiver.  This must be done before the C-MOVE is sent.
+     *
+     * @param messageID Message ID of the C-MOVE.
+     *
+     * @param callingAETitle AE title that the C-MOVE is sent from.
+     *
+     * @param pacs PACS that objects are being retrieved from.
+     *
+     * @param specification Identifies the objects being retrieved.
+     *
+     * @param receive Consumer of objects.
+     *
+     * @return Registration, which must be passed to <code>unregister</code>
+     * when the retrieve is done.
+     */
+    public synchronized Registration register(int messageID, String callingAETitle, PACS pacs, AttributeList specification, ReceiveDicom receive) {
+        Registration registration = new Registration(messageID, callingAETitle.trim(), pacs, specification, receive);
+        registrationList.put(messageID, registration);
+        return registration;
+    }
+
+
+    /**
+     * Remove a retrieve.  Objects that arrive for it afterwards are dropped.
+     *
+     * @param registration Returned by <code>register</code>.
+     */
+    public synchronized void unregister(Registration registration) {
+        if (registrationList.get(registration.messageID) == registration) {
+            registrationList.remove(registration.messageID);
+        }
+    }
+
+
+    /**
+     * @return Number of retrieves in progress.
+     */
+    public synchronized int size() {
+        return registrationList.size();
+    }
+
+
+    /**
+     * Determine whether a C-STORE command identifies the C-MOVE that caused it.
+     */
+    private static boolean hasMoveOriginator(AttributeList command) {
+        return (command != null) &&
+                ((command.get(TagFromName.MoveOriginatorMessageID) != null) || (command.get(TagFromName.MoveOriginatorApplicationEntityTitle) != null));
+    }
+
+
+    /**
+     * Find the registration by message ID and the AE title that the C-MOVE
+     * was sent from.
+     */
+    private synchronized Registration findByMoveOriginator(AttributeList command) {
+        int messageID = Attribute.getSingleIntegerValueOrDefault(command, TagFromName.MoveOriginatorMessageID, -1);
+        String aeTitle = Attribute.getSingleStringValueOrEmptyString(command, TagFromName.MoveOriginatorApplicationEntityTitle).trim();
+        Registration registration = (messageID < 0) ? null : registrationList.get(messageID);
+        return ((registration != null) && registration.callingAETitle.equals(aeTitle)) ? registration : null;
+    }
+
+
+    /**
+     * Find the registration by comparing the object with the specification
+     * of the retrieve from the sending PACS.  If more than one retrieve from
+     * that PACS is in progress then the object could belong to any of them,
+     * so none is chosen.
+     */
+    private synchronized Registration findBySpecification(String sourceAETitle, AttributeList header) {
+        if (sourceAETitle == null) {
+            return null;
+        }
+        Registration found = null;
+        for (Registration registration : registrationList.values()) {
+            if (sourceAETitle.trim().equals(registration.pacs.aeTitle)) {
+                if (found != null) {
+                    return null;
+                }
+                found = registration;
+            }
+        }
+        return ((found != null) && found.matches(header)) ? found : null;
+    }
+
+
+    /**
+     * Pass the given object to the retrieve that requested it.
+     */
+    @Override
+    public void receive(ReceivedDicomObject receivedDicomObject) {
+        try {
+            AttributeList command = receivedDicomObject.getCommand();
+            Registration registration = hasMoveOriginator(command) ?
+                    findByMoveOriginator(command) :
+                    findBySpecification(receivedDicomObject.getSourceAETitle(), receivedDicomObject.getHeader());
+            if (registration == null) {
+                Log.get().info("Dropping DICOM that does not belong to any retrieve in progress: " + receivedDicomObject);
+                return;
+            }
+            Log.get().fine("Routing DICOM " + receivedDicomObject + " to " + registration);
+            if (registration.receive instanceof ReceiveDicomObject) {
+                ((ReceiveDicomObject)registration.receive).receive(receivedDicomObject);
+            }
+            else {
+                registration.receive.receive(receivedDicomObject.getAttributeList(), receivedDicomObject.getTransferSyntax(), receivedDicomObject.getSourceAETitle());
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to route incoming DICOM " + receivedDicomObject + " : " + e);
+        }
+    }
+
+
+    /**
+     * Pass the given parsed object to the retrieve that requested it.  Only
+     * the object's identifiers are available for matching.
+     */
+    @Override
+    public void receive(AttributeList attributeList, String transferSyntax, String sourceAETitle) {
+        Registration registration = findBySpecification(sourceAETitle, attributeList);
+        if (registration == null) {
+            Log.get().info("Dropping DICOM from " + sourceAETitle + " that does not belong to any retrieve in progress.");
+        }
+        else {
+            registration.receive.receive(attributeList, transferSyntax, sourceAETitle);
+        }
+    }
+}
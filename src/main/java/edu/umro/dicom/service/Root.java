@@ -213,6 +213,11 @@ public class Root extends Application {
 
             int port = ServiceConfig.getInstance().getPort();
 
+            Log.get().info("Loading DICOM dictionaries: " + DictionaryRegistry.getInstance().getNameList());
+
+            // read the metadata index log now rather than on the first C-FIND
+            MetadataIndex.getInstance();
+
             // Start the MRI MR CT catcher
             Log.get().info("Starting MRCT DICOM catcher");
             new MRCT();
@@ -341,11 +346,17 @@ public class Root extends Application {
         // Attach the handlers to the root router
 
         auth(router, "/dicom/cfind", "/dicom/cfind/{queryLevel}", new RestDicomCFind());
+        auth(router, "/dicom/query", "/dicom/query/{queryLevel}", new RestQuery());
         auth(router, "/dicom/put", new RestDicomPut());
+        auth(router, "/dicom/store", new RestDicomStore());
         auth(router, "/pacs", new RestPacs());
+        auth(router, "/dictionary", new RestDictionary());
         auth(router, "/dicom/get", new RestDicomGet());
+        auth(router, "/dicom/metadata", new RestDicomMetadata());
         auth(router, "/dicom/" + RestDicomList.URL_BRANCH, new RestDicomList());
         auth(router, "/expired", new RestXStor());
+        auth(router, "/status", new RestStatus());
+        auth(router, "/prefetch", new RestPrefetch());
 
         {
             // Serve static content.  No authentication or authorization required.
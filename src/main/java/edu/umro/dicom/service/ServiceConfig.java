@@ -126,6 +126,25 @@ public class ServiceConfig {
         }
         return null;
     }
+
+    /**
+     * Get an optional integer value from the configuration.
+     *
+     * @param path XPath of value.
+     *
+     * @param defaultValue Value to use if the value is not configured or is not a valid integer.
+     *
+     * @return Configured value or default.
+     */
+    private int getIntValue(String path, int defaultValue) {
+        try {
+            return Integer.parseInt(XML.getValue(config, path + "/text()").trim());
+        }
+        catch (Exception e) {
+            Log.get().fine("Using default of " + defaultValue + " for " + path);
+        }
+        return defaultValue;
+    }
     
     /**
      * Parse an XML file into a DOM.
@@ -620,6 +639,495 @@ public class ServiceConfig {
     }
 
 
+    /**
+     * Determine whether DICOM objects received from other PACS should be kept
+     * in memory (the default) or written to the temporary directory.  The file
+     * based mode is the original behavior and is kept as a fallback.
+     *
+     * @return True if objects should be received into memory.
+     */
+    public boolean getReceiveInMemory() {
+        String mode = getValue("/DicomServiceConfig/ReceiveMode");
+        return (mode == null) || !mode.trim().equalsIgnoreCase("FILE");
+    }
+
+
+    /**
+     * Get the time that an association from another PACS may be idle before
+     * it is dropped.
+     *
+     * @return Timeout in seconds.
+     */
+    public int getReceiveTimeoutSeconds() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/ReceiveTimeoutSeconds", 120));
+    }
+
+
+    /**
+     * Get the maximum number of associations from other PACS that the
+     * in-memory receiver services at the same time.  Further associations
+     * wait to be accepted until one ends.
+     *
+     * @return Maximum number of concurrent inbound associations.
+     */
+    public int getReceiveMaxAssociations() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/ReceiveMaxAssociations", 32));
+    }
+
+
+    /**
+     * Get the maximum number of C-MOVE retrieves that may be in progress at
+     * the same time.  All retrieves share the same receiver, so this is
+     * limited only by the resources of this service and of the PACS.
+     *
+     * @return Maximum number of concurrent retrieves.
+     */
+    public int getMaxConcurrentRetrieve() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/MaxConcurrentRetrieve", 16));
+    }
+
+
+    /**
+     * Get the maximum number of retrieves that a single user may have in
+     * progress at the same time, so that one user can not take all of them.
+     *
+     * @return Maximum number of concurrent retrieves per user.
+     */
+    public int getMaxConcurrentRetrievePerUser() {
+        int max = getMaxConcurrentRetrieve();
+        return Math.min(max, Math.max(1, getIntValue("/DicomServiceConfig/MaxConcurrentRetrievePerUser", (max + 1) / 2)));
+    }
+
+
+    /**
+     * Get the maximum number of retrieve requests that may be waiting for
+     * a slot.  Requests beyond this are rejected immediately.
+     *
+     * @return Maximum retrieve queue depth.
+     */
+    public int getRetrieveQueueDepth() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/RetrieveQueueDepth", 64));
+    }
+
+
+    /**
+     * Get the maximum time that a retrieve request will wait for a slot
+     * before being rejected.
+     *
+     * @return Maximum wait in seconds.
+     */
+    public int getRetrieveMaxWaitSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/RetrieveMaxWaitSeconds", 30));
+    }
+
+
+    /**
+     * Get the maximum number of C-FINDs that may be performed at the same
+     * time, across all requests.
+     *
+     * @return Maximum number of concurrent C-FINDs.
+     */
+    public int getCFindParallelism() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/CFindParallelism", 8));
+    }
+
+
+    /**
+     * Get the time allowed for each PACS to respond to a C-FIND when
+     * multiple PACS are being queried.  PACS that do not respond in time are
+     * reported as such and their results are omitted.
+     *
+     * @return Deadline in seconds.
+     */
+    public int getCFindDeadlineSeconds() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/CFindDeadlineSeconds", 20));
+    }
+
+
+    /**
+     * Get the maximum number of series C-MOVEs that a parallel retrieve may
+     * have in progress on one PACS at the same time.
+     *
+     * @return Maximum concurrent series retrieves per PACS.
+     */
+    public int getParallelRetrievePerPacs() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/ParallelRetrieve/MaxPerPacs", 4));
+    }
+
+
+    /**
+     * Get the number of times a series C-MOVE in a parallel retrieve is
+     * attempted before giving up on that series.
+     *
+     * @return Number of attempts per series.
+     */
+    public int getParallelRetrieveAttempts() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/ParallelRetrieve/Attempts", 2));
+    }
+
+
+    /**
+     * Get the directory where retrieved and stored DICOM objects are cached.
+     * Defaults to a subdirectory of the temporary directory.
+     *
+     * @return Instance cache directory.
+     */
+    public File getInstanceCacheDirectory() {
+        String dirName = getValue("/DicomServiceConfig/InstanceCache/Directory[@OS='" + OpSys.getOpSysId().toString() + "']");
+        return (dirName == null) ? new File(getTemporaryDir(), "instanceCache") : new File(dirName.trim());
+    }
+
+
+    /**
+     * Get the maximum total size of the DICOM objects in the instance cache.
+     * Zero disables the cache.
+     *
+     * @return Maximum size in bytes.
+     */
+    public long getInstanceCacheMaxBytes() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/InstanceCache/MaxMegabytes", 10 * 1024)) * 1024L * 1024L;
+    }
+
+
+    /**
+     * Get the number of most recent studies in a /dicom/list study list that
+     * are prefetched into the instance cache.
+     *
+     * @return Number of studies, 0 to disable.
+     */
+    public int getPrefetchMaxStudies() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/Prefetch/MaxStudies", 2));
+    }
+
+
+    /**
+     * Get the number of most recent series in a /dicom/list series list that
+     * are prefetched into the instance cache.
+     *
+     * @return Number of series, 0 to disable.
+     */
+    public int getPrefetchMaxSeries() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/Prefetch/MaxSeries", 4));
+    }
+
+
+    /**
+     * Get the maximum number of prefetches that may be queued.
+     *
+     * @return Maximum queue depth.
+     */
+    public int getPrefetchQueueDepth() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/Prefetch/QueueDepth", 32));
+    }
+
+
+    /**
+     * Get the minimum time between the starts of prefetches from the same PACS.
+     *
+     * @return Interval in seconds.
+     */
+    public int getPrefetchMinIntervalSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/Prefetch/MinIntervalSeconds", 5));
+    }
+
+
+    /**
+     * Get the maximum number of prefetches that may run at the same time.
+     *
+     * @return Number of prefetch threads.
+     */
+    public int getPrefetchThreads() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/Prefetch/Threads", 2));
+    }
+
+
+    /**
+     * Get the compression used for zip output when the client does not
+     * specify one.
+     *
+     * @return Compression, DEFLATE at the default level if not configured or invalid.
+     */
+    public ZipStreamWriter.Compression getZipCompression() {
+        String text = getValue("/DicomServiceConfig/ZipOutput/Compression");
+        ZipStreamWriter.Compression compression = ZipStreamWriter.Compression.parse(text);
+        if (compression == null) {
+            if (text != null) {
+                Log.get().warning("Invalid ZipOutput/Compression " + text + " in configuration, using deflate");
+            }
+            compression = ZipStreamWriter.Compression.parse("deflate");
+        }
+        return compression;
+    }
+
+
+    /**
+     * Get the number of threads that compress zip entries in parallel mode.
+     *
+     * @return Number of threads, the number of processors if not configured.
+     */
+    public int getZipThreads() {
+        int threads = getIntValue("/DicomServiceConfig/ZipOutput/Threads", 0);
+        return (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+
+    /**
+     * Get the number of threads that decode and encode rendered images.
+     *
+     * @return Number of threads, the number of processors if not configured.
+     */
+    public int getRenderThreads() {
+        int threads = getIntValue("/DicomServiceConfig/Render/Threads", 0);
+        return (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+
+    /**
+     * Get the maximum total size of the rendered images kept in memory.
+     *
+     * @return Size in bytes.
+     */
+    public long getRenderCacheMaxBytes() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/Render/CacheMegabytes", 64)) * 1024L * 1024L;
+    }
+
+
+    /**
+     * Get the JPEG quality used when the client does not specify one.
+     *
+     * @return Quality from 1 to 100.
+     */
+    public int getRenderDefaultImageQuality() {
+        return Math.max(1, Math.min(100, getIntValue("/DicomServiceConfig/Render/DefaultImageQuality", 90)));
+    }
+
+
+    /**
+     * Get the directory where custom DICOM dictionaries are kept.
+     *
+     * @return Dictionary directory, or null if custom dictionaries are not saved.
+     */
+    public File getDictionaryDirectory() {
+        String dirName = getValue("/DicomServiceConfig/Dictionaries/Directory[@OS='" + OpSys.getOpSysId().toString() + "']");
+        return (dirName == null) ? null : new File(dirName.trim());
+    }
+
+
+    /**
+     * Get the time that C-FIND results are cached.  Zero disables caching.
+     *
+     * @return Time to live in seconds.
+     */
+    public int getCFindCacheTimeToLiveSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindCache/TimeToLiveSeconds", 60));
+    }
+
+
+    /**
+     * Get the maximum number of C-FIND queries whose results are cached.
+     *
+     * @return Maximum number of cache entries.
+     */
+    public int getCFindCacheMaxEntries() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindCache/MaxEntries", 1000));
+    }
+
+
+    /**
+     * Get the approximate maximum amount of memory used by cached C-FIND results.
+     *
+     * @return Maximum size in bytes.
+     */
+    public long getCFindCacheMaxBytes() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindCache/MaxMegabytes", 32)) * 1024L * 1024L;
+    }
+
+
+    /**
+     * Get the number of C-FIND results on each page when the client asks
+     * for paging without giving a page size, and for HTML, which is always
+     * paged.  Zero disables paging unless the client asks for it.
+     *
+     * @return Default page size.
+     */
+    public int getCFindPageSize() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindPaging/PageSize", 100));
+    }
+
+
+    /**
+     * Get the time that the sorted results of a paged C-FIND are kept for
+     * getting further pages.
+     *
+     * @return Time to live in seconds.
+     */
+    public int getCFindPageTimeToLiveSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindPaging/TimeToLiveSeconds", 600));
+    }
+
+
+    /**
+     * Get the maximum number of paged C-FIND result sets that are kept.
+     *
+     * @return Maximum number of result sets.
+     */
+    public int getCFindPageMaxEntries() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/CFindPaging/MaxEntries", 50));
+    }
+
+
+    /**
+     * Get the maximum number of C-FINDs that one query plan may have in
+     * progress on one PACS at once.
+     *
+     * @return Maximum concurrent C-FINDs per PACS.
+     */
+    public int getQueryPlannerMaxPerPacs() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/QueryPlanner/MaxPerPacs", 4));
+    }
+
+
+    /**
+     * Get the maximum number of C-FINDs that one query plan may perform.
+     * Plans that would need more report partial results.
+     *
+     * @return Maximum C-FINDs per plan.
+     */
+    public int getQueryPlannerMaxQueries() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/QueryPlanner/MaxQueries", 500));
+    }
+
+
+    /**
+     * Get the time allowed for all of the C-FINDs of a query plan.
+     *
+     * @return Deadline in seconds.
+     */
+    public int getQueryPlannerDeadlineSeconds() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/QueryPlanner/DeadlineSeconds", 120));
+    }
+
+
+    /**
+     * Get the directory where the metadata index keeps its log.
+     *
+     * @return Directory.
+     */
+    public File getMetadataIndexDirectory() {
+        String dirName = getValue("/DicomServiceConfig/MetadataIndex/Directory[@OS='" + OpSys.getOpSysId().toString() + "']");
+        return (dirName == null) ? new File(getTemporaryDir(), "metadataIndex") : new File(dirName.trim());
+    }
+
+
+    /**
+     * Get the maximum age of the PACS results that the metadata index may use
+     * to answer a C-FIND.  Zero means that C-FINDs always go to the PACS.
+     *
+     * @return Maximum age in seconds.
+     */
+    public int getMetadataIndexMaxAgeSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/MetadataIndex/MaxAgeSeconds", 300));
+    }
+
+
+    /**
+     * Get the number of days that the metadata index keeps objects that have
+     * not been seen again.
+     *
+     * @return Retention in days.
+     */
+    public int getMetadataIndexRetainDays() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/MetadataIndex/RetainDays", 30));
+    }
+
+
+    /**
+     * Get the maximum number of patients, studies, series, and instances in
+     * the metadata index.  Zero disables the index.
+     *
+     * @return Maximum number of records.
+     */
+    public int getMetadataIndexMaxRecords() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/MetadataIndex/MaxRecords", 1000000));
+    }
+
+
+    /**
+     * Get the time that an unused association with a PACS is kept open.
+     * Zero disables pooling.
+     *
+     * @return Maximum idle time in seconds.
+     */
+    public int getAssociationPoolMaxIdleSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/AssociationPool/MaxIdleSeconds", 60));
+    }
+
+
+    /**
+     * Get the maximum number of associations open to a single PACS.
+     *
+     * @return Maximum number of associations per PACS.
+     */
+    public int getAssociationPoolMaxPerPacs() {
+        return Math.max(1, getIntValue("/DicomServiceConfig/AssociationPool/MaxPerPacs", 32));
+    }
+
+
+    /**
+     * Get the idle time after which a pooled association is checked with a
+     * C-ECHO before it is re-used.
+     *
+     * @return Time in seconds.
+     */
+    public int getAssociationPoolValidateAfterSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/AssociationPool/ValidateAfterSeconds", 10));
+    }
+
+
+    /**
+     * Get the maximum time to wait for an association when a PACS already
+     * has the maximum number open.
+     *
+     * @return Time in seconds.
+     */
+    public int getAssociationPoolMaxWaitSeconds() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/AssociationPool/MaxWaitSeconds", 120));
+    }
+
+
+    /**
+     * Get the size of the largest in-memory buffer for an upload.  Larger
+     * uploads are put in a temporary file.
+     *
+     * @return Maximum buffer size in bytes.
+     */
+    public int getUploadBufferMaxBufferBytes() {
+        return Math.max(1, Math.min(1024, getIntValue("/DicomServiceConfig/UploadBuffer/MaxBufferMegabytes", 8))) * 1024 * 1024;
+    }
+
+
+    /**
+     * Get the maximum total size of in-memory buffers for uploads, both in
+     * use by all uploads at once and kept for re-use.  Uploads that would
+     * exceed it are put in temporary files.
+     *
+     * @return Maximum size in bytes.
+     */
+    public long getUploadBufferMaxTotalBytes() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/UploadBuffer/MaxTotalMegabytes", 64)) * 1024L * 1024L;
+    }
+
+
+    /**
+     * Get the maximum total size of idle buffers kept for re-use by uploads.
+     *
+     * @return Maximum size in bytes.
+     */
+    public long getUploadBufferMaxPooledBytes() {
+        return Math.max(0, getIntValue("/DicomServiceConfig/UploadBuffer/MaxPooledMegabytes", 32)) * 1024L * 1024L;
+    }
+
+
     /**
      * Get the directory used for temporary files.
      * 
@@ -0,0 +1,206 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.util.Log;
+
+/**
+ * An uploaded DICOM object whose bulk data is left where it was uploaded
+ * (a pooled buffer or temporary file) instead of being parsed into memory.
+ * Only the attributes before the pixel data are parsed.  When sent, the
+ * data set is copied directly from the upload if the PACS accepted its
+ * transfer syntax, so memory use does not depend on the size of the object.
+ *
+ * Must be released when no longer needed, which releases the upload.
+ *
+ * @author irrer
+ *
+ */
+public class SpooledDicom {
+
+    /** Size of chunks copied to the PACS. */
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private final Upload upload;
+
+    private final TransferSyntaxDetector.Result transferSyntax;
+
+    /** Attributes before the pixel data, including meta header attributes. */
+    private final AttributeList header;
+
+
+    private SpooledDicom(Upload upload, TransferSyntaxDetector.Result transferSyntax, AttributeList header) {
+        this.upload = upload;
+        this.transferSyntax = transferSyntax;
+        this.header = header;
+    }
+
+
+    /**
+     * Determine the transfer syntax of an upload and parse the attributes
+     * before the pixel data.  On success the upload belongs to the returned
+     * object, otherwise it is still the caller's.
+     *
+     * @param upload Uploaded DICOM content.
+     *
+     * @return Spooled object.
+     *
+     * @throws DicomException If the content is not valid DICOM.
+     *
+     * @throws IOException
+     */
+    public static SpooledDicom read(Upload upload) throws DicomException, IOException {
+        TransferSyntaxDetector.Result transferSyntax;
+        InputStream headerStream = upload.getInputStream();
+        try {
+            transferSyntax = TransferSyntaxDetector.detect(headerStream);
+        }
+        finally {
+            headerStream.close();
+        }
+
+        AttributeList header = new AttributeList();
+        InputStream inputStream = upload.getInputStream();
+        try {
+            header.read(transferSyntax.getDicomInputStream(inputStream), TagFromName.PixelData);
+        }
+        finally {
+            inputStream.close();
+        }
+        if (header.get(TagFromName.SOPInstanceUID) == null) {
+            throw new DicomException("Content was read as " + transferSyntax + " but does not have a SOP Instance UID.");
+        }
+        if (header.get(TagFromName.TransferSyntaxUID) == null) {
+            // so that the transfer syntax is proposed when the object is sent
+            Attribute attribute = AttributeFactory.newAttribute(TagFromName.TransferSyntaxUID, ValueRepresentation.UI);
+            attribute.addValue(transferSyntax.transferSyntaxUID);
+            header.put(attribute);
+        }
+        return new SpooledDicom(upload, transferSyntax, header);
+    }
+
+
+    /**
+     * @return Attributes before the pixel data.  Must not be modified.
+     */
+    public AttributeList getHeader() {
+        return header;
+    }
+
+
+    /**
+     * @return Size of the upload in bytes.
+     */
+    public long getLength() {
+        return upload.getLength();
+    }
+
+
+    /**
+     * Write the data set, without meta header, in the given transfer syntax.
+     *
+     * @param outputStream Destination.
+     *
+     * @param transferSyntaxUID Transfer syntax to write.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public void writeDataSet(OutputStream outputStream, String transferSyntaxUID) throws DicomException, IOException {
+        InputStream inputStream = upload.getInputStream();
+        try {
+            if (transferSyntaxUID.equals(transferSyntax.transferSyntaxUID) && (transferSyntax.dataSetOffset >= 0)) {
+                long skip = transferSyntax.dataSetOffset;
+                while (skip > 0) {
+                    long skipped = inputStream.skip(skip);
+                    if (skipped <= 0) {
+                        throw new IOException("Upload ended before start of data set.");
+                    }
+                    skip -= skipped;
+                }
+                byte[] chunk = new byte[COPY_SIZE];
+                int count;
+                while ((count = inputStream.read(chunk)) != -1) {
+                    outputStream.write(chunk, 0, count);
+                }
+            }
+            else {
+                // conversion requires parsing all of it
+                Log.get().info("Converting object of " + upload.getLength() + " bytes from " + transferSyntax + " to " + transferSyntaxUID);
+                AttributeList attributeList = new AttributeList();
+                attributeList.read(transferSyntax.getDicomInputStream(inputStream));
+                attributeList.removeMetaInformationHeaderAttributes();
+                attributeList.write(new DicomOutputStream(outputStream, null, transferSyntaxUID));
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+
+    /**
+     * @return Transfer syntax of the data set as uploaded.
+     */
+    public String getTransferSyntaxUID() {
+        return transferSyntax.transferSyntaxUID;
+    }
+
+
+    /**
+     * Write the object as a DICOM Part 10 file in the transfer syntax it was
+     * uploaded in.  The data set is copied without being parsed.
+     *
+     * @param outputStream Destination.  Neither flushed nor closed.
+     *
+     * @param sourceApplicationEntityTitle Put in the file meta information.
+     *
+     * @throws DicomException
+     * @throws IOException
+     */
+    public void writePart10(OutputStream outputStream, String sourceApplicationEntityTitle) throws DicomException, IOException {
+        String sopClassUID = Attribute.getSingleStringValueOrEmptyString(header, TagFromName.SOPClassUID).trim();
+        String sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(header, TagFromName.SOPInstanceUID).trim();
+        AttributeList meta = new FileMetaInformation(sopClassUID, sopInstanceUID, transferSyntax.transferSyntaxUID, sourceApplicationEntityTitle).getAttributeList();
+        DicomOutputStream metaStream = new DicomOutputStream(outputStream, TransferSyntax.ExplicitVRLittleEndian, transferSyntax.transferSyntaxUID);
+        meta.write(metaStream);
+        metaStream.flush();
+        writeDataSet(outputStream, transferSyntax.transferSyntaxUID);
+    }
+
+
+    /**
+     * Release the upload.
+     */
+    public void release() {
+        upload.release();
+    }
+}
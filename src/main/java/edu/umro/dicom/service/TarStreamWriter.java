@@ -0,0 +1,244 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.restlet.data.MediaType;
+
+/**
+ * Write an uncompressed POSIX (ustar) tar stream one entry at a time.  The
+ * header of an entry holds its size.  If the size is given when the entry
+ * is started then the header is written first and the content streams
+ * straight through, otherwise the entry is buffered until it is closed.
+ * Each entry is flushed when it is closed so that the client can use it
+ * while the next one arrives.  There is no index, so a client can read the
+ * stream as it comes.
+ *
+ * @author irrer
+ *
+ */
+public class TarStreamWriter extends ArchiveStreamWriter {
+
+    /** Media type of the stream. */
+    public static final MediaType MEDIA_TYPE = new MediaType("application/x-tar", "Tar archive");
+
+    private static final int BLOCK_SIZE = 512;
+
+    /** Largest size that fits in the 11 octal digits of the header. */
+    private static final long MAX_SIZE = 077777777777L;
+
+    private static final int NAME_LENGTH = 100;
+
+    /** Where the tar goes. */
+    private final OutputStream out;
+
+    /** Modification time given to all entries, in seconds. */
+    private final long modificationTime = System.currentTimeMillis() / 1000;
+
+    /** Name of the entry being written, or null if none. */
+    private byte[] name = null;
+
+    /** Content of the entry being written if its size was not given. */
+    private EntryBuffer buffer = null;
+
+    /** Size given for the entry being written, or -1 if it is buffered. */
+    private long size = -1;
+
+    /** Number of bytes written to an entry whose size was given. */
+    private long count = 0;
+
+    private boolean finished = false;
+    private boolean closed = false;
+
+
+    /**
+     * Start a tar stream.
+     *
+     * @param outputStream Where the tar is written.  Closed when this is closed.
+     */
+    public TarStreamWriter(OutputStream outputStream) {
+        this.out = new BufferedOutputStream(outputStream, 64 * 1024);
+    }
+
+
+    @Override
+    public void putNextEntry(String entryName) throws IOException {
+        putNextEntry(entryName, -1);
+    }
+
+
+    /**
+     * Start an entry of known size by writing its header, so that its
+     * content is not buffered.  A negative size means that it is not known.
+     */
+    @Override
+    public void putNextEntry(String entryName, long entrySize) throws IOException {
+        if (finished) {
+            throw new IOException("Tar stream is already finished");
+        }
+        closeEntry();
+        byte[] bytes = entryName.getBytes("UTF-8");
+        if (bytes.length > NAME_LENGTH) {
+            throw new IOException("Tar entry name is longer than " + NAME_LENGTH + " bytes: " + entryName);
+        }
+        if (entrySize > MAX_SIZE) {
+            throw new IOException("Tar entry is too large: " + entrySize + " bytes");
+        }
+        name = bytes;
+        size = entrySize;
+        count = 0;
+        if (size >= 0) {
+            out.write(getHeader(name, size));
+        }
+        else {
+            if (buffer == null) {
+                buffer = new EntryBuffer(64 * 1024);
+            }
+            buffer.reset();
+        }
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (name == null) {
+            throw new IOException("No tar entry has been started");
+        }
+        if (size >= 0) {
+            if ((count + len) > size) {
+                throw new IOException("Tar entry is longer than the " + size + " bytes given");
+            }
+            out.write(b, off, len);
+            count += len;
+        }
+        else {
+            buffer.write(b, off, len);
+        }
+    }
+
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (name == null) {
+            return;
+        }
+        long entrySize = size;
+        if (entrySize >= 0) {
+            if (count != entrySize) {
+                name = null;
+                throw new IOException("Tar entry has " + count + " bytes instead of the " + entrySize + " given");
+            }
+        }
+        else {
+            entrySize = buffer.size();
+            if (entrySize > MAX_SIZE) {
+                name = null;
+                throw new IOException("Tar entry is too large: " + entrySize + " bytes");
+            }
+            out.write(getHeader(name, entrySize));
+            out.write(buffer.getBuffer(), 0, buffer.size());
+            buffer.reset();
+        }
+        int padding = (int) ((BLOCK_SIZE - (entrySize % BLOCK_SIZE)) % BLOCK_SIZE);
+        out.write(new byte[padding]);
+        out.flush();
+        name = null;
+    }
+
+
+    /**
+     * Put a number in octal with leading zeroes and a trailing NUL.
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String text = Long.toOctalString(value);
+        int start = offset + length - 1 - text.length();
+        for (int i = offset; i < start; i++) {
+            header[i] = '0';
+        }
+        for (int i = 0; i < text.length(); i++) {
+            header[start + i] = (byte) text.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+
+    private static void putText(byte[] header, int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            header[offset + i] = (byte) text.charAt(i);
+        }
+    }
+
+
+    private byte[] getHeader(byte[] entryName, long size) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(entryName, 0, header, 0, entryName.length);
+        putOctal(header, 100, 8, 0644);                 // mode
+        putOctal(header, 108, 8, 0);                    // owner
+        putOctal(header, 116, 8, 0);                    // group
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, modificationTime);
+        putText(header, 148, "        ");               // checksum is computed with blanks here
+        header[156] = '0';                              // regular file
+        putText(header, 257, "ustar");
+        putText(header, 263, "00");
+
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+        return header;
+    }
+
+
+    /**
+     * Finish the tar with two empty blocks.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        finished = true;
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+
+    /**
+     * Finish the tar and close the underlying stream.  Calling this more
+     * than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+}
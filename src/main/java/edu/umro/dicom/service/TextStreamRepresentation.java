@@ -0,0 +1,106 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * A text response that is written straight to the client as UTF-8 when it
+ * is sent, instead of being built in memory first.  Subclasses implement
+ * <code>write(Writer)</code>.
+ *
+ * Nothing is written until the response is sent, so anything that could
+ * fail with an error the client should see must be done before the
+ * representation is constructed.
+ *
+ * @author irrer
+ *
+ */
+public abstract class TextStreamRepresentation extends OutputRepresentation {
+
+    /**
+     * Escape text for XML or HTML, writing it as it is escaped.  Null
+     * characters, which some PACS use as padding, are written as spaces.
+     *
+     * @param writer Where to write.
+     *
+     * @param text Text to write, may be null.
+     *
+     * @throws IOException On failure to write.
+     */
+    public static void writeEscaped(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            String escape;
+            switch (text.charAt(i)) {
+                case '&':  escape = "&amp;";  break;
+                case '<':  escape = "&lt;";   break;
+                case '>':  escape = "&gt;";   break;
+                case '\'': escape = "&#39;";  break;
+                case '"':  escape = "&quot;"; break;
+                case '\0': escape = " ";      break;
+                default:   escape = null;
+            }
+            if (escape != null) {
+                writer.write(text, start, i - start);
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        writer.write(text, start, length - start);
+    }
+
+
+    /**
+     * @param mediaType Type of content.
+     */
+    public TextStreamRepresentation(MediaType mediaType) {
+        super(mediaType, -1);
+        setCharacterSet(CharacterSet.UTF_8);
+        setTransient(true);
+    }
+
+
+    /**
+     * Write the content.  The writer is flushed afterwards.
+     *
+     * @param writer Where to write.
+     *
+     * @throws IOException On failure to write, usually because the client went away.
+     */
+    public abstract void write(Writer writer) throws IOException;
+
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        write(writer);
+        writer.flush();
+    }
+}
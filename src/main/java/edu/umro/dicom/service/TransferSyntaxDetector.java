@@ -0,0 +1,254 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TransferSyntax;
+
+/**
+ * Determine the transfer syntax of DICOM content by looking at its first
+ * few bytes, so that it can be parsed once instead of trying each transfer
+ * syntax in turn.
+ *
+ * If there is a preamble followed by 'DICM', or the content starts with the
+ * meta information group, the transfer syntax is taken from the meta
+ * header.  Otherwise it is deduced from the first data element: the byte
+ * order from the group number, and explicit or implicit VR from whether a
+ * valid VR follows the tag.
+ *
+ * @author irrer
+ *
+ */
+public class TransferSyntaxDetector {
+
+    /** Number of bytes examined, which must be enough to hold the meta header. */
+    public static final int HEADER_SIZE = 8 * 1024;
+
+    /** Length of the preamble before 'DICM'. */
+    private static final int PREAMBLE_LENGTH = 128;
+
+    /** Value representations whose length is 4 bytes, preceded by 2 reserved bytes, in explicit VR. */
+    static final HashSet<String> LONG_VR_SET = new HashSet<String>(Arrays.asList(
+            new String[] { "OB", "OD", "OF", "OL", "OW", "OV", "SQ", "UC", "UN", "UR", "UT", "SV", "UV" }));
+
+    /** All value representations. */
+    private static final HashSet<String> VR_SET = new HashSet<String>(Arrays.asList(
+            new String[] { "AE", "AS", "AT", "CS", "DA", "DS", "DT", "FL", "FD", "IS", "LO", "LT", "PN", "SH",
+                    "SL", "SS", "ST", "TM", "UI", "UL", "US" }));
+
+    static {
+        VR_SET.addAll(LONG_VR_SET);
+    }
+
+    /**
+     * Result of detection.
+     */
+    public static class Result {
+        /** Transfer syntax of the data set. */
+        public final String transferSyntaxUID;
+
+        /** True if the content has a meta information header. */
+        public final boolean hasMeta;
+
+        /** Offset of the data set after any preamble and meta header, or -1 if not known. */
+        public final long dataSetOffset;
+
+        private Result(String transferSyntaxUID, boolean hasMeta, long dataSetOffset) {
+            this.transferSyntaxUID = transferSyntaxUID;
+            this.hasMeta = hasMeta;
+            this.dataSetOffset = dataSetOffset;
+        }
+
+        /**
+         * Construct a stream for parsing the content with the detected transfer syntax.
+         *
+         * @param inputStream Content from the beginning.
+         *
+         * @return Stream to read attributes from.
+         *
+         * @throws IOException
+         */
+        public DicomInputStream getDicomInputStream(InputStream inputStream) throws IOException {
+            return new DicomInputStream(inputStream, transferSyntaxUID, hasMeta);
+        }
+
+        @Override
+        public String toString() {
+            return transferSyntaxUID + (hasMeta ? " from meta header" : " detected");
+        }
+    }
+
+
+    /**
+     * Constructor is private.
+     */
+    private TransferSyntaxDetector() {
+    }
+
+
+    private static int getUS(byte[] header, int offset, boolean littleEndian) {
+        int b0 = header[offset] & 0xff;
+        int b1 = header[offset + 1] & 0xff;
+        return littleEndian ? (b0 | (b1 << 8)) : ((b0 << 8) | b1);
+    }
+
+
+    private static long getUL(byte[] header, int offset) {
+        return (getUS(header, offset, true) & 0xffffL) | ((getUS(header, offset + 2, true) & 0xffffL) << 16);
+    }
+
+
+    private static String getVR(byte[] header, int offset) {
+        return new String(header, offset, 2);
+    }
+
+
+    /**
+     * Find the transfer syntax in a meta header, which is always explicit VR
+     * little endian.
+     */
+    private static String getMetaTransferSyntax(byte[] header, int length, int offset) throws DicomException {
+        while ((offset + 8) <= length) {
+            int group = getUS(header, offset, true);
+            int element = getUS(header, offset + 2, true);
+            if (group != 0x0002) {
+                break;
+            }
+            String vr = getVR(header, offset + 4);
+            long valueLength;
+            int valueOffset;
+            if (LONG_VR_SET.contains(vr)) {
+                if ((offset + 12) > length) {
+                    break;
+                }
+                valueLength = getUL(header, offset + 8);
+                valueOffset = offset + 12;
+            }
+            else {
+                valueLength = getUS(header, offset + 6, true);
+                valueOffset = offset + 8;
+            }
+            if ((valueOffset + valueLength) > length) {
+                break;
+            }
+            if (element == 0x0010) {
+                String uid = new String(header, valueOffset, (int)valueLength).replace('\0', ' ').trim();
+                if (uid.length() == 0) {
+                    throw new DicomException("Meta header has an empty Transfer Syntax UID.");
+                }
+                return uid;
+            }
+            offset = (int)(valueOffset + valueLength);
+        }
+        throw new DicomException("Meta header does not contain a Transfer Syntax UID within the first " + length + " bytes.");
+    }
+
+
+    /**
+     * Get the offset of the data set following a meta header, which is given
+     * by the File Meta Information Group Length that must be its first element.
+     *
+     * @return Offset, or -1 if the header does not start with the group length.
+     */
+    private static long getDataSetOffset(byte[] header, int length, int metaOffset) {
+        if (((metaOffset + 12) <= length) && (getUS(header, metaOffset, true) == 0x0002) && (getUS(header, metaOffset + 2, true) == 0x0000) &&
+                getVR(header, metaOffset + 4).equals("UL")) {
+            return metaOffset + 12 + getUL(header, metaOffset + 8);
+        }
+        return -1;
+    }
+
+
+    /**
+     * Determine whether the group of the first element is reasonable.  Data
+     * sets start with a low numbered group, usually 0x0008.
+     */
+    private static boolean isPlausibleGroup(int group) {
+        return (group >= 0x0002) && (group <= 0x00FF) && ((group % 2) == 0);
+    }
+
+
+    /**
+     * Determine the transfer syntax of DICOM content.
+     *
+     * @param header The first bytes of the content, up to <code>HEADER_SIZE</code>.
+     *
+     * @param length Number of valid bytes in <code>header</code>.
+     *
+     * @return Transfer syntax and whether there is a meta header.
+     *
+     * @throws DicomException If the content does not look like DICOM.
+     */
+    public static Result detect(byte[] header, int length) throws DicomException {
+        if ((length >= (PREAMBLE_LENGTH + 4)) && new String(header, PREAMBLE_LENGTH, 4).equals("DICM")) {
+            int metaOffset = PREAMBLE_LENGTH + 4;
+            return new Result(getMetaTransferSyntax(header, length, metaOffset), true, getDataSetOffset(header, length, metaOffset));
+        }
+
+        if (length < 8) {
+            throw new DicomException("Content is too short (" + length + " bytes) to be DICOM.");
+        }
+
+        int groupLE = getUS(header, 0, true);
+        int groupBE = getUS(header, 0, false);
+        boolean explicit = VR_SET.contains(getVR(header, 4));
+
+        if ((groupLE == 0x0002) && explicit) {
+            // meta header without preamble
+            return new Result(getMetaTransferSyntax(header, length, 0), true, getDataSetOffset(header, length, 0));
+        }
+        if (isPlausibleGroup(groupLE)) {
+            return new Result(explicit ? TransferSyntax.ExplicitVRLittleEndian : TransferSyntax.ImplicitVRLittleEndian, false, 0);
+        }
+        if (isPlausibleGroup(groupBE)) {
+            if (!explicit) {
+                throw new DicomException("Content appears to be big endian but does not have explicit value representations, which is not a valid transfer syntax.");
+            }
+            return new Result(TransferSyntax.ExplicitVRBigEndian, false, 0);
+        }
+        throw new DicomException("Content does not have a DICOM preamble or meta header, and does not start with a DICOM data element.");
+    }
+
+
+    /**
+     * Read the first bytes of a stream and determine the transfer syntax.
+     * The stream is not closed.
+     *
+     * @param inputStream Content from the beginning.
+     *
+     * @return Transfer syntax and whether there is a meta header.
+     *
+     * @throws DicomException If the content does not look like DICOM.
+     *
+     * @throws IOException
+     */
+    public static Result detect(InputStream inputStream) throws DicomException, IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+        int count;
+        while ((length < header.length) && ((count = inputStream.read(header, length, header.length - length)) != -1)) {
+            length += count;
+        }
+        return detect(header, length);
+    }
+}
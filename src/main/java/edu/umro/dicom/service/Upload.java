@@ -0,0 +1,174 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import edu.umro.util.Log;
+
+/**
+ * Content uploaded by a client.  It is held in a buffer from the
+ * <code>BufferPool</code> if one is available and large enough, and
+ * otherwise in a temporary file.  It must be released when no longer needed.
+ *
+ * @author irrer
+ *
+ */
+public class Upload {
+
+    /** Size of chunks copied to a temporary file. */
+    private static final int COPY_SIZE = 64 * 1024;
+
+    /** Content if in memory. */
+    private byte[] buffer;
+
+    /** Number of valid bytes. */
+    private final long length;
+
+    /** Content if in a file. */
+    private File file;
+
+
+    private Upload(byte[] buffer, long length, File file) {
+        this.buffer = buffer;
+        this.length = length;
+        this.file = file;
+    }
+
+
+    /**
+     * Read all content from a stream.  The stream is not closed.
+     *
+     * @param inputStream Content from client.
+     *
+     * @return Content, which must be released.
+     *
+     * @throws IOException
+     */
+    public static Upload read(InputStream inputStream) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquire(pool.getMinimumSize());
+        int length = 0;
+        try {
+            while (buffer != null) {
+                if (length == buffer.length) {
+                    byte[] bigger = pool.acquire(buffer.length * 2);
+                    if (bigger == null) {
+                        break;
+                    }
+                    System.arraycopy(buffer, 0, bigger, 0, length);
+                    pool.release(buffer);
+                    buffer = bigger;
+                }
+                int count = inputStream.read(buffer, length, buffer.length - length);
+                if (count == -1) {
+                    Upload upload = new Upload(buffer, length, null);
+                    buffer = null;
+                    return upload;
+                }
+                length += count;
+            }
+
+            // too large or too much memory in use, so put it in a file
+            File file = File.createTempFile("upload", ".tmp", ServiceConfig.getInstance().getTemporaryDir());
+            long total = length;
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            try {
+                if (buffer != null) {
+                    fileOutputStream.write(buffer, 0, length);
+                    pool.release(buffer);
+                    buffer = null;
+                }
+                byte[] chunk = new byte[COPY_SIZE];
+                int count;
+                while ((count = inputStream.read(chunk)) != -1) {
+                    fileOutputStream.write(chunk, 0, count);
+                    total += count;
+                }
+            }
+            catch (IOException e) {
+                fileOutputStream.close();
+                file.delete();
+                throw e;
+            }
+            fileOutputStream.close();
+            Log.get().info("Upload of " + total + " bytes was written to temporary file " + file.getAbsolutePath());
+            return new Upload(null, total, file);
+        }
+        finally {
+            pool.release(buffer);
+        }
+    }
+
+
+    /**
+     * @return Number of bytes uploaded.
+     */
+    public long getLength() {
+        return length;
+    }
+
+
+    /**
+     * @return True if the content is in a temporary file rather than memory.
+     */
+    public boolean isInFile() {
+        return file != null;
+    }
+
+
+    /**
+     * Get a new stream that reads the content from the beginning.
+     *
+     * @return Content.
+     *
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        if (buffer != null) {
+            return new ByteArrayInputStream(buffer, 0, (int)length);
+        }
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file), COPY_SIZE);
+        }
+        throw new IOException("Upload has been released.");
+    }
+
+
+    /**
+     * Return the buffer to the pool or delete the temporary file.  Releasing
+     * more than once has no effect.
+     */
+    public synchronized void release() {
+        if (buffer != null) {
+            BufferPool.getInstance().release(buffer);
+            buffer = null;
+        }
+        if (file != null) {
+            if (!file.delete()) {
+                Log.get().warning("Unable to delete temporary file " + file.getAbsolutePath());
+            }
+            file = null;
+        }
+    }
+}
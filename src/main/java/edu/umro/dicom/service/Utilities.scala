@@ -26,12 +26,12 @@ import org.restlet.data.Method
 import org.restlet.data.MediaType
 import org.restlet.data.Parameter
 import com.pixelmed.dicom.TagFromName
-import com.pixelmed.dicom.DicomDictionary
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeFactory;
 import com.pixelmed.dicom.AttributeList;
 import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.TransferSyntax
 import com.pixelmed.network.DicomNetworkException;
 import com.pixelmed.utils.StringUtilities;
 import org.restlet.data.Parameter
@@ -45,9 +45,28 @@ object Utilities {
 
     val LIMIT_PARAMETER_NAME = "limit";
 
+    val TRANSFER_SYNTAX_PARAMETER_NAME = "transfer_syntax";
+
+    val PARALLEL_PARAMETER_NAME = "parallel";
+
+    val COMPRESSION_PARAMETER_NAME = "compression";
+
+    val FRAME_NUMBER_PARAMETER_NAME = "frameNumber";
+
+    val DICTIONARY_PARAMETER_NAME = "dictionary";
+
+    /** Parameters that control how an image is rendered as JPEG or PNG, as in WADO. */
+    val RENDER_PARAMETER_NAME_LIST = List("rows", "columns", "region", "windowCenter", "windowWidth", FRAME_NUMBER_PARAMETER_NAME, "imageQuality")
+
+    /** Transfer syntaxes that DICOM objects can be re-encoded to on request. */
+    val REENCODABLE_TRANSFER_SYNTAX_LIST = List(
+        TransferSyntax.ExplicitVRLittleEndian,
+        TransferSyntax.ImplicitVRLittleEndian,
+        TransferSyntax.ExplicitVRBigEndian)
+
     val DICOM_MEDIA_TYPE = new MediaType("application/dicom", "DICOM: Digital Imaging and Communications in Medicine")
 
-    val dictionary = new DicomDictionary
+    val dictionary = DictionaryRegistry.getInstance.getStandard
 
     def listToString[T](l:List[T]):String = {
         l match {
@@ -130,7 +149,9 @@ object Utilities {
             case _ => List[String]()
         }
 
-        def getMt(requestedNameList:List[String]):Option[MediaType] = {
+        def getMt(requestedList:List[String]):Option[MediaType] = {
+                // ignore media type parameters such as those of multipart/related; type="application/dicom"
+                val requestedNameList = requestedList.map(r => r.split(";")(0).trim.toLowerCase)
                 val mediaTypeList =
                     supported.map(s => if (requestedNameList.contains(s.getName.toLowerCase)) List(s) else List[MediaType]()).flatten  // keep only matching media type
                     if (mediaTypeList.length > 0) {
@@ -164,8 +185,28 @@ object Utilities {
     }
 
 
+    /**
+     * Get the DICOM dictionary named by the caller, or the standard dictionary
+     * if none was named.  If there is no dictionary with the given name then
+     * set the response to a failed status and return None.
+     */
     def getDicomDict(response:Response, paramList:List[Param]):Option[DicomDict] = {
-        Some(new DicomDict)  // TODO this should check for dictionary being specified in request (support custom dictionaries)
+        getParam(DICTIONARY_PARAMETER_NAME, paramList) match {
+            case Some(p) => {
+                p.setRecogonized
+                DictionaryRegistry.getInstance.get(p.getValue) match {
+                    case null => {
+                        val msg = "Unknown " + DICTIONARY_PARAMETER_NAME + " " + p.getValue + " .  Known dictionaries are:\n\n    " +
+                            listToString(DictionaryRegistry.getInstance.getNameList.toArray.toList).replaceAll(", *", "\n    ") + "\n"
+                        response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                        response.setEntity(msg, MediaType.TEXT_PLAIN);
+                        None
+                    }
+                    case d => Some(d)
+                }
+            }
+            case None => Some(DictionaryRegistry.getInstance.getStandard)
+        }
     }
 
 
@@ -188,7 +229,8 @@ object Utilities {
                 val attrList = new AttributeList
 
                 def isDicomParam(param:Param):Boolean = {
-                        val tag = dictionary.getTagByCaseInsensitiveName(param.getName)
+                        // parameters already claimed by something else, such as rendering, are not attributes
+                        val tag = if (param.isRecognized) null else dictionary.getTagByCaseInsensitiveName(param.getName)
                         if (tag != null) {
                             val attr = AttributeFactory.newAttribute(tag)
                             attr.addValue(param.getValue)
@@ -279,6 +321,126 @@ object Utilities {
     }
 
 
+    /**
+     * Get the transfer syntax that the caller wants DICOM objects converted to.  If it
+     * was not specified then return an empty string, which means that objects are sent
+     * in the transfer syntax they were received in.  If an unsupported transfer syntax
+     * is given then set the response to a failed status and return None.
+     */
+    def getTransferSyntax(response:Response, paramList:List[Param]):Option[String] = {
+        getParam(TRANSFER_SYNTAX_PARAMETER_NAME, paramList) match {
+            case Some(p) => {
+                p.setRecogonized
+                val value = p.getValue.trim
+                if (REENCODABLE_TRANSFER_SYNTAX_LIST.contains(value)) Some(value)
+                else {
+                    val msg = "Unsupported " + TRANSFER_SYNTAX_PARAMETER_NAME + " " + value + " .  Supported values are:\n\n    " +
+                        listToString(REENCODABLE_TRANSFER_SYNTAX_LIST).replaceAll(", *", "\n    ") +
+                        "\n\nLeave it unspecified to get objects in the transfer syntax they are stored in.\n"
+                    response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                    response.setEntity(msg, MediaType.TEXT_PLAIN);
+                    None
+                }
+            }
+            case None => Some("")
+        }
+    }
+
+
+    /**
+     * Get whether the caller wants a study or patient retrieved as concurrent series
+     * retrieves.  If not specified then false.  If the value is not true or false then
+     * set the response to a failed status and return None.
+     */
+    def getParallel(response:Response, paramList:List[Param]):Option[Boolean] = {
+        getParam(PARALLEL_PARAMETER_NAME, paramList) match {
+            case Some(p) => {
+                p.setRecogonized
+                p.getValue.trim.toLowerCase match {
+                    case "true" => Some(true)
+                    case "false" => Some(false)
+                    case v => {
+                        val msg = "Invalid value " + v + " given for " + PARALLEL_PARAMETER_NAME + ".  Only true or false are allowed."
+                        response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                        response.setEntity(msg, MediaType.TEXT_PLAIN);
+                        None
+                    }
+                }
+            }
+            case None => Some(false)
+        }
+    }
+
+
+    /**
+     * Get the compression for zip output, using the configured default if
+     * none was given.
+     */
+    def getCompression(response:Response, paramList:List[Param]):Option[ZipStreamWriter.Compression] = {
+        getParam(COMPRESSION_PARAMETER_NAME, paramList) match {
+            case Some(p) => {
+                p.setRecogonized
+                ZipStreamWriter.Compression.parse(p.getValue) match {
+                    case null => {
+                        val msg = "Invalid value " + p.getValue + " given for " + COMPRESSION_PARAMETER_NAME + ".  Use one of stored, deflate, deflate:level, parallel, or parallel:level where level is 0 to 9."
+                        response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                        response.setEntity(msg, MediaType.TEXT_PLAIN);
+                        None
+                    }
+                    case c => Some(c)
+                }
+            }
+            case None => Some(ServiceConfig.getInstance.getZipCompression)
+        }
+    }
+
+
+    /**
+     * Get the parameters for rendering an image.  They are only recognized
+     * when the media type is an image, and must be gotten before the DICOM
+     * attributes because some of them (such as rows and columns) are also
+     * attribute names.  When a single frame is requested as DICOM or as the
+     * bytes stored for it, only the frame number is recognized, and it is
+     * required.
+     */
+    def getRenderParameters(response:Response, paramList:List[Param], mediaType:Option[MediaType]):Option[ImageRenderer.Parameters] = {
+        val parameters = new ImageRenderer.Parameters
+        val nameList = mediaType match {
+            case Some(MediaType.IMAGE_JPEG) => { parameters.format = ImageRenderer.Format.JPEG; RENDER_PARAMETER_NAME_LIST }
+            case Some(MediaType.IMAGE_PNG) => { parameters.format = ImageRenderer.Format.PNG; RENDER_PARAMETER_NAME_LIST }
+            case Some(DICOM_MEDIA_TYPE) | Some(MediaType.APPLICATION_OCTET_STREAM) => {
+                if (getParam(FRAME_NUMBER_PARAMETER_NAME, paramList).isEmpty) {
+                    val msg = "The " + FRAME_NUMBER_PARAMETER_NAME + " parameter must be given with media type " + mediaType.get.getName + "."
+                    response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                    response.setEntity(msg, MediaType.TEXT_PLAIN);
+                    return None
+                }
+                List(FRAME_NUMBER_PARAMETER_NAME)
+            }
+            case _ => return Some(parameters)
+        }
+        try {
+            for (name <- nameList) {
+                getParam(name, paramList) match {
+                    case Some(p) => {
+                        p.setRecogonized
+                        parameters.set(name, p.getValue)
+                    }
+                    case None =>
+                }
+            }
+            Some(parameters)
+        }
+        catch {
+            case e:IllegalArgumentException => {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST)
+                response.setEntity(e.getMessage, MediaType.TEXT_PLAIN);
+                None
+            }
+        }
+    }
+
+
     /**
      * Check for any unrecognized parameters, and if none are found, return true (the good, happy thing),
      * otherwise return false and set the response to a failed status with a message
@@ -0,0 +1,739 @@
+package edu.umro.dicom.service;
+
+/*
+ * Copyright 2013 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import edu.umro.util.Log;
+
+/**
+ * Write a zip stream one entry at a time, with a choice of compression:
+ *
+ * <ul>
+ * <li>STORED: Entries are not compressed.  The sizes and CRC are put in the
+ * local header, because many zip readers can not read stored entries that
+ * are followed by a data descriptor.  Entries given with
+ * <code>writeEntry</code> are read twice, once for the CRC and once to be
+ * written, and other entries are buffered.</li>
+ * <li>DEFLATE: Entries are compressed at the given level as they are
+ * written, without buffering.</li>
+ * <li>PARALLEL: Each entry is buffered and compressed on a shared pool of
+ * threads while the next entry is being written.  Entries are written to
+ * the stream in the order they were given.  An entry that does not get
+ * smaller is stored instead.  An entry whose size is given and is larger
+ * than <code>MAX_BUFFERED</code> is compressed as it is written, as with
+ * DEFLATE.</li>
+ * </ul>
+ *
+ * Zip64 records are written when the stream grows past 4 gigabytes or has
+ * more than 65535 entries.  A single entry must be smaller than 4 gigabytes,
+ * which any DICOM object is.
+ *
+ * @author irrer
+ *
+ */
+public class ZipStreamWriter extends ArchiveStreamWriter {
+
+    /** Ways of compressing entries. */
+    public enum Mode {
+        STORED,
+        DEFLATE,
+        PARALLEL
+    }
+
+    /**
+     * Compression mode and level.
+     */
+    public static class Compression {
+        public final Mode mode;
+
+        /** Deflate level, 0 to 9, or -1 for the default. */
+        public final int level;
+
+        public Compression(Mode mode, int level) {
+            this.mode = mode;
+            this.level = level;
+        }
+
+        /**
+         * Parse text of the form <code>stored</code>, <code>deflate</code>,
+         * <code>deflate:level</code>, <code>parallel</code>, or
+         * <code>parallel:level</code>, where level is 0 through 9.  Case is
+         * ignored.
+         *
+         * @param text Text to parse.
+         *
+         * @return Compression, or null if the text is not valid.
+         */
+        public static Compression parse(String text) {
+            if (text == null) {
+                return null;
+            }
+            String[] part = text.trim().toUpperCase().split(":", -1);
+            if (part.length > 2) {
+                return null;
+            }
+            Mode mode;
+            try {
+                mode = Mode.valueOf(part[0].trim());
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+            int level = Deflater.DEFAULT_COMPRESSION;
+            if (part.length == 2) {
+                if (mode == Mode.STORED) {
+                    return null;
+                }
+                try {
+                    level = Integer.parseInt(part[1].trim());
+                }
+                catch (NumberFormatException e) {
+                    return null;
+                }
+                if ((level < Deflater.NO_COMPRESSION) || (level > Deflater.BEST_COMPRESSION)) {
+                    return null;
+                }
+            }
+            return new Compression(mode, level);
+        }
+
+        @Override
+        public String toString() {
+            return mode.toString().toLowerCase() + ((level == Deflater.DEFAULT_COMPRESSION) ? "" : (":" + level));
+        }
+    }
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    /** Sizes and CRC follow the entry data. */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    /** Entry names are UTF-8. */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    /** Size of chunks passed to and from the deflater. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Largest PARALLEL entry of known size that is buffered to be compressed. */
+    private static final long MAX_BUFFERED = 256 * 1024 * 1024;
+
+    /** Compresses entries for all PARALLEL streams. */
+    private static ExecutorService executor = null;
+
+    /** Number of threads in the executor. */
+    private static int threadCount = 0;
+
+    // metrics, across all streams
+    private static long streamCount = 0;
+    private static long entryCount = 0;
+    private static long uncompressedBytes = 0;
+    private static long compressedBytes = 0;
+    private static long storedInsteadCount = 0;
+
+    /**
+     * An entry that has been or is about to be written.
+     */
+    private static class Entry {
+        byte[] name;
+        int method;
+        int flags;
+        long crc = 0;
+        long compressedSize = 0;
+        long size = 0;
+        long offset = 0;
+
+        /** Content to write for a buffered entry, discarded once written.  Null if compressed as written. */
+        EntryBuffer data = null;
+    }
+
+    /**
+     * Computes the CRC and size of the content of a STORED entry, and
+     * optionally writes it to the zip.
+     */
+    private class EntryCopier extends OutputStream {
+        private final CRC32 check = new CRC32();
+        private final boolean copy;
+        private long count = 0;
+
+        private EntryCopier(boolean copy) {
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (copy) {
+                out.write(b, off, len);
+                written += len;
+            }
+            else {
+                check.update(b, off, len);
+            }
+        }
+    }
+
+    private final Compression compression;
+
+    /** Where the zip goes. */
+    private final OutputStream out;
+
+    /** Number of bytes written to <code>out</code>. */
+    private long written = 0;
+
+    /** Modification time given to all entries, in MS-DOS format. */
+    private final int dosTime;
+
+    /** Entries written, for the central directory. */
+    private final ArrayList<Entry> entryList = new ArrayList<Entry>();
+
+    /** Entry being written, or null if none. */
+    private Entry current = null;
+
+    private final CRC32 crc = new CRC32();
+
+    /** Compresses DEFLATE entries, and PARALLEL entries too large to buffer. */
+    private Deflater deflater = null;
+
+    private byte[] chunk = null;
+
+    /** Holds the content of a STORED or PARALLEL entry. */
+    private EntryBuffer buffer = null;
+
+    /** PARALLEL entries being compressed, in the order they are to be written. */
+    private final LinkedList<Future<Entry>> pendingList = new LinkedList<Future<Entry>>();
+
+    /** Maximum number of PARALLEL entries being compressed for this stream. */
+    private int maxPending = 0;
+
+    private final byte[] scratch = new byte[8];
+
+    private boolean finished = false;
+    private boolean closed = false;
+
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            threadCount = ServiceConfig.getInstance().getZipThreads();
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private int count = 0;
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Zip-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            Log.get().info("Zip compression threads: " + threadCount);
+        }
+        return executor;
+    }
+
+
+    /**
+     * Start a zip stream.
+     *
+     * @param outputStream Where the zip is written.  Closed when this is closed.
+     *
+     * @param compression How entries are compressed.
+     */
+    public ZipStreamWriter(OutputStream outputStream, Compression compression) {
+        this.compression = compression;
+        this.out = new BufferedOutputStream(outputStream, CHUNK_SIZE);
+        Calendar now = Calendar.getInstance();
+        dosTime =
+            ((Math.max(now.get(Calendar.YEAR), 1980) - 1980) << 25) |
+            ((now.get(Calendar.MONTH) + 1) << 21) |
+            (now.get(Calendar.DAY_OF_MONTH) << 16) |
+            (now.get(Calendar.HOUR_OF_DAY) << 11) |
+            (now.get(Calendar.MINUTE) << 5) |
+            (now.get(Calendar.SECOND) >> 1);
+        switch (compression.mode) {
+            case DEFLATE:
+                deflater = new Deflater(compression.level, true);
+                chunk = new byte[CHUNK_SIZE];
+                break;
+            case PARALLEL:
+                getExecutor();
+                synchronized (ZipStreamWriter.class) {
+                    maxPending = threadCount * 2;
+                }
+                break;
+            default:
+                break;
+        }
+        synchronized (ZipStreamWriter.class) {
+            streamCount++;
+        }
+    }
+
+
+    @Override
+    public void putNextEntry(String name) throws IOException {
+        putNextEntry(name, -1);
+    }
+
+
+    /**
+     * Start an entry of known size.  A PARALLEL entry is buffered in an
+     * array of exactly that size, or compressed as it is written if it is
+     * too large to buffer.
+     */
+    @Override
+    public void putNextEntry(String name, long size) throws IOException {
+        Entry entry = startEntry(name);
+        crc.reset();
+        if ((compression.mode == Mode.DEFLATE) || ((compression.mode == Mode.PARALLEL) && (size > MAX_BUFFERED))) {
+            if (deflater == null) {
+                deflater = new Deflater(compression.level, true);
+                chunk = new byte[CHUNK_SIZE];
+            }
+            // keep the entries in the order they were given
+            writeCompleted(true);
+            entry.method = METHOD_DEFLATED;
+            entry.flags |= FLAG_DATA_DESCRIPTOR;
+            entry.offset = written;
+            writeLocalHeader(entry);
+        }
+        else {
+            entry.method = METHOD_STORED;
+            if (buffer == null) {
+                buffer = new EntryBuffer((size > 0) ? (int) Math.min(size, MAX_BUFFERED) : CHUNK_SIZE);
+            }
+            buffer.reset();
+            entry.data = buffer;
+        }
+        current = entry;
+    }
+
+
+    /**
+     * Close the current entry and start a new one.
+     */
+    private Entry startEntry(String name) throws IOException {
+        if (finished) {
+            throw new IOException("Zip stream is already finished");
+        }
+        if (current != null) {
+            closeEntry();
+        }
+        Entry entry = new Entry();
+        try {
+            entry.name = name.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        }
+        entry.flags = FLAG_UTF8;
+        return entry;
+    }
+
+
+    /**
+     * Write a STORED entry without buffering it by reading the content
+     * twice: once for the CRC and once to write it after the local header.
+     * Other modes write the entry as usual.
+     */
+    @Override
+    public void writeEntry(String name, long size, EntrySource source) throws IOException {
+        if (compression.mode != Mode.STORED) {
+            super.writeEntry(name, size, source);
+            return;
+        }
+        if (size >= MAX_32) {
+            throw new IOException("Zip entry is too large: " + size + " bytes");
+        }
+        Entry entry = startEntry(name);
+        entry.method = METHOD_STORED;
+        EntryCopier check = new EntryCopier(false);
+        source.writeTo(check);
+        if (check.count != size) {
+            throw new IOException("Zip entry " + name + " has " + check.count + " bytes instead of the expected " + size);
+        }
+        entry.crc = check.check.getValue();
+        entry.size = size;
+        entry.compressedSize = size;
+        entry.offset = written;
+        writeLocalHeader(entry);
+        EntryCopier copy = new EntryCopier(true);
+        source.writeTo(copy);
+        if (copy.count != size) {
+            throw new IOException("Zip entry " + name + " changed size while being written");
+        }
+        entryList.add(entry);
+        count(entry);
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        scratch[0] = (byte) b;
+        write(scratch, 0, 1);
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (current == null) {
+            throw new IOException("No zip entry has been started");
+        }
+        crc.update(b, off, len);
+        current.size += len;
+        if (current.data == null) {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+        else {
+            buffer.write(b, off, len);
+        }
+    }
+
+
+    private void deflate() throws IOException {
+        int length = deflater.deflate(chunk, 0, chunk.length);
+        if (length > 0) {
+            out.write(chunk, 0, length);
+            written += length;
+            current.compressedSize += length;
+        }
+    }
+
+
+    @Override
+    public void closeEntry() throws IOException {
+        Entry entry = current;
+        if (entry == null) {
+            return;
+        }
+        entry.crc = crc.getValue();
+        if (entry.size >= MAX_32) {
+            throw new IOException("Zip entry is too large: " + entry.size + " bytes");
+        }
+
+        if (entry.data == null) {
+            // compressed as it was written
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            deflater.reset();
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt((int) entry.crc);
+            writeInt((int) entry.compressedSize);
+            writeInt((int) entry.size);
+            entryList.add(entry);
+            count(entry);
+        }
+        else if (compression.mode == Mode.STORED) {
+            entry.compressedSize = entry.size;
+            writeBufferedEntry(entry);
+        }
+        else {
+            buffer = null;   // owned by the compressing thread now
+            final Entry pending = entry;
+            final int level = compression.level;
+            pendingList.addLast(getExecutor().submit(new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    return compress(pending, level);
+                }
+            }));
+            writeCompleted(false);
+        }
+        current = null;
+    }
+
+
+    /**
+     * Compress the buffered content of an entry, storing it instead if it
+     * does not get smaller.
+     */
+    private static Entry compress(Entry entry, int level) {
+        EntryBuffer compressed = new EntryBuffer(Math.max(1024, entry.data.size() / 2));
+        Deflater deflater = new Deflater(level, true);
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            deflater.setInput(entry.data.getBuffer(), 0, entry.data.size());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk, 0, chunk.length);
+                compressed.write(chunk, 0, length);
+                if (compressed.size() >= entry.size) {
+                    break;
+                }
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        if (compressed.size() < entry.size) {
+            entry.method = METHOD_DEFLATED;
+            entry.data = compressed;
+        }
+        else {
+            synchronized (ZipStreamWriter.class) {
+                storedInsteadCount++;
+            }
+        }
+        entry.compressedSize = entry.data.size();
+        return entry;
+    }
+
+
+    /**
+     * Write PARALLEL entries that have been compressed, in order.
+     *
+     * @param all If true, wait for and write all of them.  Otherwise only
+     * wait when too many are pending.
+     */
+    private void writeCompleted(boolean all) throws IOException {
+        while (!pendingList.isEmpty() && (all || pendingList.getFirst().isDone() || (pendingList.size() > maxPending))) {
+            Future<Entry> future = pendingList.removeFirst();
+            try {
+                writeBufferedEntry(future.get());
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Unable to compress zip entry: " + e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing zip entry");
+            }
+        }
+    }
+
+
+    private void writeBufferedEntry(Entry entry) throws IOException {
+        entry.offset = written;
+        writeLocalHeader(entry);
+        out.write(entry.data.getBuffer(), 0, entry.data.size());
+        written += entry.data.size();
+        entry.data = null;
+        entryList.add(entry);
+        count(entry);
+    }
+
+
+    private static synchronized void count(Entry entry) {
+        entryCount++;
+        uncompressedBytes += entry.size;
+        compressedBytes += entry.compressedSize;
+    }
+
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(dosTime);
+        writeInt(descriptor ? 0 : (int) entry.crc);
+        writeInt(descriptor ? 0 : (int) entry.compressedSize);
+        writeInt(descriptor ? 0 : (int) entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        writeBytes(entry.name);
+    }
+
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean zip64 = entry.offset >= MAX_32;
+        int version = zip64 ? VERSION_ZIP64 : VERSION;
+        writeInt(CENTRAL_HEADER_SIGNATURE);
+        writeShort(version);
+        writeShort(version);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(dosTime);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 12 : 0);
+        writeShort(0);   // comment length
+        writeShort(0);   // disk number
+        writeShort(0);   // internal attributes
+        writeInt(0);     // external attributes
+        writeInt(zip64 ? (int) MAX_32 : (int) entry.offset);
+        writeBytes(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(8);
+            writeLong(entry.offset);
+        }
+    }
+
+
+    /**
+     * Finish the zip by writing the central directory.  The underlying
+     * stream is flushed but not closed.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        writeCompleted(true);
+        finished = true;
+
+        long directoryOffset = written;
+        for (Entry entry : entryList) {
+            writeCentralHeader(entry);
+        }
+        long directorySize = written - directoryOffset;
+        long count = entryList.size();
+
+        if ((count >= MAX_16) || (directoryOffset >= MAX_32) || (directorySize >= MAX_32)) {
+            long zip64EndOffset = written;
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(directorySize);
+            writeLong(directoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(count, MAX_16));
+        writeShort((int) Math.min(count, MAX_16));
+        writeInt((int) Math.min(directorySize, MAX_32));
+        writeInt((int) Math.min(directoryOffset, MAX_32));
+        writeShort(0);
+        out.flush();
+    }
+
+
+    /**
+     * Finish the zip and close the underlying stream.  Calling this more
+     * than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        }
+        finally {
+            for (Future<Entry> future : pendingList) {
+                future.cancel(false);
+            }
+            pendingList.clear();
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+
+    private void writeShort(int value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        out.write(scratch, 0, 2);
+        written += 2;
+    }
+
+
+    private void writeInt(int value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        scratch[2] = (byte) (value >>> 16);
+        scratch[3] = (byte) (value >>> 24);
+        out.write(scratch, 0, 4);
+        written += 4;
+    }
+
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+        written += bytes.length;
+    }
+
+
+    /**
+     * @return Metrics as XML.
+     */
+    public static synchronized String getStatusAsXML() {
+        return
+            "<ZipOutput>\n" +
+            "    <DefaultCompression>" + ServiceConfig.getInstance().getZipCompression() + "</DefaultCompression>\n" +
+            "    <Threads>" + threadCount + "</Threads>\n" +
+            "    <Streams>" + streamCount + "</Streams>\n" +
+            "    <Entries>" + entryCount + "</Entries>\n" +
+            "    <UncompressedBytes>" + uncompressedBytes + "</UncompressedBytes>\n" +
+            "    <CompressedBytes>" + compressedBytes + "</CompressedBytes>\n" +
+            "    <StoredInstead>" + storedInsteadCount + "</StoredInstead>\n" +
+            "</ZipOutput>\n";
+    }
+}